@@ -0,0 +1,238 @@
+package com.gmail.dengtao.joe.transport.benchmark;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Runs the iterations of benchmarks and reports their throughput as a table and as JSON.<br>
+ * Every benchmark runs some warmup iterations, then some measurement iterations of at least
+ * {@link #ITERATION_NANOS}, and its score is the mean operations per second of the measurement iterations.
+ * <p>
+ * The JSON is an array with an object per benchmark in the layout of JMH's JSON result
+ * (<code>benchmark, mode, params, warmupIterations, measurementIterations, primaryMetric</code>), so the tools
+ * reading JMH results can read it. It is written to the file of system property <code>benchmark.result</code>,
+ * or to the standard output if the property is not set.
+ * <p>
+ * System properties:
+ * <ul>
+ * <li><code>benchmark.warmup</code>: warmup iterations, default 3</li>
+ * <li><code>benchmark.iterations</code>: measurement iterations, default 5</li>
+ * <li><code>benchmark.iterationMillis</code>: least milliseconds of an iteration, default 1000</li>
+ * <li><code>benchmark.result</code>: file the JSON is written to</li>
+ * </ul>
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class BenchmarkRunner {
+
+	/** Least nanoseconds of an iteration by default */
+	public static final long ITERATION_NANOS = 1000000000L;
+
+	/**
+	 * Operations under test.
+	 */
+	public interface Workload {
+
+		/**
+		 * Run a batch of operations, called repeatedly until the iteration has taken its time.
+		 * @return number of operations run
+		 * @throws Exception
+		 */
+		long run() throws Exception;
+	}
+
+	private final String suite;
+	private final int warmupIterations;
+	private final int measurementIterations;
+	private final long iterationNanos;
+	private final List<Result> results = new ArrayList<Result>();
+
+	private static volatile long blackhole;	// operations of every batch, keeps batches from being optimized away
+
+	/**
+	 * @param suite prefix of the benchmarks' names, e.g. the benchmark class
+	 */
+	public BenchmarkRunner(String suite) {
+		this.suite = suite;
+		this.warmupIterations = Integer.getInteger("benchmark.warmup", 3);
+		this.measurementIterations = Integer.getInteger("benchmark.iterations", 5);
+		this.iterationNanos = Long.getLong("benchmark.iterationMillis", ITERATION_NANOS / 1000000) * 1000000;
+		if (measurementIterations < 1 || iterationNanos < 1) {
+			throw new IllegalArgumentException("Illegal iterations: " + measurementIterations + " x " + iterationNanos + "ns");
+		}
+		System.out.println(String.format("%-48s %-36s %16s %12s", "benchmark", "params", "ops/s", "error"));
+	}
+
+	/**
+	 * Run a benchmark and print its score.
+	 * @param name name of the benchmark
+	 * @param params parameters of the benchmark, may be empty
+	 * @param workload operations under test
+	 * @throws Exception thrown by the workload
+	 */
+	public void run(String name, Map<String, String> params, Workload workload) throws Exception {
+		for (int i = 0; i < warmupIterations; i++) {
+			iteration(workload);
+		}
+		double[] scores = new double[measurementIterations];
+		for (int i = 0; i < measurementIterations; i++) {
+			scores[i] = iteration(workload);
+		}
+		Result result = new Result(suite + "." + name, new LinkedHashMap<String, String>(params), scores);
+		results.add(result);
+		System.out.println(String.format("%-48s %-36s %16.0f %12.0f", result.benchmark, result.params, result.getScore(), result.getScoreError()));
+	}
+
+	/**
+	 * @return operations per second of an iteration
+	 */
+	private double iteration(Workload workload) throws Exception {
+		long operations = 0;
+		long begin = System.nanoTime();
+		long elapsed;
+		do {
+			operations += workload.run();
+			elapsed = System.nanoTime() - begin;
+		} while (elapsed < iterationNanos);
+		blackhole += operations;
+		return operations * 1e9 / elapsed;
+	}
+
+	/**
+	 * Write the results of the benchmarks run by this runner as JSON.
+	 * @throws IOException If the result file can not be written
+	 */
+	public void writeResults() throws IOException {
+		String file = System.getProperty("benchmark.result");
+		PrintWriter writer;
+		if (file == null) {
+			writer = new PrintWriter(new OutputStreamWriter(System.out, "UTF-8"));
+		} else {
+			writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		}
+		try {
+			writer.print(toJson());
+			writer.println();
+		} finally {
+			if (file == null) {
+				writer.flush();
+			} else {
+				writer.close();
+			}
+		}
+	}
+
+	/**
+	 * @return results of the benchmarks run by this runner as a JSON array
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < results.size(); i++) {
+			Result result = results.get(i);
+			json.append(i == 0 ? "\n" : ",\n");
+			json.append("  {\n");
+			json.append("    \"benchmark\" : ").append(quote(result.benchmark)).append(",\n");
+			json.append("    \"mode\" : \"thrpt\",\n");
+			json.append("    \"warmupIterations\" : ").append(warmupIterations).append(",\n");
+			json.append("    \"measurementIterations\" : ").append(measurementIterations).append(",\n");
+			json.append("    \"measurementTime\" : \"").append(iterationNanos / 1000000).append(" ms\",\n");
+			json.append("    \"params\" : {");
+			boolean first = true;
+			for (Entry<String, String> param : result.params.entrySet()) {
+				json.append(first ? " " : ", ").append(quote(param.getKey())).append(" : ").append(quote(param.getValue()));
+				first = false;
+			}
+			json.append(first ? "},\n" : " },\n");
+			json.append("    \"primaryMetric\" : {\n");
+			json.append("      \"score\" : ").append(result.getScore()).append(",\n");
+			json.append("      \"scoreError\" : ").append(result.getScoreError()).append(",\n");
+			json.append("      \"scoreUnit\" : \"ops/s\",\n");
+			json.append("      \"rawData\" : [ [ ");
+			for (int j = 0; j < result.scores.length; j++) {
+				json.append(j == 0 ? "" : ", ").append(result.scores[j]);
+			}
+			json.append(" ] ]\n");
+			json.append("    }\n");
+			json.append("  }");
+		}
+		return json.append(results.isEmpty() ? "]" : "\n]").toString();
+	}
+
+	/**
+	 * @return the string as a JSON string
+	 */
+	private static String quote(String s) {
+		StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			} else if (c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	/**
+	 * @param keyValues parameter names followed by their values
+	 * @return ordered parameters of a benchmark
+	 */
+	public static Map<String, String> params(Object... keyValues) {
+		if (keyValues.length % 2 != 0) {
+			throw new IllegalArgumentException("Parameters must be name and value pairs");
+		}
+		Map<String, String> params = new LinkedHashMap<String, String>();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			params.put(String.valueOf(keyValues[i]), String.valueOf(keyValues[i + 1]));
+		}
+		return params;
+	}
+
+	private static class Result {
+
+		private final String benchmark;
+		private final Map<String, String> params;
+		private final double[] scores;
+
+		Result(String benchmark, Map<String, String> params, double[] scores) {
+			this.benchmark = benchmark;
+			this.params = params;
+			this.scores = scores;
+		}
+
+		double getScore() {
+			double sum = 0;
+			for (double score : scores) {
+				sum += score;
+			}
+			return sum / scores.length;
+		}
+
+		/**
+		 * @return half width of the 99.9% confidence interval of the score by the normal distribution, 0 if there is one iteration
+		 */
+		double getScoreError() {
+			if (scores.length < 2) {
+				return 0;
+			}
+			double mean = getScore();
+			double squares = 0;
+			for (double score : scores) {
+				squares += (score - mean) * (score - mean);
+			}
+			return 3.29 * Math.sqrt(squares / (scores.length - 1)) / Math.sqrt(scores.length);
+		}
+	}
+
+}
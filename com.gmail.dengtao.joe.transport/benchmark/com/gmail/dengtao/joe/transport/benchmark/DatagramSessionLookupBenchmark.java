@@ -0,0 +1,109 @@
+package com.gmail.dengtao.joe.transport.benchmark;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.gmail.dengtao.joe.transport.DatagramAcceptor;
+import com.gmail.dengtao.joe.transport.session.impl.DatagramSession;
+import com.gmail.dengtao.joe.transport.util.PackedAddressMap;
+
+/**
+ * Lookup benchmark of the datagram sessions of {@link DatagramAcceptor}.<br>
+ * Looks up the session of every received datagram by its sender, in random order of the peers; compares a
+ * <code>ConcurrentHashMap&lt;SocketAddress, DatagramSession&gt;</code> (the former session cache) with
+ * {@link PackedAddressMap} (the acceptor's session table). Senders are distinct address instances equal to the keys,
+ * like the addresses returned by every receive; they are created before the benchmark, so only the lookup is measured.
+ * One lookup is an operation.
+ * <p>
+ * Usage: DatagramSessionLookupBenchmark [peers...]
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class DatagramSessionLookupBenchmark {
+
+	private static final int BATCH = 10000;
+
+	private static int found;	// sessions found, keeps lookups from being optimized away
+
+	public static void main(String[] args) throws Exception {
+		int[] counts = { 16, 1024, 65536, 1048576 };
+		if (args.length > 0) {
+			counts = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				counts[i] = Integer.parseInt(args[i]);
+			}
+		}
+		BenchmarkRunner runner = new BenchmarkRunner(DatagramSessionLookupBenchmark.class.getSimpleName());
+		// every peer has the same session, only the keys matter
+		DatagramSession session = new DatagramSession();
+		for (int count : counts) {
+			final ConcurrentMap<SocketAddress, DatagramSession> sessionCache = new ConcurrentHashMap<SocketAddress, DatagramSession>();
+			final PackedAddressMap<DatagramSession> sessionTable = new PackedAddressMap<DatagramSession>();
+			for (int i = 0; i < count; i++) {
+				InetSocketAddress address = address(i);
+				sessionCache.put(address, session);
+				sessionTable.put(address, session);
+			}
+			final InetSocketAddress[] senders = new InetSocketAddress[count];
+			Random random = new Random(count);
+			for (int i = 0; i < count; i++) {
+				int j = random.nextInt(i + 1);
+				senders[i] = senders[j];
+				senders[j] = address(i);
+			}
+			runner.run("concurrentHashMap", BenchmarkRunner.params("peers", count), new BenchmarkRunner.Workload() {
+
+				private int next;
+
+				@Override
+				public long run() {
+					int hits = 0;
+					for (int i = 0; i < BATCH; i++) {
+						if (sessionCache.get(senders[next]) != null) {
+							hits++;
+						}
+						if (++next == senders.length) {
+							next = 0;
+						}
+					}
+					found += hits;
+					return BATCH;
+				}
+			});
+			runner.run("packedAddressMap", BenchmarkRunner.params("peers", count), new BenchmarkRunner.Workload() {
+
+				private int next;
+
+				@Override
+				public long run() {
+					int hits = 0;
+					for (int i = 0; i < BATCH; i++) {
+						if (sessionTable.get(senders[next]) != null) {
+							hits++;
+						}
+						if (++next == senders.length) {
+							next = 0;
+						}
+					}
+					found += hits;
+					return BATCH;
+				}
+			});
+		}
+		runner.writeResults();
+	}
+
+	/**
+	 * @return a new address instance of the n-th peer
+	 */
+	private static InetSocketAddress address(int n) throws Exception {
+		InetAddress host = InetAddress.getByAddress(new byte[] { 10, (byte) (n >>> 16), (byte) (n >>> 8), (byte) n });
+		return new InetSocketAddress(host, 1024 + (n >>> 24));
+	}
+
+}
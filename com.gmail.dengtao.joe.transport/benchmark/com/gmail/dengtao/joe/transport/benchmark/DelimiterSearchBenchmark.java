@@ -0,0 +1,160 @@
+package com.gmail.dengtao.joe.transport.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+
+import com.gmail.dengtao.joe.transport.filter.FilterChain;
+import com.gmail.dengtao.joe.transport.filter.codec.DelimiterFrameFilter;
+import com.gmail.dengtao.joe.transport.handler.HandlerAdapter;
+import com.gmail.dengtao.joe.transport.session.Session;
+import com.gmail.dengtao.joe.transport.session.impl.DatagramSession;
+import com.gmail.dengtao.joe.transport.util.ByteSearch;
+
+/**
+ * Benchmark of searching line delimiters.<br>
+ * Compares a byte by byte scan with {@link ByteSearch} on a buffer of <code>"\r\n"</code> ended lines, and
+ * compares a decoder which rescans its accumulated bytes from the beginning after every read with
+ * {@link DelimiterFrameFilter}, which continues where it stopped, when lines are received in small reads.
+ * A round searches 4MB of lines, one byte searched is an operation.
+ * <p>
+ * Usage: DelimiterSearchBenchmark [averageLineLength] [readSize]
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class DelimiterSearchBenchmark {
+
+	private static final int DATA_SIZE = 4 * 1024 * 1024;
+	private static final byte[] CRLF = DelimiterFrameFilter.CRLF;
+
+	private static volatile int lines;	// lines counted by a round, keeps rounds from being optimized away
+
+	public static void main(String[] args) throws Exception {
+		int averageLineLength = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int readSize = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		final byte[] data = newData(averageLineLength);
+
+		BenchmarkRunner runner = new BenchmarkRunner(DelimiterSearchBenchmark.class.getSimpleName());
+		Map<String, String> params = BenchmarkRunner.params("averageLineLength", averageLineLength);
+		run(runner, "byteByByte", params, new Round() {
+			@Override
+			public int run() {
+				return naiveCount(ByteBuffer.wrap(data));
+			}
+		});
+		run(runner, "byteSearch", params, new Round() {
+			@Override
+			public int run() {
+				return swarCount(ByteBuffer.wrap(data));
+			}
+		});
+		final int chunk = readSize;
+		params = BenchmarkRunner.params("averageLineLength", averageLineLength, "readSize", readSize);
+		run(runner, "readsRescan", params, new Round() {
+			@Override
+			public int run() {
+				return rescanDecode(data, chunk);
+			}
+		});
+		run(runner, "readsDelimiterFrameFilter", params, new Round() {
+			@Override
+			public int run() {
+				return filterDecode(data, chunk);
+			}
+		});
+		runner.writeResults();
+	}
+
+	interface Round {
+		int run();
+	}
+
+	private static void run(BenchmarkRunner runner, String name, Map<String, String> params, final Round round) throws Exception {
+		runner.run(name, params, new BenchmarkRunner.Workload() {
+			@Override
+			public long run() {
+				lines = round.run();
+				return DATA_SIZE;
+			}
+		});
+	}
+
+	private static byte[] newData(int averageLineLength) {
+		Random random = new Random(0);
+		byte[] data = new byte[DATA_SIZE];
+		int lineEnd = 0;
+		for (int i = 0; i < data.length; i++) {
+			if (i == lineEnd && i + 1 < data.length) {
+				data[i++] = '\r';
+				data[i] = '\n';
+				lineEnd = i + 1 + random.nextInt(averageLineLength * 2 + 1);
+			} else {
+				data[i] = (byte) ('a' + random.nextInt(26));
+			}
+		}
+		return data;
+	}
+
+	private static int naiveCount(ByteBuffer buffer) {
+		int count = 0;
+		for (int i = 0, limit = buffer.limit() - 1; i < limit; i++) {
+			if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n') {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static int swarCount(ByteBuffer buffer) {
+		int count = 0;
+		for (int i = 0, limit = buffer.limit(); (i = ByteSearch.indexOf(buffer, i, limit, CRLF)) >= 0; i += CRLF.length) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Decode like a handler which appends every read to its buffer and scans it from the line start.
+	 */
+	private static int rescanDecode(byte[] data, int readSize) {
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		int count = 0;
+		for (int i = 0; i < data.length; i += readSize) {
+			buffer.put(data, i, Math.min(readSize, data.length - i));
+			buffer.flip();
+			int start = 0;
+			for (int j = 0, limit = buffer.limit() - 1; j < limit; j++) {
+				if (buffer.get(j) == '\r' && buffer.get(j + 1) == '\n') {
+					count++;
+					start = j + 2;
+					j++;
+				}
+			}
+			buffer.position(start);
+			buffer.compact();
+		}
+		return count;
+	}
+
+	private static int filterDecode(byte[] data, int readSize) {
+		final int[] count = new int[1];
+		FilterChain filterChain = new FilterChain();
+		filterChain.setHandler(new HandlerAdapter() {
+			@Override
+			public void dataReceived(Session session, Object line) {
+				count[0]++;
+			}
+		});
+		filterChain.addLast("line", new DelimiterFrameFilter(64 * 1024, CRLF));
+		Session session = new DatagramSession();
+		ByteBuffer in = ByteBuffer.wrap(data);
+		for (int i = 0; i < data.length; i += readSize) {
+			in.limit(Math.min(i + readSize, data.length));
+			in.position(i);
+			filterChain.fireDataReceived(session, in.slice());
+		}
+		return count[0];
+	}
+
+}
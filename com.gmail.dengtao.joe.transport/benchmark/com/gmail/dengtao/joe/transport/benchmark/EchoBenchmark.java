@@ -0,0 +1,119 @@
+package com.gmail.dengtao.joe.transport.benchmark;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import com.gmail.dengtao.joe.transport.Acceptor;
+import com.gmail.dengtao.joe.transport.DatagramAcceptor;
+import com.gmail.dengtao.joe.transport.SocketAcceptor;
+import com.gmail.dengtao.joe.transport.handler.HandlerAdapter;
+import com.gmail.dengtao.joe.transport.session.Session;
+
+/**
+ * Round trip benchmark of loopback TCP and UDP echo.<br>
+ * A {@link SocketAcceptor} or {@link DatagramAcceptor} echoes every received data, one blocking client sends a message
+ * and waits for its echo; one round trip is an operation.
+ * <p>
+ * Usage: EchoBenchmark [messageSize]
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class EchoBenchmark {
+
+	private static final int BATCH = 100;
+
+	public static void main(String[] args) throws Exception {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		BenchmarkRunner runner = new BenchmarkRunner(EchoBenchmark.class.getSimpleName());
+
+		int port = freePort();
+		SocketAcceptor socketAcceptor = new SocketAcceptor("127.0.0.1", port);
+		start(socketAcceptor);
+		final Socket socket = new Socket("127.0.0.1", port);
+		socket.setTcpNoDelay(true);
+		final OutputStream out = socket.getOutputStream();
+		final DataInputStream in = new DataInputStream(socket.getInputStream());
+		final byte[] message = new byte[size];
+		final byte[] echo = new byte[size];
+		runner.run("tcpRoundTrip", BenchmarkRunner.params("size", size), new BenchmarkRunner.Workload() {
+			@Override
+			public long run() throws Exception {
+				for (int i = 0; i < BATCH; i++) {
+					out.write(message);
+					in.readFully(echo);
+				}
+				return BATCH;
+			}
+		});
+		socket.close();
+		socketAcceptor.stop();
+
+		port = freePort();
+		DatagramAcceptor datagramAcceptor = new DatagramAcceptor("127.0.0.1", port);
+		start(datagramAcceptor);
+		final DatagramSocket datagramSocket = new DatagramSocket();
+		datagramSocket.setSoTimeout(1000);
+		final DatagramPacket request = new DatagramPacket(message, size, new InetSocketAddress("127.0.0.1", port));
+		final DatagramPacket response = new DatagramPacket(echo, size);
+		runner.run("udpRoundTrip", BenchmarkRunner.params("size", size), new BenchmarkRunner.Workload() {
+			@Override
+			public long run() throws Exception {
+				for (int i = 0; i < BATCH; i++) {
+					datagramSocket.send(request);
+					datagramSocket.receive(response);
+				}
+				return BATCH;
+			}
+		});
+		datagramSocket.close();
+		datagramAcceptor.stop();
+
+		runner.writeResults();
+		System.exit(0);
+	}
+
+	/**
+	 * Start the acceptor by another thread with a handler echoing received data, and wait until it is bound.
+	 */
+	private static void start(final Acceptor acceptor) throws Exception {
+		acceptor.init();
+		acceptor.setHandler(new HandlerAdapter() {
+			@Override
+			public void dataReceived(Session session, Object data) {
+				session.send(data);
+			}
+		});
+		final Object lock = new Object();
+		synchronized (lock) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						acceptor.start(lock);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}, acceptor.getClass().getSimpleName());
+			thread.setDaemon(true);
+			thread.start();
+			lock.wait(10000);
+		}
+	}
+
+	private static int freePort() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+}
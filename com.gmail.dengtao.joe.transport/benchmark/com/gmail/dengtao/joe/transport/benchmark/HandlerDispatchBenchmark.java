@@ -0,0 +1,101 @@
+package com.gmail.dengtao.joe.transport.benchmark;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.gmail.dengtao.joe.transport.filter.FilterChain;
+import com.gmail.dengtao.joe.transport.handler.HandlerAdapter;
+import com.gmail.dengtao.joe.transport.session.Session;
+import com.gmail.dengtao.joe.transport.session.impl.DatagramSession;
+import com.gmail.dengtao.joe.transport.util.VirtualThreads;
+
+/**
+ * Dispatch benchmark of blocking handlers.<br>
+ * One thread, playing the I/O thread, fires received data of many concurrent sessions to a {@link FilterChain}
+ * whose handler blocks for a while on every event (like a database call); compares calling the handler by a pool
+ * of platform threads with calling it by virtual threads. Virtual threads are skipped if the JVM does not support them.
+ * A round fires <code>eventsPerSession</code> events of every session and waits for the handler to return from them,
+ * one event is an operation.
+ * <p>
+ * Usage: HandlerDispatchBenchmark [sessions] [eventsPerSession] [blockMillis] [platformThreads]
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class HandlerDispatchBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int events = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		long blockMillis = args.length > 2 ? Long.parseLong(args[2]) : 5;
+		int platformThreads = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+
+		BenchmarkRunner runner = new BenchmarkRunner(HandlerDispatchBenchmark.class.getSimpleName());
+		ExecutorService platform = Executors.newFixedThreadPool(platformThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		run(runner, "platformThreads", BenchmarkRunner.params("sessions", sessions, "eventsPerSession", events, "blockMillis", blockMillis, "threads", platformThreads),
+				platform, sessions, events, blockMillis);
+		platform.shutdown();
+		if (VirtualThreads.isSupported()) {
+			ExecutorService virtual = VirtualThreads.newThreadPerTaskExecutor();
+			run(runner, "virtualThreads", BenchmarkRunner.params("sessions", sessions, "eventsPerSession", events, "blockMillis", blockMillis),
+					virtual, sessions, events, blockMillis);
+			virtual.shutdown();
+		} else {
+			System.out.println("virtualThreads not supported by Java " + System.getProperty("java.version"));
+		}
+		runner.writeResults();
+	}
+
+	private static void run(BenchmarkRunner runner, String name, Map<String, String> params, final ExecutorService executor,
+			final int sessions, final int events, final long blockMillis) throws Exception {
+		runner.run(name, params, new BenchmarkRunner.Workload() {
+			@Override
+			public long run() throws InterruptedException {
+				return round(executor, sessions, events, blockMillis);
+			}
+		});
+	}
+
+	/**
+	 * @return number of events the handler returned from
+	 */
+	private static long round(ExecutorService executor, int sessions, int events, final long blockMillis) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(sessions * events);
+		FilterChain filterChain = new FilterChain();
+		filterChain.setHandler(new HandlerAdapter() {
+			@Override
+			public void dataReceived(Session session, Object data) {
+				try {
+					Thread.sleep(blockMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				done.countDown();
+			}
+		});
+		filterChain.setHandlerExecutor(executor);
+		Session[] concurrentSessions = new Session[sessions];
+		for (int i = 0; i < sessions; i++) {
+			concurrentSessions[i] = new DatagramSession();
+		}
+		byte[] data = new byte[64];
+		for (int n = 0; n < events; n++) {
+			for (Session session : concurrentSessions) {
+				filterChain.fireDataReceived(session, data);
+			}
+		}
+		done.await();
+		return (long) sessions * events;
+	}
+
+}
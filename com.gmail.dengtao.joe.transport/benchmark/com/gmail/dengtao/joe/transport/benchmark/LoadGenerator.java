@@ -0,0 +1,503 @@
+package com.gmail.dengtao.joe.transport.benchmark;
+
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.gmail.dengtao.joe.transport.Acceptor;
+import com.gmail.dengtao.joe.transport.DatagramAcceptor;
+import com.gmail.dengtao.joe.transport.DatagramMultiConnector;
+import com.gmail.dengtao.joe.transport.SocketAcceptor;
+import com.gmail.dengtao.joe.transport.SocketMultiConnector;
+import com.gmail.dengtao.joe.transport.handler.HandlerAdapter;
+import com.gmail.dengtao.joe.transport.metrics.LatencyHistogram;
+import com.gmail.dengtao.joe.transport.session.Session;
+
+/**
+ * Load generator of loopback echo servers, reports throughput and latency percentiles.<br>
+ * Opens many connections by {@link SocketMultiConnector} or {@link DatagramMultiConnector} to an echo server started
+ * in this process, and sends fixed size messages at a fixed total rate, round-robin over the connections:
+ * <ul>
+ * <li><code>request</code> workload: a connection has one request outstanding, the next request of the connection
+ * is sent when the response is received;</li>
+ * <li><code>stream</code> workload: messages are sent without waiting for their echoes.</li>
+ * </ul>
+ * Every message carries the time it was scheduled to be sent, and its latency is measured from that time to the time its
+ * echo is received, so a request delayed by a slow response before it, or by the sending thread, counts the delay
+ * (coordinated omission correction).
+ * <p>
+ * The same workload is run against the framework's acceptor and against {@link RawNioEchoServer}, a plain NIO echo
+ * server, with the same client, so the difference is the overhead of the framework's server side.
+ * <p>
+ * Usage: LoadGenerator [--transport tcp|udp] [--workload request|stream] [--target framework|raw|both]
+ * [--connections 1000] [--rate 20000] [--size 64] [--warmup 3] [--duration 10] [--serverThreads 1] [--timeout 1000]
+ * <br>rate is messages per second of all connections, warmup and duration are seconds, timeout is milliseconds a UDP
+ * request is waited for before it is counted lost; serverThreads are the I/O processors of a TCP acceptor, the
+ * <code>SO_REUSEPORT</code> shards of a UDP acceptor and the workers of the raw TCP server.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class LoadGenerator {
+
+	private static final String HOST = "127.0.0.1";
+	private static final String CONNECTION = LoadGenerator.class.getName() + ".connection";
+	private static final int TIMESTAMP_SIZE = 8;
+
+	private final Map<String, String> options = new LinkedHashMap<String, String>();
+
+	private final boolean udp;
+	private final boolean stream;
+	private final int connections;
+	private final int rate;
+	private final int size;
+	private final int warmup;
+	private final int duration;
+	private final int serverThreads;
+	private final long timeoutNanos;
+
+	private final LatencyHistogram histogram = new LatencyHistogram();
+	private final AtomicLong lost = new AtomicLong();
+	private volatile long recordFrom;	// echoes of messages scheduled before this time are not recorded, e.g. warmup's
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator(args);
+		String target = generator.option("target", "both");
+		System.out.println(generator.options);
+		System.out.println(String.format("%-10s %12s %12s %12s %10s %10s %10s %10s %10s %8s",
+				"target", "sent", "received", "received/s", "mean(us)", "p50(us)", "p99(us)", "p99.9(us)", "max(us)", "lost"));
+		Result framework = null;
+		Result raw = null;
+		if (target.equals("framework") || target.equals("both")) {
+			framework = generator.run(false);
+			System.out.println(framework);
+		}
+		if (target.equals("raw") || target.equals("both")) {
+			raw = generator.run(true);
+			System.out.println(raw);
+		}
+		if (framework != null && raw != null) {
+			System.out.println(String.format("framework overhead: throughput %.1f%%, p50 +%dus, p99 +%dus, p99.9 +%dus",
+					(framework.getThroughput() / raw.getThroughput() - 1) * 100,
+					(framework.snapshot.getValueAtPercentile(50) - raw.snapshot.getValueAtPercentile(50)) / 1000,
+					(framework.snapshot.getValueAtPercentile(99) - raw.snapshot.getValueAtPercentile(99)) / 1000,
+					(framework.snapshot.getValueAtPercentile(99.9) - raw.snapshot.getValueAtPercentile(99.9)) / 1000));
+		}
+		System.exit(0);
+	}
+
+	public LoadGenerator(String[] args) {
+		for (int i = 0; i < args.length; i += 2) {
+			if (!args[i].startsWith("--") || i + 1 == args.length) {
+				throw new IllegalArgumentException("Options are --name value pairs: " + args[i]);
+			}
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+		String transport = option("transport", "tcp");
+		String workload = option("workload", "request");
+		if (!transport.equals("tcp") && !transport.equals("udp")) {
+			throw new IllegalArgumentException("Illegal transport: " + transport);
+		}
+		if (!workload.equals("request") && !workload.equals("stream")) {
+			throw new IllegalArgumentException("Illegal workload: " + workload);
+		}
+		udp = transport.equals("udp");
+		stream = workload.equals("stream");
+		connections = Integer.parseInt(option("connections", "1000"));
+		rate = Integer.parseInt(option("rate", "20000"));
+		size = Integer.parseInt(option("size", "64"));
+		warmup = Integer.parseInt(option("warmup", "3"));
+		duration = Integer.parseInt(option("duration", "10"));
+		serverThreads = Integer.parseInt(option("serverThreads", "1"));
+		timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(option("timeout", "1000")));
+		if (connections < 1 || rate < 1 || duration < 1 || warmup < 0) {
+			throw new IllegalArgumentException("connections, rate and duration must be positive, warmup must not be negative");
+		}
+		if (size < TIMESTAMP_SIZE) {
+			throw new IllegalArgumentException("size must not be less than " + TIMESTAMP_SIZE);
+		}
+	}
+
+	private String option(String name, String defaultValue) {
+		String value = options.get(name);
+		if (value == null) {
+			options.put(name, defaultValue);
+			return defaultValue;
+		}
+		return value;
+	}
+
+	/**
+	 * Run the workload against an echo server started by this method.
+	 * @param raw whether the server is {@link RawNioEchoServer} or the framework's acceptor
+	 */
+	private Result run(boolean raw) throws Exception {
+		int port = freePort();
+		RawNioEchoServer rawServer = null;
+		Acceptor acceptor = null;
+		if (raw) {
+			rawServer = new RawNioEchoServer(HOST, port, udp, serverThreads);
+			rawServer.start();
+		} else {
+			acceptor = startAcceptor(port);
+		}
+		Client client = udp ? new UdpClient() : new TcpClient();
+		try {
+			Connection[] opened = client.open(port);
+			// warmup, the latencies are dropped
+			long begin = System.nanoTime();
+			long end = begin + TimeUnit.SECONDS.toNanos(warmup);
+			recordFrom = end;
+			send(opened, begin, end);
+			// measurement, messages are scheduled from the end of the warmup, so the warmup's backlog counts
+			histogram.snapshotAndReset();
+			lost.set(0);
+			begin = end;
+			end = begin + TimeUnit.SECONDS.toNanos(duration);
+			long sent = send(opened, begin, end);
+			// wait for the echoes of the last messages a little
+			long drain = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+			while (histogram.snapshot().getCount() + lost.get() < sent && System.nanoTime() < drain) {
+				Thread.sleep(10);
+			}
+			LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+			return new Result(raw ? "raw" : "framework", sent, snapshot, lost.get(), System.nanoTime() - begin);
+		} finally {
+			client.close();
+			if (rawServer != null) rawServer.stop();
+			if (acceptor != null) acceptor.stop();
+		}
+	}
+
+	/**
+	 * Send messages from begin to end at the rate, round-robin over the connections.
+	 * @return messages scheduled
+	 */
+	private long send(Connection[] opened, long begin, long end) {
+		double interval = 1e9 / rate;
+		long count = 0;
+		for (;; count++) {
+			long intended = begin + (long) (count * interval);
+			if (intended >= end) {
+				return count;
+			}
+			for (long delay; (delay = intended - System.nanoTime()) > 0; ) {
+				if (delay > 100000) {
+					LockSupport.parkNanos(delay - 50000);
+				} else {
+					Thread.yield();
+				}
+			}
+			Connection connection = opened[(int) (count % opened.length)];
+			if (stream) {
+				connection.send(intended);
+			} else {
+				connection.request(intended);
+			}
+		}
+	}
+
+	private Acceptor startAcceptor(int port) throws Exception {
+		final Acceptor acceptor;
+		if (udp) {
+			DatagramAcceptor datagramAcceptor = new DatagramAcceptor(HOST, port);
+			datagramAcceptor.setShardCount(serverThreads);
+			acceptor = datagramAcceptor;
+		} else {
+			SocketAcceptor socketAcceptor = new SocketAcceptor(HOST, port);
+			socketAcceptor.setProcessorCount(serverThreads);
+			acceptor = socketAcceptor;
+		}
+		acceptor.init();
+		acceptor.setHandler(new HandlerAdapter() {
+			@Override
+			public void dataReceived(Session session, Object data) {
+				session.send(data);
+			}
+		});
+		final Object lock = new Object();
+		synchronized (lock) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						acceptor.start(lock);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}, acceptor.getClass().getSimpleName());
+			thread.setDaemon(true);
+			thread.start();
+			lock.wait(10000);
+		}
+		return acceptor;
+	}
+
+	private static int freePort() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * A connection of the client, messages are sent by the sending thread and echoes are received by the connector's
+	 * I/O thread.
+	 */
+	private class Connection {
+
+		private final Session session;
+		private final byte[] frame = new byte[size];	// echo being received, only used by the I/O thread
+		private int filled;								// bytes of frame received
+
+		// request workload, guarded by this
+		private boolean outstanding;					// whether a request is waiting for its response
+		private long outstandingSent;					// time the outstanding request was sent
+		private final ArrayDeque<Long> backlog = new ArrayDeque<Long>();	// scheduled times of requests not sent yet
+
+		Connection(Session session) {
+			this.session = session;
+		}
+
+		void send(long intended) {
+			byte[] message = new byte[size];
+			for (int i = 0; i < TIMESTAMP_SIZE; i++) {
+				message[i] = (byte) (intended >>> (56 - 8 * i));
+			}
+			session.send(message);
+		}
+
+		synchronized void request(long intended) {
+			if (outstanding && udp && System.nanoTime() - outstandingSent > timeoutNanos) {
+				// the request or its response was dropped, don't wait for it any more
+				lost.incrementAndGet();
+				outstanding = false;
+			}
+			if (outstanding) {
+				backlog.add(intended);
+				return;
+			}
+			if (!backlog.isEmpty()) {
+				backlog.add(intended);
+				intended = backlog.poll();
+			}
+			outstanding = true;
+			outstandingSent = System.nanoTime();
+			send(intended);
+		}
+
+		synchronized void responded() {
+			Long next = backlog.poll();
+			if (next == null) {
+				outstanding = false;
+			} else {
+				outstandingSent = System.nanoTime();
+				send(next);
+			}
+		}
+
+		/**
+		 * Receive echoed bytes, a TCP echo may be split or joined with others.
+		 */
+		void received(Object data) {
+			ByteBuffer buf = data instanceof ByteBuffer ? (ByteBuffer) data : ByteBuffer.wrap((byte[]) data);
+			while (buf.hasRemaining()) {
+				int n = Math.min(buf.remaining(), size - filled);
+				buf.get(frame, filled, n);
+				filled += n;
+				if (filled == size) {
+					filled = 0;
+					long intended = 0;
+					for (int i = 0; i < TIMESTAMP_SIZE; i++) {
+						intended = (intended << 8) | (frame[i] & 0xff);
+					}
+					if (intended >= recordFrom) {
+						histogram.record(System.nanoTime() - intended);
+					}
+					if (!stream) {
+						responded();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Handler of the client's connectors.
+	 */
+	private class ClientHandler extends HandlerAdapter {
+
+		private final List<Connection> opened = new ArrayList<Connection>();
+		private final CountDownLatch allOpened = new CountDownLatch(connections);
+		private volatile boolean closed;		// whether the client is closing, exceptions are expected then
+
+		@Override
+		public void sessionOpened(Session session) {
+			Connection connection = new Connection(session);
+			session.setAttribute(CONNECTION, connection);
+			synchronized (opened) {
+				opened.add(connection);
+			}
+			allOpened.countDown();
+		}
+
+		@Override
+		public void dataReceived(Session session, Object data) {
+			Connection connection = (Connection) session.getAttribute(CONNECTION);
+			if (connection != null) {
+				connection.received(data);
+			}
+		}
+
+		@Override
+		public void exceptionCaught(Session session, Throwable cause) {
+			if (!closed) {
+				cause.printStackTrace();
+			}
+		}
+
+		Connection[] awaitOpened() throws InterruptedException {
+			if (!allOpened.await(60, TimeUnit.SECONDS)) {
+				throw new IllegalStateException("Only " + (connections - allOpened.getCount()) + " of " + connections + " connections are opened");
+			}
+			synchronized (opened) {
+				return opened.toArray(new Connection[opened.size()]);
+			}
+		}
+	}
+
+	/**
+	 * Client of the echo server, all connections are handled by one connector.
+	 */
+	private abstract class Client {
+
+		protected final ClientHandler handler = new ClientHandler();
+
+		/**
+		 * @return opened connections
+		 */
+		Connection[] open(int port) throws Exception {
+			// register every channel before the I/O thread selects, so registration never waits for a select
+			for (int i = 0; i < connections; i++) {
+				open(HOST, port);
+			}
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						connect();
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}, "LoadGeneratorClient");
+			thread.setDaemon(true);
+			thread.start();
+			return handler.awaitOpened();
+		}
+
+		void close() {
+			handler.closed = true;
+			closeConnector();
+		}
+
+		protected abstract void open(String host, int port) throws Exception;
+
+		protected abstract void connect() throws Exception;
+
+		protected abstract void closeConnector();
+	}
+
+	private class TcpClient extends Client {
+
+		private final SocketMultiConnector connector = new SocketMultiConnector();
+
+		TcpClient() throws Exception {
+			connector.setMetricsMBeanEnabled(false);
+			connector.init();
+			connector.setHandler(handler);
+		}
+
+		@Override
+		protected void open(String host, int port) throws Exception {
+			connector.open(host, port);
+		}
+
+		@Override
+		protected void connect() throws Exception {
+			connector.connect();
+		}
+
+		@Override
+		protected void closeConnector() {
+			connector.close();
+		}
+	}
+
+	private class UdpClient extends Client {
+
+		private final DatagramMultiConnector connector = new DatagramMultiConnector();
+
+		UdpClient() throws Exception {
+			connector.setMetricsMBeanEnabled(false);
+			connector.init();
+			connector.setHandler(handler);
+		}
+
+		@Override
+		protected void open(String host, int port) throws Exception {
+			connector.open(host, port);
+		}
+
+		@Override
+		protected void connect() throws Exception {
+			connector.connect();
+		}
+
+		@Override
+		protected void closeConnector() {
+			connector.close();
+		}
+	}
+
+	private static class Result {
+
+		private final String target;
+		private final long sent;
+		private final LatencyHistogram.Snapshot snapshot;
+		private final long lost;
+		private final long elapsed;
+
+		Result(String target, long sent, LatencyHistogram.Snapshot snapshot, long lost, long elapsed) {
+			this.target = target;
+			this.sent = sent;
+			this.snapshot = snapshot;
+			this.lost = lost;
+			this.elapsed = elapsed;
+		}
+
+		double getThroughput() {
+			return snapshot.getCount() * 1e9 / elapsed;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-10s %12d %12d %12.0f %10d %10d %10d %10d %10d %8d",
+					target, sent, snapshot.getCount(), getThroughput(), (long) snapshot.getMean() / 1000,
+					snapshot.getValueAtPercentile(50) / 1000, snapshot.getValueAtPercentile(99) / 1000,
+					snapshot.getValueAtPercentile(99.9) / 1000, snapshot.getMax() / 1000, lost);
+		}
+	}
+
+}
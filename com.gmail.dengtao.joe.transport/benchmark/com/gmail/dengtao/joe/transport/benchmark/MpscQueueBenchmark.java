@@ -0,0 +1,136 @@
+package com.gmail.dengtao.joe.transport.benchmark;
+
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+
+import com.gmail.dengtao.joe.transport.util.MpscQueue;
+
+/**
+ * Contention benchmark of the session send queue.<br>
+ * N producer threads offer packets while one consumer thread, playing the I/O thread, drains them;
+ * compares a synchronized LinkedList (the former session send list) with {@link MpscQueue}.
+ * A round offers <code>operationsPerProducer</code> elements by every producer and polls them all, one element is an operation.
+ * <p>
+ * Usage: MpscQueueBenchmark [operationsPerProducer] [producers...]
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class MpscQueueBenchmark {
+
+	/**
+	 * Queue under test, offer by producers and poll by the single consumer.
+	 */
+	interface TestQueue {
+		void offer(Object e);
+		Object poll();
+	}
+
+	static class LockedLinkedList implements TestQueue {
+
+		private final LinkedList<Object> list = new LinkedList<Object>();
+		private final Object lock = new Object();
+
+		@Override
+		public void offer(Object e) {
+			synchronized (lock) {
+				list.add(e);
+			}
+		}
+
+		@Override
+		public Object poll() {
+			synchronized (lock) {
+				return list.poll();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "synchronized LinkedList";
+		}
+	}
+
+	static class Mpsc implements TestQueue {
+
+		private final MpscQueue<Object> queue = new MpscQueue<Object>();
+
+		@Override
+		public void offer(Object e) {
+			queue.offer(e);
+		}
+
+		@Override
+		public Object poll() {
+			return queue.poll();
+		}
+
+		@Override
+		public String toString() {
+			return "MpscQueue";
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int operations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int[] producers = { 1, 4, 16, 32 };
+		if (args.length > 1) {
+			producers = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				producers[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+		BenchmarkRunner runner = new BenchmarkRunner(MpscQueueBenchmark.class.getSimpleName());
+		for (int producerCount : producers) {
+			run(runner, "lockedLinkedList", new LockedLinkedList(), producerCount, operations);
+			run(runner, "mpscQueue", new Mpsc(), producerCount, operations);
+		}
+		runner.writeResults();
+	}
+
+	private static void run(BenchmarkRunner runner, String name, final TestQueue queue, final int producerCount, final int operations) throws Exception {
+		runner.run(name, BenchmarkRunner.params("producers", producerCount), new BenchmarkRunner.Workload() {
+			@Override
+			public long run() throws InterruptedException {
+				return round(queue, producerCount, operations);
+			}
+		});
+	}
+
+	/**
+	 * @return number of elements offered and polled
+	 */
+	private static long round(final TestQueue queue, int producerCount, final int operations) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final Object element = new Object();
+		Thread[] threads = new Thread[producerCount];
+		for (int i = 0; i < producerCount; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int n = 0; n < operations; n++) {
+						queue.offer(element);
+					}
+				}
+			}, "producer-" + i);
+			threads[i].start();
+		}
+		long total = (long) producerCount * operations;
+		start.countDown();
+		for (long polled = 0; polled < total; ) {
+			if (queue.poll() != null) {
+				polled++;
+			}
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return total;
+	}
+
+}
@@ -0,0 +1,229 @@
+package com.gmail.dengtao.joe.transport.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Echo server written directly on NIO without filters, sessions or handlers, the baseline of {@link LoadGenerator}.<br>
+ * TCP connections are accepted by a blocking thread and handed round-robin to worker threads, each runs a selector
+ * and echoes by one buffer per connection; UDP datagrams are received and echoed by one thread, like
+ * {@link com.gmail.dengtao.joe.transport.DatagramAcceptor}.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class RawNioEchoServer {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final String host;
+	private final int port;
+	private final boolean udp;
+	private final int threads;
+
+	private ServerSocketChannel serverChannel;
+	private DatagramChannel datagramChannel;
+	private Worker[] workers;
+	private volatile boolean active;
+
+	/**
+	 * @param host address to bind
+	 * @param port port to bind
+	 * @param udp true for UDP, false for TCP
+	 * @param threads worker threads of TCP connections
+	 */
+	public RawNioEchoServer(String host, int port, boolean udp, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Illegal threads: " + threads);
+		}
+		this.host = host;
+		this.port = port;
+		this.udp = udp;
+		this.threads = threads;
+	}
+
+	/**
+	 * Bind and start the threads of this server, returns when it is bound.
+	 * @throws IOException If binding failed
+	 */
+	public void start() throws IOException {
+		active = true;
+		SocketAddress address = new InetSocketAddress(host, port);
+		if (udp) {
+			datagramChannel = DatagramChannel.open();
+			datagramChannel.socket().bind(address);
+			start(new Runnable() {
+				@Override
+				public void run() {
+					echoDatagrams();
+				}
+			}, "RawNioEchoServer-udp");
+			return;
+		}
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(address, 1024);
+		workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker();
+			start(workers[i], "RawNioEchoServer-worker-" + i);
+		}
+		start(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "RawNioEchoServer-acceptor");
+	}
+
+	/**
+	 * Close the channels of this server, its threads exit.
+	 */
+	public void stop() {
+		active = false;
+		try {
+			if (serverChannel != null) serverChannel.close();
+			if (datagramChannel != null) datagramChannel.close();
+		} catch (IOException e) {
+			/* Nothing... */
+		}
+		if (workers != null) {
+			for (Worker worker : workers) {
+				worker.selector.wakeup();
+			}
+		}
+	}
+
+	private static void start(Runnable runnable, String name) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void accept() {
+		for (int next = 0; active; next++) {
+			try {
+				SocketChannel channel = serverChannel.accept();
+				channel.socket().setTcpNoDelay(true);
+				channel.configureBlocking(false);
+				workers[next % workers.length].add(channel);
+			} catch (IOException e) {
+				if (active) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void echoDatagrams() {
+		ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		while (active) {
+			try {
+				buf.clear();
+				SocketAddress remote = datagramChannel.receive(buf);
+				buf.flip();
+				datagramChannel.send(buf, remote);
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				if (active) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Selector thread echoing its connections.
+	 */
+	private class Worker implements Runnable {
+
+		private final Selector selector;
+		private final Queue<SocketChannel> added = new ConcurrentLinkedQueue<SocketChannel>();
+
+		Worker() throws IOException {
+			selector = Selector.open();
+		}
+
+		void add(SocketChannel channel) {
+			added.offer(channel);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (active) {
+					for (SocketChannel channel; (channel = added.poll()) != null; ) {
+						channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocateDirect(BUFFER_SIZE));
+					}
+					if (selector.select() == 0) {
+						continue;
+					}
+					for (Iterator<SelectionKey> iter = selector.selectedKeys().iterator(); iter.hasNext(); ) {
+						SelectionKey key = iter.next();
+						iter.remove();
+						try {
+							echo(key);
+						} catch (IOException e) {
+							key.cancel();
+							key.channel().close();
+						}
+					}
+				}
+			} catch (IOException e) {
+				if (active) {
+					e.printStackTrace();
+				}
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					try {
+						key.channel().close();
+					} catch (IOException e) {
+						/* Nothing... */
+					}
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					/* Nothing... */
+				}
+			}
+		}
+
+		/**
+		 * Read into the connection's buffer and write it back; the buffer is kept in fill mode with the bytes not
+		 * written yet at its beginning, and reading stops until they are written.
+		 */
+		private void echo(SelectionKey key) throws IOException {
+			SocketChannel channel = (SocketChannel) key.channel();
+			ByteBuffer buf = (ByteBuffer) key.attachment();
+			if (key.isReadable() && channel.read(buf) < 0) {
+				key.cancel();
+				channel.close();
+				return;
+			}
+			buf.flip();
+			channel.write(buf);
+			if (buf.hasRemaining()) {
+				buf.compact();
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else {
+				buf.clear();
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+	}
+
+}
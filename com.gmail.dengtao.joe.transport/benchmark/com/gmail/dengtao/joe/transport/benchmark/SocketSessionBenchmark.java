@@ -0,0 +1,85 @@
+package com.gmail.dengtao.joe.transport.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import com.gmail.dengtao.joe.transport.filter.FilterChain;
+import com.gmail.dengtao.joe.transport.handler.HandlerAdapter;
+import com.gmail.dengtao.joe.transport.session.impl.SocketSession;
+
+/**
+ * Throughput benchmark of {@link SocketSession#sendData(Object)} and {@link SocketSession#pushData()}.<br>
+ * Queues a batch of messages to a session of a loopback connection and pushes them until the queue is empty,
+ * while another thread reads and drops them at the other end; one message is an operation.
+ * The session's channel is blocking, so every push writes until the socket accepts the bytes.
+ * <p>
+ * Usage: SocketSessionBenchmark [messageSizes...]
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class SocketSessionBenchmark {
+
+	private static final int BATCH = 64;
+
+	public static void main(String[] args) throws Exception {
+		int[] sizes = { 64, 1024 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		SocketChannel channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+		final Socket peer = server.accept().socket();
+		Thread drainer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] buf = new byte[64 * 1024];
+				try {
+					InputStream in = peer.getInputStream();
+					while (in.read(buf) >= 0) {
+						/* drop... */
+					}
+				} catch (IOException e) {
+					/* closed, nothing... */
+				}
+			}
+		}, "drainer");
+		drainer.setDaemon(true);
+		drainer.start();
+
+		FilterChain filterChain = new FilterChain();
+		filterChain.setHandler(new HandlerAdapter());
+		final SocketSession session = new SocketSession(channel, null, filterChain);
+		session.open();
+		BenchmarkRunner runner = new BenchmarkRunner(SocketSessionBenchmark.class.getSimpleName());
+		for (int size : sizes) {
+			final byte[] data = new byte[size];
+			runner.run("sendDataPushData", BenchmarkRunner.params("size", size), new BenchmarkRunner.Workload() {
+				@Override
+				public long run() {
+					for (int i = 0; i < BATCH; i++) {
+						session.sendData(data);
+					}
+					session.flush();
+					while (session.getQueuedBytes() > 0) {
+						session.pushData();
+					}
+					return BATCH;
+				}
+			});
+		}
+		session.close();
+		peer.close();
+		server.close();
+		runner.writeResults();
+	}
+
+}
@@ -0,0 +1,50 @@
+package com.gmail.dengtao.joe.transport.session.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.gmail.dengtao.joe.transport.benchmark.BenchmarkRunner;
+
+/**
+ * Construction benchmark of {@link Packet}, which wraps every data sent by a session.<br>
+ * Constructs packets of byte[], heap ByteBuffer, direct ByteBuffer and String data, one packet is an operation.
+ * It is in the package of {@link Packet} because the class is package private.
+ * <p>
+ * Usage: PacketBenchmark [dataSize]
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class PacketBenchmark {
+
+	private static final int BATCH = 10000;
+
+	private static long length;	// lengths of constructed packets, keeps construction from being optimized away
+
+	public static void main(String[] args) throws Exception {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		char[] chars = new char[size];
+		Arrays.fill(chars, 'a');
+		BenchmarkRunner runner = new BenchmarkRunner(PacketBenchmark.class.getSimpleName());
+		run(runner, "bytes", size, new byte[size]);
+		run(runner, "heapByteBuffer", size, ByteBuffer.allocate(size));
+		run(runner, "directByteBuffer", size, ByteBuffer.allocateDirect(size));
+		run(runner, "string", size, new String(chars));
+		runner.writeResults();
+	}
+
+	private static void run(BenchmarkRunner runner, String type, int size, final Object data) throws Exception {
+		runner.run("newPacket", BenchmarkRunner.params("type", type, "size", size), new BenchmarkRunner.Workload() {
+			@Override
+			public long run() {
+				long sum = 0;
+				for (int i = 0; i < BATCH; i++) {
+					sum += new Packet(data).getLength();
+				}
+				length += sum;
+				return BATCH;
+			}
+		});
+	}
+
+}
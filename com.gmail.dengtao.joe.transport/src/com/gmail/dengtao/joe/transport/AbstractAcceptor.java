@@ -1,9 +1,19 @@
 package com.gmail.dengtao.joe.transport;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 
+import javax.management.JMException;
+
+import com.gmail.dengtao.joe.transport.buffer.BufferAllocator;
+import com.gmail.dengtao.joe.transport.buffer.PooledBufferAllocator;
 import com.gmail.dengtao.joe.transport.filter.FilterChain;
 import com.gmail.dengtao.joe.transport.handler.Handler;
+import com.gmail.dengtao.joe.transport.metrics.EventLoopHistograms;
+import com.gmail.dengtao.joe.transport.metrics.TransportMetrics;
+import com.gmail.dengtao.joe.transport.session.Session;
+import com.gmail.dengtao.joe.transport.session.impl.SocketSession;
+import com.gmail.dengtao.joe.transport.util.VirtualThreads;
 
 /**
  * Acceptor's common methods implementation.
@@ -24,6 +34,12 @@ abstract class AbstractAcceptor implements Acceptor {
 	public static final int DEFAULT_BUFFER_SIZE = 512;
 	protected int receiveBufferSize = DEFAULT_BUFFER_SIZE; // use 538 ~ 548, recommend 538 for the best performance.
 	protected int sendBufferSize = DEFAULT_BUFFER_SIZE; // use 538 ~ 548, recommend 538 for the best performance.
+	protected int writeSpinCount = SocketSession.DEFAULT_WRITE_SPIN_COUNT; // gathering writes tried per writable event of socket sessions
+	protected int maxWriteBytesPerPush = SocketSession.DEFAULT_MAX_WRITE_BYTES_PER_PUSH; // bytes written per writable event of socket sessions
+	protected int autoFlushBytes = 0;	// socket sessions flush written data when this many bytes are waiting, 0 to disable
+	protected long autoFlushDelay = 0;	// socket sessions flush written data after this many microseconds, 0 to disable
+	protected int writeBufferHighWaterMark = SocketSession.DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK; // queued outbound bytes above which sessions are not writable
+	protected int writeBufferLowWaterMark = SocketSession.DEFAULT_WRITE_BUFFER_LOW_WATER_MARK; // queued outbound bytes at or below which sessions are writable again
 
 	protected String host; 			// DatagramSocket will bind this address.
 	protected int port; 					// DatagramSocket will bind this port. 
@@ -34,7 +50,6 @@ abstract class AbstractAcceptor implements Acceptor {
      * the service is bound.
      */
 	protected final Object bindLock = new Object();
-	protected final Object receiveBufferLock = new Object();	// ReceiveBuffer Lock
 	protected final Object activeLock = new Object();
 
 	protected boolean active = false; // if the instance is active
@@ -45,10 +60,16 @@ abstract class AbstractAcceptor implements Acceptor {
 	
 	protected long selectTimeout = 100;			// If positive, block for up to timeout milliseconds, more or less, while waiting for a channel to become ready; if zero, block indefinitely; must not be negative
 	
-	// reveive data buffer
-	protected ByteBuffer receiveBuffer;
+	// whether fire received data as a copy (byte[]) or as a read-only view of the receive buffer (ByteBuffer)
+	protected boolean copyReceivedData = true;
+	// allocator of receive buffers and session write buffers
+	protected BufferAllocator bufferAllocator = new PooledBufferAllocator();
 		
 	protected Handler handler; 			// Handles all I/O events fired by Acceptor
+	protected Executor handlerExecutor;	// calls handler instead of the I/O thread if set
+	
+	protected final TransportMetrics metrics = new TransportMetrics();	// counters of this acceptor
+	protected boolean metricsMBeanEnabled = true;	// whether metrics are registered as an MBean when started
 	
 	@Override
 	public void setHandler(Handler handler) {
@@ -144,6 +165,137 @@ abstract class AbstractAcceptor implements Acceptor {
 		this.sendBufferSize = sendBufferSize;
 	}
 	
+	/**
+	 * @return number of gathering writes tried per writable event of socket sessions
+	 * @since 1.1
+	 */
+	public int getWriteSpinCount() {
+		return writeSpinCount;
+	}
+
+	/**
+	 * Config the number of gathering writes tried per writable event of socket sessions.
+	 * @param writeSpinCount number of writes
+	 * @throws IllegalArgumentException If writeSpinCount is less than 1
+	 * @since 1.1
+	 */
+	public void setWriteSpinCount(int writeSpinCount) {
+		if (writeSpinCount < 1) {
+			throw new IllegalArgumentException("Illegal write spin count: " + writeSpinCount);
+		}
+		if (isActive()) {
+			throw new IllegalStateException("Acceptor is already started! you should config this option before this acceptor is start!");
+		}
+		this.writeSpinCount = writeSpinCount;
+	}
+
+	/**
+	 * @return number of bytes written per writable event of socket sessions at most
+	 * @since 1.1
+	 */
+	public int getMaxWriteBytesPerPush() {
+		return maxWriteBytesPerPush;
+	}
+
+	/**
+	 * Config the number of bytes written per writable event of socket sessions at most,
+	 * so that one busy session can't starve the other sessions of the same I/O thread.
+	 * @param maxWriteBytesPerPush number of bytes
+	 * @throws IllegalArgumentException If maxWriteBytesPerPush is less than 1
+	 * @since 1.1
+	 */
+	public void setMaxWriteBytesPerPush(int maxWriteBytesPerPush) {
+		if (maxWriteBytesPerPush < 1) {
+			throw new IllegalArgumentException("Illegal max write bytes per push: " + maxWriteBytesPerPush);
+		}
+		if (isActive()) {
+			throw new IllegalStateException("Acceptor is already started! you should config this option before this acceptor is start!");
+		}
+		this.maxWriteBytesPerPush = maxWriteBytesPerPush;
+	}
+
+	/**
+	 * @return bytes written by {@link com.gmail.dengtao.joe.transport.session.Session#write(Object)} which make a socket session flushed, 0 if disabled
+	 * @since 1.1
+	 */
+	public int getAutoFlushBytes() {
+		return autoFlushBytes;
+	}
+
+	/**
+	 * Config cork mode of socket sessions: written data is flushed when this many bytes are waiting.
+	 * @param autoFlushBytes number of bytes, 0 to disable
+	 * @throws IllegalArgumentException If autoFlushBytes is negative
+	 * @since 1.1
+	 */
+	public void setAutoFlushBytes(int autoFlushBytes) {
+		if (autoFlushBytes < 0) {
+			throw new IllegalArgumentException("Illegal auto flush bytes: " + autoFlushBytes);
+		}
+		if (isActive()) {
+			throw new IllegalStateException("Acceptor is already started! you should config this option before this acceptor is start!");
+		}
+		this.autoFlushBytes = autoFlushBytes;
+	}
+
+	/**
+	 * @return microseconds after which data written to a socket session is flushed, 0 if disabled
+	 * @since 1.1
+	 */
+	public long getAutoFlushDelay() {
+		return autoFlushDelay;
+	}
+
+	/**
+	 * Config cork mode of socket sessions: written data is flushed by the I/O thread when the delay passes.
+	 * @param autoFlushDelay delay in microseconds, 0 to disable
+	 * @throws IllegalArgumentException If autoFlushDelay is negative
+	 * @since 1.1
+	 */
+	public void setAutoFlushDelay(long autoFlushDelay) {
+		if (autoFlushDelay < 0) {
+			throw new IllegalArgumentException("Illegal auto flush delay: " + autoFlushDelay);
+		}
+		if (isActive()) {
+			throw new IllegalStateException("Acceptor is already started! you should config this option before this acceptor is start!");
+		}
+		this.autoFlushDelay = autoFlushDelay;
+	}
+
+	/**
+	 * @return bytes of queued outbound data above which a session is not writable
+	 * @since 1.1
+	 */
+	public int getWriteBufferHighWaterMark() {
+		return writeBufferHighWaterMark;
+	}
+
+	/**
+	 * @return bytes of queued outbound data at or below which a session is writable again
+	 * @since 1.1
+	 */
+	public int getWriteBufferLowWaterMark() {
+		return writeBufferLowWaterMark;
+	}
+
+	/**
+	 * Config the outbound water marks of sessions, see {@link com.gmail.dengtao.joe.transport.session.Session#isWritable()}.
+	 * @param low low water mark in bytes
+	 * @param high high water mark in bytes
+	 * @throws IllegalArgumentException If low is negative or greater than high
+	 * @since 1.1
+	 */
+	public void setWriteBufferWaterMark(int low, int high) {
+		if (low < 0 || low > high) {
+			throw new IllegalArgumentException("Illegal write buffer water mark: low=" + low + ", high=" + high);
+		}
+		if (isActive()) {
+			throw new IllegalStateException("Acceptor is already started! you should config this option before this acceptor is start!");
+		}
+		this.writeBufferLowWaterMark = low;
+		this.writeBufferHighWaterMark = high;
+	}
+	
 	/**
      * @return receiveBufferSize capacity of current buffer's capacity, in bytes
      * @since 1.0
@@ -153,20 +305,162 @@ abstract class AbstractAcceptor implements Acceptor {
 	}
 	
 	/**
-     * Allocates a new byte buffer. 
-     * The new buffer's position will be zero, its limit will be its capacity, and its mark will be undefined. It will have a backing array, and its array offset will be zero.
-     * @param receiveBufferSize capacity The new buffer's capacity, in bytes
+     * Config the receive buffer size, each I/O thread allocates its own receive buffer with this capacity when it starts.
+     * @param receiveBufferSize capacity The receive buffer's capacity, in bytes
      * @throws IllegalArgumentException If the capacity is a negative integer
      * @since 1.0
      */
 	public void setReceiveBufferSize(int receiveBufferSize) throws IllegalArgumentException  {
-		synchronized (receiveBufferLock) {
-			try {
-				receiveBuffer = ByteBuffer.allocate(receiveBufferSize);
-				this.receiveBufferSize = receiveBufferSize;
-			} catch (IllegalArgumentException e) {
-				throw e;
-			}
+		if (receiveBufferSize < 1) {
+			throw new IllegalArgumentException("Illegal receive buffer size: " + receiveBufferSize);
 		}
+		if (isActive()) {
+			throw new IllegalStateException("Acceptor is already started! you should config this option before this acceptor is start!");
+		}
+		this.receiveBufferSize = receiveBufferSize;
+	}
+	
+	/**
+	 * @return true if received data is fired as a byte[] copy, false if it is fired as a read-only ByteBuffer view of the receive buffer
+	 * @since 1.1
+	 */
+	public boolean isCopyReceivedData() {
+		return copyReceivedData;
+	}
+
+	/**
+	 * Config how received data is fired to {@link FilterChain} and {@link Handler}.<br>
+	 * If true (default), a new byte[] with the received bytes is fired for every read.<br>
+	 * If false, a read-only {@link ByteBuffer} view of the I/O thread's receive buffer is fired, no bytes are copied; 
+	 * the view is only valid until the event returns, so filters and handlers which keep the bytes must copy them.<br>
+	 * Received data is always copied if a handler executor is set.
+	 * @param copyReceivedData whether copy received data
+	 * @since 1.1
+	 */
+	public void setCopyReceivedData(boolean copyReceivedData) {
+		if (isActive()) {
+			throw new IllegalStateException("Acceptor is already started! you should config this option before this acceptor is start!");
+		}
+		this.copyReceivedData = copyReceivedData;
+	}
+	
+	/**
+	 * @return allocator of receive buffers and session write buffers
+	 * @since 1.1
+	 */
+	public BufferAllocator getBufferAllocator() {
+		return bufferAllocator;
+	}
+
+	/**
+	 * Config the allocator of receive buffers and datagram sessions' send buffers, default is a heap {@link PooledBufferAllocator}.
+	 * @param bufferAllocator buffer allocator
+	 * @since 1.1
+	 */
+	public void setBufferAllocator(BufferAllocator bufferAllocator) {
+		if (bufferAllocator == null) {
+			throw new IllegalArgumentException("bufferAllocator can't be null!");
+		}
+		if (isActive()) {
+			throw new IllegalStateException("Acceptor is already started! you should config this option before this acceptor is start!");
+		}
+		this.bufferAllocator = bufferAllocator;
+	}
+
+	/**
+	 * @return executor which calls the handler, null if the handler is called by the I/O thread
+	 * @since 1.1
+	 */
+	public Executor getHandlerExecutor() {
+		return handlerExecutor;
+	}
+
+	/**
+	 * Let the handler be called by the executor so it can block, the I/O thread only reads and writes.<br>
+	 * Events of a session are still called one by one in order, and reading of a session is suspended while
+	 * too many of its events are waiting, see {@link com.gmail.dengtao.joe.transport.filter.impl.ExecutorFilter}.
+	 * Default is null, the handler is called by the I/O thread.
+	 * @param handlerExecutor executor, or null to call the handler by the I/O thread
+	 * @since 1.1
+	 */
+	public void setHandlerExecutor(Executor handlerExecutor) {
+		if (isActive()) {
+			throw new IllegalStateException("Acceptor is already started! you should config this option before this acceptor is start!");
+		}
+		this.handlerExecutor = handlerExecutor;
+	}
+
+	/**
+	 * Call the handler by virtual threads, a session's events are called by at most one virtual thread at a time.<br>
+	 * Virtual threads need Java 21 or later.
+	 * @throws IllegalStateException If virtual threads are not supported by this JVM
+	 * @since 1.1
+	 */
+	public void setVirtualThreadHandlerExecutor() {
+		setHandlerExecutor(VirtualThreads.newThreadPerTaskExecutor());
+	}
+
+	/**
+	 * @return counters of this acceptor, they are updated whether or not they are registered as an MBean
+	 * @since 1.1
+	 */
+	public TransportMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Get histograms of the select loops of this acceptor's I/O threads, each I/O thread records its own histograms.
+	 * @return histograms of every I/O thread, empty if the I/O threads are not initialized
+	 * @since 1.1
+	 */
+	public abstract EventLoopHistograms[] getEventLoopHistograms();
+
+	/**
+	 * @return whether metrics are registered to the platform MBean server when this acceptor is started
+	 * @since 1.1
+	 */
+	public boolean isMetricsMBeanEnabled() {
+		return metricsMBeanEnabled;
+	}
+
+	/**
+	 * Config whether metrics are registered to the platform MBean server when this acceptor is started,
+	 * and unregistered when it is stopped. Default is true.
+	 * @param metricsMBeanEnabled whether register metrics
+	 * @since 1.1
+	 */
+	public void setMetricsMBeanEnabled(boolean metricsMBeanEnabled) {
+		if (isActive()) {
+			throw new IllegalStateException("Acceptor is already started! you should config this option before this acceptor is start!");
+		}
+		this.metricsMBeanEnabled = metricsMBeanEnabled;
+	}
+
+	/**
+	 * Register metrics as an MBean if it is enabled, a failure is fired as an exception caught and does not stop this acceptor.
+	 * @param name name of the MBean, e.g. address of this acceptor
+	 * @param session placeholder session a failure is fired with, no session is connected yet
+	 * @since 1.1
+	 */
+	protected void registerMetrics(String name, Session session) {
+		if (!metricsMBeanEnabled) {
+			return;
+		}
+		try {
+			metrics.register(getClass().getSimpleName(), name);
+		} catch (JMException e) {
+			filterChain.fireExceptionCaught(session, e);
+		}
+	}
+
+	/**
+	 * Get the data to be fired as received from the receive buffer.
+	 * @param buffer flipped receive buffer
+	 * @return a byte[] copy of the received bytes, or a read-only view of the buffer if {@link #isCopyReceivedData()} is false and no handler executor is set
+	 * @since 1.1
+	 */
+	protected Object receivedData(ByteBuffer buffer) {
+		// a handler executor uses the data after the I/O thread has read into the buffer again
+		return ReceivedData.of(buffer, copyReceivedData || handlerExecutor != null);
 	}
 }
@@ -6,49 +6,59 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 import com.gmail.dengtao.joe.transport.filter.FilterChain;
-import com.gmail.dengtao.joe.transport.session.IdleStatus;
+import com.gmail.dengtao.joe.transport.metrics.EventLoopHistograms;
+import com.gmail.dengtao.joe.transport.session.Session;
 import com.gmail.dengtao.joe.transport.session.impl.DatagramSession;
+import com.gmail.dengtao.joe.transport.util.HashedWheelTimer;
+import com.gmail.dengtao.joe.transport.util.PackedAddressMap;
+import com.gmail.dengtao.joe.transport.util.ReusePort;
 
 /**
- * DatagramAcceptor is used to recive/send udp data.
+ * DatagramAcceptor is used to recive/send udp data.<br>
+ * Datagrams are received by {@link #getShardCount()} shards, each shard owns a channel, a selector, a thread and the
+ * sessions of the peers its channel receives from; the thread which calls {@link #start()} runs the first shard.
+ * More than one shard binds their channels to the same port with <code>SO_REUSEPORT</code>, so the kernel spreads
+ * the peers over the shards and always delivers a peer's datagrams to the same channel.
  * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
- * @version 1.0
+ * @version 1.1
  * @since 1.0
  */
-public class DatagramAcceptor extends AbstractAcceptor implements Pushable {
-
-	private DatagramChannel channel; 	// a selectable channel for datagram-oriented sockets. 
-	private DatagramSocket socket; 		// a socket for sending and receiving datagram packets. 
-	private Selector selector; 			// a selectable channel's registration with a selector is represented by a SelectionKey object. A selector maintains three sets of selection keys: 
-    
-	private DaemonThreadFactory threadFactory = new DaemonThreadFactory("DatagramAcceptorSessionLifecycle");
-	private ScheduledExecutorService sessionLifecycleExecutor;  // Session LifeCycle Scheduled
-	private long sessionLifeCyclePeriod = 500;	// Session LifeCycle check perid, ms
-	
-	private Map<SocketAddress, DatagramSession> sessionCache = new ConcurrentHashMap<SocketAddress, DatagramSession>();
-	private List<DatagramSession> needPushSessions = new ArrayList<DatagramSession>();
-	private final Object pushLock = new Object();
-	
+public class DatagramAcceptor extends AbstractAcceptor implements Pushable, SessionRegistry {
+
+	/** Default number of datagrams received per readable event at most */
+	public static final int DEFAULT_MAX_DATAGRAMS_PER_READ = 16;
+	/** Default number of datagrams a session sends per writable event at most */
+	public static final int DEFAULT_MAX_DATAGRAMS_PER_WRITE = 16;
+
+	private DaemonThreadFactory threadFactory = new DaemonThreadFactory("DatagramAcceptorIdleTimer");
+	private HashedWheelTimer idleTimer;	// checks idle of sessions, only sessions going to be idle are touched
+
+	private DaemonThreadFactory shardThreadFactory = new DaemonThreadFactory("DatagramAcceptorShard");
+	private int shardCount = 1;			// channels bound to the port with SO_REUSEPORT, each read by its own thread
+	private volatile Shard[] shards = new Shard[0];	// shards of this acceptor, the first is run by the thread calling start()
+
+	private ConcurrentMap<SocketAddress, DatagramSession> sessionCache = new ConcurrentHashMap<SocketAddress, DatagramSession>();
+
+	private int maxDatagramsPerRead = DEFAULT_MAX_DATAGRAMS_PER_READ;	// datagrams received per readable event at most
+	private int maxDatagramsPerWrite = DEFAULT_MAX_DATAGRAMS_PER_WRITE;	// datagrams a session sends per writable event at most
+	private int maxSessions;			// sessions of a shard at most, the least recently used is closed for a new one, 0 if unlimited
+	private long sessionLifeTime;		// ms a session without datagrams lives, 0 if forever
+
 	/**
-	 * Create a Datagram Acceptor, default selectTimeout is 0ms(selector will be blocked) and default sessionLifeTime is 60000ms.
+	 * Create a Datagram Acceptor, default selectTimeout is 0ms(selector will be blocked), sessions are unlimited and live until they are closed.
 	 * @param host DatagramSocket will bind this address.
-	 * @param port DatagramSocket will bind this port. 
+	 * @param port DatagramSocket will bind this port.
 	 */
 	public DatagramAcceptor(String host, int port) {
 		this.host = host;
@@ -57,42 +67,32 @@ public class DatagramAcceptor extends AbstractAcceptor implements Pushable {
 	}
 
 	/**
-	 * Create a Datagram Acceptor with specific selectTimeout and sessionLifeTime
+	 * Create a Datagram Acceptor with specific selectTimeout
 	 * @param host DatagramSocket will bind this address.
-	 * @param port DatagramSocket will bind this port. 
+	 * @param port DatagramSocket will bind this port.
 	 * @param selectTimeout If positive, block for up to timeout milliseconds, more or less, while waiting for a channel to become ready; if zero, block indefinitely; must not be negative
 	 */
 	public DatagramAcceptor(String host, int port, int selectTimeout) {
 		this(host, port);
 		this.selectTimeout = selectTimeout;
 	}
-	
+
 	@Override
 	public void init() throws Exception {
 		if (isActive()) {
 			throw new IllegalStateException("This connector is active, if you want to re-init you should call close() method before this!");
 		}
 		// Release resouces...
-		if (channel != null) try { channel.close(); channel = null; } catch (Exception e) { /** nothind... */ }
-		if (socket != null) try { socket.close(); socket = null; } catch (Exception e) { /** nothind... */ }
-		if (selector != null) try { selector.close(); selector = null; } catch (Exception e) { /** nothind... */ }
+		for (Shard shard : shards) {
+			shard.close();
+		}
 		if (sessionCache != null) try { sessionCache.clear(); } catch (Exception e) { /** nothind... */ }
 
-		synchronized (receiveBufferLock) {
-			/* allocate receive buffer */
-			receiveBuffer = ByteBuffer.allocate(receiveBufferSize);
-		}
-		/* Open Channel */
-		channel = DatagramChannel.open();
-		/* Configure Non-Blocking */
-		channel.configureBlocking(false);
-		/* Open a selector */
-		synchronized (Selector.class) {
-			// Selector.open() isn't thread safe
-            // http://bugs.sun.com/view_bug.do?bug_id=6427854
-            // Affects 1.6.0_29, fixed in 1.7.0_01
-			selector = Selector.open();
-		}
+		/* Open the channel and the selector of the first shard, the others are opened when started */
+		shards = new Shard[] { new Shard() };
+		/* Idle timer, sessions are checked by it */
+		if (idleTimer != null) idleTimer.stop();
+		idleTimer = new HashedWheelTimer(threadFactory);
 	}
 
 	@Override
@@ -108,166 +108,65 @@ public class DatagramAcceptor extends AbstractAcceptor implements Pushable {
 			} else {
 				setActive(true);
 			}
-			if (channel == null) {
+			if (shards.length == 0) {
 				throw new IllegalStateException("DatagramChannel has not been initialized, call 'init()' method before!");
 			}
 			if (handler == null) {
 				throw new IllegalStateException("The Handler for this Acceptor was not set! call 'setHandler(Handler handler)' to set Handler for this acceptor.");
 			} else {
 				filterChain.setHandler(handler);
+				filterChain.setHandlerExecutor(handlerExecutor);
+				filterChain.setMetrics(metrics);
 			}
-			
+
 			SocketAddress address = new InetSocketAddress(InetAddress.getByName(host), port);
-			// Configure the server socket,
-			socket = channel.socket();
-			synchronized (bindLock) {
-				// Set the reuseAddress flag accordingly with the setting
-				socket.setReuseAddress(isReuseAddress());
-				// and bind.
-				socket.bind(address);
+			Shard first = shards[0];
+			// without SO_REUSEPORT only one channel can receive from the port
+			boolean reusePort = shardCount > 1 && ReusePort.isSupported(first.channel);
+			Shard[] started = new Shard[reusePort ? shardCount : 1];
+			started[0] = first;
+			shards = started;
+			for (int i = 1; i < started.length; i++) {
+				started[i] = new Shard();
 			}
-			
-			// Datagram channels support reading and writing, 
-			// so only support (SelectionKey.OP_READ | SelectionKey.OP_WRITE). 
-			channel.register(selector, SelectionKey.OP_READ);
-			
+			// the first shard binds the port, which may be ephemeral, then the others bind the same address
+			first.bind(address, reusePort);
+			for (int i = 1; i < started.length; i++) {
+				started[i].bind(first.localSocketAddress, true);
+			}
+
+			// expose metrics by JMX
+			registerMetrics(host + ":" + port, new DatagramSession(null, first, filterChain, null));
+
 			if (lock != null) {
 				synchronized (lock) {
 					lock.notifyAll();
 				}
 			}
 
-			// Schedule SessionCache LifyCycle ...
-			sessionLifecycleExecutor = Executors.newScheduledThreadPool(8, threadFactory);  
-			sessionLifecycleExecutor.scheduleAtFixedRate(new SessionLifeCycle(), sessionLifeCyclePeriod, sessionLifeCyclePeriod, TimeUnit.MILLISECONDS);  
-			
-			for (; isActive();) {
-				try {
-					if (selector.select(selectTimeout) == 0) {
-						continue;
-					}
-					Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
-					for( ; iter.hasNext(); iter.remove()) {
-						SelectionKey key = iter.next();
-						handleSelectionKey(key, channel);	// Handle SelectionKey...
-					}
-				} catch (Exception e) {
-					if (isActive()) {
-						filterChain.fireExceptionCaught(new DatagramSession(channel, this, filterChain, null), e);	// fire exception caught
-					}
-				}
+			for (int i = 1; i < started.length; i++) {
+				shardThreadFactory.newThread(started[i], "DatagramAcceptorShard-" + i).start();
 			}
+			first.run();
 		} catch (Exception e) {
 			setActive(false);
 			throw e;
 		}
 	}
 
-	/**
-	 * Handle SelectionKey process...
-	 * @param selectionKey
-	 * @param channel
-	 * @throws IOException 
-	 * @throws Exception 
-	 * @since 1.0
-	 */
-	private void handleSelectionKey(SelectionKey key, DatagramChannel channel) {
-		
-		// WRITABLE key; handle write data
-		if (key.isValid() && key.isWritable()) {
-			synchronized (pushLock) {
-				List<DatagramSession> tempList = new ArrayList<DatagramSession>();
-				tempList.addAll(needPushSessions);
-				for (DatagramSession session : tempList) {
-					if (session != null) {
-						if (session.isOpen()) {
-							session.active();	// active session
-							try {
-								filterChain.firePushData(session);
-							} catch (Exception e) {
-								filterChain.fireExceptionCaught(session, e);
-								return;
-							}
-						}
-					}
-				}
-			}
-		}
-		
-		// READABLE key; handle available data
-		if (key.isValid() && key.isReadable()) {
-			DatagramSession session = new DatagramSession(channel, this, filterChain);
-			try {
-				byte[] data = null;
-				SocketAddress remoteSocketAddress = null;
-				SocketAddress localSocketAddress = null;
-				
-				try {
-					synchronized (receiveBufferLock) {
-						receiveBuffer.clear();
-						remoteSocketAddress = channel.receive(receiveBuffer);
-						if (channel.socket() != null) {
-							// Returns the address of the endpoint this socket is bound to, or null if it is not bound yet.
-							localSocketAddress = channel.socket().getLocalSocketAddress();
-						}
-						receiveBuffer.flip();
-						data = new byte[receiveBuffer.limit() - receiveBuffer.position()];
-						receiveBuffer.get(data);
-					}
-				} catch (IOException e) {
-					// read error
-					filterChain.fireExceptionCaught(session, e);
-					session.close();
-					return;
-				}
-				session.setLocalSocketAddress(localSocketAddress);
-				session.setRemoteSocketAddress(remoteSocketAddress);;
-				if (remoteSocketAddress == null) {
-					filterChain.fireExceptionCaught(session, new IllegalStateException("Invalid remote address! Session:" + session));	// fire exception caught
-				} else if (!sessionCache.containsKey(remoteSocketAddress)) {
-					sessionCache.put(remoteSocketAddress, session);
-					filterChain.fireSessionCreated(session);	// fire session created
-					
-					session.active();
-					session.open();	// fire session opened
-				} else {
-					session = sessionCache.get(remoteSocketAddress);
-				}
-				if (session != null && session.isOpen()) {
-					session.active();
-					if (data != null && data.length > 0) {
-						// set latest read time 
-						session.setLatestReadTime(System.currentTimeMillis());
-						filterChain.fireDataReceived(session, data);
-						return;
-					}
-				}
-			} catch (Exception e) {
-				filterChain.fireExceptionCaught(session, e);	// fire exception caught
-				return;
-			}
-		}
-	}
-	
 	@Override
 	public void stop() {
 		if (isActive()) {
 			setActive(false);
-			// Cancel ScheduledExecutorService
-			if (sessionLifecycleExecutor != null) {
-				sessionLifecycleExecutor.shutdown();
+			// Stop idle timer
+			if (idleTimer != null) {
+				idleTimer.stop();
 			}
-			/* Close selector */
-			if (selector != null && selector.isOpen()) {
-				try { selector.close(); } catch (IOException e) { /** nothing */ }
-			}
-			/* Close channel */
-			if (channel != null && channel.isOpen()) {
-				try { channel.close(); } catch (IOException e) { /** nothing */ }
-			}
-			/* Close socket, Actually when channel was closed socket was also closed. */
-			if (socket != null && !socket.isClosed()) {
-				socket.close();
+			/* Unregister metrics */
+			metrics.unregister();
+			/* Close selectors and channels */
+			for (Shard shard : shards) {
+				shard.close();
 			}
 			/* close clients */
 			for (Iterator<Entry<SocketAddress, DatagramSession>> iter = sessionCache.entrySet().iterator(); iter.hasNext();) {
@@ -287,87 +186,657 @@ public class DatagramAcceptor extends AbstractAcceptor implements Pushable {
 		}
 	}
 
+	@Override
+	public EventLoopHistograms[] getEventLoopHistograms() {
+		Shard[] shards = this.shards;
+		EventLoopHistograms[] histograms = new EventLoopHistograms[shards.length];
+		for (int i = 0; i < shards.length; i++) {
+			histograms[i] = shards[i].eventLoop.getHistograms();
+		}
+		return histograms;
+	}
+
+
     private void setActive(boolean active) {
 		synchronized (activeLock) {
 			this.active = active;
 		}
 	}
-	
+
+
+	/**
+	 * @return number of shards this acceptor is configured to start
+	 * @since 1.1
+	 */
+	public int getShardCount() {
+		return shardCount;
+	}
+
+	/**
+	 * Config the number of shards, each shard binds a channel to the port with <code>SO_REUSEPORT</code> and receives
+	 * by its own thread, so receiving is spread over that many cores. The kernel chooses the channel by the peer's
+	 * address, so a peer's datagrams always reach the same shard and its session; a datagram reaching another shard,
+	 * e.g. while the shards are being bound, is passed to the shard of the session. If <code>SO_REUSEPORT</code> is not
+	 * supported by the JVM (before Java 9) or the system, only one shard is started, see {@link #getEventLoopHistograms()}
+	 * for the shards started. Default is 1.
+	 * @param shardCount number of shards
+	 * @throws IllegalArgumentException If shardCount is less than 1
+	 * @since 1.1
+	 */
+	public void setShardCount(int shardCount) {
+		if (shardCount < 1) {
+			throw new IllegalArgumentException("Illegal shard count: " + shardCount);
+		}
+		if (isActive()) {
+			throw new IllegalStateException("Acceptor is already started! you should config this option before this acceptor is start!");
+		}
+		this.shardCount = shardCount;
+	}
+
+	/**
+	 * @return number of datagrams received per readable event at most
+	 * @since 1.1
+	 */
+	public int getMaxDatagramsPerRead() {
+		return maxDatagramsPerRead;
+	}
+
+	/**
+	 * Config the number of datagrams received per readable event at most, the I/O thread receives until no datagram
+	 * is available or this number is reached, then handles the other events.
+	 * @param maxDatagramsPerRead number of datagrams
+	 * @throws IllegalArgumentException If maxDatagramsPerRead is less than 1
+	 * @since 1.1
+	 */
+	public void setMaxDatagramsPerRead(int maxDatagramsPerRead) {
+		if (maxDatagramsPerRead < 1) {
+			throw new IllegalArgumentException("Illegal max datagrams per read: " + maxDatagramsPerRead);
+		}
+		if (isActive()) {
+			throw new IllegalStateException("Acceptor is already started! you should config this option before this acceptor is start!");
+		}
+		this.maxDatagramsPerRead = maxDatagramsPerRead;
+	}
+
 	/**
-	 * @return sessions in this acceptor
+	 * @return number of datagrams a session sends per writable event at most
+	 * @since 1.1
+	 */
+	public int getMaxDatagramsPerWrite() {
+		return maxDatagramsPerWrite;
+	}
+
+	/**
+	 * Config the number of datagrams a session sends per writable event at most, a session having more is pushed again
+	 * after the other sessions having data to be sent, so a busy peer can't delay the others.
+	 * @param maxDatagramsPerWrite number of datagrams
+	 * @throws IllegalArgumentException If maxDatagramsPerWrite is less than 1
+	 * @since 1.1
+	 */
+	public void setMaxDatagramsPerWrite(int maxDatagramsPerWrite) {
+		if (maxDatagramsPerWrite < 1) {
+			throw new IllegalArgumentException("Illegal max datagrams per write: " + maxDatagramsPerWrite);
+		}
+		if (isActive()) {
+			throw new IllegalStateException("Acceptor is already started! you should config this option before this acceptor is start!");
+		}
+		this.maxDatagramsPerWrite = maxDatagramsPerWrite;
+	}
+
+	/**
+	 * @return sessions of a shard at most, 0 if unlimited
+	 * @since 1.1
+	 */
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	/**
+	 * Config the number of sessions of a shard at most; when a datagram of a new peer is received and the sessions of
+	 * its shard are at the maximum, the least recently used one is closed (session closed is fired) before the new one
+	 * is created.
+	 * Sessions whose peers sent only one datagram are closed before those whose peers sent more.
+	 * @param maxSessions number of sessions, 0 if unlimited
+	 * @throws IllegalArgumentException If maxSessions is negative
+	 * @since 1.1
+	 */
+	public void setMaxSessions(int maxSessions) {
+		if (maxSessions < 0) {
+			throw new IllegalArgumentException("Illegal max sessions: " + maxSessions);
+		}
+		if (isActive()) {
+			throw new IllegalStateException("Acceptor is already started! you should config this option before this acceptor is start!");
+		}
+		this.maxSessions = maxSessions;
+	}
+
+	/**
+	 * @return ms a session without datagrams lives, 0 if forever
+	 * @since 1.1
+	 */
+	public long getSessionLifeTime() {
+		return sessionLifeTime;
+	}
+
+	/**
+	 * Config the time a session lives after the latest datagram of its peer, then it is closed (session closed is fired).
+	 * Sessions are checked in order of their latest datagram, so a check touches only the expired sessions; a session
+	 * which was pushed out of the frequently used ones by a full LRU may be closed late, by its turn in that order.
+	 * @param sessionLifeTime life time in ms, 0 if sessions live until they are closed
+	 * @throws IllegalArgumentException If sessionLifeTime is negative
+	 * @since 1.1
+	 */
+	public void setSessionLifeTime(long sessionLifeTime) {
+		if (sessionLifeTime < 0) {
+			throw new IllegalArgumentException("Illegal session life time: " + sessionLifeTime);
+		}
+		if (isActive()) {
+			throw new IllegalStateException("Acceptor is already started! you should config this option before this acceptor is start!");
+		}
+		this.sessionLifeTime = sessionLifeTime;
+	}
+
+	/**
+	 * @return sessions in this acceptor by their peers' addresses, should not be modified
 	 * @since 1.0
 	 */
 	public Map<SocketAddress, DatagramSession> getSessionCache() {
 		return sessionCache;
 	}
-	
+
+	@Override
+	public void unregister(Session session) {
+		Shard shard = shardOf((DatagramSession) session);
+		if (shard != null) {
+			shard.unregister(session);
+		} else if (((DatagramSession) session).getRemoteSocketAddress() != null) {
+			sessionCache.remove(((DatagramSession) session).getRemoteSocketAddress(), session);
+		}
+	}
+
 	@Override
 	public void add(DatagramSession session) {
-		try {
-			synchronized (pushLock) {
-				if (needPushSessions.contains(session)) return;
-				needPushSessions.add(session);
-				// regist write & read
-				channel.register(selector, SelectionKey.OP_WRITE | SelectionKey.OP_READ);
-				selector.wakeup();
-			}
-		} catch (Exception e) {
-			filterChain.fireExceptionCaught(session, e);
+		Shard shard = shardOf(session);
+		if (shard != null) {
+			shard.add(session);
 		}
 	}
 
 	@Override
 	public void remove(DatagramSession session) {
-		try {
-			synchronized (pushLock) {
-				if (!needPushSessions.contains(session)) return;
-				needPushSessions.remove(session);
-				// regist only read
-				channel.register(selector, SelectionKey.OP_READ);
-				selector.wakeup();
+		Shard shard = shardOf(session);
+		if (shard != null) {
+			shard.remove(session);
+		}
+	}
+
+	/**
+	 * @param session session of this acceptor
+	 * @return shard whose channel the session sends by, null if there is none
+	 * @since 1.1
+	 */
+	private Shard shardOf(DatagramSession session) {
+		for (Shard shard : shards) {
+			if (shard.socket != null && shard.socket == session.getSocket()) {
+				return shard;
 			}
-		} catch (ClosedChannelException e) {
-			/* Nothing... */
 		}
+		return null;
 	}
 
 	/**
-	 * Maintain sessionCache, remove (now - activeTime) >= sessionLifeTime or closed Session
+	 * A channel of this acceptor with its selector, I/O thread and the sessions of the peers it receives from.<br>
+	 * Sessions of a shard push and unregister through it, its session table, LRU and ready queue are only used by its
+	 * I/O thread.
 	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
 	 * @version 1.0
-	 * @since 1.0
-	 * @date 2012-10-7
+	 * @since 1.1
 	 */
-	class SessionLifeCycle extends TimerTask {
-	
+	private class Shard implements Runnable, Pushable, SessionRegistry {
+
+		private final DatagramChannel channel; 	// a selectable channel for datagram-oriented sockets.
+		private DatagramSocket socket; 			// a socket for sending and receiving datagram packets.
+		private final Selector selector; 		// selector of this shard, only its channel is registered.
+		private SelectionKey selectionKey;		// key of channel registered with selector
+		private final SelectorEventLoop eventLoop;	// runs push session changes by the I/O thread
+
+		// LRU entries of sessions by the packed address of their peers, looked up for every datagram
+		private final PackedAddressMap<DatagramSessionLru.Entry> sessionTable = new PackedAddressMap<DatagramSessionLru.Entry>();
+		private DatagramSessionLru sessionLru;		// orders sessions for eviction and expiry
+		private DatagramReadyQueue readyQueue;		// sessions which have data to be sent
+
+		private SocketAddress localSocketAddress;	// bound address, set to sessions
+		private ByteBuffer receiveBuffer;			// borrowed from bufferAllocator and only used by this shard's thread
+		private ByteBuffer receiveView;				// read-only view of receiveBuffer fired for every datagram if received data is not copied
+
+		/**
+		 * Open the channel and the selector of a new shard.
+		 * @throws IOException
+		 */
+		Shard() throws IOException {
+			/* Open Channel */
+			channel = DatagramChannel.open();
+			/* Configure Non-Blocking */
+			channel.configureBlocking(false);
+			/* Open a selector */
+			synchronized (Selector.class) {
+				// Selector.open() isn't thread safe
+	            // http://bugs.sun.com/view_bug.do?bug_id=6427854
+	            // Affects 1.6.0_29, fixed in 1.7.0_01
+				selector = Selector.open();
+			}
+			eventLoop = new SelectorEventLoop(selector);
+			eventLoop.setMetrics(metrics);
+		}
+
+		/**
+		 * Bind the channel and register it with the selector for read.
+		 * @param address address to bind
+		 * @param reusePort whether enable SO_REUSEPORT, so other shards can bind the same address
+		 * @throws IOException If binding failed
+		 */
+		void bind(SocketAddress address, boolean reusePort) throws IOException {
+			// Configure the server socket,
+			socket = channel.socket();
+			synchronized (bindLock) {
+				// Set the reuseAddress flag accordingly with the setting
+				socket.setReuseAddress(isReuseAddress());
+				if (reusePort) {
+					ReusePort.enable(channel);
+				}
+				// and bind.
+				socket.bind(address);
+			}
+			localSocketAddress = socket.getLocalSocketAddress();
+
+			// Datagram channels support reading and writing,
+			// so only support (SelectionKey.OP_READ | SelectionKey.OP_WRITE).
+			selectionKey = channel.register(selector, SelectionKey.OP_READ);
+		}
+
+		/**
+		 * Close the selector and the channel, the thread of this shard exits.
+		 */
+		void close() {
+			/* Close selector */
+			if (selector.isOpen()) {
+				try { selector.close(); } catch (IOException e) { /** nothing */ }
+			}
+			/* Close channel */
+			if (channel.isOpen()) {
+				try { channel.close(); } catch (IOException e) { /** nothing */ }
+			}
+			/* Close socket, Actually when channel was closed socket was also closed. */
+			if (socket != null && !socket.isClosed()) {
+				socket.close();
+			}
+		}
+
 		@Override
 		public void run() {
-			long now = System.currentTimeMillis();
-			for (Iterator<Entry<SocketAddress, DatagramSession>> iter = sessionCache.entrySet().iterator(); iter.hasNext();) {
-				Entry<SocketAddress, DatagramSession> entry = iter.next();
-				DatagramSession session = entry.getValue();
-				if (session != null) {
-					if (session.isClosed()) {
-						iter.remove();
+			/* borrow receive buffer from the allocator, it is only used by this I/O thread */
+			receiveBuffer = bufferAllocator.allocate(receiveBufferSize);
+			// a handler executor uses the data after the event returns, so it gets a copy per datagram
+			receiveView = copyReceivedData || handlerExecutor != null ? null : receiveBuffer.asReadOnlyBuffer();
+			eventLoop.bind();
+			// protected sessions are 80% of the maximum, so new peers can't evict every peer talking more than once
+			sessionLru = new DatagramSessionLru(maxSessions > 0 ? Math.max(1, maxSessions - maxSessions / 5) : 0);
+			readyQueue = new DatagramReadyQueue();
+			if (sessionLifeTime > 0) {
+				eventLoop.schedule(new SessionExpiry(), sessionLifeTime, TimeUnit.MILLISECONDS);
+			}
+			for (; isActive();) {
+				try {
+					eventLoop.runTasks();
+					if (eventLoop.select(selectTimeout) == 0) {
 						continue;
-					} else if (session.isOpen()) {
-						// check write idle
-						if (session.getIdleTime(IdleStatus.WRITE_IDLE) > 0 && (now - session.getLatestWriteTime()) >= session.getIdleTime(IdleStatus.WRITE_IDLE)) {
-							filterChain.fireSessionIdle(session, IdleStatus.WRITE_IDLE);
-							session.setLatestWriteTime(now);
-						}
-						// check read idle
-						if (session.getIdleTime(IdleStatus.READ_IDLE) > 0 && (now - session.getLatestReadTime()) >= session.getIdleTime(IdleStatus.READ_IDLE)) {
-							filterChain.fireSessionIdle(session, IdleStatus.READ_IDLE);
-							session.setLatestReadTime(now);
-						}
 					}
+					Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+					for( ; iter.hasNext(); iter.remove()) {
+						SelectionKey key = iter.next();
+						handleSelectionKey(key);	// Handle SelectionKey...
+					}
+				} catch (Exception e) {
+					if (isActive()) {
+						filterChain.fireExceptionCaught(new DatagramSession(channel, this, filterChain, null), e);	// fire exception caught
+					}
+				}
+			}
+			/* give the receive buffer back to the allocator */
+			bufferAllocator.release(receiveBuffer);
+			receiveBuffer = null;
+			receiveView = null;
+			sessionLru = null;
+			readyQueue = null;
+		}
+
+		/**
+		 * Handle SelectionKey process...
+		 * @param key selected key of the channel
+		 */
+		private void handleSelectionKey(SelectionKey key) {
+
+			// WRITABLE key; handle write data
+			if (key.isValid() && key.isWritable()) {
+				pushReadySessions();
+			}
+
+			// READABLE key; receive datagrams until none is left or the budget is spent
+			if (key.isValid() && key.isReadable()) {
+				long now = System.currentTimeMillis();
+				for (int i = 0; i < maxDatagramsPerRead && key.isValid(); i++) {
+					if (!receive(now)) {
+						break;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Push the sessions queued in the ready queue when this pass starts, in their order, called by the I/O thread.<br>
+		 * A session sends maxDatagramsPerWrite datagrams at most and is queued again at the tail if it has more, so every
+		 * ready session sends in turn, and a pass costs the number of ready sessions, not of all sessions. The pass stops
+		 * when a session sends nothing, the socket buffer is full and the channel will be writable again.
+		 */
+		private void pushReadySessions() {
+			for (int n = readyQueue.size(); n > 0; n--) {
+				DatagramSessionLru.Entry entry = readyQueue.poll();
+				if (entry == null) {
+					break;
+				}
+				DatagramSession session = entry.session;
+				if (!session.isOpen()) {
+					// closed session will never push its data
+					readyQueue.remove(entry);
+					continue;
+				}
+				session.active();	// active session
+				boolean full = false;
+				for (int i = 0; i < maxDatagramsPerWrite && entry.ready && session.isOpen(); i++) {
+					long writtenBytes = session.getWrittenBytes();
+					filterChain.firePushData(session);
+					if (entry.ready && session.getWrittenBytes() == writtenBytes) {
+						full = true;
+						break;
+					}
+				}
+				if (entry.ready && session.isOpen()) {
+					readyQueue.add(entry);
+				}
+				if (full) {
+					break;
+				}
+			}
+			if (readyQueue.isEmpty()) {
+				SelectorEventLoop.setInterest(selectionKey, SelectionKey.OP_WRITE, false);
+			}
+		}
+
+		/**
+		 * Receive a datagram and fire it to the session of its sender, called by the I/O thread.<br>
+		 * The session is looked up before anything is allocated, a session is only created for a new sender; if the sessions
+		 * are at their maximum, the least recently used one is closed first.
+		 * @param now time of the received datagrams in ms
+		 * @return true if a datagram was received, false if none is available or receiving failed
+		 */
+		private boolean receive(long now) {
+			SocketAddress remoteSocketAddress;
+			try {
+				receiveBuffer.clear();
+				remoteSocketAddress = channel.receive(receiveBuffer);
+			} catch (IOException e) {
+				// read error
+				DatagramSession session = new DatagramSession(channel, this, filterChain);
+				filterChain.fireExceptionCaught(session, e);
+				session.close();
+				return false;
+			}
+			if (remoteSocketAddress == null) {
+				// no more datagram
+				return false;
+			}
+			receiveBuffer.flip();
+			DatagramSessionLru.Entry entry = sessionTable.get((InetSocketAddress) remoteSocketAddress);
+			DatagramSession session = null;
+			try {
+				if (entry != null) {
+					session = entry.session;
+					sessionLru.touch(entry, now);
 				} else {
-					iter.remove();
+					DatagramSession owner = sessionCache.get(remoteSocketAddress);
+					if (owner != null && owner.isOpen() && owner.getSocket() != socket) {
+						// the peer's session belongs to another shard, e.g. its datagram came before all shards were bound
+						forward(owner);
+						return true;
+					}
+					if (maxSessions > 0 && sessionLru.size() >= maxSessions) {
+						evict(sessionLru.evictionCandidate());
+					}
+					session = new DatagramSession(channel, this, filterChain, localSocketAddress, remoteSocketAddress);
+					session.setSendBufferSize(sendBufferSize);
+					session.setBufferAllocator(bufferAllocator);
+					session.setWriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark);
+					session.setMetrics(metrics);
+					session.setIdleTimer(idleTimer);
+					session.setSessionRegistry(this);
+					sessionCache.put(remoteSocketAddress, session);
+					sessionTable.put((InetSocketAddress) remoteSocketAddress,
+							sessionLru.add((InetSocketAddress) remoteSocketAddress, session, now));
+					filterChain.fireSessionCreated(session);	// fire session created
+
+					session.active();
+					session.open();	// fire session opened
+				}
+				if (session.isOpen()) {
+					session.active();
+					if (receiveBuffer.hasRemaining()) {
+						// set latest read time
+						session.setLatestReadTime(now);
+						filterChain.fireDataReceived(session, receivedData(receiveBuffer));
+					}
 				}
+			} catch (Exception e) {
+				filterChain.fireExceptionCaught(session, e);	// fire exception caught
+			}
+			return true;
+		}
+
+		/**
+		 * Pass the received datagram to the shard of the session, which fires it by its I/O thread.
+		 * @param session session of the datagram's sender in another shard
+		 */
+		private void forward(final DatagramSession session) {
+			final Shard shard = shardOf(session);
+			if (shard == null || !receiveBuffer.hasRemaining()) {
+				return;
+			}
+			final byte[] data = new byte[receiveBuffer.remaining()];
+			receiveBuffer.get(data);
+			shard.eventLoop.execute(new Runnable() {
+				@Override
+				public void run() {
+					shard.received(session, data);
+				}
+			});
+		}
+
+		/**
+		 * Fire a datagram received by another shard to a session of this shard, called by the I/O thread.
+		 * @param session session of the datagram's sender
+		 * @param data received bytes
+		 */
+		private void received(DatagramSession session, byte[] data) {
+			if (!session.isOpen()) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			DatagramSessionLru.Entry entry = entryOf(session);
+			if (entry != null) {
+				sessionLru.touch(entry, now);
+			}
+			try {
+				session.active();
+				session.setLatestReadTime(now);
+				filterChain.fireDataReceived(session, DatagramAcceptor.this.receivedData(ByteBuffer.wrap(data)));
+			} catch (Exception e) {
+				filterChain.fireExceptionCaught(session, e);	// fire exception caught
 			}
 		}
-		
+
+		/**
+		 * Remove the entry's session from the table and the LRU and close it, fires session closed, called by the I/O thread.
+		 * @param entry entry of a session
+		 */
+		private void evict(DatagramSessionLru.Entry entry) {
+			sessionTable.remove(entry.address, entry);
+			sessionLru.remove(entry);
+			entry.session.close();
+		}
+
+		/**
+		 * @param buffer flipped receive buffer
+		 * @return data to be fired as received, the reused view of the receive buffer if there is one
+		 */
+		private Object receivedData(ByteBuffer buffer) {
+			if (receiveView == null) {
+				return DatagramAcceptor.this.receivedData(buffer);
+			}
+			// the view is only valid until the event returns, so it is reused for every datagram
+			receiveView.limit(buffer.limit()).position(buffer.position());
+			return receiveView;
+		}
+
+		@Override
+		public void unregister(final Session session) {
+			final SocketAddress remoteSocketAddress = ((DatagramSession) session).getRemoteSocketAddress();
+			if (remoteSocketAddress != null) {
+				sessionCache.remove(remoteSocketAddress, session);
+				// the table is only used by the I/O thread, a new session of the same peer is not removed
+				if (eventLoop.inEventLoop()) {
+					removeEntry((InetSocketAddress) remoteSocketAddress, session);
+				} else {
+					eventLoop.execute(new Runnable() {
+						@Override
+						public void run() {
+							removeEntry((InetSocketAddress) remoteSocketAddress, session);
+						}
+					});
+				}
+			}
+		}
+
+		@Override
+		public void add(final DatagramSession session) {
+			if (eventLoop.inEventLoop()) {
+				addPushSession(session);
+			} else {
+				eventLoop.execute(new Runnable() {
+					@Override
+					public void run() {
+						addPushSession(session);
+					}
+				});
+			}
+		}
+
+		@Override
+		public void remove(final DatagramSession session) {
+			if (eventLoop.inEventLoop()) {
+				removePushSession(session);
+			} else {
+				eventLoop.execute(new Runnable() {
+					@Override
+					public void run() {
+						removePushSession(session);
+					}
+				});
+			}
+		}
+
+		/**
+		 * Remove the entry of a closed session from the table and the LRU, called by the I/O thread.
+		 * @param address address of the session's peer
+		 * @param session closed session
+		 */
+		private void removeEntry(InetSocketAddress address, Session session) {
+			DatagramSessionLru.Entry entry = sessionTable.get(address);
+			if (entry != null && entry.session == session) {
+				sessionTable.remove(address, entry);
+				if (sessionLru != null) {
+					sessionLru.remove(entry);
+				}
+			}
+		}
+
+		/**
+		 * Add the session's entry to the ready queue and regist write & read, called by the I/O thread.
+		 * @param session session has data to be sent
+		 */
+		private void addPushSession(DatagramSession session) {
+			DatagramSessionLru.Entry entry = entryOf(session);
+			if (entry != null && readyQueue.add(entry)) {
+				SelectorEventLoop.setInterest(selectionKey, SelectionKey.OP_WRITE, true);
+			}
+		}
+
+		/**
+		 * Mark the session's entry not ready, called by the I/O thread; write is unregisted by the next push when no
+		 * session is ready.
+		 * @param session session has no more data to be sent
+		 */
+		private void removePushSession(DatagramSession session) {
+			DatagramSessionLru.Entry entry = entryOf(session);
+			if (entry != null) {
+				readyQueue.remove(entry);
+			}
+		}
+
+		/**
+		 * @return entry of the session in the session table, null if the session has been removed, called by the I/O thread
+		 */
+		private DatagramSessionLru.Entry entryOf(DatagramSession session) {
+			SocketAddress remoteSocketAddress = session.getRemoteSocketAddress();
+			if (readyQueue == null || !(remoteSocketAddress instanceof InetSocketAddress)) {
+				return null;
+			}
+			DatagramSessionLru.Entry entry = sessionTable.get((InetSocketAddress) remoteSocketAddress);
+			return entry != null && entry.session == session ? entry : null;
+		}
+
+		/**
+		 * Close the sessions whose life time has passed since their latest datagram, in order of their latest datagram,
+		 * and reschedule itself at the time the next session expires, run by the I/O thread.
+		 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+		 * @version 1.0
+		 * @since 1.1
+		 */
+		private class SessionExpiry implements Runnable {
+
+			@Override
+			public void run() {
+				DatagramSessionLru lru = sessionLru;
+				if (!isActive() || lru == null) {
+					return;
+				}
+				long now = System.currentTimeMillis();
+				long delay = sessionLifeTime;
+				for (DatagramSessionLru.Entry entry; (entry = lru.oldest()) != null; ) {
+					long expiry = entry.accessTime + sessionLifeTime;
+					if (expiry - now > 0) {
+						delay = expiry - now;
+						break;
+					}
+					try {
+						evict(entry);
+					} catch (Exception e) {
+						filterChain.fireExceptionCaught(entry.session, e);
+					}
+				}
+				eventLoop.schedule(this, delay, TimeUnit.MILLISECONDS);
+			}
+
+		}
+
 	}
 
 }
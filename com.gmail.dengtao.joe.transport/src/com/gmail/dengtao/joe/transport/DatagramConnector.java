@@ -5,22 +5,16 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.Iterator;
-import java.util.TimerTask;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import com.gmail.dengtao.joe.transport.filter.FilterChain;
 import com.gmail.dengtao.joe.transport.handler.Handler;
-import com.gmail.dengtao.joe.transport.session.IdleStatus;
-import com.gmail.dengtao.joe.transport.session.Session;
+import com.gmail.dengtao.joe.transport.metrics.EventLoopHistograms;
 import com.gmail.dengtao.joe.transport.session.impl.DatagramSession;
+import com.gmail.dengtao.joe.transport.util.HashedWheelTimer;
 
 /**
  * DatagramConnector is used to recive/send udp data.
@@ -33,13 +27,27 @@ public class DatagramConnector extends AbstarctConnector implements Pushable {
 	private DatagramChannel channel; 	// a selectable channel for datagram-oriented sockets. 
 	private DatagramSocket socket; 		// a socket for sending and receiving datagram packets. 
 	private Selector selector; 			// a selectable channel's registration with a selector is represented by a SelectionKey object. A selector maintains three sets of selection keys: 
+	private SelectionKey selectionKey;	// key of channel registered with selector
+	private SelectorEventLoop eventLoop;	// runs push changes by the I/O thread
 	private DatagramSession session;
 
-	private DaemonThreadFactory threadFactory = new DaemonThreadFactory("DatagramConnectorSessionLifecycle");
-	private ScheduledExecutorService sessionLifecycleExecutor;  // Session LifeCycle Scheduled
-	private long sessionLifeCyclePeriod = 500;	// Session LifeCycle check perid, ms
+	private DaemonThreadFactory threadFactory = new DaemonThreadFactory("DatagramConnectorIdleTimer");
+	private HashedWheelTimer idleTimer;	// checks idle of sessions, only sessions going to be idle are touched
 	
-	private boolean needPush = false;
+	private boolean needPush = false;	// if session has data to be sent, only used by the I/O thread
+	// push changes executed by the I/O thread, preallocated as there is only one session
+	private final Runnable addPushTask = new Runnable() {
+		@Override
+		public void run() {
+			setNeedPush(true);
+		}
+	};
+	private final Runnable removePushTask = new Runnable() {
+		@Override
+		public void run() {
+			setNeedPush(false);
+		}
+	};
 	
 	public DatagramConnector() {
 		filterChain = new FilterChain();
@@ -55,10 +63,6 @@ public class DatagramConnector extends AbstarctConnector implements Pushable {
 		if (socket != null) try { socket.close(); socket = null; } catch (Exception e) { /** nothind... */ }
 		if (selector != null) try { selector.close(); selector = null; } catch (Exception e) { /** nothind... */ }
 		
-		synchronized (receiveBufferLock) {
-			/* allocate receive buffer */
-			receiveBuffer = ByteBuffer.allocate(receiveBufferSize);
-		}
 		/* Open Channel */
 		channel = DatagramChannel.open();
 		/* Configure Non-Blocking */
@@ -70,6 +74,11 @@ public class DatagramConnector extends AbstarctConnector implements Pushable {
             // Affects 1.6.0_29, fixed in 1.7.0_01
 			selector = Selector.open();
 		}
+		eventLoop = new SelectorEventLoop(selector);
+		eventLoop.setMetrics(metrics);
+		/* Idle timer, sessions are checked by it */
+		if (idleTimer != null) idleTimer.stop();
+		idleTimer = new HashedWheelTimer(threadFactory);
 	}
 
 	@Override
@@ -92,11 +101,18 @@ public class DatagramConnector extends AbstarctConnector implements Pushable {
 				throw new IllegalStateException("The Handler for this Connector was not set! call 'setHandler(Handler handler)' to set Handler for this Connector.");
 			} else {
 				filterChain.setHandler(handler);
+				filterChain.setHandlerExecutor(handlerExecutor);
+				filterChain.setMetrics(metrics);
 			}
 			
 			SocketAddress remote = new InetSocketAddress(InetAddress.getByName(host), port);
 
 			session = new DatagramSession(channel, this, filterChain, remote);
+			session.setSendBufferSize(sendBufferSize);
+			session.setBufferAllocator(bufferAllocator);
+			session.setWriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark);
+			session.setMetrics(metrics);
+			session.setIdleTimer(idleTimer);
 			// fire session created
 			filterChain.fireSessionCreated(session);
 			
@@ -113,8 +129,11 @@ public class DatagramConnector extends AbstarctConnector implements Pushable {
 			
 			// Datagram channels support reading and writing, 
 			// so only support (SelectionKey.OP_READ | SelectionKey.OP_WRITE). 
-			channel.register(selector, SelectionKey.OP_READ);
+			selectionKey = channel.register(selector, SelectionKey.OP_READ);
 			
+			// expose metrics by JMX
+			registerMetrics(host + ":" + port, new DatagramSession(null, this, filterChain, null));
+
 			if (lock != null) {
 				synchronized (lock) {
 					lock.notifyAll();
@@ -125,13 +144,14 @@ public class DatagramConnector extends AbstarctConnector implements Pushable {
 			// fire session opened
 			session.open();
 
-			// Schedule SessionCache LifyCycle ...
-			sessionLifecycleExecutor = Executors.newScheduledThreadPool(8, threadFactory);  
-			sessionLifecycleExecutor.scheduleAtFixedRate(new SessionLifeCycle(), sessionLifeCyclePeriod, sessionLifeCyclePeriod, TimeUnit.MILLISECONDS);  
 			
+			/* borrow receive buffer from the allocator, it is only used by this I/O thread */
+			receiveBuffer = bufferAllocator.allocate(receiveBufferSize);
+			eventLoop.bind();
 			for (; isActive();) {
 				try {
-					if (selector.select(selectTimeout) == 0) {
+					eventLoop.runTasks();
+					if (eventLoop.select(selectTimeout) == 0) {
 						continue;
 					}
 					Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
@@ -145,6 +165,9 @@ public class DatagramConnector extends AbstarctConnector implements Pushable {
 					}
 				}
 			}
+			/* give the receive buffer back to the allocator */
+			bufferAllocator.release(receiveBuffer);
+			receiveBuffer = null;
 		} catch (Exception e) {
 			setActive(false);
 			throw e;
@@ -171,6 +194,9 @@ public class DatagramConnector extends AbstarctConnector implements Pushable {
 						filterChain.fireExceptionCaught(session, e);
 						return;
 					}
+				} else if (!session.isOpen()) {
+					// closed session will never push its data
+					setNeedPush(false);
 				}
 			}
 		}
@@ -180,20 +206,19 @@ public class DatagramConnector extends AbstarctConnector implements Pushable {
 			try {
 				if (session.isOpen()) {
 					session.active();
-					byte[] data = null;
+					Object data = null;
 					SocketAddress remoteSocketAddress = null;
 					SocketAddress localSocketAddress = null;
 					try {
-						synchronized (receiveBufferLock) {
-							receiveBuffer.clear();
-							remoteSocketAddress = channel.receive(receiveBuffer);
-							if (channel.socket() != null) {
-								// Returns the address of the endpoint this socket is bound to, or null if it is not bound yet.
-								localSocketAddress = channel.socket().getLocalSocketAddress();
-							}
-							receiveBuffer.flip();
-							data = new byte[receiveBuffer.limit() - receiveBuffer.position()];
-							receiveBuffer.get(data);
+						receiveBuffer.clear();
+						remoteSocketAddress = channel.receive(receiveBuffer);
+						if (channel.socket() != null) {
+							// Returns the address of the endpoint this socket is bound to, or null if it is not bound yet.
+							localSocketAddress = channel.socket().getLocalSocketAddress();
+						}
+						receiveBuffer.flip();
+						if (receiveBuffer.hasRemaining()) {
+							data = receivedData(receiveBuffer);
 						}
 					} catch (IOException e) {
 						// read error
@@ -203,7 +228,7 @@ public class DatagramConnector extends AbstarctConnector implements Pushable {
 					}
 					session.setRemoteSocketAddress(remoteSocketAddress);
 					session.setLocalSocketAddress(localSocketAddress);
-					if (data != null && data.length > 0) {
+					if (data != null) {
 						// set latest read time 
 						session.setLatestReadTime(System.currentTimeMillis());
 						filterChain.fireDataReceived(session, data);
@@ -221,10 +246,12 @@ public class DatagramConnector extends AbstarctConnector implements Pushable {
 	public void close() {
 		if (isActive()) {
 			setActive(false);
-			// Cancel ScheduledExecutorService
-			if (sessionLifecycleExecutor != null) {
-				sessionLifecycleExecutor.shutdown();
+			// Stop idle timer
+			if (idleTimer != null) {
+				idleTimer.stop();
 			}
+			/* Unregister metrics */
+			metrics.unregister();
 			if (session != null && session.isOpen()) {
 				session.close();
 			}
@@ -251,71 +278,50 @@ public class DatagramConnector extends AbstarctConnector implements Pushable {
 		return channel;
 	}
 
+	@Override
+	public EventLoopHistograms[] getEventLoopHistograms() {
+		if (eventLoop == null) {
+			return new EventLoopHistograms[0];
+		}
+		return new EventLoopHistograms[] { eventLoop.getHistograms() };
+	}
+
+
     private void setActive(boolean active) {
 		synchronized (activeLock) {
 			this.active = active;
 		}
 	}
+
 	
 	@Override
 	public void add(DatagramSession session) {
-		if (!needPush) {
-			try {
-				needPush = true;
-				// regist write & read
-				channel.register(selector, SelectionKey.OP_WRITE | SelectionKey.OP_READ);
-				selector.wakeup();
-			} catch (Exception e) {
-				filterChain.fireExceptionCaught(session, e);
-			}
+		if (eventLoop.inEventLoop()) {
+			setNeedPush(true);
+		} else {
+			eventLoop.execute(addPushTask);
 		}
 	}
 
 	@Override
 	public void remove(DatagramSession session) {
-		try {
-			needPush = false;
-			// regist only read
-			channel.register(selector, SelectionKey.OP_READ);
-			selector.wakeup();
-		} catch (ClosedChannelException e) {
-			/* Nothing... */
-		} catch (Exception e) {
-			filterChain.fireExceptionCaught(session, e);
+		if (eventLoop.inEventLoop()) {
+			setNeedPush(false);
+		} else {
+			eventLoop.execute(removePushTask);
 		}
 	}
 
 	/**
-	 * Maintain session, fire {@link Handler#sessionIdle(Session, IdleStatus)};
-	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
-	 * @version 1.0
-	 * @since 1.0
-	 * @date 2012-10-7
+	 * Regist write & read if session has data to be sent, otherwise regist only read; called by the I/O thread.
+	 * @param needPush if session has data to be sent
+	 * @since 1.1
 	 */
-	class SessionLifeCycle extends TimerTask {
-
-		@Override
-		public void run() {
-			long now = System.currentTimeMillis();
-			//synchronized (session) {
-				if (session.isClosed()) {
-					sessionLifecycleExecutor.shutdown();
-					return;
-				}
-				if (session.isOpen()) {
-					// check write idle
-					if (session.getIdleTime(IdleStatus.WRITE_IDLE) > 0 && (now - session.getLatestWriteTime()) >= session.getIdleTime(IdleStatus.WRITE_IDLE)) {
-						filterChain.fireSessionIdle(session, IdleStatus.WRITE_IDLE);
-						session.setLatestWriteTime(now);
-					}
-					// check read idle
-					if (session.getIdleTime(IdleStatus.READ_IDLE) > 0 && (now - session.getLatestReadTime()) >= session.getIdleTime(IdleStatus.READ_IDLE)) {
-						filterChain.fireSessionIdle(session, IdleStatus.READ_IDLE);
-						session.setLatestReadTime(now);
-					}
-				}
-			//}
+	private void setNeedPush(boolean needPush) {
+		if (this.needPush != needPush) {
+			this.needPush = needPush;
+			SelectorEventLoop.setInterest(selectionKey, SelectionKey.OP_WRITE, needPush);
 		}
-		
 	}
+
 }
@@ -4,25 +4,20 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import com.gmail.dengtao.joe.transport.filter.FilterChain;
 import com.gmail.dengtao.joe.transport.handler.Handler;
-import com.gmail.dengtao.joe.transport.session.IdleStatus;
+import com.gmail.dengtao.joe.transport.metrics.EventLoopHistograms;
 import com.gmail.dengtao.joe.transport.session.Session;
 import com.gmail.dengtao.joe.transport.session.impl.DatagramSession;
+import com.gmail.dengtao.joe.transport.util.HashedWheelTimer;
 
 /**
  * DatagramMultiConnector is used to recive/send udp data with multi server
@@ -30,13 +25,13 @@ import com.gmail.dengtao.joe.transport.session.impl.DatagramSession;
  * @version 1.0
  * @since 1.0
  */
-public class DatagramMultiConnector extends AbstarctConnector implements Pushable {
+public class DatagramMultiConnector extends AbstarctConnector implements Pushable, SessionRegistry {
 
 	private Selector selector; 			// a selectable channel's registration with a selector is represented by a SelectionKey object. A selector maintains three sets of selection keys: 
+	private SelectorEventLoop eventLoop;	// runs push changes by the I/O thread
 	
-	private DaemonThreadFactory threadFactory = new DaemonThreadFactory("DatagramMultiConnectorSessionLifecycle");
-	private ScheduledExecutorService sessionLifecycleExecutor;  // Session LifeCycle Scheduled
-	private long sessionLifeCyclePeriod = 500;	// Session LifeCycle check perid, ms
+	private DaemonThreadFactory threadFactory = new DaemonThreadFactory("DatagramMultiConnectorIdleTimer");
+	private HashedWheelTimer idleTimer;	// checks idle of sessions, only sessions going to be idle are touched
 	
 	private Map<DatagramChannel, DatagramSession> channelCache = new ConcurrentHashMap<DatagramChannel, DatagramSession>();
 	private Map<DatagramSession, DatagramChannel> sessionCache = new ConcurrentHashMap<DatagramSession, DatagramChannel>();
@@ -55,10 +50,6 @@ public class DatagramMultiConnector extends AbstarctConnector implements Pushabl
 		if (channelCache != null) try { channelCache.clear(); } catch (Exception e) { /** nothind... */ }
 		if (sessionCache != null) try { sessionCache.clear(); } catch (Exception e) { /** nothind... */ }
 		
-		synchronized (receiveBufferLock) {
-			/* allocate receive buffer */
-			receiveBuffer = ByteBuffer.allocate(receiveBufferSize);
-		}
 		/* Open a selector */
 		synchronized (Selector.class) {
 			// Selector.open() isn't thread safe
@@ -66,6 +57,11 @@ public class DatagramMultiConnector extends AbstarctConnector implements Pushabl
             // Affects 1.6.0_29, fixed in 1.7.0_01
 			selector = Selector.open();
 		}
+		eventLoop = new SelectorEventLoop(selector);
+		eventLoop.setMetrics(metrics);
+		/* Idle timer, sessions are checked by it */
+		if (idleTimer != null) idleTimer.stop();
+		idleTimer = new HashedWheelTimer(threadFactory);
 	}
 
 	/**
@@ -74,7 +70,7 @@ public class DatagramMultiConnector extends AbstarctConnector implements Pushabl
 	 * call {@link #connect()} to connect to remot peer!
 	 */
 	public void open(String host, int port) throws Exception {
-		
+		open(host, port, null);
 	}
 	
 	/**
@@ -92,10 +88,18 @@ public class DatagramMultiConnector extends AbstarctConnector implements Pushabl
 					throw new IllegalStateException("The Handler for this Connector was not set! call 'setHandler(Handler handler)' to set Handler for this Connector.");
 				} else {
 					filterChain.setHandler(handler);
+					filterChain.setHandlerExecutor(handlerExecutor);
+					filterChain.setMetrics(metrics);
 				}
 				SocketAddress remote = new InetSocketAddress(InetAddress.getByName(host), port);
 				DatagramChannel channel = openNewChannel(false);
 				DatagramSession session = new DatagramSession(channel, this, filterChain, remote);
+				session.setSendBufferSize(sendBufferSize);
+				session.setBufferAllocator(bufferAllocator);
+				session.setWriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark);
+				session.setMetrics(metrics);
+				session.setIdleTimer(idleTimer);
+				session.setSessionRegistry(this);
 				
 				channelCache.put(channel, session);
 				sessionCache.put(session, channel);
@@ -144,15 +148,18 @@ public class DatagramMultiConnector extends AbstarctConnector implements Pushabl
 		} else {
 			setActive(true);
 		}
+		// expose metrics by JMX
+		registerMetrics(Integer.toHexString(System.identityHashCode(this)), new DatagramSession(null, this, filterChain, null));
 
-		// Schedule SessionCache LifyCycle ...
-		sessionLifecycleExecutor = Executors.newScheduledThreadPool(8, threadFactory);  
-		sessionLifecycleExecutor.scheduleAtFixedRate(new SessionLifeCycle(), sessionLifeCyclePeriod, sessionLifeCyclePeriod, TimeUnit.MILLISECONDS);  
 		
+		/* borrow receive buffer from the allocator, it is only used by this I/O thread */
+		receiveBuffer = bufferAllocator.allocate(receiveBufferSize);
 		Iterator<SelectionKey> iter = null;
+		eventLoop.bind();
 		for (; isActive();) {
 			try {
-				if (selector.select(selectTimeout) == 0) {
+				eventLoop.runTasks();
+				if (eventLoop.select(selectTimeout) == 0) {
 					continue;
 				}
 				iter = selector.selectedKeys().iterator();
@@ -166,6 +173,9 @@ public class DatagramMultiConnector extends AbstarctConnector implements Pushabl
 				}
 			}
 		}
+		/* give the receive buffer back to the allocator */
+		bufferAllocator.release(receiveBuffer);
+		receiveBuffer = null;
 	}
 	
 	/**
@@ -209,13 +219,16 @@ public class DatagramMultiConnector extends AbstarctConnector implements Pushabl
 						filterChain.fireExceptionCaught(session, e);
 						return;
 					}
+				} else {
+					// closed session will never push its data
+					SelectorEventLoop.setInterest(key, SelectionKey.OP_WRITE, false);
 				}
 			}
 		}
 		
 		// READABLE key; handle available data
 		if (key.isValid() && key.isReadable()) {
-			byte[] data = null;
+			Object data = null;
 			DatagramChannel channel = (DatagramChannel) key.channel();
 			// Find sessin
 			DatagramSession session = channelCache.get(channel);
@@ -231,16 +244,15 @@ public class DatagramMultiConnector extends AbstarctConnector implements Pushabl
 				if (session.isOpen()) {
 					try {
 						try {
-							synchronized (receiveBufferLock) {
-								receiveBuffer.clear();
-								remoteSocketAddress = channel.receive(receiveBuffer);
-								if (channel.socket() != null) {
-									// Returns the address of the endpoint this socket is bound to, or null if it is not bound yet.
-									localSocketAddress = channel.socket().getLocalSocketAddress();
-								}
-								receiveBuffer.flip();
-								data = new byte[receiveBuffer.limit() - receiveBuffer.position()];
-								receiveBuffer.get(data);
+							receiveBuffer.clear();
+							remoteSocketAddress = channel.receive(receiveBuffer);
+							if (channel.socket() != null) {
+								// Returns the address of the endpoint this socket is bound to, or null if it is not bound yet.
+								localSocketAddress = channel.socket().getLocalSocketAddress();
+							}
+							receiveBuffer.flip();
+							if (receiveBuffer.hasRemaining()) {
+								data = receivedData(receiveBuffer);
 							}
 						} catch (IOException e) {
 							// read error
@@ -250,7 +262,7 @@ public class DatagramMultiConnector extends AbstarctConnector implements Pushabl
 						}
 						session.setRemoteSocketAddress(remoteSocketAddress);
 						session.setLocalSocketAddress(localSocketAddress);
-						if (data != null && data.length > 0) {
+						if (data != null) {
 							// set latest read time 
 							session.setLatestReadTime(System.currentTimeMillis());
 							filterChain.fireDataReceived(session, data);
@@ -268,10 +280,12 @@ public class DatagramMultiConnector extends AbstarctConnector implements Pushabl
 	public void close() {
 		if (isActive()) {
 			setActive(false);
-			// Cancel ScheduledExecutorService
-			if (sessionLifecycleExecutor != null) {
-				sessionLifecycleExecutor.shutdown();
+			// Stop idle timer
+			if (idleTimer != null) {
+				idleTimer.stop();
 			}
+			/* Unregister metrics */
+			metrics.unregister();
 			/* Close selector */
 			if (selector != null && selector.isOpen()) {
 				try { selector.close(); } catch (IOException e) { /** nothing */ }
@@ -299,84 +313,75 @@ public class DatagramMultiConnector extends AbstarctConnector implements Pushabl
 		}
 	}
 
+	@Override
+	public EventLoopHistograms[] getEventLoopHistograms() {
+		if (eventLoop == null) {
+			return new EventLoopHistograms[0];
+		}
+		return new EventLoopHistograms[] { eventLoop.getHistograms() };
+	}
+
+
     private void setActive(boolean active) {
 		synchronized (activeLock) {
 			this.active = active;
 		}
 	}
+
 	
 	@Override
-	public void add(DatagramSession session) {
-		DatagramChannel channel = sessionCache.get(session);
+	public void unregister(Session session) {
+		DatagramChannel channel = sessionCache.remove(session);
 		if (channel != null) {
-			try {
-				// regist write & read
-				channel.register(selector, SelectionKey.OP_WRITE | SelectionKey.OP_READ);
-				selector.wakeup();
-			} catch (Exception e) {
-				filterChain.fireExceptionCaught(session, e);
+			channelCache.remove(channel);
+			/* Close channel, every session owns its channel */
+			if (channel.isOpen()) {
+				try { channel.close(); } catch (IOException e) { /** nothing */ }
 			}
+		}
+	}
+	
+	@Override
+	public void add(final DatagramSession session) {
+		if (eventLoop.inEventLoop()) {
+			setNeedPush(session, true);
 		} else {
-			session.close();
+			eventLoop.execute(new Runnable() {
+				@Override
+				public void run() {
+					setNeedPush(session, true);
+				}
+			});
 		}
 	}
 
 	@Override
-	public void remove(DatagramSession session) {
-		DatagramChannel channel = sessionCache.get(session);
-		if (channel != null) {
-			try {
-				// regist only read
-				channel.register(selector, SelectionKey.OP_READ);
-				selector.wakeup();
-			} catch (ClosedChannelException e) {
-				/* Nothing... */
-			}
+	public void remove(final DatagramSession session) {
+		if (eventLoop.inEventLoop()) {
+			setNeedPush(session, false);
 		} else {
-			session.close();
+			eventLoop.execute(new Runnable() {
+				@Override
+				public void run() {
+					setNeedPush(session, false);
+				}
+			});
 		}
 	}
 
 	/**
-	 * Maintain session, fire {@link Handler#sessionIdle(Session, IdleStatus)};
-	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
-	 * @version 1.0
-	 * @since 1.0
-	 * @date 2012-10-7
+	 * Regist write & read for session's channel if session has data to be sent, otherwise regist only read; called by the I/O thread.
+	 * @param session session
+	 * @param needPush if session has data to be sent
+	 * @since 1.1
 	 */
-	class SessionLifeCycle extends TimerTask {
-
-		@Override
-		public void run() {
-			long now = System.currentTimeMillis();
-			
-			for (Iterator<Entry<DatagramChannel, DatagramSession>> iter = channelCache.entrySet().iterator(); iter.hasNext();) {
-				Entry<DatagramChannel, DatagramSession> entry = iter.next(); 
-				DatagramChannel channel = entry.getKey();
-				DatagramSession session = entry.getValue();
-				if(session != null) {
-					if (session.isClosed()) {
-						iter.remove();
-						sessionCache.remove(session);
-						try { channel.close(); } catch (IOException e) { }
-						continue;
-					} else if (session.isOpen()) {
-						// check write idle
-						if (session.getIdleTime(IdleStatus.WRITE_IDLE) > 0 && (now - session.getLatestWriteTime()) >= session.getIdleTime(IdleStatus.WRITE_IDLE)) {
-							filterChain.fireSessionIdle(session, IdleStatus.WRITE_IDLE);
-							session.setLatestWriteTime(now);
-						}
-						// check read idle
-						if (session.getIdleTime(IdleStatus.READ_IDLE) > 0 && (now - session.getLatestReadTime()) >= session.getIdleTime(IdleStatus.READ_IDLE)) {
-							filterChain.fireSessionIdle(session, IdleStatus.READ_IDLE);
-							session.setLatestReadTime(now);
-						}
-					}
-				} else {
-					iter.remove();
-				}
-			}
+	private void setNeedPush(DatagramSession session, boolean needPush) {
+		DatagramChannel channel = sessionCache.get(session);
+		if (channel != null) {
+			SelectorEventLoop.setInterest(channel.keyFor(selector), SelectionKey.OP_WRITE, needPush);
+		} else {
+			session.close();
 		}
-		
 	}
+
 }
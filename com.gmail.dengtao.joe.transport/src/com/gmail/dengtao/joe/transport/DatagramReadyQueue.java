@@ -0,0 +1,82 @@
+package com.gmail.dengtao.joe.transport;
+
+/**
+ * FIFO of the sessions of {@link DatagramAcceptor} which have data to be sent.<br>
+ * Sessions are linked by their entries, so an entry is queued once however often it is added, and adding, removing
+ * and polling are O(1) without allocation. A removed entry is only marked not ready and is dropped when it is polled;
+ * adding it again before that keeps its place.
+ * <p>
+ * This queue is not thread safe, it is only used by the I/O thread.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+class DatagramReadyQueue {
+
+	private DatagramSessionLru.Entry head;
+	private DatagramSessionLru.Entry tail;
+	private int size;		// queued entries, including the removed ones not polled yet
+
+	/**
+	 * Mark the entry ready and queue it at the tail if it is not queued.
+	 * @param entry entry of a session having data to be sent
+	 * @return true if the queue was empty
+	 */
+	boolean add(DatagramSessionLru.Entry entry) {
+		entry.ready = true;
+		if (entry.queued) {
+			return false;
+		}
+		entry.queued = true;
+		if (tail == null) {
+			head = entry;
+		} else {
+			tail.readyNext = entry;
+		}
+		tail = entry;
+		return size++ == 0;
+	}
+
+	/**
+	 * Mark the entry not ready, it will not be returned by {@link #poll()}.
+	 * @param entry entry of a session having no more data to be sent
+	 */
+	void remove(DatagramSessionLru.Entry entry) {
+		entry.ready = false;
+	}
+
+	/**
+	 * @return the ready entry at the head, which is no longer queued but still ready; null if no entry is ready
+	 */
+	DatagramSessionLru.Entry poll() {
+		while (head != null) {
+			DatagramSessionLru.Entry entry = head;
+			head = entry.readyNext;
+			if (head == null) {
+				tail = null;
+			}
+			entry.readyNext = null;
+			entry.queued = false;
+			size--;
+			if (entry.ready) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return number of queued entries, including the removed ones not polled yet
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if no entry is queued
+	 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+}
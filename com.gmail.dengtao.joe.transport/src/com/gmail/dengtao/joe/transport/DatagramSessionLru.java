@@ -0,0 +1,182 @@
+package com.gmail.dengtao.joe.transport;
+
+import java.net.InetSocketAddress;
+
+import com.gmail.dengtao.joe.transport.session.impl.DatagramSession;
+
+/**
+ * Segmented LRU of the sessions of {@link DatagramAcceptor}, orders them for eviction and expiry.<br>
+ * A new session enters the probation segment; a session receiving another datagram is moved to the head of the
+ * protected segment, and when the protected segment is full its least recently used session is moved back to the head
+ * of the probation segment. Sessions of one-shot or spoofed peers never leave the probation segment, so they are
+ * evicted before the sessions of peers which talk more than once.
+ * <p>
+ * Entries are linked into the segments by their own fields, so adding, touching, removing and finding the eviction
+ * candidate or the oldest entry are O(1) and allocate nothing but the entry.
+ * <p>
+ * This LRU is not thread safe, it is only used by the I/O thread.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+class DatagramSessionLru {
+
+	private final Entry probation = new Entry(null, null);	// sentinel of the probation segment, its next is the most recent
+	private final Entry protect = new Entry(null, null);	// sentinel of the protected segment, its next is the most recent
+	private final int protectedCapacity;	// entries in the protected segment at most, 0 if unlimited
+	private int protectedSize;
+	private int size;
+
+	/**
+	 * @param protectedCapacity entries in the protected segment at most, 0 if unlimited
+	 */
+	DatagramSessionLru(int protectedCapacity) {
+		if (protectedCapacity < 0) {
+			throw new IllegalArgumentException("Illegal protected capacity: " + protectedCapacity);
+		}
+		this.protectedCapacity = protectedCapacity;
+	}
+
+	/**
+	 * Add a new entry at the head of the probation segment.
+	 * @param address address of the session's peer
+	 * @param session new session
+	 * @param now current time in ms
+	 * @return the entry of the session
+	 */
+	Entry add(InetSocketAddress address, DatagramSession session, long now) {
+		Entry entry = new Entry(address, session);
+		entry.accessTime = now;
+		linkFirst(probation, entry);
+		size++;
+		return entry;
+	}
+
+	/**
+	 * Record an access of the entry, it is moved to the head of the protected segment.
+	 * @param entry entry in this LRU
+	 * @param now current time in ms
+	 */
+	void touch(Entry entry, long now) {
+		entry.accessTime = now;
+		if (entry.protect) {
+			if (protect.next != entry) {
+				unlink(entry);
+				linkFirst(protect, entry);
+			}
+			return;
+		}
+		unlink(entry);
+		if (protectedCapacity > 0 && protectedSize == protectedCapacity) {
+			// demote the least recently used protected entry, it gets another chance before it is evicted
+			Entry demoted = protect.prev;
+			unlink(demoted);
+			demoted.protect = false;
+			protectedSize--;
+			linkFirst(probation, demoted);
+		}
+		entry.protect = true;
+		protectedSize++;
+		linkFirst(protect, entry);
+	}
+
+	/**
+	 * Remove the entry, nothing is done if it has been removed.
+	 * @param entry entry of this LRU
+	 */
+	void remove(Entry entry) {
+		if (entry.prev == null) {
+			return;
+		}
+		unlink(entry);
+		if (entry.protect) {
+			entry.protect = false;
+			protectedSize--;
+		}
+		size--;
+	}
+
+	/**
+	 * @return entry to be evicted first, the least recently used probation entry, or the least recently used protected
+	 * entry if the probation segment is empty; null if this LRU is empty
+	 */
+	Entry evictionCandidate() {
+		if (probation.prev != probation) {
+			return probation.prev;
+		}
+		return protect.prev != protect ? protect.prev : null;
+	}
+
+	/**
+	 * The oldest of the least recently used entries of both segments; a demoted entry keeps its access time, so it may be
+	 * older than the entry returned until it reaches the tail of the probation segment.
+	 * @return entry accessed earliest at the tails, null if this LRU is empty
+	 */
+	Entry oldest() {
+		Entry a = probation.prev != probation ? probation.prev : null;
+		Entry b = protect.prev != protect ? protect.prev : null;
+		if (a == null) {
+			return b;
+		}
+		if (b == null) {
+			return a;
+		}
+		return b.accessTime - a.accessTime < 0 ? b : a;
+	}
+
+	/**
+	 * @return number of entries
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return number of entries in the protected segment
+	 */
+	int protectedSize() {
+		return protectedSize;
+	}
+
+	private static void linkFirst(Entry sentinel, Entry entry) {
+		Entry first = sentinel.next;
+		entry.prev = sentinel;
+		entry.next = first;
+		first.prev = entry;
+		sentinel.next = entry;
+	}
+
+	private static void unlink(Entry entry) {
+		entry.prev.next = entry.next;
+		entry.next.prev = entry.prev;
+		entry.prev = null;
+		entry.next = null;
+	}
+
+	/**
+	 * A session in the LRU, also the value of the acceptor's session table and the element of its {@link DatagramReadyQueue}.
+	 */
+	static final class Entry {
+
+		final InetSocketAddress address;	// address of the session's peer
+		final DatagramSession session;
+		long accessTime;		// time of the latest datagram in ms
+		boolean protect;		// whether the entry is in the protected segment
+		Entry prev;				// null if the entry is not linked
+		Entry next;
+		boolean ready;			// whether the session has data to be sent
+		boolean queued;			// whether the entry is in the ready queue
+		Entry readyNext;		// next entry in the ready queue
+
+		Entry(InetSocketAddress address, DatagramSession session) {
+			this.address = address;
+			this.session = session;
+			if (address == null) {
+				// a sentinel links to itself
+				prev = this;
+				next = this;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,38 @@
+package com.gmail.dengtao.joe.transport;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The I/O thread which serves a selector.<br>
+ * Tasks which touch the selector's keys, e.g. changing a key's interest set, are executed by the I/O thread itself,
+ * so other threads never contend with the selector.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public interface EventLoop {
+
+	/**
+	 * Execute the task by the I/O thread of this event loop, the task is queued and run on the next iteration of the loop.
+	 * @param task task to be run
+	 * @since 1.1
+	 */
+	public void execute(Runnable task);
+	
+	/**
+	 * @return true if the current thread is the I/O thread of this event loop
+	 * @since 1.1
+	 */
+	public boolean inEventLoop();
+	
+	/**
+	 * Execute the task by the I/O thread of this event loop after the delay.<br>
+	 * The task is run by the first iteration of the loop after the delay, so the precision is the selector's, about a millisecond.
+	 * @param task task to be run
+	 * @param delay delay from now, zero or negative to run on the next iteration
+	 * @param unit unit of the delay
+	 * @since 1.1
+	 */
+	public void schedule(Runnable task, long delay, TimeUnit unit);
+	
+}
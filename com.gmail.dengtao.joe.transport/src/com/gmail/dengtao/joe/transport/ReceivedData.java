@@ -0,0 +1,30 @@
+package com.gmail.dengtao.joe.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Received data fired to {@link com.gmail.dengtao.joe.transport.filter.FilterChain} by the I/O threads of acceptors and connectors.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+final class ReceivedData {
+
+	private ReceivedData() {
+	}
+
+	/**
+	 * Get the data to be fired as received from the receive buffer.
+	 * @param buffer flipped receive buffer, its bytes are consumed if they are copied
+	 * @param copy whether copy the received bytes, a read-only view is only valid until the buffer is read into again
+	 * @return a byte[] copy of the received bytes if copy is true, or else a read-only view of the buffer
+	 */
+	static Object of(ByteBuffer buffer, boolean copy) {
+		if (copy) {
+			byte[] data = new byte[buffer.remaining()];
+			buffer.get(data);
+			return data;
+		}
+		return buffer.asReadOnlyBuffer();
+	}
+}
@@ -0,0 +1,231 @@
+package com.gmail.dengtao.joe.transport;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.gmail.dengtao.joe.transport.metrics.EventLoopHistograms;
+import com.gmail.dengtao.joe.transport.metrics.TransportMetrics;
+import com.gmail.dengtao.joe.transport.util.MpscQueue;
+
+/**
+ * {@link EventLoop} of an acceptor's, connector's or processor's selector.<br>
+ * The I/O thread calls {@link #bind()} when it starts, then {@link #runTasks()} and {@link #select(long)} in its loop.
+ * Wakeups are coalesced: a burst of tasks queued while the I/O thread is selecting costs one {@link Selector#wakeup()}.<br>
+ * Scheduled tasks are kept in a heap owned by the I/O thread, the select timeout is cut to the nearest deadline.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+class SelectorEventLoop implements EventLoop {
+
+	/** Max number of tasks run per iteration, so queued tasks can't starve I/O events */
+	private static final int MAX_TASKS_PER_RUN = 1024;
+
+	private final Selector selector;
+	private final MpscQueue<Runnable> taskQueue = new MpscQueue<Runnable>();
+	// scheduled tasks ordered by deadline, only used by the I/O thread
+	private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<ScheduledTask>();
+	private long scheduledSequence;		// keeps tasks with the same deadline in order, only used by the I/O thread
+	private final AtomicBoolean wakeupPending = new AtomicBoolean(false);	// if selector.wakeup() is called and not consumed yet
+	private volatile Thread thread;		// I/O thread of this event loop
+	private TransportMetrics metrics;	// counts select loop iterations, may be null
+	private final EventLoopHistograms histograms = new EventLoopHistograms();	// recorded by the I/O thread
+	private long selectEndTime;			// in System.nanoTime(), 0 before the first select, only used by the I/O thread
+
+	SelectorEventLoop(Selector selector) {
+		this.selector = selector;
+	}
+
+	/**
+	 * Set the metrics which count select loop iterations, it should be set before the I/O thread starts.
+	 * @param metrics metrics of acceptor or connector
+	 * @since 1.1
+	 */
+	void setMetrics(TransportMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return histograms recorded by the I/O thread of this event loop
+	 * @since 1.1
+	 */
+	EventLoopHistograms getHistograms() {
+		return histograms;
+	}
+
+	/**
+	 * Bind this event loop to the current thread, which must be the I/O thread.
+	 * @since 1.1
+	 */
+	void bind() {
+		thread = Thread.currentThread();
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		if (task == null) {
+			throw new IllegalArgumentException("task can't be null!");
+		}
+		taskQueue.offer(task);
+		if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	@Override
+	public boolean inEventLoop() {
+		return thread == Thread.currentThread();
+	}
+
+	@Override
+	public void schedule(final Runnable task, long delay, TimeUnit unit) {
+		if (task == null) {
+			throw new IllegalArgumentException("task can't be null!");
+		}
+		final long deadline = System.nanoTime() + unit.toNanos(delay > 0 ? delay : 0);
+		if (inEventLoop()) {
+			addScheduledTask(task, deadline);
+		} else {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					addScheduledTask(task, deadline);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Add a scheduled task to the heap, must be called by the I/O thread.
+	 * @param task task to be run
+	 * @param deadline time to run in {@link System#nanoTime()}
+	 * @since 1.1
+	 */
+	private void addScheduledTask(Runnable task, long deadline) {
+		scheduledTasks.add(new ScheduledTask(task, deadline, scheduledSequence++));
+	}
+
+	/**
+	 * Selects keys, does not block if there are queued tasks, and blocks until the nearest scheduled task's deadline at most.<br>
+	 * Time spent since the last select and time blocked in this select are recorded to the histograms.
+	 * @param timeout selector's timeout in milliseconds
+	 * @return number of selected keys
+	 * @throws IOException
+	 * @since 1.1
+	 */
+	int select(long timeout) throws IOException {
+		if (metrics != null) {
+			metrics.selectLoop();
+		}
+		long start = System.nanoTime();
+		if (selectEndTime != 0) {
+			histograms.getProcessing().record(start - selectEndTime);
+		}
+		int selected = doSelect(timeout, start);
+		selectEndTime = System.nanoTime();
+		histograms.getSelectWait().record(selectEndTime - start);
+		histograms.getSelectedKeys().record(selected);
+		return selected;
+	}
+
+	/**
+	 * @param timeout selector's timeout in milliseconds
+	 * @param now current time in {@link System#nanoTime()}
+	 * @return number of selected keys
+	 * @throws IOException
+	 */
+	private int doSelect(long timeout, long now) throws IOException {
+		if (!taskQueue.isEmpty()) {
+			return selector.selectNow();
+		}
+		ScheduledTask next = scheduledTasks.peek();
+		if (next != null) {
+			long delay = next.deadline - now;
+			if (delay <= 0) {
+				return selector.selectNow();
+			}
+			// round up, or the loop would spin with zero timeouts until the deadline
+			long delayMillis = (delay + 999999) / 1000000;
+			if (timeout == 0 || delayMillis < timeout) {
+				timeout = delayMillis;
+			}
+		}
+		return selector.select(timeout);
+	}
+
+	/**
+	 * Run queued tasks and scheduled tasks whose deadline has passed, must be called by the I/O thread.
+	 * @since 1.1
+	 */
+	void runTasks() {
+		// clear the flag before polling, a task queued after this will wake up the selector again
+		wakeupPending.set(false);
+		Runnable task;
+		for (int i = 0; i < MAX_TASKS_PER_RUN && (task = taskQueue.poll()) != null; i++) {
+			task.run();
+		}
+		if (!scheduledTasks.isEmpty()) {
+			long now = System.nanoTime();
+			for (ScheduledTask scheduled; (scheduled = scheduledTasks.peek()) != null && scheduled.deadline - now <= 0; ) {
+				scheduledTasks.poll();
+				histograms.getScheduledTaskLag().record(now - scheduled.deadline);
+				scheduled.task.run();
+			}
+		}
+	}
+
+	/**
+	 * Add or remove an operation to the interest set of the key, should be called by the I/O thread.
+	 * @param key selection key, nothing is done if it is null or cancelled
+	 * @param op operation, e.g. {@link SelectionKey#OP_WRITE}
+	 * @param interested true to add the operation, false to remove it
+	 * @since 1.1
+	 */
+	static void setInterest(SelectionKey key, int op, boolean interested) {
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		try {
+			int ops = key.interestOps();
+			int newOps = interested ? ops | op : ops & ~op;
+			if (newOps != ops) {
+				key.interestOps(newOps);
+			}
+		} catch (CancelledKeyException e) {
+			/* Nothing... */
+		}
+	}
+
+	/**
+	 * Task run by the I/O thread after its deadline.
+	 * @since 1.1
+	 */
+	private static final class ScheduledTask implements Comparable<ScheduledTask> {
+
+		private final Runnable task;
+		private final long deadline;	// in System.nanoTime()
+		private final long sequence;	// order of tasks with the same deadline
+
+		ScheduledTask(Runnable task, long deadline, long sequence) {
+			this.task = task;
+			this.deadline = deadline;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(ScheduledTask o) {
+			long diff = deadline - o.deadline;
+			if (diff != 0) {
+				return diff < 0 ? -1 : 1;
+			}
+			return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+		}
+
+	}
+
+}
@@ -0,0 +1,20 @@
+package com.gmail.dengtao.joe.transport;
+
+import com.gmail.dengtao.joe.transport.session.Session;
+
+/**
+ * This interface was defined to provide method for acceptors and connectors which cache their sessions to be notified when a session is closed.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public interface SessionRegistry {
+
+	/**
+	 * Notify this session has been closed and should be removed from the cache.
+	 * @param session closed session
+	 * @since 1.1
+	 */
+	public void unregister(Session session);
+	
+}
@@ -5,7 +5,6 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.SocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
@@ -14,29 +13,35 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import com.gmail.dengtao.joe.transport.filter.FilterChain;
-import com.gmail.dengtao.joe.transport.session.IdleStatus;
+import com.gmail.dengtao.joe.transport.metrics.EventLoopHistograms;
+import com.gmail.dengtao.joe.transport.session.Session;
 import com.gmail.dengtao.joe.transport.session.impl.SocketSession;
+import com.gmail.dengtao.joe.transport.util.HashedWheelTimer;
 
 /**
- * SocketAcceptor is used to recive/send tcp data.
+ * SocketAcceptor is used to recive/send tcp data.<br>
+ * The thread which calls {@link #start()} only accepts incoming connections, accepted sessions are
+ * dispatched round-robin to {@link #getProcessorCount()} I/O processors, each processor reads/writes
+ * its sessions with its own selector and thread.
  * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
  * @version 1.1
  * @since 1.0
  */
-public class SocketAcceptor extends AbstractAcceptor {
+public class SocketAcceptor extends AbstractAcceptor implements SessionRegistry {
 	
 	private ServerSocketChannel channel; 	// a selectable channel for stream-oriented listening sockets. 
 	private ServerSocket socket; 		// a socket for sending and receiving socket packets. 
 	private Selector selector; 			// a selectable channel's registration with a selector is represented by a SelectionKey object. A selector maintains three sets of selection keys: 
 
-	private DaemonThreadFactory threadFactory = new DaemonThreadFactory("SocketAcceptorSessionLifecycle");
-	private ScheduledExecutorService sessionLifecycleExecutor;  // Session LifeCycle Scheduled
-	private long sessionLifeCyclePeriod = 500;	// Session LifeCycle check perid, ms
+	private DaemonThreadFactory threadFactory = new DaemonThreadFactory("SocketAcceptorIdleTimer");
+	private HashedWheelTimer idleTimer;	// checks idle of sessions, only sessions going to be idle are touched
+	
+	private DaemonThreadFactory processorThreadFactory = new DaemonThreadFactory("SocketAcceptorProcessor");
+	private int processorCount = Runtime.getRuntime().availableProcessors();	// number of I/O processors, default is the number of processors available to the JVM
+	private SocketProcessor[] processors;	// I/O processors, accepted sessions are dispatched to them round-robin
+	private int nextProcessor = 0;			// index of the processor which the next accepted session will be dispatched to
 	
 	private Map<SocketChannel, SocketSession> sessionCache = new ConcurrentHashMap<SocketChannel, SocketSession>();
 	
@@ -73,10 +78,6 @@ public class SocketAcceptor extends AbstractAcceptor {
 		if (selector != null) try { selector.close(); selector = null; } catch (Exception e) { /** nothind... */ }
 		if (sessionCache != null) try { sessionCache.clear(); } catch (Exception e) { /** nothind... */ }
 		
-		synchronized (receiveBufferLock) {
-			/* allocate receive buffer */
-			receiveBuffer = ByteBuffer.allocate(receiveBufferSize);
-		}
 		/* Open Channel */
 		channel = ServerSocketChannel.open();
 		/* Configure Non-Blocking */
@@ -88,6 +89,9 @@ public class SocketAcceptor extends AbstractAcceptor {
             // Affects 1.6.0_29, fixed in 1.7.0_01
 			selector = Selector.open();
 		}
+		/* Idle timer, sessions are checked by it */
+		if (idleTimer != null) idleTimer.stop();
+		idleTimer = new HashedWheelTimer(threadFactory);
 	}
 
 
@@ -111,6 +115,8 @@ public class SocketAcceptor extends AbstractAcceptor {
 				throw new IllegalStateException("The Handler for this Acceptor was not set! call 'setHandler(Handler handler)' to set Handler for this acceptor.");
 			} else {
 				filterChain.setHandler(handler);
+				filterChain.setHandlerExecutor(handlerExecutor);
+				filterChain.setMetrics(metrics);
 			}
 	
 			SocketAddress address = new InetSocketAddress(InetAddress.getByName(host), port);
@@ -127,15 +133,25 @@ public class SocketAcceptor extends AbstractAcceptor {
 			// so wo should only register SelectionKey.OP_ACCEPT. 
 			channel.register(selector, SelectionKey.OP_ACCEPT);
 			
+			// Start I/O processors, accepted sessions will be read & written by them.
+			processors = new SocketProcessor[processorCount];
+			for (int i = 0; i < processors.length; i++) {
+				processors[i] = new SocketProcessor(filterChain, sessionCache, bufferAllocator, receiveBufferSize, copyReceivedData || handlerExecutor != null, selectTimeout);
+				processors[i].init();
+			}
+			for (int i = 0; i < processors.length; i++) {
+				processors[i].start(processorThreadFactory, "SocketAcceptorProcessor-" + i);
+			}
+			
+			// expose metrics by JMX
+			registerMetrics(host + ":" + port, new SocketSession(null, selector, filterChain, null));
+
 			if (lock != null) {
 				synchronized (lock) {
 					lock.notifyAll();
 				}
 			}
 			
-			// Schedule SessionCache LifyCycle ...
-			sessionLifecycleExecutor = Executors.newScheduledThreadPool(8, threadFactory);  
-			sessionLifecycleExecutor.scheduleAtFixedRate(new SessionLifeCycle(), sessionLifeCyclePeriod, sessionLifeCyclePeriod, TimeUnit.MILLISECONDS);  
 			
 			for (; isActive();) {
 				try {
@@ -155,29 +171,48 @@ public class SocketAcceptor extends AbstractAcceptor {
 			}
 		} catch (Exception e) {
 			setActive(false);
+			stopProcessors();
 			throw e;
 		}
 	}
 
 	/**
-	 * Handle SelectionKey process...
+	 * Handle SelectionKey process...<br>
+	 * Only accepting is handled here, accepted sessions are dispatched to the I/O processors.
 	 * @param selectionKey
 	 * @param channel
-	 * @throws IOException 
-	 * @throws Exception 
 	 * @since 1.0
 	 */
 	private void handleSelectionKey(SelectionKey key, ServerSocketChannel ssc) {
 		
-		// ACCEPTABLE key; accepting and adding new SocketChannel to selector for READ only
+		// ACCEPTABLE key; accepting and dispatching new SocketChannel to processor for READ only
 		if (key.isValid() && key.isAcceptable()) {
-			SocketChannel sc = null;
-			SocketSession session = new SocketSession(sc, selector, filterChain);
+			SocketChannel sc;
 			try {
 				// Accepts a connection made to this channel's socket. 
 				sc = ssc.accept();
-				session.setChannel(sc);
+			} catch (IOException e) {
+				filterChain.fireExceptionCaught(new SocketSession(null, selector, filterChain, null), e); // fire exception caught
+				return;
+			}
+			if (sc == null) {
+				// spurious accept event, no session is created and the round-robin does not advance
+				return;
+			}
+			SocketProcessor processor = nextProcessor();
+			SocketSession session = new SocketSession(sc, processor.getSelector(), filterChain);
+			try {
 				session.setSendBufferSize(sendBufferSize);
+				session.setBufferAllocator(bufferAllocator);
+				session.setWriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark);
+				session.setMetrics(metrics);
+				session.setEventLoop(processor.getEventLoop());
+				session.setWriteSpinCount(writeSpinCount);
+				session.setMaxWriteBytesPerPush(maxWriteBytesPerPush);
+				session.setAutoFlushBytes(autoFlushBytes);
+				session.setAutoFlushDelay(autoFlushDelay);
+				session.setIdleTimer(idleTimer);
+				session.setSessionRegistry(this);
 				SocketAddress localSocketAddress = null;
 				SocketAddress remoteSocketAddress = null;
 				if (sc.socket() != null) {
@@ -194,100 +229,36 @@ public class SocketAcceptor extends AbstractAcceptor {
 				
 				/* Configure Non-Blocking */
 				sc.configureBlocking(false);
-				// Socket channels support connecting, reading, and writing, 
-				// so this method returns (SelectionKey.OP_CONNECT | SelectionKey.OP_READ | SelectionKey.OP_WRITE). 
-				// sc.register(selector, SelectionKey.OP_CONNECT | SelectionKey.OP_READ );
-				sc.register(selector, SelectionKey.OP_READ );
-				selector.wakeup();
-				
-				session.open();	// fire session opened
+				// processor will register the channel for READ and open the session (fire session opened)
+				processor.register(session);
 			} catch (Exception e) {
 				filterChain.fireExceptionCaught(session, e); // fire exception caught
 				return;
 			}
 		}
-		
-		// WRITABLE key; handle write data
-		if (key.isValid() && key.isWritable()) {
-			// get the channel for which this key was created. 
-			// This method will continue to return the channel even after the key is cancelled. 
-			SocketChannel sc = (SocketChannel) key.channel();
-			SocketSession session = sessionCache.get(sc);
-			if (session != null) {
-				if (session.isOpen()) {
-					session.active();	// active session
-					try {
-						filterChain.firePushData(session);
-					} catch (Exception e) {
-						filterChain.fireExceptionCaught(session, e);
-						return;
-					}
-				}
-			} else {
-				// session is not register
-				filterChain.fireExceptionCaught(new SocketSession(sc, selector, filterChain), new IllegalStateException("can't write! channel session not register!"));
-				return;
-			}
-		}
-		
-		// READABLE key; handle available data
-		if (key.isValid() && key.isReadable()) {
-			// get the channel for which this key was created. 
-			// This method will continue to return the channel even after the key is cancelled. 
-			SocketChannel sc = (SocketChannel) key.channel();
-			// Returns the address of the endpoint this socket is connected to, or null if it is unconnected.
-			SocketAddress remoteSocketAddress = sc.socket().getRemoteSocketAddress();
-			SocketSession session = sessionCache.get(sc);
-			
-			if (session != null) {
-				if (session.isOpen()) {
-					session.active();	// active session
-					// Received data bytes
-					byte[] data = null;
-					// The number of bytes read, possibly zero, or -1 if the channel has reached end-of-stream
-					int readLen = 0;
-					try {
-						synchronized (receiveBufferLock) {
-							receiveBuffer.clear();
-							if ((readLen = sc.read(receiveBuffer)) > 0) {
-								receiveBuffer.flip();
-								data = new byte[receiveBuffer.limit() - receiveBuffer.position()];
-								receiveBuffer.get(data);
-							}
-						}
-					} catch (IOException e) {
-						// read error.
-						filterChain.fireExceptionCaught(session, e);
-						session.close();
-						return;
-					}
-					if (readLen == -1) {
-						// remote socket has closed
-						session.close();
-					} else {
-						if (data != null && data.length > 0) {
-							// set latest read time 
-							session.setLatestReadTime(System.currentTimeMillis());
-							filterChain.fireDataReceived(session, data);
-						}
-					}
-				}
-			} else {
-				// session is not register
-				filterChain.fireExceptionCaught(new SocketSession(sc, selector, filterChain, remoteSocketAddress), new IllegalStateException("can't read! channel session not register!"));
-				return;
-			}
-		}
+	}
+	
+	/**
+	 * Choose the processor for the next accepted session, round-robin.
+	 * @return processor
+	 * @since 1.1
+	 */
+	private SocketProcessor nextProcessor() {
+		SocketProcessor processor = processors[nextProcessor];
+		nextProcessor = (nextProcessor + 1) % processors.length;
+		return processor;
 	}
 
 	@Override
 	public void stop() {
 		if (isActive()) {
 			setActive(false);
-			// Cancel ScheduledExecutorService
-			if (sessionLifecycleExecutor != null) {
-				sessionLifecycleExecutor.shutdown();
+			// Stop idle timer
+			if (idleTimer != null) {
+				idleTimer.stop();
 			}
+			/* Unregister metrics */
+			metrics.unregister();
 			/* Close selector */
 			if (selector != null && selector.isOpen()) {
 				try { selector.close(); } catch (IOException e) { /** nothing */ }
@@ -300,6 +271,8 @@ public class SocketAcceptor extends AbstractAcceptor {
 			if (socket != null && !socket.isClosed()) {
 				try { socket.close(); } catch (IOException e) { /** nothing */ }
 			}
+			/* Stop processors */
+			stopProcessors();
 			/* close clients */
 			for (Iterator<Entry<SocketChannel, SocketSession>> iter = sessionCache.entrySet().iterator(); iter.hasNext();) {
 
@@ -324,58 +297,79 @@ public class SocketAcceptor extends AbstractAcceptor {
 		}
 	}
 	
+	/**
+	 * Stop I/O processors and close their selectors.
+	 * @since 1.1
+	 */
+	private void stopProcessors() {
+		if (processors != null) {
+			for (SocketProcessor processor : processors) {
+				if (processor != null) processor.stop();
+			}
+			processors = null;
+		}
+	}
+	
+	@Override
+	public void unregister(Session session) {
+		SocketChannel sc = ((SocketSession) session).getChannel();
+		if (sc != null) {
+			sessionCache.remove(sc);
+		}
+	}
+
+	@Override
+	public EventLoopHistograms[] getEventLoopHistograms() {
+		SocketProcessor[] processors = this.processors;
+		if (processors == null) {
+			return new EventLoopHistograms[0];
+		}
+		EventLoopHistograms[] histograms = new EventLoopHistograms[processors.length];
+		for (int i = 0; i < processors.length; i++) {
+			histograms[i] = processors[i].getHistograms();
+		}
+		return histograms;
+	}
+
+	
 	private void setActive(boolean active) {
 		synchronized (activeLock) {
 			this.active = active;
 		}
 	}
+
 	
 	/**
-	 * @return sessions in this acceptor
-	 * @since 1.0
+	 * @return number of I/O processors
+	 * @since 1.1
 	 */
-	public Map<SocketChannel, SocketSession> getSessionCache() {
-		return sessionCache;
+	public int getProcessorCount() {
+		return processorCount;
 	}
 
 	/**
-	 * Maintain sessionCache, remove (now - activeTime) >= sessionLifeTime or closed Session
-	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
-	 * @version 1.0
-	 * @since 1.0
-	 * @date 2012-10-7
+	 * Set the number of I/O processors, each processor owns a selector and a thread.<br>
+	 * Default is the number of processors available to the JVM.
+	 * @param processorCount number of I/O processors
+	 * @throws IllegalArgumentException If processorCount is less than 1
+	 * @since 1.1
 	 */
-	class SessionLifeCycle implements Runnable {
-
-		@Override
-		public void run() {
-			long now = System.currentTimeMillis();
-			Iterator<Entry<SocketChannel, SocketSession>> iter = sessionCache.entrySet().iterator(); 
-			for ( ; iter.hasNext(); ) {
-				Entry<SocketChannel, SocketSession> entry = iter.next(); 
-				SocketSession session = entry.getValue();
-				if (session != null) {
-					if (session.isClosed()) {
-						iter.remove();
-						continue;
-					} else if (session.isOpen()) {
-						// check write idle
-						if (session.getIdleTime(IdleStatus.WRITE_IDLE) > 0 && (now - session.getLatestWriteTime()) >= session.getIdleTime(IdleStatus.WRITE_IDLE)) {
-							filterChain.fireSessionIdle(session, IdleStatus.WRITE_IDLE);
-							session.setLatestWriteTime(now);
-						}
-						// check read idle
-						if (session.getIdleTime(IdleStatus.READ_IDLE) > 0 && (now - session.getLatestReadTime()) >= session.getIdleTime(IdleStatus.READ_IDLE)) {
-							filterChain.fireSessionIdle(session, IdleStatus.READ_IDLE);
-							session.setLatestReadTime(now);
-						}
-					}
-				} else {
-					iter.remove();
-				}
-			}
+	public void setProcessorCount(int processorCount) {
+		if (processorCount < 1) {
+			throw new IllegalArgumentException("Illegal processor count: " + processorCount);
 		}
-		
+		if (isActive()) {
+			throw new IllegalStateException("Acceptor is already started! you should config this option before this acceptor is start!");
+		}
+		this.processorCount = processorCount;
+	}
+	
+	/**
+	 * @return sessions in this acceptor
+	 * @since 1.0
+	 */
+	public Map<SocketChannel, SocketSession> getSessionCache() {
+		return sessionCache;
 	}
 
 }
@@ -5,21 +5,17 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import com.gmail.dengtao.joe.transport.filter.FilterChain;
 import com.gmail.dengtao.joe.transport.handler.Handler;
-import com.gmail.dengtao.joe.transport.session.IdleStatus;
-import com.gmail.dengtao.joe.transport.session.Session;
+import com.gmail.dengtao.joe.transport.metrics.EventLoopHistograms;
 import com.gmail.dengtao.joe.transport.session.impl.SocketSession;
+import com.gmail.dengtao.joe.transport.util.HashedWheelTimer;
 
 /**
  * SocketConnector is used to recive/send tcp data.
@@ -33,11 +29,12 @@ public class SocketConnector extends AbstarctConnector {
 	private Socket socket; 			// a socket for sending and receiving socket packets. 
 	private Selector selector; 		// a selectable channel's registration with a selector is represented by a SelectionKey object. A selector maintains three sets of selection keys: 
 
+	private SelectorEventLoop eventLoop;	// runs interest set changes of session by the I/O thread
+	
 	private SocketSession session;
 	
-	private DaemonThreadFactory threadFactory = new DaemonThreadFactory("SocketConnectorSessionLifecycle");
-	private ScheduledExecutorService sessionLifecycleExecutor;  // Session LifeCycle Scheduled
-	private long sessionLifeCyclePeriod = 500;	// Session LifeCycle check perid, ms
+	private DaemonThreadFactory threadFactory = new DaemonThreadFactory("SocketConnectorIdleTimer");
+	private HashedWheelTimer idleTimer;	// checks idle of sessions, only sessions going to be idle are touched
 	
 	public SocketConnector() {
 		filterChain = new FilterChain();
@@ -53,10 +50,6 @@ public class SocketConnector extends AbstarctConnector {
 		if (socket != null) try { socket.close(); socket = null; } catch (Exception e) { /** nothind... */ }
 		if (selector != null) try { selector.close(); selector = null; } catch (Exception e) { /** nothind... */ }
 
-		synchronized (receiveBufferLock) {
-			/* allocate receive buffer */
-			receiveBuffer = ByteBuffer.allocate(receiveBufferSize);
-		}
 		/* Open Channel */
 		channel = SocketChannel.open();
 		/* Configure Non-Blocking */
@@ -68,6 +61,11 @@ public class SocketConnector extends AbstarctConnector {
             // Affects 1.6.0_29, fixed in 1.7.0_01
 			selector = Selector.open();
 		}
+		eventLoop = new SelectorEventLoop(selector);
+		eventLoop.setMetrics(metrics);
+		/* Idle timer, sessions are checked by it */
+		if (idleTimer != null) idleTimer.stop();
+		idleTimer = new HashedWheelTimer(threadFactory);
 	}
 
 	@Override
@@ -90,6 +88,8 @@ public class SocketConnector extends AbstarctConnector {
 				throw new IllegalStateException("The Handler for this Connector was not set! call 'setHandler(Handler handler)' to set Handler for this Connector.");
 			} else {
 				filterChain.setHandler(handler);
+				filterChain.setHandlerExecutor(handlerExecutor);
+				filterChain.setMetrics(metrics);
 			}
 			
 			SocketAddress remote = new InetSocketAddress(InetAddress.getByName(host), port);
@@ -97,8 +97,11 @@ public class SocketConnector extends AbstarctConnector {
 			socket = channel.socket();
 			// Socket channels support connecting, reading, and writing, 
 			// so this method returns (SelectionKey.OP_CONNECT | SelectionKey.OP_READ | SelectionKey.OP_WRITE). 
-			channel.register(selector, SelectionKey.OP_CONNECT | SelectionKey.OP_READ);
+			SelectionKey channelKey = channel.register(selector, SelectionKey.OP_CONNECT | SelectionKey.OP_READ);
 			
+			// expose metrics by JMX
+			registerMetrics(host + ":" + port, new SocketSession(null, selector, filterChain, null));
+
 			if (lock != null) {
 				synchronized (lock) {
 					lock.notifyAll();
@@ -107,13 +110,24 @@ public class SocketConnector extends AbstarctConnector {
 			
 			session = new SocketSession(channel, selector, filterChain, remote);
 			session.setSendBufferSize(sendBufferSize);
-			// Schedule SessionCache LifyCycle ...
-			sessionLifecycleExecutor = Executors.newScheduledThreadPool(8, threadFactory);  
-			sessionLifecycleExecutor.scheduleAtFixedRate(new SessionLifeCycle(), sessionLifeCyclePeriod, sessionLifeCyclePeriod, TimeUnit.MILLISECONDS);  
+			session.setBufferAllocator(bufferAllocator);
+			session.setWriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark);
+			session.setMetrics(metrics);
+			session.setWriteSpinCount(writeSpinCount);
+			session.setMaxWriteBytesPerPush(maxWriteBytesPerPush);
+			session.setAutoFlushBytes(autoFlushBytes);
+			session.setAutoFlushDelay(autoFlushDelay);
+			session.setSelectionKey(channelKey);
+			session.setEventLoop(eventLoop);
+			session.setIdleTimer(idleTimer);
 			
+			/* borrow receive buffer from the allocator, it is only used by this I/O thread */
+			receiveBuffer = bufferAllocator.allocate(receiveBufferSize);
+			eventLoop.bind();
 			for (; isActive();) {
 				try {
-					if (selector.select(selectTimeout) == 0) {
+					eventLoop.runTasks();
+					if (eventLoop.select(selectTimeout) == 0) {
 						continue;
 					}
 					Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
@@ -127,6 +141,9 @@ public class SocketConnector extends AbstarctConnector {
 					}
 				}
 			}
+			/* give the receive buffer back to the allocator */
+			bufferAllocator.release(receiveBuffer);
+			receiveBuffer = null;
 		} catch (Exception e) {
 			setActive(false);
 			throw e;
@@ -168,12 +185,11 @@ public class SocketConnector extends AbstarctConnector {
 					session.setRemoteSocketAddress(remoteSocketAddress);
 					
 					try {
-						channel.register(selector, SelectionKey.OP_READ);
-						selector.wakeup();
+						key.interestOps(SelectionKey.OP_READ);
 						
 						// open session
 						session.open();
-					} catch (ClosedChannelException e) {
+					} catch (CancelledKeyException e) {
 						filterChain.fireExceptionCaught(session, e);
 						session.close();
 						this.close();
@@ -221,17 +237,14 @@ public class SocketConnector extends AbstarctConnector {
 				if (session.isOpen()) {
 					session.active();	// active session
 					// Received data bytes
-					byte[] data = null;
+					Object data = null;
 					// The number of bytes read, possibly zero, or -1 if the channel has reached end-of-stream
 					int readLen = 0;
 					try {
-						synchronized (receiveBufferLock) {
-							receiveBuffer.clear();
-							if ((readLen = sc.read(receiveBuffer)) > 0) {
-								receiveBuffer.flip();
-								data = new byte[receiveBuffer.limit() - receiveBuffer.position()];
-								receiveBuffer.get(data);
-							}
+						receiveBuffer.clear();
+						if ((readLen = sc.read(receiveBuffer)) > 0) {
+							receiveBuffer.flip();
+							data = receivedData(receiveBuffer);
 						}
 					} catch (IOException e) {
 						// read error
@@ -242,7 +255,7 @@ public class SocketConnector extends AbstarctConnector {
 						// remote socket has closed
 						this.close();
 					} else {
-						if (data != null && data.length > 0) {
+						if (data != null) {
 							// set latest read time 
 							session.setLatestReadTime(System.currentTimeMillis());
 							filterChain.fireDataReceived(session, data);
@@ -261,10 +274,12 @@ public class SocketConnector extends AbstarctConnector {
 	public void close() {
 		if (isActive()) {
 			setActive(false);
-			// Cancel ScheduledExecutorService
-			if (sessionLifecycleExecutor != null) {
-				sessionLifecycleExecutor.shutdown();
+			// Stop idle timer
+			if (idleTimer != null) {
+				idleTimer.stop();
 			}
+			/* Unregister metrics */
+			metrics.unregister();
 			// close this session
 			if (session != null && session.isOpen()) {
 				session.close();
@@ -292,44 +307,19 @@ public class SocketConnector extends AbstarctConnector {
 		return channel;
 	}
 
+	@Override
+	public EventLoopHistograms[] getEventLoopHistograms() {
+		if (eventLoop == null) {
+			return new EventLoopHistograms[0];
+		}
+		return new EventLoopHistograms[] { eventLoop.getHistograms() };
+	}
+
+
 	private void setActive(boolean active) {
 		synchronized (activeLock) {
 			this.active = active;
 		}
 	}
-	
-	/**
-	 * Maintain session, fire {@link Handler#sessionIdle(Session, IdleStatus)};
-	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
-	 * @version 1.0
-	 * @since 1.0
-	 * @date 2012-10-7
-	 */
-	class SessionLifeCycle implements Runnable {
-
-		@Override
-		public void run() {
-			long now = System.currentTimeMillis();
-			//synchronized (session) {
-				if (session.isClosed()) {
-					sessionLifecycleExecutor.shutdown();
-					return;
-				}
-				if (session.isOpen()) {
-					// check write idle
-					if (session.getIdleTime(IdleStatus.WRITE_IDLE) > 0 && (now - session.getLatestWriteTime()) >= session.getIdleTime(IdleStatus.WRITE_IDLE)) {
-						filterChain.fireSessionIdle(session, IdleStatus.WRITE_IDLE);
-						session.setLatestWriteTime(now);
-					}
-					// check read idle
-					if (session.getIdleTime(IdleStatus.READ_IDLE) > 0 && (now - session.getLatestReadTime()) >= session.getIdleTime(IdleStatus.READ_IDLE)) {
-						filterChain.fireSessionIdle(session, IdleStatus.READ_IDLE);
-						session.setLatestReadTime(now);
-					}
-				}
-			}
-		//}
-		
-	}
 
 }
@@ -4,8 +4,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
@@ -13,15 +12,13 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import com.gmail.dengtao.joe.transport.filter.FilterChain;
 import com.gmail.dengtao.joe.transport.handler.Handler;
-import com.gmail.dengtao.joe.transport.session.IdleStatus;
+import com.gmail.dengtao.joe.transport.metrics.EventLoopHistograms;
 import com.gmail.dengtao.joe.transport.session.Session;
 import com.gmail.dengtao.joe.transport.session.impl.SocketSession;
+import com.gmail.dengtao.joe.transport.util.HashedWheelTimer;
 
 /**
  * SocketMultiConnector is used to recive/send tcp data with multi server
@@ -29,13 +26,13 @@ import com.gmail.dengtao.joe.transport.session.impl.SocketSession;
  * @version 1.1
  * @since 1.0
  */
-public class SocketMultiConnector extends AbstarctConnector {
+public class SocketMultiConnector extends AbstarctConnector implements SessionRegistry {
 
 	private Selector selector; 		// a selectable channel's registration with a selector is represented by a SelectionKey object. A selector maintains three sets of selection keys: 
+	private SelectorEventLoop eventLoop;	// runs interest set changes of sessions by the I/O thread
 
-	private DaemonThreadFactory threadFactory = new DaemonThreadFactory("SocketMultiConnectorSessionLifecycle");
-	private ScheduledExecutorService sessionLifecycleExecutor;  // Session LifeCycle Scheduled
-	private long sessionLifeCyclePeriod = 500;	// Session LifeCycle check perid, ms
+	private DaemonThreadFactory threadFactory = new DaemonThreadFactory("SocketMultiConnectorIdleTimer");
+	private HashedWheelTimer idleTimer;	// checks idle of sessions, only sessions going to be idle are touched
 
 	private Map<SocketChannel, SocketSession> sessionCache = new ConcurrentHashMap<SocketChannel, SocketSession>();
 	
@@ -52,10 +49,6 @@ public class SocketMultiConnector extends AbstarctConnector {
 		if (selector != null) try { selector.close(); selector = null; } catch (Exception e) { /** nothind... */ }
 		if (sessionCache != null) try { sessionCache.clear(); } catch (Exception e) { /** nothind... */ }
 		
-		/* allocate receive buffer */
-		synchronized (receiveBufferLock) {
-			receiveBuffer = ByteBuffer.allocate(receiveBufferSize);
-		}
 		/* Open a selector */
 		synchronized (Selector.class) {
 			// Selector.open() isn't thread safe
@@ -63,6 +56,11 @@ public class SocketMultiConnector extends AbstarctConnector {
             // Affects 1.6.0_29, fixed in 1.7.0_01
 			selector = Selector.open();
 		}
+		eventLoop = new SelectorEventLoop(selector);
+		eventLoop.setMetrics(metrics);
+		/* Idle timer, sessions are checked by it */
+		if (idleTimer != null) idleTimer.stop();
+		idleTimer = new HashedWheelTimer(threadFactory);
 	}
 
 	@Override
@@ -86,10 +84,22 @@ public class SocketMultiConnector extends AbstarctConnector {
 					throw new IllegalStateException("The Handler for this Connector was not set! call 'setHandler(Handler handler)' to set Handler for this Connector.");
 				} else {
 					filterChain.setHandler(handler);
+					filterChain.setHandlerExecutor(handlerExecutor);
+					filterChain.setMetrics(metrics);
 				}
 				SocketAddress remote = new InetSocketAddress(InetAddress.getByName(host), port);
 				SocketChannel channel = openNewChannel(false);
 				SocketSession session = new SocketSession(channel, selector, filterChain, null, remote);
+				session.setSendBufferSize(sendBufferSize);
+				session.setBufferAllocator(bufferAllocator);
+				session.setWriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark);
+				session.setMetrics(metrics);
+				session.setWriteSpinCount(writeSpinCount);
+				session.setMaxWriteBytesPerPush(maxWriteBytesPerPush);
+				session.setAutoFlushBytes(autoFlushBytes);
+				session.setAutoFlushDelay(autoFlushDelay);
+				session.setIdleTimer(idleTimer);
+				session.setSessionRegistry(this);
 				
 				sessionCache.put(channel, session);
 				
@@ -108,7 +118,8 @@ public class SocketMultiConnector extends AbstarctConnector {
 				}
 				// Socket channels support connecting, reading, and writing, 
 				// so this method returns (SelectionKey.OP_CONNECT | SelectionKey.OP_READ | SelectionKey.OP_WRITE). 
-				channel.register(selector, SelectionKey.OP_CONNECT | SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				session.setSelectionKey(channel.register(selector, SelectionKey.OP_CONNECT | SelectionKey.OP_READ | SelectionKey.OP_WRITE));
+				session.setEventLoop(eventLoop);
 				selector.wakeup();
 				
 				if (lock != null) {
@@ -133,14 +144,17 @@ public class SocketMultiConnector extends AbstarctConnector {
 		} else {
 			setActive(true);
 		}
+		// expose metrics by JMX
+		registerMetrics(Integer.toHexString(System.identityHashCode(this)), new SocketSession(null, selector, filterChain, null));
 
-		// Schedule SessionCache LifyCycle ...
-		sessionLifecycleExecutor = Executors.newScheduledThreadPool(8, threadFactory);  
-		sessionLifecycleExecutor.scheduleAtFixedRate(new SessionLifeCycle(), sessionLifeCyclePeriod, sessionLifeCyclePeriod, TimeUnit.MILLISECONDS);  
 		
+		/* borrow receive buffer from the allocator, it is only used by this I/O thread */
+		receiveBuffer = bufferAllocator.allocate(receiveBufferSize);
+		eventLoop.bind();
 		for (; isActive();) {
 			try {
-				if (selector.select(selectTimeout) == 0) {
+				eventLoop.runTasks();
+				if (eventLoop.select(selectTimeout) == 0) {
 					continue;
 				}
 				Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
@@ -154,6 +168,9 @@ public class SocketMultiConnector extends AbstarctConnector {
 				}
 			}
 		}
+		/* give the receive buffer back to the allocator */
+		bufferAllocator.release(receiveBuffer);
+		receiveBuffer = null;
 	}
 
 	/**
@@ -214,11 +231,10 @@ public class SocketMultiConnector extends AbstarctConnector {
 						session.setLocalSocketAddress(localSocketAddress);
 						session.setRemoteSocketAddress(remoteSocketAddress);
 						try {
-							channel.register(selector, SelectionKey.OP_READ);
-							selector.wakeup();
+							key.interestOps(SelectionKey.OP_READ);
 							
 							session.open();
-						} catch (ClosedChannelException e) {
+						} catch (CancelledKeyException e) {
 							filterChain.fireExceptionCaught(session, e);
 							session.close();
 							return;
@@ -266,17 +282,14 @@ public class SocketMultiConnector extends AbstarctConnector {
 				if (session.isOpen()) {
 					session.active();	// active session
 					// Received data bytes
-					byte[] data = null;
+					Object data = null;
 					// The number of bytes read, possibly zero, or -1 if the channel has reached end-of-stream
 					int readLen = 0;
 					try {
-						synchronized (receiveBufferLock) {
-							receiveBuffer.clear();
-							if ((readLen = channel.read(receiveBuffer)) > 0) {
-								receiveBuffer.flip();
-								data = new byte[receiveBuffer.limit() - receiveBuffer.position()];
-								receiveBuffer.get(data);
-							}
+						receiveBuffer.clear();
+						if ((readLen = channel.read(receiveBuffer)) > 0) {
+							receiveBuffer.flip();
+							data = receivedData(receiveBuffer);
 						}
 					} catch (IOException e) {
 						// read error
@@ -288,7 +301,7 @@ public class SocketMultiConnector extends AbstarctConnector {
 						// remote socket has closed
 						session.close();
 					} else {
-						if (data != null && data.length > 0) {
+						if (data != null) {
 							// set latest read time 
 							session.setLatestReadTime(System.currentTimeMillis());
 							filterChain.fireDataReceived(session, data);
@@ -303,10 +316,12 @@ public class SocketMultiConnector extends AbstarctConnector {
 	public void close() {
 		if (isActive()) {
 			setActive(false);
-			// Cancel ScheduledExecutorService
-			if (sessionLifecycleExecutor != null) {
-				sessionLifecycleExecutor.shutdown();
+			// Stop idle timer
+			if (idleTimer != null) {
+				idleTimer.stop();
 			}
+			/* Unregister metrics */
+			metrics.unregister();
 			/* Close selector */
 			if (selector != null && selector.isOpen()) {
 				try { selector.close(); } catch (IOException e) { /** nothing */ }
@@ -334,50 +349,27 @@ public class SocketMultiConnector extends AbstarctConnector {
 		}
 	}
 
-	private void setActive(boolean active) {
-		synchronized (activeLock) {
-			this.active = active;
+	@Override
+	public void unregister(Session session) {
+		SocketChannel channel = ((SocketSession) session).getChannel();
+		if (channel != null) {
+			sessionCache.remove(channel);
 		}
 	}
-	
-	/**
-	 * Maintain session, fire {@link Handler#sessionIdle(Session, IdleStatus)};
-	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
-	 * @version 1.0
-	 * @since 1.0
-	 * @date 2012-10-7
-	 */
-	class SessionLifeCycle implements Runnable {
 
-		@Override
-		public void run() {
-			long now = System.currentTimeMillis();
-			
-			for (Iterator<Entry<SocketChannel, SocketSession>> iter = sessionCache.entrySet().iterator(); iter.hasNext();) {
-				Entry<SocketChannel, SocketSession> entry = iter.next(); 
-				SocketSession session = entry.getValue();
-				if(session != null) {
-					if (session.isClosed()) {
-						iter.remove();
-						continue;
-					} else if (session.isOpen()) {
-						// check write idle
-						if (session.getIdleTime(IdleStatus.WRITE_IDLE) > 0 && (now - session.getLatestWriteTime()) >= session.getIdleTime(IdleStatus.WRITE_IDLE)) {
-							filterChain.fireSessionIdle(session, IdleStatus.WRITE_IDLE);
-							session.setLatestWriteTime(now);
-						}
-						// check read idle
-						if (session.getIdleTime(IdleStatus.READ_IDLE) > 0 && (now - session.getLatestReadTime()) >= session.getIdleTime(IdleStatus.READ_IDLE)) {
-							filterChain.fireSessionIdle(session, IdleStatus.READ_IDLE);
-							session.setLatestReadTime(now);
-						}
-					}
-				} else {
-					iter.remove();
-				}
-			}
+	@Override
+	public EventLoopHistograms[] getEventLoopHistograms() {
+		if (eventLoop == null) {
+			return new EventLoopHistograms[0];
+		}
+		return new EventLoopHistograms[] { eventLoop.getHistograms() };
+	}
+
+
+	private void setActive(boolean active) {
+		synchronized (activeLock) {
+			this.active = active;
 		}
-		
 	}
 
 }
\ No newline at end of file
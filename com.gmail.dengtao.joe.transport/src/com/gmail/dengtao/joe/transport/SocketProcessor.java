@@ -0,0 +1,261 @@
+package com.gmail.dengtao.joe.transport;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.gmail.dengtao.joe.transport.buffer.BufferAllocator;
+import com.gmail.dengtao.joe.transport.filter.FilterChain;
+import com.gmail.dengtao.joe.transport.metrics.EventLoopHistograms;
+import com.gmail.dengtao.joe.transport.session.impl.SocketSession;
+
+/**
+ * I/O processor of {@link SocketAcceptor}.<br>
+ * Each processor owns a selector, a receive buffer and a thread, and serves the read/write events
+ * of the sessions which were dispatched to it by the acceptor.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+class SocketProcessor implements Runnable {
+
+	private Selector selector; 			// selector of this processor, only sessions dispatched to this processor are registered here.
+	private ByteBuffer receiveBuffer;	// reveive data buffer, borrowed from bufferAllocator and only used by this processor's thread.
+
+	private final FilterChain filterChain;
+	private final BufferAllocator bufferAllocator;
+	private final Map<SocketChannel, SocketSession> sessionCache;
+	private final int receiveBufferSize;
+	private final boolean copyReceivedData;
+	private final long selectTimeout;
+
+	private SelectorEventLoop eventLoop;	// runs registrations and interest set changes of this processor's sessions
+
+	private volatile boolean active = false; 	// if this processor is active
+
+	/**
+	 * Create a new processor
+	 * @param filterChain FilterChain of the acceptor
+	 * @param sessionCache sessions of the acceptor
+	 * @param bufferAllocator allocator of the receive buffer
+	 * @param receiveBufferSize receive buffer's size of this processor, in bytes
+	 * @param copyReceivedData whether fire received data as a byte[] copy or as a read-only view of the receive buffer, a handler executor needs a copy
+	 * @param selectTimeout selector's timeout in milliseconds
+	 */
+	SocketProcessor(FilterChain filterChain, Map<SocketChannel, SocketSession> sessionCache, BufferAllocator bufferAllocator, int receiveBufferSize, boolean copyReceivedData, long selectTimeout) {
+		this.filterChain = filterChain;
+		this.sessionCache = sessionCache;
+		this.bufferAllocator = bufferAllocator;
+		this.receiveBufferSize = receiveBufferSize;
+		this.copyReceivedData = copyReceivedData;
+		this.selectTimeout = selectTimeout;
+	}
+
+	/**
+	 * Initializaing resources, etc.
+	 * @throws IOException
+	 * @since 1.1
+	 */
+	void init() throws IOException {
+		/* Open a selector */
+		synchronized (Selector.class) {
+			// Selector.open() isn't thread safe
+            // http://bugs.sun.com/view_bug.do?bug_id=6427854
+            // Affects 1.6.0_29, fixed in 1.7.0_01
+			selector = Selector.open();
+		}
+		eventLoop = new SelectorEventLoop(selector);
+		eventLoop.setMetrics(filterChain.getMetrics());
+	}
+
+	/**
+	 * Start this processor in a new thread.
+	 * @param threadFactory factory to create processor's thread
+	 * @param name name of processor's thread
+	 * @since 1.1
+	 */
+	void start(DaemonThreadFactory threadFactory, String name) {
+		active = true;
+		threadFactory.newThread(this, name).start();
+	}
+
+	/**
+	 * @return selector of this processor
+	 * @since 1.1
+	 */
+	Selector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * @return histograms of this processor's select loop
+	 * @since 1.1
+	 */
+	EventLoopHistograms getHistograms() {
+		return eventLoop.getHistograms();
+	}
+
+	/**
+	 * @return event loop of this processor
+	 * @since 1.1
+	 */
+	EventLoop getEventLoop() {
+		return eventLoop;
+	}
+
+	/**
+	 * Dispatch an accepted session to this processor, the session's channel will be
+	 * registered by the processor's thread and then the session will be opened.
+	 * @param session accepted session
+	 * @since 1.1
+	 */
+	void register(final SocketSession session) {
+		eventLoop.execute(new Runnable() {
+			@Override
+			public void run() {
+				registerSession(session);
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		eventLoop.bind();
+		/* borrow receive buffer from the allocator, it is only used by this processor's thread */
+		receiveBuffer = bufferAllocator.allocate(receiveBufferSize);
+		for (; active;) {
+			try {
+				eventLoop.runTasks();
+				if (eventLoop.select(selectTimeout) == 0) {
+					continue;
+				}
+				Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+				for( ; iter.hasNext(); iter.remove()) {
+					SelectionKey key = iter.next();
+					handleSelectionKey(key);	// Handle SelectionKey...
+				}
+			} catch (Exception e) {
+				if (active) {
+					filterChain.fireExceptionCaught(new SocketSession(null, selector, filterChain, null), e);	// fire exception caught
+				}
+			}
+		}
+		/* give the receive buffer back to the allocator */
+		bufferAllocator.release(receiveBuffer);
+		receiveBuffer = null;
+	}
+
+	/**
+	 * Register an accepted session to this processor's selector for READ, and open it.
+	 * @param session accepted session
+	 * @since 1.1
+	 */
+	private void registerSession(SocketSession session) {
+		try {
+			SocketChannel sc = session.getChannel();
+			// Socket channels support connecting, reading, and writing,
+			// so this method returns (SelectionKey.OP_CONNECT | SelectionKey.OP_READ | SelectionKey.OP_WRITE).
+			// a session suspended before it is registered will not read until resumed
+			session.setSelectionKey(sc.register(selector, session.isReadSuspended() ? 0 : SelectionKey.OP_READ));
+
+			session.open();	// fire session opened
+		} catch (Exception e) {
+			filterChain.fireExceptionCaught(session, e); // fire exception caught
+		}
+	}
+
+	/**
+	 * Handle SelectionKey process...
+	 * @param key
+	 * @since 1.1
+	 */
+	private void handleSelectionKey(SelectionKey key) {
+
+		// WRITABLE key; handle write data
+		if (key.isValid() && key.isWritable()) {
+			// get the channel for which this key was created.
+			// This method will continue to return the channel even after the key is cancelled.
+			SocketChannel sc = (SocketChannel) key.channel();
+			SocketSession session = sessionCache.get(sc);
+			if (session != null) {
+				if (session.isOpen()) {
+					session.active();	// active session
+					try {
+						filterChain.firePushData(session);
+					} catch (Exception e) {
+						filterChain.fireExceptionCaught(session, e);
+						return;
+					}
+				}
+			} else {
+				// session is not register
+				filterChain.fireExceptionCaught(new SocketSession(sc, selector, filterChain), new IllegalStateException("can't write! channel session not register!"));
+				return;
+			}
+		}
+
+		// READABLE key; handle available data
+		if (key.isValid() && key.isReadable()) {
+			// get the channel for which this key was created.
+			// This method will continue to return the channel even after the key is cancelled.
+			SocketChannel sc = (SocketChannel) key.channel();
+			SocketSession session = sessionCache.get(sc);
+
+			if (session != null) {
+				if (session.isOpen()) {
+					session.active();	// active session
+					// Received data bytes
+					Object data = null;
+					// The number of bytes read, possibly zero, or -1 if the channel has reached end-of-stream
+					int readLen = 0;
+					try {
+						receiveBuffer.clear();
+						if ((readLen = sc.read(receiveBuffer)) > 0) {
+							receiveBuffer.flip();
+							data = ReceivedData.of(receiveBuffer, copyReceivedData);
+						}
+					} catch (IOException e) {
+						// read error.
+						filterChain.fireExceptionCaught(session, e);
+						session.close();
+						return;
+					}
+					if (readLen == -1) {
+						// remote socket has closed
+						session.close();
+					} else {
+						if (data != null) {
+							// set latest read time
+							session.setLatestReadTime(System.currentTimeMillis());
+							filterChain.fireDataReceived(session, data);
+						}
+					}
+				}
+			} else {
+				// Returns the address of the endpoint this socket is connected to, or null if it is unconnected.
+				SocketAddress remoteSocketAddress = sc.socket().getRemoteSocketAddress();
+				// session is not register
+				filterChain.fireExceptionCaught(new SocketSession(sc, selector, filterChain, remoteSocketAddress), new IllegalStateException("can't read! channel session not register!"));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Stop this processor and close its selector.
+	 * @since 1.1
+	 */
+	void stop() {
+		active = false;
+		/* Close selector */
+		if (selector != null && selector.isOpen()) {
+			try { selector.close(); } catch (IOException e) { /** nothing */ }
+		}
+	}
+
+}
@@ -0,0 +1,40 @@
+package com.gmail.dengtao.joe.transport.buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocates {@link ByteBuffer}s for the receive buffers of the I/O threads of acceptors and connectors, and for the
+ * send buffers of datagram sessions; socket sessions write the buffers of their queued packets directly.<br>
+ * A buffer borrowed by {@link #allocate(int)} should be given back by {@link #release(ByteBuffer)}
+ * once it is no longer used, and must not be touched after that.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public interface BufferAllocator {
+
+	/**
+	 * Borrow a buffer.<br>
+	 * The buffer's position will be zero and its limit will be its capacity, 
+	 * which is at least the requested capacity.
+	 * @param capacity The requested capacity, in bytes
+	 * @return a buffer
+	 * @throws IllegalArgumentException If the capacity is a negative integer
+	 * @since 1.1
+	 */
+	ByteBuffer allocate(int capacity);
+
+	/**
+	 * Give back a buffer borrowed by {@link #allocate(int)}.
+	 * @param buffer buffer to be released
+	 * @since 1.1
+	 */
+	void release(ByteBuffer buffer);
+
+	/**
+	 * @return true if this allocator allocates direct buffers
+	 * @since 1.1
+	 */
+	boolean isDirect();
+
+}
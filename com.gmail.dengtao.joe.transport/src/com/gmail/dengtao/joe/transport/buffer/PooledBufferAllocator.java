@@ -0,0 +1,258 @@
+package com.gmail.dengtao.joe.transport.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocator which pools buffers by size class.<br>
+ * Requested capacities are rounded up to a power of two between minSize and maxSize, every size class keeps
+ * at most maxPooled released buffers for reuse; requests larger than maxSize are never pooled.
+ * <p>
+ * When direct buffers are requested, a size class allocates direct memory in slabs of {@link #DEFAULT_SLAB_SIZE} bytes
+ * and slices them into buffers, so the expensive direct allocation is paid once per slab rather than once per buffer.
+ * <p>
+ * Buffers are borrowed for the receive buffers of the I/O threads and for the send buffers of datagram sessions;
+ * socket sessions write their packets' buffers without borrowing.
+ * <p>
+ * Pool hit/miss statistics are available by {@link #getHitCount()} and {@link #getMissCount()}.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class PooledBufferAllocator implements BufferAllocator {
+
+	/** Default capacity of the smallest size class, in bytes */
+	public static final int DEFAULT_MIN_SIZE = 64;
+	/** Default capacity of the largest size class, in bytes */
+	public static final int DEFAULT_MAX_SIZE = 64 * 1024;
+	/** Default number of released buffers kept by every size class */
+	public static final int DEFAULT_MAX_POOLED = 256;
+	/** Size of the direct memory slabs, in bytes */
+	public static final int DEFAULT_SLAB_SIZE = 256 * 1024;
+
+	private final boolean direct;
+	private final int minSize;
+	private final int minSizeShift;
+	private final int maxSize;
+	private final SizeClass[] sizeClasses;
+
+	private final AtomicLong hitCount = new AtomicLong();		// allocations served by pooled buffers
+	private final AtomicLong missCount = new AtomicLong();		// allocations which allocated new memory
+	private final AtomicLong releaseCount = new AtomicLong();	// buffers given back to the pool
+
+	/**
+	 * Create a heap buffer allocator with default size classes.
+	 */
+	public PooledBufferAllocator() {
+		this(false);
+	}
+
+	/**
+	 * Create an allocator with default size classes.
+	 * @param direct true to allocate direct buffers from slabs, false to allocate heap buffers
+	 */
+	public PooledBufferAllocator(boolean direct) {
+		this(direct, DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_MAX_POOLED);
+	}
+
+	/**
+	 * Create an allocator.
+	 * @param direct true to allocate direct buffers from slabs, false to allocate heap buffers
+	 * @param minSize capacity of the smallest size class, must be a power of two
+	 * @param maxSize capacity of the largest size class, must be a power of two
+	 * @param maxPooled number of released buffers kept by every size class
+	 * @throws IllegalArgumentException If sizes are not powers of two or minSize is larger than maxSize
+	 */
+	public PooledBufferAllocator(boolean direct, int minSize, int maxSize, int maxPooled) {
+		if (minSize < 1 || Integer.bitCount(minSize) != 1) {
+			throw new IllegalArgumentException("minSize must be a power of two: " + minSize);
+		}
+		if (maxSize < minSize || Integer.bitCount(maxSize) != 1) {
+			throw new IllegalArgumentException("maxSize must be a power of two and not less than minSize: " + maxSize);
+		}
+		if (maxPooled < 0) {
+			throw new IllegalArgumentException("Negative maxPooled: " + maxPooled);
+		}
+		this.direct = direct;
+		this.minSize = minSize;
+		this.minSizeShift = Integer.numberOfTrailingZeros(minSize);
+		this.maxSize = maxSize;
+		this.sizeClasses = new SizeClass[Integer.numberOfTrailingZeros(maxSize) - minSizeShift + 1];
+		for (int i = 0; i < sizeClasses.length; i++) {
+			sizeClasses[i] = new SizeClass(minSize << i, maxPooled);
+		}
+	}
+
+	@Override
+	public ByteBuffer allocate(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Negative capacity: " + capacity);
+		}
+		if (capacity > maxSize) {
+			// too large to be pooled
+			missCount.incrementAndGet();
+			return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+		}
+		SizeClass sizeClass = sizeClasses[indexOf(capacity)];
+		ByteBuffer buffer = sizeClass.poll();
+		if (buffer != null) {
+			hitCount.incrementAndGet();
+			return buffer;
+		}
+		missCount.incrementAndGet();
+		return sizeClass.newBuffer();
+	}
+
+	@Override
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.isDirect() != direct || buffer.isReadOnly()) {
+			return;
+		}
+		int capacity = buffer.capacity();
+		if (capacity < minSize || capacity > maxSize || Integer.bitCount(capacity) != 1) {
+			// not borrowed from a size class
+			return;
+		}
+		releaseCount.incrementAndGet();
+		sizeClasses[indexOf(capacity)].offer(buffer);
+	}
+
+	/**
+	 * @param capacity requested capacity, not larger than maxSize
+	 * @return index of the smallest size class which can hold capacity
+	 */
+	private int indexOf(int capacity) {
+		if (capacity <= minSize) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - minSizeShift;
+	}
+
+	@Override
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * @return number of allocations served by pooled buffers
+	 * @since 1.1
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return number of allocations which allocated new memory
+	 * @since 1.1
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return number of buffers given back to this allocator
+	 * @since 1.1
+	 */
+	public long getReleaseCount() {
+		return releaseCount.get();
+	}
+
+	/**
+	 * @return ratio of allocations served by pooled buffers, between 0 and 1
+	 * @since 1.1
+	 */
+	public double getHitRatio() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * @return number of buffers currently kept by all size classes
+	 * @since 1.1
+	 */
+	public int getPooledCount() {
+		int count = 0;
+		for (SizeClass sizeClass : sizeClasses) {
+			count += sizeClass.size();
+		}
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return "PooledBufferAllocator [direct=" + direct
+				+ ", minSize=" + minSize
+				+ ", maxSize=" + maxSize
+				+ ", hit=" + getHitCount()
+				+ ", miss=" + getMissCount()
+				+ ", release=" + getReleaseCount()
+				+ ", pooled=" + getPooledCount() + "]";
+	}
+
+	/**
+	 * Buffers of the same capacity, kept in a bounded stack so that pooling does not allocate.
+	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+	 * @version 1.0
+	 * @since 1.1
+	 */
+	private class SizeClass {
+
+		private final int capacity;
+		private final ByteBuffer[] stack;
+		private int size = 0;
+
+		SizeClass(int capacity, int maxPooled) {
+			this.capacity = capacity;
+			this.stack = new ByteBuffer[maxPooled];
+		}
+
+		synchronized ByteBuffer poll() {
+			if (size == 0) {
+				return null;
+			}
+			ByteBuffer buffer = stack[--size];
+			stack[size] = null;
+			return buffer;
+		}
+
+		synchronized boolean offer(ByteBuffer buffer) {
+			if (size == stack.length) {
+				return false;
+			}
+			buffer.clear();
+			stack[size++] = buffer;
+			return true;
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		/**
+		 * Allocate a new buffer of this size class, direct buffers are sliced from a new slab
+		 * and the rest slices of the slab are pooled.
+		 * @return a new buffer
+		 */
+		ByteBuffer newBuffer() {
+			if (!direct) {
+				return ByteBuffer.allocate(capacity);
+			}
+			int count = DEFAULT_SLAB_SIZE / capacity;
+			if (count <= 1) {
+				return ByteBuffer.allocateDirect(capacity);
+			}
+			ByteBuffer slab = ByteBuffer.allocateDirect(capacity * count);
+			for (int i = 1; i < count; i++) {
+				slab.limit((i + 1) * capacity).position(i * capacity);
+				if (!offer(slab.slice())) {
+					break;
+				}
+			}
+			slab.limit(capacity).position(0);
+			return slab.slice();
+		}
+
+	}
+
+}
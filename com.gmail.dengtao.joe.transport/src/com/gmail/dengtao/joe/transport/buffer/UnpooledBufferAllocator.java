@@ -0,0 +1,50 @@
+package com.gmail.dengtao.joe.transport.buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocator which allocates a new buffer for every request, and leaves released buffers to the garbage collector.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class UnpooledBufferAllocator implements BufferAllocator {
+
+	private final boolean direct;
+
+	/**
+	 * Create an allocator which allocates heap buffers.
+	 */
+	public UnpooledBufferAllocator() {
+		this(false);
+	}
+
+	/**
+	 * Create an allocator.
+	 * @param direct true to allocate direct buffers, false to allocate heap buffers
+	 */
+	public UnpooledBufferAllocator(boolean direct) {
+		this.direct = direct;
+	}
+
+	@Override
+	public ByteBuffer allocate(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	@Override
+	public void release(ByteBuffer buffer) {
+		// Nothing...
+	}
+
+	@Override
+	public boolean isDirect() {
+		return direct;
+	}
+
+	@Override
+	public String toString() {
+		return "UnpooledBufferAllocator [direct=" + direct + "]";
+	}
+
+}
@@ -60,6 +60,13 @@ public interface Filter {
     void sessionIdle(FilterEntity nextEntity, Session session, IdleStatus status)
             throws Exception;
     
+    /**
+     * Filters {@link Handler#sessionWritabilityChanged(Session)} event.
+     * @since 1.1
+     */
+    void sessionWritabilityChanged(FilterEntity nextEntity, Session session)
+            throws Exception;
+    
     /**
      * Filters {@link Handler#sessionClosed(Session)} event.
      */
@@ -41,6 +41,12 @@ public class FilterAdapter implements Filter {
 		nextEntity.getFilter().sessionIdle(nextEntity.getNextEntity(), session, status);		
 	}
 
+	@Override
+	public void sessionWritabilityChanged(FilterEntity nextEntity, Session session)
+			throws Exception {
+		nextEntity.getFilter().sessionWritabilityChanged(nextEntity.getNextEntity(), session);
+	}
+
 	@Override
 	public void sessionClosed(FilterEntity nextEntity, Session session)
 			throws Exception {
@@ -2,9 +2,12 @@ package com.gmail.dengtao.joe.transport.filter;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
+import com.gmail.dengtao.joe.transport.filter.impl.ExecutorFilter;
 import com.gmail.dengtao.joe.transport.filter.impl.TailFilter;
 import com.gmail.dengtao.joe.transport.handler.Handler;
+import com.gmail.dengtao.joe.transport.metrics.TransportMetrics;
 import com.gmail.dengtao.joe.transport.session.IdleStatus;
 import com.gmail.dengtao.joe.transport.session.Session;
 
@@ -18,6 +21,9 @@ import com.gmail.dengtao.joe.transport.session.Session;
  */
 public class FilterChain {
 	
+	/** name of the filter which executes handler events */
+	public static final String HANDLER_EXECUTOR = "handlerExecutor";
+	
 	/** filter name to filter */
 	private final Map<String, FilterEntity> filterEntites = new ConcurrentHashMap<String, FilterEntity>();
 	/** The chain head */
@@ -26,6 +32,10 @@ public class FilterChain {
     private final FilterEntity tail;
     /**  */
     private TailFilter tailFilter = new TailFilter();
+    /** Executes handler events, always right before the tail; null if handler is called by the I/O thread */
+    private FilterEntity handlerExecutorEntity;
+    /** Counts events fired to this chain, null if not counted */
+    private volatile TransportMetrics metrics;
     
     /**
      * Create a new default chain, associated with a session. It will only contain a
@@ -59,7 +69,8 @@ public class FilterChain {
 	 */
 	public synchronized void addLast(String name, Filter filter) throws IllegalArgumentException {
 		checkAddable(name);
-		register(tail.getPrevEntity(), name, filter);
+		FilterEntity last = handlerExecutorEntity != null ? handlerExecutorEntity : tail;
+		register(last.getPrevEntity(), name, filter);
 	}
 
 	/**
@@ -187,6 +198,8 @@ public class FilterChain {
      * @since 1.0
      */
     public void fireSessionOpened(Session session) {
+    	TransportMetrics metrics = this.metrics;
+    	if (metrics != null) metrics.sessionOpened();
     	callNextSessionOpened(head.getNextEntity(), session);
     }
 
@@ -220,6 +233,26 @@ public class FilterChain {
         }
     }
     
+    /**
+     * Fires a {@link Handler#sessionWritabilityChanged(Session)} event. Most users don't need to call
+     * this method at all. Please use this method only when you implement a new transport or
+     * fire a virtual event.
+     * @param session session whose writability changed
+     * @since 1.1
+     */
+    public void fireSessionWritabilityChanged(Session session) {
+    	callNextSessionWritabilityChanged(head.getNextEntity(), session);
+    }
+
+    private void callNextSessionWritabilityChanged(FilterEntity entity, Session session) {
+        try {
+        	Filter filter = entity.getFilter();
+        	filter.sessionWritabilityChanged(entity.getNextEntity(), session);
+        } catch (Throwable e) {
+            fireExceptionCaught(session, e);
+        }
+    }
+    
     /**
      * Fires a {@link Handler#sessionClosed(Session)} event. Most users don't need to call
      * this method at all. Please use this method only when you implement a new transport or
@@ -228,6 +261,8 @@ public class FilterChain {
      * @since 1.0
      */
     public void fireSessionClosed(Session session) {
+    	TransportMetrics metrics = this.metrics;
+    	if (metrics != null) metrics.sessionClosed();
     	callNextSessionClosed(head.getNextEntity(), session);
     }
 
@@ -248,6 +283,8 @@ public class FilterChain {
      * @param cause The exception cause
      */
     public void fireExceptionCaught(Session session, Throwable cause) {
+    	TransportMetrics metrics = this.metrics;
+    	if (metrics != null) metrics.exceptionCaught();
         callNextExceptionCaught(head.getNextEntity(), session, cause);
     }
 
@@ -263,6 +300,8 @@ public class FilterChain {
      * @param data The received data
      */
     public void fireDataReceived(Session session, Object data) {
+    	TransportMetrics metrics = this.metrics;
+    	if (metrics != null) metrics.dataRead(data);
         callNextDataReceived(head.getNextEntity(), session, data);
     }
 
@@ -300,7 +339,17 @@ public class FilterChain {
      * fire a virtual event.
      */
     public void firePushData(Session session) {
-    	callNextPushData(head.getNextEntity(), session);
+    	TransportMetrics metrics = this.metrics;
+    	if (metrics == null) {
+    		callNextPushData(head.getNextEntity(), session);
+    		return;
+    	}
+    	long writtenBytes = session.getWrittenBytes();
+    	try {
+    		callNextPushData(head.getNextEntity(), session);
+    	} finally {
+    		metrics.bytesWritten(session.getWrittenBytes() - writtenBytes);
+    	}
     }
 
     private void callNextPushData(FilterEntity entity, Session session) {
@@ -334,6 +383,8 @@ public class FilterChain {
      * fire a virtual event.
      */
     public void fireDataSent(Session session, Object data) {
+    	TransportMetrics metrics = this.metrics;
+    	if (metrics != null) metrics.dataSent();
     	callNextDataSent(head.getNextEntity(), session, data);
     }
 
@@ -349,4 +400,44 @@ public class FilterChain {
 		tailFilter.setHandler(handler);
 	}
 
+	/**
+	 * Count events fired to this chain by the metrics, set by the acceptor or connector.
+	 * @param metrics metrics, null to stop counting
+	 * @since 1.1
+	 */
+	public void setMetrics(TransportMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return metrics counting events fired to this chain, null if not counted
+	 * @since 1.1
+	 */
+	public TransportMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Let the handler be called by the executor instead of the I/O thread, events of a session are still
+	 * called in order, see {@link ExecutorFilter}. The executor is kept right before the handler, after
+	 * all filters of this chain.
+	 * @param executor executor, or null to call the handler by the I/O thread
+	 * @since 1.1
+	 */
+	public synchronized void setHandlerExecutor(Executor executor) {
+		if (handlerExecutorEntity != null) {
+			if (executor != null && ((ExecutorFilter) handlerExecutorEntity.getFilter()).getExecutor() == executor) {
+				return;
+			}
+			FilterEntity entity = handlerExecutorEntity;
+			handlerExecutorEntity = null;
+			deregister(entity);
+		}
+		if (executor != null) {
+			checkAddable(HANDLER_EXECUTOR);
+			register(tail.getPrevEntity(), HANDLER_EXECUTOR, new ExecutorFilter(executor));
+			handlerExecutorEntity = filterEntites.get(HANDLER_EXECUTOR);
+		}
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,382 @@
+package com.gmail.dengtao.joe.transport.filter.codec;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.gmail.dengtao.joe.transport.filter.FilterEntity;
+import com.gmail.dengtao.joe.transport.session.Session;
+
+/**
+ * A filter which compresses sent messages and decompresses received messages by deflate.<br>
+ * Every sent message becomes one frame: a 4 bytes big-endian length of the rest of the frame, 1 byte method
+ * ({@link #METHOD_STORED} or {@link #METHOD_DEFLATE}), and for deflated frames a 4 bytes length of the original
+ * message followed by the raw deflate data. Received bytes are split into frames like {@link LengthFieldFrameFilter},
+ * and every message is fired as a <code>ByteBuffer</code>. Both peers should use this filter.
+ * <p>
+ * Messages shorter than <code>minCompressLength</code>, and messages which do not become shorter, are stored
+ * without compression. The level of a session can be negotiated by setting the session attribute {@link #LEVEL}
+ * to an Integer from 0 (stored) to 9, the default level is used if it is not set.
+ * <p>
+ * Deflaters and inflaters are pooled by this filter and borrowed for every message, so none is created for a message,
+ * and their native memory is bounded even if messages are sent by many threads; they are released by {@link #destroy()}.
+ * <p>
+ * Attention! {@link com.gmail.dengtao.joe.transport.handler.Handler#dataSent(Session, Object)} receives the frame
+ * as it was sent, not the original message.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class CompressionFilter extends LengthFieldFrameFilter {
+
+	/** Session attribute of the compression level of the session, an Integer from 0 to 9 */
+	public static final String LEVEL = CompressionFilter.class.getName() + ".level";
+	/** Method of frames stored without compression */
+	public static final byte METHOD_STORED = 0;
+	/** Method of frames compressed by deflate */
+	public static final byte METHOD_DEFLATE = 1;
+	/** Default length of the shortest message to be compressed */
+	public static final int DEFAULT_MIN_COMPRESS_LENGTH = 256;
+	/** Default max length of a message */
+	public static final int DEFAULT_MAX_MESSAGE_LENGTH = 1024 * 1024;
+
+	private static final int LENGTH_FIELD_LENGTH = 4;
+	private static final int HEADER_LENGTH = LENGTH_FIELD_LENGTH + 1;
+	private static final int DEFLATE_HEADER_LENGTH = HEADER_LENGTH + 4;
+
+	/** Max number of idle deflaters and inflaters kept for reuse */
+	private static final int MAX_POOLED_CODECS = Runtime.getRuntime().availableProcessors() * 2;
+
+	private final int defaultLevel;
+	private final int minCompressLength;
+	private final int maxMessageLength;
+	// idle deflaters, inflaters and buffers, borrowed for a message and given back
+	private final Queue<Codec> codecs = new ConcurrentLinkedQueue<Codec>();
+	private final AtomicInteger pooledCodecs = new AtomicInteger();
+
+	private final AtomicLong messagesSent = new AtomicLong();		// messages sent
+	private final AtomicLong messagesCompressed = new AtomicLong();	// messages sent compressed
+	private final AtomicLong originalBytesSent = new AtomicLong();	// bytes of messages sent
+	private final AtomicLong frameBytesSent = new AtomicLong();		// bytes of frames sent
+	private final AtomicLong frameBytesReceived = new AtomicLong();	// bytes of frames received
+	private final AtomicLong originalBytesReceived = new AtomicLong();	// bytes of messages received
+
+	/**
+	 * Create a CompressionFilter with default compression level, messages shorter than 256 bytes are not compressed.
+	 */
+	public CompressionFilter() {
+		this(Deflater.DEFAULT_COMPRESSION, DEFAULT_MIN_COMPRESS_LENGTH, DEFAULT_MAX_MESSAGE_LENGTH);
+	}
+
+	/**
+	 * Create a CompressionFilter.
+	 * @param defaultLevel compression level of sessions which have not set {@link #LEVEL}, -1 (default) or 0 to 9
+	 * @param minCompressLength length of the shortest message to be compressed
+	 * @param maxMessageLength max length of a message, sent or received, before compression
+	 * @throws IllegalArgumentException If any parameter is illegal
+	 */
+	public CompressionFilter(int defaultLevel, int minCompressLength, int maxMessageLength) {
+		super(maxMessageLength + DEFLATE_HEADER_LENGTH, 0, LENGTH_FIELD_LENGTH);
+		if (defaultLevel < Deflater.DEFAULT_COMPRESSION || defaultLevel > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Illegal compression level: " + defaultLevel);
+		}
+		if (minCompressLength < 0) {
+			throw new IllegalArgumentException("Illegal min compress length: " + minCompressLength);
+		}
+		if (maxMessageLength < 1) {
+			throw new IllegalArgumentException("Illegal max message length: " + maxMessageLength);
+		}
+		this.defaultLevel = defaultLevel;
+		this.minCompressLength = minCompressLength;
+		this.maxMessageLength = maxMessageLength;
+	}
+
+	@Override
+	public void sendData(FilterEntity nextEntity, Session session, Object data) throws Exception {
+		byte[] frame;
+		int length;
+		Codec codec = borrowCodec();
+		try {
+			byte[] bytes;
+			int offset;
+			if (data instanceof byte[]) {
+				bytes = (byte[]) data;
+				offset = 0;
+				length = bytes.length;
+			} else if (data instanceof ByteBuffer) {
+				ByteBuffer buffer = (ByteBuffer) data;
+				length = buffer.remaining();
+				if (buffer.hasArray()) {
+					bytes = buffer.array();
+					offset = buffer.arrayOffset() + buffer.position();
+				} else {
+					bytes = codec.input(length);
+					offset = 0;
+					buffer.duplicate().get(bytes, 0, length);
+				}
+			} else {
+				bytes = data.toString().getBytes();
+				offset = 0;
+				length = bytes.length;
+			}
+			if (length > maxMessageLength) {
+				throw new IllegalArgumentException("Message length " + length + " exceeds max message length " + maxMessageLength);
+			}
+			int level = level(session);
+			frame = null;
+			if (length >= minCompressLength && level != Deflater.NO_COMPRESSION) {
+				frame = deflate(codec, bytes, offset, length, level);
+			}
+			if (frame == null) {
+				frame = new byte[HEADER_LENGTH + length];
+				putInt(frame, 0, frame.length - LENGTH_FIELD_LENGTH);
+				frame[LENGTH_FIELD_LENGTH] = METHOD_STORED;
+				System.arraycopy(bytes, offset, frame, HEADER_LENGTH, length);
+			} else {
+				messagesCompressed.incrementAndGet();
+			}
+		} finally {
+			releaseCodec(codec);
+		}
+		messagesSent.incrementAndGet();
+		originalBytesSent.addAndGet(length);
+		frameBytesSent.addAndGet(frame.length);
+		nextEntity.getFilter().sendData(nextEntity.getNextEntity(), session, frame);
+	}
+
+	@Override
+	protected boolean decode(Session session, ByteBuffer in, List<Object> out) throws Exception {
+		int start = out.size();
+		if (!super.decode(session, in, out)) {
+			return false;
+		}
+		ByteBuffer frame = (ByteBuffer) out.remove(start);
+		frameBytesReceived.addAndGet(frame.remaining());
+		if (frame.remaining() < HEADER_LENGTH) {
+			throw new IllegalStateException("Illegal frame length: " + frame.remaining());
+		}
+		frame.position(LENGTH_FIELD_LENGTH);
+		byte method = frame.get();
+		ByteBuffer message;
+		if (method == METHOD_STORED) {
+			message = frame.slice();
+		} else if (method == METHOD_DEFLATE) {
+			Codec codec = borrowCodec();
+			try {
+				message = ByteBuffer.wrap(inflate(codec, frame));
+			} finally {
+				releaseCodec(codec);
+			}
+		} else {
+			throw new IllegalStateException("Unknown compression method: " + method);
+		}
+		originalBytesReceived.addAndGet(message.remaining());
+		out.add(message);
+		return true;
+	}
+
+	/**
+	 * @return level of the session, or the default level
+	 */
+	private int level(Session session) {
+		Object level = session.getAttribute(LEVEL);
+		if (level instanceof Integer) {
+			int value = (Integer) level;
+			if (value >= Deflater.NO_COMPRESSION && value <= Deflater.BEST_COMPRESSION) {
+				return value;
+			}
+		}
+		return defaultLevel;
+	}
+
+	/**
+	 * @return deflated frame, or null if the message does not become shorter
+	 */
+	private byte[] deflate(Codec codec, byte[] bytes, int offset, int length, int level) {
+		Deflater deflater = codec.deflater;
+		deflater.reset();
+		deflater.setLevel(level);
+		deflater.setInput(bytes, offset, length);
+		deflater.finish();
+		// only compressed data shorter than the message is useful
+		byte[] output = codec.output(DEFLATE_HEADER_LENGTH + length);
+		int limit = HEADER_LENGTH + length;
+		int position = DEFLATE_HEADER_LENGTH;
+		while (!deflater.finished() && position < limit) {
+			position += deflater.deflate(output, position, limit - position);
+		}
+		if (!deflater.finished()) {
+			return null;
+		}
+		byte[] frame = new byte[position];
+		System.arraycopy(output, 0, frame, 0, position);
+		putInt(frame, 0, position - LENGTH_FIELD_LENGTH);
+		frame[LENGTH_FIELD_LENGTH] = METHOD_DEFLATE;
+		putInt(frame, HEADER_LENGTH, length);
+		return frame;
+	}
+
+	/**
+	 * @param frame frame positioned after the method
+	 * @return inflated message
+	 */
+	private byte[] inflate(Codec codec, ByteBuffer frame) throws DataFormatException {
+		if (frame.remaining() < 4) {
+			throw new IllegalStateException("Illegal deflate frame length: " + frame.remaining());
+		}
+		int length = frame.getInt();
+		// check the length before allocating, a small frame may claim a huge message
+		if (length < 0 || length > maxMessageLength) {
+			throw new IllegalStateException("Message length " + length + " exceeds max message length " + maxMessageLength);
+		}
+		int inputLength = frame.remaining();
+		byte[] input = codec.input(inputLength);
+		frame.get(input, 0, inputLength);
+		Inflater inflater = codec.inflater;
+		inflater.reset();
+		inflater.setInput(input, 0, inputLength);
+		byte[] message = new byte[length];
+		int position = 0;
+		while (position < length) {
+			int n = inflater.inflate(message, position, length - position);
+			if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+				break;
+			}
+			position += n;
+		}
+		if (position != length || !inflater.finished()) {
+			throw new IllegalStateException("Deflate data does not match message length " + length);
+		}
+		return message;
+	}
+
+	private Codec borrowCodec() {
+		Codec codec = codecs.poll();
+		if (codec == null) {
+			return new Codec();
+		}
+		pooledCodecs.decrementAndGet();
+		return codec;
+	}
+
+	private void releaseCodec(Codec codec) {
+		if (pooledCodecs.incrementAndGet() <= MAX_POOLED_CODECS) {
+			codecs.offer(codec);
+		} else {
+			pooledCodecs.decrementAndGet();
+			codec.end();
+		}
+	}
+
+	@Override
+	public void destroy() {
+		for (Codec codec; (codec = codecs.poll()) != null; ) {
+			pooledCodecs.decrementAndGet();
+			codec.end();
+		}
+		super.destroy();
+	}
+
+	private static void putInt(byte[] bytes, int index, int value) {
+		bytes[index] = (byte) (value >>> 24);
+		bytes[index + 1] = (byte) (value >>> 16);
+		bytes[index + 2] = (byte) (value >>> 8);
+		bytes[index + 3] = (byte) value;
+	}
+
+	/**
+	 * @return number of messages sent
+	 * @since 1.1
+	 */
+	public long getMessagesSent() {
+		return messagesSent.get();
+	}
+
+	/**
+	 * @return number of messages sent compressed
+	 * @since 1.1
+	 */
+	public long getMessagesCompressed() {
+		return messagesCompressed.get();
+	}
+
+	/**
+	 * @return bytes of messages sent, before compression
+	 * @since 1.1
+	 */
+	public long getOriginalBytesSent() {
+		return originalBytesSent.get();
+	}
+
+	/**
+	 * @return bytes of frames sent, including headers
+	 * @since 1.1
+	 */
+	public long getFrameBytesSent() {
+		return frameBytesSent.get();
+	}
+
+	/**
+	 * @return bytes of frames received, including headers
+	 * @since 1.1
+	 */
+	public long getFrameBytesReceived() {
+		return frameBytesReceived.get();
+	}
+
+	/**
+	 * @return bytes of messages received, after decompression
+	 * @since 1.1
+	 */
+	public long getOriginalBytesReceived() {
+		return originalBytesReceived.get();
+	}
+
+	/**
+	 * @return bytes saved by compression of sent messages, negative if headers cost more than compression saved
+	 * @since 1.1
+	 */
+	public long getBytesSaved() {
+		return originalBytesSent.get() - frameBytesSent.get();
+	}
+
+	/**
+	 * Deflater, inflater and buffers used by one message at a time.
+	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+	 * @version 1.0
+	 * @since 1.1
+	 */
+	private static class Codec {
+
+		final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		final Inflater inflater = new Inflater(true);
+		private byte[] input = new byte[1024];
+		private byte[] output = new byte[1024];
+
+		byte[] input(int length) {
+			if (input.length < length) {
+				input = new byte[Integer.highestOneBit(length - 1) << 1];
+			}
+			return input;
+		}
+
+		byte[] output(int length) {
+			if (output.length < length) {
+				output = new byte[Integer.highestOneBit(length - 1) << 1];
+			}
+			return output;
+		}
+
+		void end() {
+			deflater.end();
+			inflater.end();
+		}
+	}
+
+}
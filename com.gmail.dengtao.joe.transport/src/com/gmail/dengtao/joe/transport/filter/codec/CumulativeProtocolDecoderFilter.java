@@ -0,0 +1,186 @@
+package com.gmail.dengtao.joe.transport.filter.codec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.gmail.dengtao.joe.transport.filter.FilterAdapter;
+import com.gmail.dengtao.joe.transport.filter.FilterEntity;
+import com.gmail.dengtao.joe.transport.session.Session;
+
+/**
+ * A filter which decodes received bytes into messages, bytes of a message may be received by many reads.<br>
+ * Bytes which are not decoded yet are kept in an accumulation buffer of the session, and
+ * {@link #decode(Session, ByteBuffer, List)} is called repeatedly until no complete message remains.
+ * Decoded messages are fired to the next filters as received data one by one.
+ * <p>
+ * Received data is decoded in place when nothing is accumulated, only the remaining bytes of an incomplete
+ * message are copied. The accumulation buffer is compacted instead of reallocated, it only grows when a
+ * message is larger than it.
+ * <p>
+ * Received data may be <code>byte[]</code> or <code>ByteBuffer</code>, other data is passed through.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public abstract class CumulativeProtocolDecoderFilter extends FilterAdapter {
+
+	/** Default initial capacity of accumulation buffers */
+	public static final int DEFAULT_INITIAL_BUFFER_SIZE = 1024;
+	/** Default max number of bytes accumulated for a session */
+	public static final int DEFAULT_MAX_BUFFER_SIZE = 1024 * 1024;
+
+	private final int initialBufferSize;
+	private final int maxBufferSize;
+	// accumulation buffers of sessions, in write mode; only used by the thread firing the session's received data
+	private final Map<Session, ByteBuffer> buffers = new ConcurrentHashMap<Session, ByteBuffer>();
+
+	protected CumulativeProtocolDecoderFilter() {
+		this(DEFAULT_INITIAL_BUFFER_SIZE, DEFAULT_MAX_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param initialBufferSize initial capacity of accumulation buffers
+	 * @param maxBufferSize max number of bytes accumulated for a session
+	 * @throws IllegalArgumentException If initialBufferSize is less than 1 or maxBufferSize is less than initialBufferSize
+	 */
+	protected CumulativeProtocolDecoderFilter(int initialBufferSize, int maxBufferSize) {
+		if (initialBufferSize < 1) {
+			throw new IllegalArgumentException("Illegal initial buffer size: " + initialBufferSize);
+		}
+		if (maxBufferSize < initialBufferSize) {
+			throw new IllegalArgumentException("Illegal max buffer size: " + maxBufferSize);
+		}
+		this.initialBufferSize = initialBufferSize;
+		this.maxBufferSize = maxBufferSize;
+	}
+
+	/**
+	 * Decode messages from the bytes between position and limit of the buffer.<br>
+	 * If a complete message is available, consume its bytes by moving the buffer's position, add the message
+	 * to out and return true. Otherwise leave the position unchanged and return false, this method will be
+	 * called again when more bytes are received.<br>
+	 * Attention! The buffer is reused after this method returns, messages which refer it, like slices, are only
+	 * valid until the next filters returned from them.
+	 * @param session session which received the bytes
+	 * @param in received bytes not decoded yet
+	 * @param out decoded messages
+	 * @return true if a message was decoded and this method should be called again
+	 * @throws Exception if the bytes can not be decoded
+	 */
+	protected abstract boolean decode(Session session, ByteBuffer in, List<Object> out) throws Exception;
+
+	@Override
+	public void dataReceived(FilterEntity nextEntity, Session session, Object data) throws Exception {
+		ByteBuffer in;
+		if (data instanceof byte[]) {
+			in = ByteBuffer.wrap((byte[]) data);
+		} else if (data instanceof ByteBuffer) {
+			in = (ByteBuffer) data;
+		} else {
+			super.dataReceived(nextEntity, session, data);
+			return;
+		}
+		ByteBuffer buffer = buffers.get(session);
+		if (buffer == null || buffer.position() == 0) {
+			// nothing accumulated, decode the received data in place
+			try {
+				decodeAll(nextEntity, session, in);
+			} finally {
+				if (in.hasRemaining()) {
+					int remaining = in.remaining();
+					if (remaining > maxBufferSize) {
+						// the message is too large, drop the received bytes left
+						in.position(in.limit());
+						throw bufferSizeExceeded(remaining);
+					}
+					append(session, buffer, in);
+				}
+			}
+		} else {
+			// bytes of one read more than max buffer size may be accumulated until they are decoded
+			buffer = append(session, buffer, in);
+			buffer.flip();
+			try {
+				decodeAll(nextEntity, session, buffer);
+			} finally {
+				buffer.compact();
+			}
+			int remaining = buffer.position();
+			if (remaining > maxBufferSize) {
+				// the message is too large, drop what was accumulated
+				buffer.clear();
+				throw bufferSizeExceeded(remaining);
+			}
+		}
+	}
+
+	@Override
+	public void sessionClosed(FilterEntity nextEntity, Session session) throws Exception {
+		buffers.remove(session);
+		super.sessionClosed(nextEntity, session);
+	}
+
+	/**
+	 * Decode messages from in until no complete message remains, fire every message to the next filters.
+	 */
+	private void decodeAll(FilterEntity nextEntity, Session session, ByteBuffer in) throws Exception {
+		List<Object> out = new ArrayList<Object>(4);
+		while (in.hasRemaining()) {
+			int position = in.position();
+			boolean decoded;
+			try {
+				decoded = decode(session, in, out);
+			} catch (Exception e) {
+				// bytes which can not be decoded are dropped, so they are not decoded again with the next read
+				in.position(in.limit());
+				throw e;
+			}
+			for (int i = 0; i < out.size(); i++) {
+				nextEntity.getFilter().dataReceived(nextEntity.getNextEntity(), session, out.get(i));
+			}
+			out.clear();
+			if (!decoded) {
+				break;
+			}
+			if (in.position() == position) {
+				throw new IllegalStateException("decode() returned true, but no byte was consumed.");
+			}
+		}
+	}
+
+	/**
+	 * @param remaining number of bytes left after decoding
+	 * @return exception telling the bytes left are more than max buffer size
+	 */
+	private IllegalStateException bufferSizeExceeded(int remaining) {
+		return new IllegalStateException("Accumulated bytes exceed max buffer size: " + remaining + " > " + maxBufferSize);
+	}
+
+	/**
+	 * Append the remaining bytes of in to the session's accumulation buffer, grow it if it is too small.
+	 * @return accumulation buffer, in write mode
+	 */
+	private ByteBuffer append(Session session, ByteBuffer buffer, ByteBuffer in) {
+		int required = (buffer == null ? 0 : buffer.position()) + in.remaining();
+		if (buffer == null || buffer.capacity() < required) {
+			int capacity = buffer == null ? initialBufferSize : buffer.capacity();
+			while (capacity < required) {
+				// doubled up to max buffer size, the bytes of one read may need more until they are decoded
+				capacity = capacity <= maxBufferSize >> 1 ? capacity << 1 : Math.max(maxBufferSize, required);
+			}
+			ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+			if (buffer != null) {
+				buffer.flip();
+				newBuffer.put(buffer);
+			}
+			buffer = newBuffer;
+			buffers.put(session, buffer);
+		}
+		buffer.put(in);
+		return buffer;
+	}
+
+}
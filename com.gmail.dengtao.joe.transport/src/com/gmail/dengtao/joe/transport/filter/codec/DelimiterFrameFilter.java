@@ -0,0 +1,107 @@
+package com.gmail.dengtao.joe.transport.filter.codec;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.gmail.dengtao.joe.transport.filter.FilterEntity;
+import com.gmail.dengtao.joe.transport.session.Session;
+import com.gmail.dengtao.joe.transport.util.ByteSearch;
+
+/**
+ * A decoder which splits received bytes into frames by a delimiter of one or more bytes, e.g. lines ended by <code>"\r\n"</code>.<br>
+ * Delimiters are searched eight bytes at a time by {@link ByteSearch}. Bytes of an incomplete frame are
+ * only searched once: the searched length is remembered for the session, and the search continues after it
+ * when more bytes are received.
+ * <p>
+ * Every frame is fired as a read-only <code>ByteBuffer</code> slice of the received data or the accumulation
+ * buffer, without copying; it is only valid until the next filters returned from it, copy it to keep it.<br>
+ * A frame longer than <code>maxFrameLength</code>, not including the delimiter, is rejected as soon as so many
+ * bytes are received without a delimiter, its bytes are dropped and an IllegalStateException is thrown.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class DelimiterFrameFilter extends CumulativeProtocolDecoderFilter {
+
+	/** <code>"\r\n"</code> */
+	public static final byte[] CRLF = { '\r', '\n' };
+	/** <code>"\n"</code> */
+	public static final byte[] LF = { '\n' };
+
+	private final int maxFrameLength;
+	private final byte[] delimiter;
+	private final boolean stripDelimiter;
+	// bytes searched without finding a delimiter from the beginning of the session's incomplete frame
+	private final Map<Session, Integer> searchedLengths = new ConcurrentHashMap<Session, Integer>();
+
+	/**
+	 * Create a DelimiterFrameFilter which strips the delimiter from frames.
+	 * @param maxFrameLength max number of bytes of a frame, not including the delimiter
+	 * @param delimiter delimiter, e.g. {@link #CRLF}
+	 */
+	public DelimiterFrameFilter(int maxFrameLength, byte[] delimiter) {
+		this(maxFrameLength, delimiter, true);
+	}
+
+	/**
+	 * Create a DelimiterFrameFilter.
+	 * @param maxFrameLength max number of bytes of a frame, not including the delimiter
+	 * @param delimiter delimiter, e.g. {@link #CRLF}
+	 * @param stripDelimiter whether the delimiter is stripped from frames
+	 * @throws IllegalArgumentException If maxFrameLength is less than 1 or delimiter is empty
+	 */
+	public DelimiterFrameFilter(int maxFrameLength, byte[] delimiter, boolean stripDelimiter) {
+		super(Math.min(DEFAULT_INITIAL_BUFFER_SIZE, Math.max(maxFrameLength, 1)), Math.max(maxFrameLength, 1) + (delimiter == null ? 0 : delimiter.length));
+		if (maxFrameLength < 1) {
+			throw new IllegalArgumentException("Illegal max frame length: " + maxFrameLength);
+		}
+		if (delimiter == null || delimiter.length == 0) {
+			throw new IllegalArgumentException("delimiter can't be empty!");
+		}
+		this.maxFrameLength = maxFrameLength;
+		this.delimiter = delimiter.clone();
+		this.stripDelimiter = stripDelimiter;
+	}
+
+	@Override
+	protected boolean decode(Session session, ByteBuffer in, List<Object> out) throws Exception {
+		int start = in.position();
+		int limit = in.limit();
+		Integer searchedLength = searchedLengths.get(session);
+		int from = searchedLength == null ? start : start + Math.min(searchedLength, in.remaining());
+		// a frame longer than max frame length is not searched, the delimiter must start before this
+		int to = (int) Math.min(limit, (long) start + maxFrameLength + delimiter.length);
+		int index = ByteSearch.indexOf(in, from, to, delimiter);
+		if (index < 0) {
+			if (to - start >= maxFrameLength + delimiter.length) {
+				searchedLengths.remove(session);
+				in.position(to);
+				throw new IllegalStateException("Frame length exceeds max frame length " + maxFrameLength + " without delimiter");
+			}
+			// the last bytes may be the beginning of a delimiter, search them again with more bytes
+			int searched = Math.max(from, to - delimiter.length + 1) - start;
+			searchedLengths.put(session, searched);
+			return false;
+		}
+		if (searchedLength != null) {
+			searchedLengths.remove(session);
+		}
+		int end = index + delimiter.length;
+		// slice the frame out of the buffer without copying
+		ByteBuffer frame = in.duplicate();
+		frame.limit(stripDelimiter ? index : end);
+		frame.position(start);
+		out.add(frame.slice().asReadOnlyBuffer());
+		in.position(end);
+		return true;
+	}
+
+	@Override
+	public void sessionClosed(FilterEntity nextEntity, Session session) throws Exception {
+		searchedLengths.remove(session);
+		super.sessionClosed(nextEntity, session);
+	}
+
+}
@@ -0,0 +1,134 @@
+package com.gmail.dengtao.joe.transport.filter.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import com.gmail.dengtao.joe.transport.session.Session;
+
+/**
+ * A decoder which splits received bytes into frames by the length field in the frame's header.<br>
+ * The length field is <code>lengthFieldLength</code> (1, 2, 4 or 8) bytes at <code>lengthFieldOffset</code> of the
+ * frame, its value plus <code>lengthAdjustment</code> is the number of bytes after the length field, so the whole
+ * frame is <code>lengthFieldOffset + lengthFieldLength + value + lengthAdjustment</code> bytes.
+ * The first <code>initialBytesToStrip</code> bytes of the frame are stripped, e.g. to strip the header.
+ * <p>
+ * Every frame is fired as a read-only <code>ByteBuffer</code> slice of the received data or the accumulation
+ * buffer, without copying; it is only valid until the next filters returned from it, copy it to keep it.<br>
+ * A frame longer than <code>maxFrameLength</code> is rejected by its length field before any byte of it is
+ * accumulated, an IllegalStateException is thrown, the session should be closed as frames after it can not be found.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class LengthFieldFrameFilter extends CumulativeProtocolDecoderFilter {
+
+	private final int maxFrameLength;
+	private final int lengthFieldOffset;
+	private final int lengthFieldLength;
+	private final int lengthFieldEndOffset;
+	private final int lengthAdjustment;
+	private final int initialBytesToStrip;
+	private final boolean bigEndian;
+
+	/**
+	 * Create a LengthFieldFrameFilter with a big-endian length field which counts the bytes after it, nothing is stripped.
+	 * @param maxFrameLength max number of bytes of a frame, including the header
+	 * @param lengthFieldOffset offset of the length field in the frame
+	 * @param lengthFieldLength bytes of the length field, 1, 2, 4 or 8
+	 */
+	public LengthFieldFrameFilter(int maxFrameLength, int lengthFieldOffset, int lengthFieldLength) {
+		this(maxFrameLength, lengthFieldOffset, lengthFieldLength, 0, 0, ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * Create a LengthFieldFrameFilter.
+	 * @param maxFrameLength max number of bytes of a frame, including the header
+	 * @param lengthFieldOffset offset of the length field in the frame
+	 * @param lengthFieldLength bytes of the length field, 1, 2, 4 or 8
+	 * @param lengthAdjustment added to the value of the length field to get the number of bytes after the length field,
+	 * e.g. <code>-lengthFieldLength</code> if the value counts the length field itself
+	 * @param initialBytesToStrip number of bytes stripped from the beginning of every frame
+	 * @param byteOrder byte order of the length field
+	 * @throws IllegalArgumentException If any parameter is illegal
+	 */
+	public LengthFieldFrameFilter(int maxFrameLength, int lengthFieldOffset, int lengthFieldLength,
+			int lengthAdjustment, int initialBytesToStrip, ByteOrder byteOrder) {
+		super(Math.min(DEFAULT_INITIAL_BUFFER_SIZE, Math.max(maxFrameLength, 1)), Math.max(maxFrameLength, 1));
+		if (lengthFieldLength != 1 && lengthFieldLength != 2 && lengthFieldLength != 4 && lengthFieldLength != 8) {
+			throw new IllegalArgumentException("Illegal length field length, should be 1, 2, 4 or 8: " + lengthFieldLength);
+		}
+		if (lengthFieldOffset < 0) {
+			throw new IllegalArgumentException("Illegal length field offset: " + lengthFieldOffset);
+		}
+		if (maxFrameLength < lengthFieldOffset + lengthFieldLength) {
+			throw new IllegalArgumentException("Max frame length " + maxFrameLength + " is less than length field end offset " + (lengthFieldOffset + lengthFieldLength));
+		}
+		if (initialBytesToStrip < 0) {
+			throw new IllegalArgumentException("Illegal initial bytes to strip: " + initialBytesToStrip);
+		}
+		if (byteOrder == null) {
+			throw new IllegalArgumentException("byteOrder can't be null!");
+		}
+		this.maxFrameLength = maxFrameLength;
+		this.lengthFieldOffset = lengthFieldOffset;
+		this.lengthFieldLength = lengthFieldLength;
+		this.lengthFieldEndOffset = lengthFieldOffset + lengthFieldLength;
+		this.lengthAdjustment = lengthAdjustment;
+		this.initialBytesToStrip = initialBytesToStrip;
+		this.bigEndian = byteOrder == ByteOrder.BIG_ENDIAN;
+	}
+
+	@Override
+	protected boolean decode(Session session, ByteBuffer in, List<Object> out) throws Exception {
+		if (in.remaining() < lengthFieldEndOffset) {
+			return false;
+		}
+		int start = in.position();
+		long frameLength = readLength(in, start + lengthFieldOffset) + lengthAdjustment + lengthFieldEndOffset;
+		if (frameLength < lengthFieldEndOffset) {
+			throw new IllegalStateException("Illegal frame length " + frameLength + ", less than length field end offset " + lengthFieldEndOffset);
+		}
+		if (frameLength > maxFrameLength) {
+			throw new IllegalStateException("Frame length " + frameLength + " exceeds max frame length " + maxFrameLength);
+		}
+		if (frameLength < initialBytesToStrip) {
+			throw new IllegalStateException("Frame length " + frameLength + " is less than initial bytes to strip " + initialBytesToStrip);
+		}
+		if (in.remaining() < frameLength) {
+			return false;
+		}
+		int end = start + (int) frameLength;
+		// slice the frame out of the buffer without copying
+		ByteBuffer frame = in.duplicate();
+		frame.limit(end);
+		frame.position(start + initialBytesToStrip);
+		out.add(frame.slice().asReadOnlyBuffer());
+		in.position(end);
+		return true;
+	}
+
+	/**
+	 * Read the unsigned value of the length field.
+	 * @param in buffer
+	 * @param index absolute index of the length field
+	 * @return value of the length field
+	 */
+	private long readLength(ByteBuffer in, int index) {
+		long length = 0;
+		if (bigEndian) {
+			for (int i = 0; i < lengthFieldLength; i++) {
+				length = (length << 8) | (in.get(index + i) & 0xFF);
+			}
+		} else {
+			for (int i = lengthFieldLength - 1; i >= 0; i--) {
+				length = (length << 8) | (in.get(index + i) & 0xFF);
+			}
+		}
+		if (length < 0) {
+			throw new IllegalStateException("Illegal length field value: " + length);
+		}
+		return length;
+	}
+
+}
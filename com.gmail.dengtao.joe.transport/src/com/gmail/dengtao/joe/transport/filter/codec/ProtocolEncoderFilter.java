@@ -0,0 +1,34 @@
+package com.gmail.dengtao.joe.transport.filter.codec;
+
+import com.gmail.dengtao.joe.transport.filter.FilterAdapter;
+import com.gmail.dengtao.joe.transport.filter.FilterEntity;
+import com.gmail.dengtao.joe.transport.session.Session;
+
+/**
+ * A filter which encodes messages to be sent into bytes, the counterpart of {@link CumulativeProtocolDecoderFilter}.<br>
+ * The encoded bytes are passed to the next filters and sent, so {@link com.gmail.dengtao.joe.transport.handler.Handler#dataSent(Session, Object)}
+ * and {@link com.gmail.dengtao.joe.transport.handler.Handler#dataNotSent(Session, Object)} receive the encoded bytes.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public abstract class ProtocolEncoderFilter extends FilterAdapter {
+
+	/**
+	 * Encode the message into bytes.
+	 * @param session session which the message is sent by
+	 * @param message message to be sent
+	 * @return encoded <code>byte[]</code> or <code>ByteBuffer</code>, null if nothing should be sent
+	 * @throws Exception if the message can not be encoded
+	 */
+	protected abstract Object encode(Session session, Object message) throws Exception;
+
+	@Override
+	public void sendData(FilterEntity nextEntity, Session session, Object data) throws Exception {
+		Object encoded = encode(session, data);
+		if (encoded != null) {
+			nextEntity.getFilter().sendData(nextEntity.getNextEntity(), session, encoded);
+		}
+	}
+
+}
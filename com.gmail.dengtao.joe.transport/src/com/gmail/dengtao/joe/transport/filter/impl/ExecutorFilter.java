@@ -0,0 +1,446 @@
+package com.gmail.dengtao.joe.transport.filter.impl;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.gmail.dengtao.joe.transport.filter.FilterAdapter;
+import com.gmail.dengtao.joe.transport.filter.FilterEntity;
+import com.gmail.dengtao.joe.transport.handler.Handler;
+import com.gmail.dengtao.joe.transport.session.IdleStatus;
+import com.gmail.dengtao.joe.transport.session.Session;
+import com.gmail.dengtao.joe.transport.util.MpscQueue;
+
+/**
+ * A filter which forwards selected {@link Handler} events to the next filters by an {@link Executor},
+ * so a slow handler does not stall the I/O thread and the other sessions served by it.<br>
+ * Events of the same session are executed one by one in the order they were fired, events of different
+ * sessions are executed in parallel. At most <code>maxQueuedEvents</code> events of a session are queued,
+ * when the queue is full the session's reading is suspended by {@link Session#suspendRead()}, and it is
+ * resumed when half of the queue was executed.<br>
+ * Sending and pushing data are never forwarded by the executor, they are always passed through directly.<br>
+ * Received data which is a {@link ByteBuffer} is copied before it is queued, as it may be a view of a buffer
+ * which is reused once the event returns, e.g. the receive buffer of the I/O thread or the accumulation buffer of a decoder.
+ * <p>
+ * Attention! Datagram sessions of an acceptor share one channel, so their reading can not be suspended
+ * and their queue is not bounded.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class ExecutorFilter extends FilterAdapter {
+
+	/** Default max number of events queued for a session */
+	public static final int DEFAULT_MAX_QUEUED_EVENTS = 1024;
+	/** Max number of events of a session executed before the worker thread is given to other sessions */
+	private static final int MAX_EVENTS_PER_RUN = 64;
+
+	/**
+	 * Events which can be executed by {@link ExecutorFilter}.
+	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+	 * @version 1.0
+	 * @since 1.1
+	 */
+	public enum EventType {
+		SESSION_CREATED, SESSION_OPENED, SESSION_IDLE, SESSION_WRITABILITY_CHANGED, SESSION_CLOSED,
+		EXCEPTION_CAUGHT, DATA_RECEIVED, DATA_SENT, DATA_NOT_SENT
+	}
+
+	private final Executor executor;
+	private final boolean ownExecutor;		// whether the executor is created and shutdown by this filter
+	private final int maxQueuedEvents;
+	private final int resumeThreshold;		// reading is resumed when queued events are not more than this
+	private final EnumSet<EventType> eventTypes;
+	// event queues of sessions, a queue retires and removes itself when it is drained after its session was closed
+	private final ConcurrentMap<Session, EventQueue> eventQueues = new ConcurrentHashMap<Session, EventQueue>();
+
+	/**
+	 * Create an ExecutorFilter with a fixed pool of daemon threads, two for every available processor,
+	 * all events except sending and pushing are executed by it.
+	 */
+	public ExecutorFilter() {
+		this(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2, new WorkerThreadFactory()),
+				true, DEFAULT_MAX_QUEUED_EVENTS, EnumSet.allOf(EventType.class));
+	}
+
+	/**
+	 * Create an ExecutorFilter executing all events except sending and pushing by the specified executor.
+	 * @param executor executor, it is not shutdown by this filter
+	 */
+	public ExecutorFilter(Executor executor) {
+		this(executor, DEFAULT_MAX_QUEUED_EVENTS);
+	}
+
+	/**
+	 * Create an ExecutorFilter executing the specified events by the specified executor.
+	 * @param executor executor, it is not shutdown by this filter
+	 * @param maxQueuedEvents max number of events queued for a session before its reading is suspended
+	 * @param eventTypes events to be executed, all events except sending and pushing if none is specified
+	 * @throws IllegalArgumentException If executor is null or maxQueuedEvents is less than 1
+	 */
+	public ExecutorFilter(Executor executor, int maxQueuedEvents, EventType... eventTypes) {
+		this(executor, false, maxQueuedEvents, eventTypes.length == 0 ? EnumSet.allOf(EventType.class) : EnumSet.of(eventTypes[0], eventTypes));
+	}
+
+	private ExecutorFilter(Executor executor, boolean ownExecutor, int maxQueuedEvents, EnumSet<EventType> eventTypes) {
+		if (executor == null) {
+			throw new IllegalArgumentException("Executor is null.");
+		}
+		if (maxQueuedEvents < 1) {
+			throw new IllegalArgumentException("Illegal max queued events: " + maxQueuedEvents);
+		}
+		this.executor = executor;
+		this.ownExecutor = ownExecutor;
+		this.maxQueuedEvents = maxQueuedEvents;
+		this.resumeThreshold = maxQueuedEvents / 2;
+		this.eventTypes = eventTypes;
+	}
+
+	/**
+	 * @return executor which executes the events
+	 * @since 1.1
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	@Override
+	public void destroy() {
+		if (ownExecutor) {
+			((ExecutorService) executor).shutdown();
+		}
+	}
+
+	@Override
+	public void sessionCreated(final FilterEntity nextEntity, final Session session) throws Exception {
+		if (!eventTypes.contains(EventType.SESSION_CREATED)) {
+			super.sessionCreated(nextEntity, session);
+			return;
+		}
+		fireEvent(nextEntity, session, new Event() {
+			@Override
+			void fire() throws Exception {
+				nextEntity.getFilter().sessionCreated(nextEntity.getNextEntity(), session);
+			}
+		});
+	}
+
+	@Override
+	public void sessionOpened(final FilterEntity nextEntity, final Session session) throws Exception {
+		if (!eventTypes.contains(EventType.SESSION_OPENED)) {
+			super.sessionOpened(nextEntity, session);
+			return;
+		}
+		fireEvent(nextEntity, session, new Event() {
+			@Override
+			void fire() throws Exception {
+				nextEntity.getFilter().sessionOpened(nextEntity.getNextEntity(), session);
+			}
+		});
+	}
+
+	@Override
+	public void sessionIdle(final FilterEntity nextEntity, final Session session, final IdleStatus status) throws Exception {
+		if (!eventTypes.contains(EventType.SESSION_IDLE)) {
+			super.sessionIdle(nextEntity, session, status);
+			return;
+		}
+		fireEvent(nextEntity, session, new Event() {
+			@Override
+			void fire() throws Exception {
+				nextEntity.getFilter().sessionIdle(nextEntity.getNextEntity(), session, status);
+			}
+		});
+	}
+
+	@Override
+	public void sessionWritabilityChanged(final FilterEntity nextEntity, final Session session) throws Exception {
+		if (!eventTypes.contains(EventType.SESSION_WRITABILITY_CHANGED)) {
+			super.sessionWritabilityChanged(nextEntity, session);
+			return;
+		}
+		fireEvent(nextEntity, session, new Event() {
+			@Override
+			void fire() throws Exception {
+				nextEntity.getFilter().sessionWritabilityChanged(nextEntity.getNextEntity(), session);
+			}
+		});
+	}
+
+	@Override
+	public void sessionClosed(final FilterEntity nextEntity, final Session session) throws Exception {
+		if (!eventTypes.contains(EventType.SESSION_CLOSED)) {
+			try {
+				super.sessionClosed(nextEntity, session);
+			} finally {
+				// no event of the closing is queued to retire the queue when it is drained
+				EventQueue queue = eventQueues.get(session);
+				if (queue != null) {
+					queue.retireIfDrained();
+				}
+			}
+			return;
+		}
+		fireEvent(nextEntity, session, new Event() {
+			@Override
+			void fire() throws Exception {
+				nextEntity.getFilter().sessionClosed(nextEntity.getNextEntity(), session);
+			}
+		});
+	}
+
+	@Override
+	public void exceptionCaught(final FilterEntity nextEntity, final Session session, final Throwable cause) {
+		if (session == null || !eventTypes.contains(EventType.EXCEPTION_CAUGHT)) {
+			super.exceptionCaught(nextEntity, session, cause);
+			return;
+		}
+		fireEvent(nextEntity, session, new Event() {
+			@Override
+			void fire() throws Exception {
+				nextEntity.getFilter().exceptionCaught(nextEntity.getNextEntity(), session, cause);
+			}
+		});
+	}
+
+	@Override
+	public void dataReceived(final FilterEntity nextEntity, final Session session, Object data) throws Exception {
+		if (!eventTypes.contains(EventType.DATA_RECEIVED)) {
+			super.dataReceived(nextEntity, session, data);
+			return;
+		}
+		final Object queued = data instanceof ByteBuffer ? copy((ByteBuffer) data) : data;
+		fireEvent(nextEntity, session, new Event() {
+			@Override
+			void fire() throws Exception {
+				nextEntity.getFilter().dataReceived(nextEntity.getNextEntity(), session, queued);
+			}
+		});
+	}
+
+	@Override
+	public void dataSent(final FilterEntity nextEntity, final Session session, final Object data) throws Exception {
+		if (!eventTypes.contains(EventType.DATA_SENT)) {
+			super.dataSent(nextEntity, session, data);
+			return;
+		}
+		fireEvent(nextEntity, session, new Event() {
+			@Override
+			void fire() throws Exception {
+				nextEntity.getFilter().dataSent(nextEntity.getNextEntity(), session, data);
+			}
+		});
+	}
+
+	@Override
+	public void dataNotSent(final FilterEntity nextEntity, final Session session, final Object data) throws Exception {
+		if (!eventTypes.contains(EventType.DATA_NOT_SENT)) {
+			super.dataNotSent(nextEntity, session, data);
+			return;
+		}
+		fireEvent(nextEntity, session, new Event() {
+			@Override
+			void fire() throws Exception {
+				nextEntity.getFilter().dataNotSent(nextEntity.getNextEntity(), session, data);
+			}
+		});
+	}
+
+	/**
+	 * Copy the remaining bytes of a received buffer, the buffer itself is not changed.
+	 * @param buffer received buffer, it may be overwritten after the event returns
+	 * @return a new buffer owned by the queued event, with the same byte order
+	 */
+	private static ByteBuffer copy(ByteBuffer buffer) {
+		ByteBuffer copy = ByteBuffer.allocate(buffer.remaining()).order(buffer.order());
+		copy.put(buffer.duplicate());
+		copy.flip();
+		return copy;
+	}
+
+	/**
+	 * Add event to the session's queue, and let the executor execute the queue if it is not being executed.
+	 * @param nextEntity next filter entity, exceptions thrown by the event are passed to it
+	 * @param session session
+	 * @param event event to be fired
+	 */
+	private void fireEvent(FilterEntity nextEntity, Session session, Event event) {
+		event.nextEntity = nextEntity;
+		event.session = session;
+		for (;;) {
+			EventQueue queue = getEventQueue(session);
+			if (queue.offer(event)) {
+				return;
+			}
+			// the queue has retired, it may not be removed yet
+			eventQueues.remove(session, queue);
+		}
+	}
+
+	/**
+	 * @param session session
+	 * @return the event queue of the session, a new queue is created if there is none
+	 */
+	private EventQueue getEventQueue(Session session) {
+		EventQueue queue = eventQueues.get(session);
+		if (queue == null) {
+			// events of a session are mostly fired by the I/O thread, but idle and sending events may not
+			EventQueue newQueue = new EventQueue(session);
+			queue = eventQueues.putIfAbsent(session, newQueue);
+			if (queue == null) {
+				queue = newQueue;
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * An event to be fired to the next filter.
+	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+	 * @version 1.0
+	 * @since 1.1
+	 */
+	private static abstract class Event {
+
+		FilterEntity nextEntity;
+		Session session;
+
+		abstract void fire() throws Exception;
+
+		void run() {
+			try {
+				fire();
+			} catch (Throwable e) {
+				nextEntity.getFilter().exceptionCaught(nextEntity.getNextEntity(), session, e);
+			}
+		}
+	}
+
+	/**
+	 * Events of a session, executed by one worker thread at a time.
+	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+	 * @version 1.0
+	 * @since 1.1
+	 */
+	private class EventQueue implements Runnable {
+
+		private static final int RETIRED = -1;		// size of a queue which accepts no more events
+
+		private final Session session;
+		private final MpscQueue<Event> events = new MpscQueue<Event>();
+		private final AtomicInteger size = new AtomicInteger();		// events offered and not yet executed, or RETIRED
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);	// if this queue is submitted to the executor
+		private volatile boolean suspended = false;	// if reading of the session is suspended by this queue, guarded by this
+
+		EventQueue(Session session) {
+			this.session = session;
+		}
+
+		/**
+		 * @param event event to be executed
+		 * @return false if this queue has retired, the event must be offered to a new queue
+		 */
+		boolean offer(Event event) {
+			int queued;
+			do {
+				queued = size.get();
+				if (queued == RETIRED) {
+					return false;
+				}
+			} while (!size.compareAndSet(queued, queued + 1));
+			queued++;
+			events.offer(event);
+			if (queued >= maxQueuedEvents && !suspended) {
+				synchronized (this) {
+					if (!suspended && size.get() >= maxQueuedEvents) {
+						suspended = true;
+						session.suspendRead();
+					}
+				}
+			}
+			if (scheduled.compareAndSet(false, true)) {
+				submit();
+			}
+			return true;
+		}
+
+		/**
+		 * Retire this queue now if every event offered to it has been executed,
+		 * or else it retires when it is drained, as its session is closed.
+		 */
+		void retireIfDrained() {
+			if (size.compareAndSet(0, RETIRED)) {
+				eventQueues.remove(session, this);
+			}
+		}
+
+		private void submit() {
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				// the executor has been shutdown, fire events by the caller
+				run();
+			}
+		}
+
+		@Override
+		public void run() {
+			for (int i = 0; i < MAX_EVENTS_PER_RUN; i++) {
+				Event event = events.poll();
+				if (event == null) {
+					if (session.isClosed() && size.compareAndSet(0, RETIRED)) {
+						// every event offered to this queue has been executed, events after this go to a new queue,
+						// which can't run before this one is done
+						eventQueues.remove(session, this);
+						return;
+					}
+					scheduled.set(false);
+					// an event may have been offered before scheduled was cleared
+					if (events.isEmpty() || !scheduled.compareAndSet(false, true)) {
+						return;
+					}
+					continue;
+				}
+				event.run();
+				if (size.decrementAndGet() <= resumeThreshold && suspended) {
+					synchronized (this) {
+						if (suspended && size.get() <= resumeThreshold) {
+							suspended = false;
+							session.resumeRead();
+						}
+					}
+				}
+			}
+			// give the worker thread to other sessions, the rest events are executed later
+			submit();
+		}
+	}
+
+	/**
+	 * Creates daemon worker threads of the default executor.
+	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+	 * @version 1.0
+	 * @since 1.1
+	 */
+	private static class WorkerThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger(0);
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			thread.setName("ExecutorFilter-" + count.incrementAndGet());
+			return thread;
+		}
+	}
+
+}
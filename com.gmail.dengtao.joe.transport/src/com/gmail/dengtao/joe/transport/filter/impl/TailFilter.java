@@ -41,6 +41,14 @@ public class TailFilter implements Filter {
 		}
 	}
 
+	@Override
+	public void sessionWritabilityChanged(final FilterEntity nextFilter, final Session session)
+			throws Exception {
+		if (handler != null) {
+			handler.sessionWritabilityChanged(session);
+		}
+	}
+
 	@Override
 	public void sessionClosed(final FilterEntity nextFilter, final Session session)
 			throws Exception {
@@ -0,0 +1,290 @@
+package com.gmail.dengtao.joe.transport.filter.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.gmail.dengtao.joe.transport.filter.FilterAdapter;
+import com.gmail.dengtao.joe.transport.filter.FilterEntity;
+import com.gmail.dengtao.joe.transport.session.Session;
+import com.gmail.dengtao.joe.transport.util.HashedWheelTimer;
+
+/**
+ * A filter which limits the bytes per second read from and written to every session, and the total of all sessions
+ * passing through it, by token buckets.<br>
+ * Buckets are refilled lazily from {@link System#nanoTime()} when bytes are counted, no thread refills them.
+ * A bucket may go into debt, e.g. by a read larger than its tokens; then the session stops reading by
+ * {@link Session#suspendRead()}, or stops pushing by {@link Session#suspendWrite()}, and is resumed by a timer
+ * when the debt is paid. The I/O thread never sleeps.
+ * <p>
+ * Read bytes are counted when data is received, so add this filter before any decoder. Written bytes are
+ * counted after every push of a session, {@link Session#getWrittenBytes()}, so a push writes
+ * at most {@link com.gmail.dengtao.joe.transport.session.impl.SocketSession#getMaxWriteBytesPerPush()} over the limit.
+ * <p>
+ * Reading of a session may also be suspended by {@link ExecutorFilter}, suspensions are counted by the session,
+ * so it reads again only when both filters have resumed it.<br>
+ * Attention! Datagram sessions of an acceptor share one channel, their reading can not be suspended.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class TrafficShapingFilter extends FilterAdapter {
+
+	/** Tick of the timer which resumes sessions, in milliseconds */
+	public static final long DEFAULT_TICK_DURATION = 10;
+
+	private final long sessionReadLimit;	// bytes per second read by a session, 0 for no limit
+	private final long sessionWriteLimit;	// bytes per second written by a session, 0 for no limit
+	private final TokenBucket globalReadBucket;		// null for no limit
+	private final TokenBucket globalWriteBucket;	// null for no limit
+	private final ConcurrentMap<Session, SessionBuckets> sessionBuckets = new ConcurrentHashMap<Session, SessionBuckets>();
+	private final HashedWheelTimer timer;	// resumes sessions, started by the first suspension
+
+	/**
+	 * Create a TrafficShapingFilter limiting every session.
+	 * @param sessionReadLimit bytes per second read by a session, 0 for no limit
+	 * @param sessionWriteLimit bytes per second written by a session, 0 for no limit
+	 * @throws IllegalArgumentException If a limit is negative
+	 */
+	public TrafficShapingFilter(long sessionReadLimit, long sessionWriteLimit) {
+		this(sessionReadLimit, sessionWriteLimit, 0, 0);
+	}
+
+	/**
+	 * Create a TrafficShapingFilter limiting every session and the total of all sessions.<br>
+	 * A bucket holds one second of its limit, so a session idle for a while may burst that many bytes.
+	 * @param sessionReadLimit bytes per second read by a session, 0 for no limit
+	 * @param sessionWriteLimit bytes per second written by a session, 0 for no limit
+	 * @param globalReadLimit bytes per second read by all sessions, 0 for no limit
+	 * @param globalWriteLimit bytes per second written by all sessions, 0 for no limit
+	 * @throws IllegalArgumentException If a limit is negative
+	 */
+	public TrafficShapingFilter(long sessionReadLimit, long sessionWriteLimit, long globalReadLimit, long globalWriteLimit) {
+		if (sessionReadLimit < 0 || sessionWriteLimit < 0 || globalReadLimit < 0 || globalWriteLimit < 0) {
+			throw new IllegalArgumentException("Illegal limit: sessionRead=" + sessionReadLimit + ", sessionWrite=" + sessionWriteLimit
+					+ ", globalRead=" + globalReadLimit + ", globalWrite=" + globalWriteLimit);
+		}
+		this.sessionReadLimit = sessionReadLimit;
+		this.sessionWriteLimit = sessionWriteLimit;
+		this.globalReadBucket = globalReadLimit > 0 ? new TokenBucket(globalReadLimit) : null;
+		this.globalWriteBucket = globalWriteLimit > 0 ? new TokenBucket(globalWriteLimit) : null;
+		this.timer = new HashedWheelTimer(new TimerThreadFactory(), DEFAULT_TICK_DURATION, TimeUnit.MILLISECONDS, HashedWheelTimer.DEFAULT_TICKS_PER_WHEEL);
+	}
+
+	@Override
+	public void destroy() {
+		timer.stop();
+	}
+
+	@Override
+	public void dataReceived(FilterEntity nextEntity, Session session, Object data) throws Exception {
+		long bytes = length(data);
+		if (bytes > 0 && (sessionReadLimit > 0 || globalReadBucket != null)) {
+			SessionBuckets buckets = getSessionBuckets(session);
+			long now = System.nanoTime();
+			long delay = 0;
+			if (buckets.readBucket != null) {
+				delay = buckets.readBucket.consume(bytes, now);
+			}
+			if (globalReadBucket != null) {
+				delay = Math.max(delay, globalReadBucket.consume(bytes, now));
+			}
+			if (delay > 0 && buckets.readSuspended.compareAndSet(false, true)) {
+				session.suspendRead();
+				timer.newTimeout(buckets.resumeReadTask, delay, TimeUnit.NANOSECONDS);
+			}
+		}
+		super.dataReceived(nextEntity, session, data);
+	}
+
+	@Override
+	public void pushData(FilterEntity nextEntity, Session session) throws Exception {
+		if (sessionWriteLimit <= 0 && globalWriteBucket == null) {
+			super.pushData(nextEntity, session);
+			return;
+		}
+		SessionBuckets buckets = getSessionBuckets(session);
+		long now = System.nanoTime();
+		long delay = 0;
+		if (buckets.writeBucket != null) {
+			delay = buckets.writeBucket.consume(0, now);
+		}
+		if (globalWriteBucket != null) {
+			delay = Math.max(delay, globalWriteBucket.consume(0, now));
+		}
+		if (delay > 0) {
+			// in debt, push later
+			if (buckets.writeSuspended.compareAndSet(false, true)) {
+				session.suspendWrite();
+				timer.newTimeout(buckets.resumeWriteTask, delay, TimeUnit.NANOSECONDS);
+			}
+			return;
+		}
+		long writtenBytes = session.getWrittenBytes();
+		try {
+			super.pushData(nextEntity, session);
+		} finally {
+			long bytes = session.getWrittenBytes() - writtenBytes;
+			if (bytes > 0) {
+				if (buckets.writeBucket != null) {
+					buckets.writeBucket.consume(bytes, now);
+				}
+				if (globalWriteBucket != null) {
+					globalWriteBucket.consume(bytes, now);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void sessionClosed(FilterEntity nextEntity, Session session) throws Exception {
+		sessionBuckets.remove(session);
+		super.sessionClosed(nextEntity, session);
+	}
+
+	/**
+	 * @param session session
+	 * @return buckets of the session, new buckets are created if there are none
+	 */
+	private SessionBuckets getSessionBuckets(Session session) {
+		SessionBuckets buckets = sessionBuckets.get(session);
+		if (buckets == null) {
+			SessionBuckets newBuckets = new SessionBuckets(session);
+			buckets = sessionBuckets.putIfAbsent(session, newBuckets);
+			if (buckets == null) {
+				buckets = newBuckets;
+			}
+		}
+		return buckets;
+	}
+
+	/**
+	 * @param data received data
+	 * @return number of bytes of data
+	 */
+	private static long length(Object data) {
+		if (data instanceof byte[]) {
+			return ((byte[]) data).length;
+		} else if (data instanceof ByteBuffer) {
+			return ((ByteBuffer) data).remaining();
+		}
+		return 0;
+	}
+
+	/**
+	 * Token bucket refilled lazily when bytes are consumed, it holds one second of its rate at most.<br>
+	 * Tokens are kept as time: the bucket remembers when it ran empty, and the nanoseconds since then are its tokens
+	 * at one byte per <code>1e9 / rate</code> nanoseconds, a time later than now is debt. So the state is one
+	 * {@link AtomicLong} and consuming is a compare-and-set loop, callers never block each other.
+	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+	 * @version 1.0
+	 * @since 1.1
+	 */
+	static final class TokenBucket {
+
+		private static final long SECOND = 1000000000L;	// in nanoseconds
+
+		private final long rate;			// bytes per second
+		private final AtomicLong emptyTime;	// in System.nanoTime(), when this bucket ran or will run out of debt
+
+		TokenBucket(long rate) {
+			this.rate = rate;
+			// full
+			this.emptyTime = new AtomicLong(System.nanoTime() - SECOND);
+		}
+
+		/**
+		 * Refill this bucket, then consume bytes from it.
+		 * @param bytes bytes to consume, may put this bucket into debt
+		 * @param now current time in {@link System#nanoTime()}
+		 * @return nanoseconds until the debt is paid, 0 if there is no debt
+		 */
+		long consume(long bytes, long now) {
+			long cost = toNanos(bytes);
+			long next;
+			if (cost == 0) {
+				// nothing to consume, only check the debt
+				next = emptyTime.get();
+			} else {
+				long full = now - SECOND;
+				long empty;
+				do {
+					empty = emptyTime.get();
+					// tokens over one second of the rate are not kept
+					next = (empty - full < 0 ? full : empty) + cost;
+				} while (!emptyTime.compareAndSet(empty, next));
+			}
+			long debt = next - now;
+			return debt > 0 ? debt : 0;
+		}
+
+		/**
+		 * @param bytes bytes
+		 * @return nanoseconds to refill the bytes, rounded up
+		 */
+		private long toNanos(long bytes) {
+			if (bytes <= Long.MAX_VALUE / SECOND) {
+				long nanos = bytes * SECOND;
+				return nanos / rate + (nanos % rate == 0 ? 0 : 1);
+			}
+			return bytes / rate * SECOND;
+		}
+	}
+
+	/**
+	 * Buckets of a session and tasks resuming it.
+	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+	 * @version 1.0
+	 * @since 1.1
+	 */
+	private final class SessionBuckets {
+
+		private final TokenBucket readBucket;	// null for no limit
+		private final TokenBucket writeBucket;	// null for no limit
+		private final AtomicBoolean readSuspended = new AtomicBoolean(false);	// if reading is suspended by this filter
+		private final AtomicBoolean writeSuspended = new AtomicBoolean(false);	// if writing is suspended by this filter
+		private final Runnable resumeReadTask;
+		private final Runnable resumeWriteTask;
+
+		SessionBuckets(final Session session) {
+			readBucket = sessionReadLimit > 0 ? new TokenBucket(sessionReadLimit) : null;
+			writeBucket = sessionWriteLimit > 0 ? new TokenBucket(sessionWriteLimit) : null;
+			resumeReadTask = new Runnable() {
+				@Override
+				public void run() {
+					readSuspended.set(false);
+					session.resumeRead();
+				}
+			};
+			resumeWriteTask = new Runnable() {
+				@Override
+				public void run() {
+					writeSuspended.set(false);
+					session.resumeWrite();
+				}
+			};
+		}
+	}
+
+	/**
+	 * Creates the daemon thread of the timer.
+	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+	 * @version 1.0
+	 * @since 1.1
+	 */
+	private static class TimerThreadFactory implements ThreadFactory {
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			thread.setName("TrafficShapingFilterTimer");
+			return thread;
+		}
+	}
+
+}
@@ -47,6 +47,15 @@ public interface Handler {
      */
     public void sessionIdle(final Session session, final IdleStatus status) throws Exception;
 
+    /**
+     * Invoked when the session's queued outbound data crossed its high water mark, or drained to its low water mark.
+     * Check {@link Session#isWritable()} for the current state.
+     * @param session
+     * @throws Exception
+     * @since 1.1
+     */
+    public void sessionWritabilityChanged(final Session session) throws Exception;
+
     /**
      * Invoked when any exception is thrown by user {@link Handler}
      * implementation or by Acceptor.
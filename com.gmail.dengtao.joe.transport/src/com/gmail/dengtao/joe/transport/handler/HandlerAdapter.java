@@ -33,6 +33,12 @@ public class HandlerAdapter implements Handler {
 
 	}
 
+	@Override
+	public void sessionWritabilityChanged(final Session session)
+			throws Exception {
+		// Empty...
+	}
+
 	@Override
 	public void sessionClosed(final Session session) 
 			throws Exception {
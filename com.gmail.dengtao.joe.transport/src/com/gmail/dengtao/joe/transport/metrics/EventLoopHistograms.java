@@ -0,0 +1,59 @@
+package com.gmail.dengtao.joe.transport.metrics;
+
+/**
+ * Histograms of an I/O thread's loop, recorded by the thread itself, so it can be told whether the thread was
+ * waiting in the selector or busy handling keys and filter chains when latency goes up.<br>
+ * Read them by {@link LatencyHistogram#snapshotAndReset()} every interval.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class EventLoopHistograms {
+
+	private final LatencyHistogram selectWait = new LatencyHistogram();
+	private final LatencyHistogram processing = new LatencyHistogram();
+	private final LatencyHistogram selectedKeys = new LatencyHistogram();
+	private final LatencyHistogram scheduledTaskLag = new LatencyHistogram();
+
+	/**
+	 * @return nanoseconds the I/O thread blocked in each select
+	 * @since 1.1
+	 */
+	public LatencyHistogram getSelectWait() {
+		return selectWait;
+	}
+
+	/**
+	 * @return nanoseconds from the end of a select to the start of the next one, which the I/O thread spent
+	 * handling selected keys and running tasks
+	 * @since 1.1
+	 */
+	public LatencyHistogram getProcessing() {
+		return processing;
+	}
+
+	/**
+	 * @return number of keys selected by each select
+	 * @since 1.1
+	 */
+	public LatencyHistogram getSelectedKeys() {
+		return selectedKeys;
+	}
+
+	/**
+	 * @return nanoseconds from the deadline of each scheduled task to the time it is run
+	 * @since 1.1
+	 */
+	public LatencyHistogram getScheduledTaskLag() {
+		return scheduledTaskLag;
+	}
+
+	@Override
+	public String toString() {
+		return "EventLoopHistograms [selectWait={" + selectWait.snapshot()
+				+ "}, processing={" + processing.snapshot()
+				+ "}, selectedKeys={" + selectedKeys.snapshot()
+				+ "}, scheduledTaskLag={" + scheduledTaskLag.snapshot() + "}]";
+	}
+
+}
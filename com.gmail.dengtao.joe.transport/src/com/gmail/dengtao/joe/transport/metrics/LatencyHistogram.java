@@ -0,0 +1,192 @@
+package com.gmail.dengtao.joe.transport.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative long values, e.g. latencies in nanoseconds, with a fixed relative precision.<br>
+ * Values are counted in log-linear buckets like an HDR histogram: every power of two is split into 32 linear
+ * sub-buckets, so a value is reported at most 1/32 (about 3%) above its real value. All buckets are allocated
+ * when the histogram is created, {@link #record(long)} never allocates and costs one atomic add.
+ * <p>
+ * {@link #snapshotAndReset()} takes every bucket's count atomically and sets it to zero, so each recorded
+ * value is in exactly one interval even if it is recorded while the snapshot is taken.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class LatencyHistogram {
+
+	/** Bits of the linear sub-buckets of each power of two */
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_MASK = SUB_BUCKET_COUNT - 1;
+	/** Number of buckets covering all non-negative long values */
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong sum = new AtomicLong();	// sum of recorded values, for the mean
+
+	/**
+	 * Record a value.
+	 * @param value value, negative values are recorded as zero
+	 * @since 1.1
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucketIndex(value));
+		sum.addAndGet(value);
+	}
+
+	/**
+	 * @return a snapshot of the values recorded since this histogram was created or last reset
+	 * @since 1.1
+	 */
+	public Snapshot snapshot() {
+		long[] snapshot = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			snapshot[i] = counts.get(i);
+		}
+		return new Snapshot(snapshot, sum.get());
+	}
+
+	/**
+	 * Take a snapshot and reset this histogram, so the next snapshot only has values recorded after this.
+	 * @return a snapshot of the values recorded since this histogram was created or last reset
+	 * @since 1.1
+	 */
+	public Snapshot snapshotAndReset() {
+		long[] snapshot = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			if (counts.get(i) != 0) {
+				snapshot[i] = counts.getAndSet(i, 0);
+			}
+		}
+		return new Snapshot(snapshot, sum.getAndSet(0));
+	}
+
+	/**
+	 * @param value non-negative value
+	 * @return index of the bucket which counts the value
+	 */
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);	// >= SUB_BUCKET_BITS
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & SUB_BUCKET_MASK;
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+	}
+
+	/**
+	 * @param index index of a bucket
+	 * @return the highest value counted by the bucket
+	 */
+	static long highestValue(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+		int shift = exponent - SUB_BUCKET_BITS;
+		long lowest = ((long) (SUB_BUCKET_COUNT | (index & SUB_BUCKET_MASK))) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * Values of a histogram at a moment, it is not changed by later records.
+	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+	 * @version 1.0
+	 * @since 1.1
+	 */
+	public static final class Snapshot {
+
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+
+		private Snapshot(long[] counts, long sum) {
+			this.counts = counts;
+			long count = 0;
+			for (long c : counts) {
+				count += c;
+			}
+			this.count = count;
+			this.sum = sum;
+		}
+
+		/**
+		 * @return number of recorded values
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return mean of recorded values, 0 if there are none
+		 */
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * @return the lowest recorded value, rounded down to its bucket's precision, 0 if there are none
+		 */
+		public long getMin() {
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] != 0) {
+					return i == 0 ? 0 : highestValue(i - 1) + 1;
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * @return the highest recorded value, rounded up to its bucket's precision, 0 if there are none
+		 */
+		public long getMax() {
+			for (int i = counts.length - 1; i >= 0; i--) {
+				if (counts[i] != 0) {
+					return highestValue(i);
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * @param percentile percentile from 0 to 100, e.g. 99.9
+		 * @return the value which the percentile of recorded values are not greater than, rounded up to its bucket's precision,
+		 * 0 if there are none
+		 */
+		public long getValueAtPercentile(double percentile) {
+			if (percentile < 0 || percentile > 100) {
+				throw new IllegalArgumentException("Illegal percentile: " + percentile);
+			}
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return highestValue(i);
+				}
+			}
+			return getMax();
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count
+					+ ", min=" + getMin()
+					+ ", mean=" + (long) getMean()
+					+ ", p50=" + getValueAtPercentile(50)
+					+ ", p99=" + getValueAtPercentile(99)
+					+ ", p99.9=" + getValueAtPercentile(99.9)
+					+ ", max=" + getMax();
+		}
+	}
+
+}
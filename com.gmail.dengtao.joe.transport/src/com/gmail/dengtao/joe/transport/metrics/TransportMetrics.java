@@ -0,0 +1,221 @@
+package com.gmail.dengtao.joe.transport.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.gmail.dengtao.joe.transport.util.StripedCounter;
+
+/**
+ * Counters of an acceptor or connector, updated by its I/O threads, {@link com.gmail.dengtao.joe.transport.filter.FilterChain}
+ * and sessions.<br>
+ * Every counter is a {@link StripedCounter}, so the I/O threads of an acceptor don't contend when they update it.
+ * <p>
+ * The counters are registered to the platform MBean server as
+ * <code>com.gmail.dengtao.joe.transport:type=&lt;class of acceptor or connector&gt;,name=&lt;address&gt;</code>
+ * when the acceptor or connector starts, and unregistered when it stops.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class TransportMetrics implements TransportMetricsMBean {
+
+	/** Domain of ObjectNames of registered metrics */
+	public static final String DOMAIN = "com.gmail.dengtao.joe.transport";
+
+	// sequence appended to names which are registered already, e.g. two connectors to the same address
+	private static final AtomicInteger SEQUENCE = new AtomicInteger(0);
+
+	private final StripedCounter bytesRead = new StripedCounter();
+	private final StripedCounter messagesRead = new StripedCounter();
+	private final StripedCounter bytesWritten = new StripedCounter();
+	private final StripedCounter messagesWritten = new StripedCounter();
+	private final StripedCounter queuedBytes = new StripedCounter();
+	private final StripedCounter sessionsOpened = new StripedCounter();
+	private final StripedCounter sessionsClosed = new StripedCounter();
+	private final StripedCounter exceptionsCaught = new StripedCounter();
+	private final StripedCounter selectLoops = new StripedCounter();
+
+	private ObjectName objectName;		// name registered with, null if not registered, guarded by this
+
+	/**
+	 * Count received data.
+	 * @param data received data, its bytes are counted if it is a byte[] or ByteBuffer
+	 * @since 1.1
+	 */
+	public void dataRead(Object data) {
+		messagesRead.increment();
+		if (data instanceof byte[]) {
+			bytesRead.add(((byte[]) data).length);
+		} else if (data instanceof ByteBuffer) {
+			bytesRead.add(((ByteBuffer) data).remaining());
+		}
+	}
+
+	/**
+	 * Count bytes written to the channel.
+	 * @param bytes written bytes
+	 * @since 1.1
+	 */
+	public void bytesWritten(long bytes) {
+		bytesWritten.add(bytes);
+	}
+
+	/**
+	 * Count sent data.
+	 * @since 1.1
+	 */
+	public void dataSent() {
+		messagesWritten.increment();
+	}
+
+	/**
+	 * Count change of queued outbound bytes.
+	 * @param bytes bytes queued, negative for bytes sent or dropped
+	 * @since 1.1
+	 */
+	public void queuedBytesChanged(long bytes) {
+		queuedBytes.add(bytes);
+	}
+
+	/**
+	 * Count an opened session.
+	 * @since 1.1
+	 */
+	public void sessionOpened() {
+		sessionsOpened.increment();
+	}
+
+	/**
+	 * Count a closed session.
+	 * @since 1.1
+	 */
+	public void sessionClosed() {
+		sessionsClosed.increment();
+	}
+
+	/**
+	 * Count a caught exception.
+	 * @since 1.1
+	 */
+	public void exceptionCaught() {
+		exceptionsCaught.increment();
+	}
+
+	/**
+	 * Count an iteration of a select loop.
+	 * @since 1.1
+	 */
+	public void selectLoop() {
+		selectLoops.increment();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	@Override
+	public long getMessagesRead() {
+		return messagesRead.sum();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	@Override
+	public long getMessagesWritten() {
+		return messagesWritten.sum();
+	}
+
+	@Override
+	public long getQueuedBytes() {
+		return queuedBytes.sum();
+	}
+
+	@Override
+	public long getSessionsOpened() {
+		return sessionsOpened.sum();
+	}
+
+	@Override
+	public long getSessionsClosed() {
+		return sessionsClosed.sum();
+	}
+
+	@Override
+	public long getActiveSessions() {
+		// read closed first, so a session closed in the meantime is not counted negative
+		long closed = sessionsClosed.sum();
+		return sessionsOpened.sum() - closed;
+	}
+
+	@Override
+	public long getExceptionsCaught() {
+		return exceptionsCaught.sum();
+	}
+
+	@Override
+	public long getSelectLoops() {
+		return selectLoops.sum();
+	}
+
+	/**
+	 * Register these metrics to the platform MBean server, a sequence is appended to the name if it is registered already.
+	 * Nothing is done if these metrics are registered.
+	 * @param type type of the ObjectName, e.g. class of the acceptor
+	 * @param name name of the ObjectName, e.g. address of the acceptor
+	 * @return ObjectName registered with
+	 * @throws JMException If registration failed
+	 * @since 1.1
+	 */
+	public synchronized ObjectName register(String type, String name) throws JMException {
+		if (objectName != null) {
+			return objectName;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		String uniqueName = name;
+		for (;;) {
+			ObjectName candidate = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(uniqueName));
+			try {
+				server.registerMBean(this, candidate);
+				objectName = candidate;
+				return candidate;
+			} catch (InstanceAlreadyExistsException e) {
+				uniqueName = name + "#" + SEQUENCE.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Unregister these metrics from the platform MBean server, nothing is done if they are not registered.
+	 * @since 1.1
+	 */
+	public synchronized void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			/* unregistered by others, nothing... */
+		}
+		objectName = null;
+	}
+
+	/**
+	 * @return ObjectName these metrics are registered with, null if they are not registered
+	 * @since 1.1
+	 */
+	public synchronized ObjectName getObjectName() {
+		return objectName;
+	}
+
+}
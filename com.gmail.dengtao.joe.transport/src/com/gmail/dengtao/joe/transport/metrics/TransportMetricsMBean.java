@@ -0,0 +1,72 @@
+package com.gmail.dengtao.joe.transport.metrics;
+
+/**
+ * Counters of an acceptor or connector exposed by JMX, all counters are cumulative since it was created,
+ * except the queued bytes and active sessions.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public interface TransportMetricsMBean {
+
+	/**
+	 * @return bytes received from remote peers
+	 * @since 1.1
+	 */
+	public long getBytesRead();
+
+	/**
+	 * @return number of data received events
+	 * @since 1.1
+	 */
+	public long getMessagesRead();
+
+	/**
+	 * @return bytes written to remote peers
+	 * @since 1.1
+	 */
+	public long getBytesWritten();
+
+	/**
+	 * @return number of data sent events
+	 * @since 1.1
+	 */
+	public long getMessagesWritten();
+
+	/**
+	 * @return bytes of outbound data queued by open sessions and not yet sent
+	 * @since 1.1
+	 */
+	public long getQueuedBytes();
+
+	/**
+	 * @return number of sessions opened
+	 * @since 1.1
+	 */
+	public long getSessionsOpened();
+
+	/**
+	 * @return number of sessions closed
+	 * @since 1.1
+	 */
+	public long getSessionsClosed();
+
+	/**
+	 * @return number of sessions opened and not closed yet
+	 * @since 1.1
+	 */
+	public long getActiveSessions();
+
+	/**
+	 * @return number of exception caught events
+	 * @since 1.1
+	 */
+	public long getExceptionsCaught();
+
+	/**
+	 * @return number of select loop iterations of all I/O threads
+	 * @since 1.1
+	 */
+	public long getSelectLoops();
+
+}
@@ -70,7 +70,8 @@ public interface Session {
     public int getSendBufferSize();
 
 	/**
-	 * Config the send buffer size of this session.
+	 * Config the send buffer size of this session.<br>
+	 * Datagrams are sent in chunks of at most this size; socket sessions write queued data directly by gathering writes.
      * @param sendBufferSize capacity The send buffer's capacity, in bytes.
      * @throws IllegalArgumentException If the capacity is a negative integer
      * @since 1.0
@@ -80,11 +81,27 @@ public interface Session {
 	/**
 	 * Add data to send list.<br>
 	 * remember data will not be directly sent to remote peer, but was add to send queue.
+	 * The data is flushed, same as {@link #write(Object)} followed by {@link #flush()}.
 	 * @param data
 	 * @since 1.0
 	 */
 	public void send(final Object data);
 	
+	/**
+	 * Add data to send list without waking up the I/O thread, call {@link #flush()} to push it to remote peer.<br>
+	 * So a batch of messages costs one wakeup and is written by as few socket writes as possible.
+	 * If auto flush is configured for socket sessions, the data is flushed when enough bytes are written or the delay passes.
+	 * @param data
+	 * @since 1.1
+	 */
+	public void write(final Object data);
+	
+	/**
+	 * Push data added by {@link #write(Object)} to remote peer, nothing is done if no data is waiting.
+	 * @since 1.1
+	 */
+	public void flush();
+	
 	/**
 	 * Close this session
 	 * 
@@ -107,12 +124,69 @@ public interface Session {
 	void pushData();
 
 	/**
-	 * Add data to send queue
+	 * Add data to send queue, the data is pushed when this session is flushed.
 	 * @param data
 	 * @since 1.0
 	 */
 	void sendData(Object data);
 
+	/**
+	 * Stop reading data from remote peer until {@link #resumeRead()} is called, data arrives in the meantime
+	 * waits in the socket's receive buffer.<br>
+	 * Suspensions are counted, so filters suspending a session for different reasons don't resume each other:
+	 * reading continues when every suspension has been resumed, a resume without a suspension is ignored.<br>
+	 * Datagram sessions may share their channel with other sessions, so only the flag is changed for them.
+	 * @since 1.1
+	 */
+	public void suspendRead();
+
+	/**
+	 * Continue reading data from remote peer after {@link #suspendRead()}.
+	 * @since 1.1
+	 */
+	public void resumeRead();
+
+	/**
+	 * @return whether reading of this session is suspended
+	 * @since 1.1
+	 */
+	public boolean isReadSuspended();
+
+	/**
+	 * Stop pushing queued data to remote peer until {@link #resumeWrite()} is called, data sent in the meantime
+	 * is still queued.<br>
+	 * Suspensions are counted like {@link #suspendRead()}.
+	 * @since 1.1
+	 */
+	public void suspendWrite();
+
+	/**
+	 * Continue pushing queued data to remote peer after {@link #suspendWrite()}.
+	 * @since 1.1
+	 */
+	public void resumeWrite();
+
+	/**
+	 * @return whether writing of this session is suspended
+	 * @since 1.1
+	 */
+	public boolean isWriteSuspended();
+
+	/**
+	 * @return number of bytes written to remote peer since this session was created
+	 * @since 1.1
+	 */
+	public long getWrittenBytes();
+
+	/**
+	 * Producers should stop sending when this session is not writable, and continue when
+	 * {@link com.gmail.dengtao.joe.transport.handler.Handler#sessionWritabilityChanged(Session)} tells it is writable again.
+	 * Data sent in the meantime is still queued, nothing is dropped.
+	 * @return false if queued outbound data grew above the high water mark and has not drained to the low water mark yet
+	 * @since 1.1
+	 */
+	public boolean isWritable();
+
 	/**
 	 * @return whether this is opened
 	 * @since 1.0
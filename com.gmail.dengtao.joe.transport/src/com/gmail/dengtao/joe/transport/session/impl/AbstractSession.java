@@ -3,9 +3,18 @@ package com.gmail.dengtao.joe.transport.session.impl;
 import java.net.SocketAddress;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.gmail.dengtao.joe.transport.SessionRegistry;
+import com.gmail.dengtao.joe.transport.buffer.BufferAllocator;
+import com.gmail.dengtao.joe.transport.buffer.UnpooledBufferAllocator;
+import com.gmail.dengtao.joe.transport.metrics.TransportMetrics;
 import com.gmail.dengtao.joe.transport.session.IdleStatus;
 import com.gmail.dengtao.joe.transport.session.Session;
+import com.gmail.dengtao.joe.transport.util.HashedWheelTimer;
 
 /**
  * Session's common methods implementation.
@@ -24,6 +33,17 @@ abstract class AbstractSession implements Session {
 	 */
 	public static final int DEFAULT_BUFFER_SIZE = 512;
 	protected int sendBufferSize = DEFAULT_BUFFER_SIZE; // use 538 ~ 548, recommend 538 for the best performance.
+	// allocator used when sessions are not created by an acceptor or connector
+	private static final BufferAllocator DEFAULT_BUFFER_ALLOCATOR = new UnpooledBufferAllocator();
+	protected BufferAllocator bufferAllocator = DEFAULT_BUFFER_ALLOCATOR; // allocator of send buffers
+	/** Default bytes of queued outbound data above which a session is not writable */
+	public static final int DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK = 64 * 1024;
+	/** Default bytes of queued outbound data at or below which a session is writable again */
+	public static final int DEFAULT_WRITE_BUFFER_LOW_WATER_MARK = 32 * 1024;
+	private volatile int writeBufferHighWaterMark = DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK;
+	private volatile int writeBufferLowWaterMark = DEFAULT_WRITE_BUFFER_LOW_WATER_MARK;
+	private final AtomicLong queuedBytes = new AtomicLong();				// bytes of packets queued and not yet sent
+	private final AtomicBoolean writable = new AtomicBoolean(true);		// if queuedBytes has not crossed the high water mark
 
 	protected SocketAddress localSocketAddress;
 	protected SocketAddress remoteSocketAddress;
@@ -44,9 +64,24 @@ abstract class AbstractSession implements Session {
 	protected boolean open = false;
 	// Mark whether this session is closed
 	protected boolean closed = false;
+	// suspensions of reading not resumed yet, reading is suspended while it is positive
+	private final AtomicInteger readSuspensions = new AtomicInteger();
+	// suspensions of writing not resumed yet, writing is suspended while it is positive
+	private final AtomicInteger writeSuspensions = new AtomicInteger();
+	// bytes written to the channel, only increased by the I/O thread
+	protected volatile long writtenBytes = 0;
 	
 	// value map key-value
 	protected Map<String, Object> sessionValueMap = new ConcurrentHashMap<String, Object>();
+	
+	// timer which checks idle of this session, set by acceptor or connector
+	private HashedWheelTimer idleTimer;
+	private IdleCheckTask readIdleTask;
+	private IdleCheckTask writeIdleTask;
+	// cache of acceptor or connector which this session is removed from when closed
+	private SessionRegistry sessionRegistry;
+	// metrics of acceptor or connector which counts queued bytes of this session
+	private TransportMetrics metrics;
 
 	/**
 	 * Get remoteSocketAddress of this session
@@ -114,6 +149,7 @@ abstract class AbstractSession implements Session {
 		} else {
 		    throw new IllegalArgumentException("Unknown idle status: " + status);
 	    }
+		scheduleIdleCheck(status);
 	}
 	
 	@Override
@@ -147,6 +183,168 @@ abstract class AbstractSession implements Session {
 		}
 	}
 
+	@Override
+	public void suspendRead() {
+		if (readSuspensions.getAndIncrement() == 0) {
+			readSuspendedChanged();
+		}
+	}
+
+	@Override
+	public void resumeRead() {
+		if (release(readSuspensions)) {
+			readSuspendedChanged();
+		}
+	}
+
+	@Override
+	public boolean isReadSuspended() {
+		return readSuspensions.get() > 0;
+	}
+
+	@Override
+	public void suspendWrite() {
+		if (writeSuspensions.getAndIncrement() == 0) {
+			writeSuspendedChanged();
+		}
+	}
+
+	@Override
+	public void resumeWrite() {
+		if (release(writeSuspensions)) {
+			writeSuspendedChanged();
+		}
+	}
+
+	@Override
+	public boolean isWriteSuspended() {
+		return writeSuspensions.get() > 0;
+	}
+
+	/**
+	 * Release one suspension, a resume without a suspension is ignored.
+	 * @param suspensions suspensions not resumed yet
+	 * @return true if it was the last suspension
+	 * @since 1.1
+	 */
+	private static boolean release(AtomicInteger suspensions) {
+		for (;;) {
+			int count = suspensions.get();
+			if (count == 0) {
+				return false;
+			}
+			if (suspensions.compareAndSet(count, count - 1)) {
+				return count == 1;
+			}
+		}
+	}
+
+	@Override
+	public long getWrittenBytes() {
+		return writtenBytes;
+	}
+
+	@Override
+	public boolean isWritable() {
+		return writable.get();
+	}
+
+	/**
+	 * @return bytes of outbound data queued and not yet sent
+	 * @since 1.1
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	/**
+	 * @return bytes of queued outbound data above which this session is not writable
+	 * @since 1.1
+	 */
+	public int getWriteBufferHighWaterMark() {
+		return writeBufferHighWaterMark;
+	}
+
+	/**
+	 * @return bytes of queued outbound data at or below which this session is writable again
+	 * @since 1.1
+	 */
+	public int getWriteBufferLowWaterMark() {
+		return writeBufferLowWaterMark;
+	}
+
+	/**
+	 * Config the outbound water marks of this session.<br>
+	 * When queued outbound data grows above the high water mark this session becomes not writable, and it becomes
+	 * writable again when the data drains to the low water mark; every change fires
+	 * {@link com.gmail.dengtao.joe.transport.handler.Handler#sessionWritabilityChanged(Session)}.
+	 * @param low low water mark in bytes
+	 * @param high high water mark in bytes
+	 * @throws IllegalArgumentException If low is negative or greater than high
+	 * @since 1.1
+	 */
+	public void setWriteBufferWaterMark(int low, int high) {
+		if (low < 0 || low > high)
+		    throw new IllegalArgumentException();
+		this.writeBufferLowWaterMark = low;
+		this.writeBufferHighWaterMark = high;
+		updateWritability();
+	}
+
+	/**
+	 * Count bytes of a packet added to the send queue, called by the thread which sends it.
+	 * @param bytes bytes of the packet
+	 * @since 1.1
+	 */
+	protected void incrementQueuedBytes(long bytes) {
+		if (metrics != null && !closed) {
+			metrics.queuedBytesChanged(bytes);
+		}
+		if (queuedBytes.addAndGet(bytes) > writeBufferHighWaterMark && writable.get()) {
+			updateWritability();
+		}
+	}
+
+	/**
+	 * Count bytes of a packet removed from the send queue, called by the I/O thread when the packet is sent or dropped.
+	 * @param bytes bytes of the packet
+	 * @since 1.1
+	 */
+	protected void decrementQueuedBytes(long bytes) {
+		if (metrics != null && !closed) {
+			metrics.queuedBytesChanged(-bytes);
+		}
+		if (queuedBytes.addAndGet(-bytes) <= writeBufferLowWaterMark && !writable.get()) {
+			updateWritability();
+		}
+	}
+
+	/**
+	 * Follow queued bytes with writability, producers and the I/O thread may race here,
+	 * so the state is checked again after each change until it agrees with queued bytes.
+	 * @since 1.1
+	 */
+	private void updateWritability() {
+		for (;;) {
+			long bytes = queuedBytes.get();
+			if (writable.get()) {
+				if (bytes <= writeBufferHighWaterMark) {
+					return;
+				}
+				if (writable.compareAndSet(true, false)) {
+					fireSessionWritabilityChanged();
+				}
+			} else {
+				if (bytes > writeBufferLowWaterMark) {
+					return;
+				}
+				if (writable.compareAndSet(false, true)) {
+					fireSessionWritabilityChanged();
+				}
+			}
+		}
+	}
+
 	@Override
 	public boolean isClosed() {
 		return closed;
@@ -202,4 +400,210 @@ abstract class AbstractSession implements Session {
 		    throw new IllegalArgumentException();
 		this.sendBufferSize = sendBufferSize;
 	}
+
+	/**
+	 * @return allocator of send buffers
+	 * @since 1.1
+	 */
+	public BufferAllocator getBufferAllocator() {
+		return bufferAllocator;
+	}
+
+	/**
+	 * Config the allocator which this session borrows send buffers from.
+	 * @param bufferAllocator buffer allocator
+	 * @since 1.1
+	 */
+	public void setBufferAllocator(BufferAllocator bufferAllocator) {
+		if (bufferAllocator == null)
+		    throw new IllegalArgumentException();
+		this.bufferAllocator = bufferAllocator;
+	}
+
+	/**
+	 * Set the timer which checks idle of this session, it should be set before this session is opened.
+	 * @param idleTimer idle timer
+	 * @since 1.1
+	 */
+	public void setIdleTimer(HashedWheelTimer idleTimer) {
+		this.idleTimer = idleTimer;
+	}
+
+	/**
+	 * Set the cache which this session is removed from when closed.
+	 * @param sessionRegistry session registry
+	 * @since 1.1
+	 */
+	public void setSessionRegistry(SessionRegistry sessionRegistry) {
+		this.sessionRegistry = sessionRegistry;
+	}
+
+	/**
+	 * Set the metrics which count queued bytes of this session.
+	 * @param metrics metrics of acceptor or connector
+	 * @since 1.1
+	 */
+	public void setMetrics(TransportMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Fire session idle to this session's FilterChain.
+	 * @param status idle status
+	 * @since 1.1
+	 */
+	protected abstract void fireSessionIdle(IdleStatus status);
+
+	/**
+	 * Fire session writability changed to this session's FilterChain.
+	 * @since 1.1
+	 */
+	protected abstract void fireSessionWritabilityChanged();
+
+	/**
+	 * Called when reading of this session becomes suspended or resumed, by the thread which changed it.<br>
+	 * Suspending and resuming may race, so {@link #isReadSuspended()} should be read again instead of assuming the new state.
+	 * @since 1.1
+	 */
+	protected void readSuspendedChanged() {
+	}
+
+	/**
+	 * Called when writing of this session becomes suspended or resumed, by the thread which changed it.<br>
+	 * Suspending and resuming may race, so {@link #isWriteSuspended()} should be read again instead of assuming the new state.
+	 * @since 1.1
+	 */
+	protected void writeSuspendedChanged() {
+	}
+
+	/**
+	 * Start checking idle of this session, called when this session is opened.
+	 * @since 1.1
+	 */
+	protected void startIdleCheck() {
+		scheduleIdleCheck(IdleStatus.READ_IDLE);
+		scheduleIdleCheck(IdleStatus.WRITE_IDLE);
+	}
+
+	/**
+	 * Stop checking idle of this session and remove it from the registry, called when this session is closed.
+	 * @since 1.1
+	 */
+	protected void unregister() {
+		IdleCheckTask task = readIdleTask;
+		if (task != null) task.cancel();
+		task = writeIdleTask;
+		if (task != null) task.cancel();
+		if (sessionRegistry != null) {
+			sessionRegistry.unregister(this);
+		}
+		if (metrics != null) {
+			// data still queued will never be sent
+			metrics.queuedBytesChanged(-queuedBytes.get());
+		}
+	}
+
+	/**
+	 * Schedule the idle check of the status at the time this session would become idle.
+	 * @param status idle status
+	 * @since 1.1
+	 */
+	private void scheduleIdleCheck(IdleStatus status) {
+		if (idleTimer == null || !open) {
+			return;
+		}
+		IdleCheckTask task;
+		synchronized (this) {
+			if (status == IdleStatus.READ_IDLE) {
+				if (readIdleTask == null) readIdleTask = new IdleCheckTask(status);
+				task = readIdleTask;
+			} else {
+				if (writeIdleTask == null) writeIdleTask = new IdleCheckTask(status);
+				task = writeIdleTask;
+			}
+		}
+		task.reschedule();
+	}
+
+	/**
+	 * Fires session idle when this session has not read or written for the idle time.<br>
+	 * Reads and writes only update the latest read/write time, the task follows them lazily when it expires,
+	 * so only sessions which are going to be idle are touched by the timer.
+	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+	 * @version 1.0
+	 * @since 1.1
+	 */
+	private class IdleCheckTask implements Runnable {
+
+		private final IdleStatus status;
+		private HashedWheelTimer.Timeout timeout;	// guarded by this
+
+		IdleCheckTask(IdleStatus status) {
+			this.status = status;
+		}
+
+		/**
+		 * Schedule this task at the latest read/write time plus the idle time.
+		 */
+		void reschedule() {
+			long idleTime = getIdleTime(status);
+			if (idleTime <= 0) {
+				cancel();
+				return;
+			}
+			schedule(latestTime() + idleTime - System.currentTimeMillis());
+		}
+
+		@Override
+		public void run() {
+			if (!open) {
+				return;
+			}
+			long idleTime = getIdleTime(status);
+			if (idleTime <= 0) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			long latestTime = latestTime();
+			if (now - latestTime >= idleTime) {
+				fireSessionIdle(status);
+				if (status == IdleStatus.READ_IDLE) {
+					setLatestReadTime(now);
+				} else {
+					setLatestWriteTime(now);
+				}
+				schedule(idleTime);
+			} else {
+				// data was read or written since this task was scheduled
+				schedule(latestTime + idleTime - now);
+			}
+		}
+
+		synchronized void cancel() {
+			if (timeout != null) {
+				timeout.cancel();
+				timeout = null;
+			}
+		}
+
+		private synchronized void schedule(long delay) {
+			if (timeout != null) {
+				timeout.cancel();
+			}
+			timeout = null;
+			if (open) {
+				try {
+					timeout = idleTimer.newTimeout(this, delay, TimeUnit.MILLISECONDS);
+				} catch (IllegalStateException e) {
+					/* timer has been stopped with the acceptor or connector */
+				}
+			}
+		}
+
+		private long latestTime() {
+			return status == IdleStatus.READ_IDLE ? latestReadTime : latestWriteTime;
+		}
+
+	}
+
 }
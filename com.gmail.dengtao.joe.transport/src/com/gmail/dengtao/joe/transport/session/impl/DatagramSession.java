@@ -6,10 +6,12 @@ import java.net.PortUnreachableException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.gmail.dengtao.joe.transport.Pushable;
 import com.gmail.dengtao.joe.transport.filter.FilterChain;
+import com.gmail.dengtao.joe.transport.session.IdleStatus;
+import com.gmail.dengtao.joe.transport.util.MpscQueue;
 
 /**
  * datagram's session implementation
@@ -18,10 +20,15 @@ import com.gmail.dengtao.joe.transport.filter.FilterChain;
  * @since 1.0
  */
 public class DatagramSession extends AbstractSession {
+
+	private static final int SEND_QUEUE_SEGMENT_SIZE = 8;
 	
-	// send data list.
-	private LinkedList<Packet> sendList = new LinkedList<Packet>();
-	private final Object sendLock = new Object();
+	// send data queue, offered by any thread and polled by the I/O thread only.
+	// datagram sessions are created for every peer and rarely queue much, so use small segments.
+	private final MpscQueue<Packet> sendQueue = new MpscQueue<Packet>(SEND_QUEUE_SEGMENT_SIZE);
+	private final AtomicBoolean needPush = new AtomicBoolean(false);	// if this session is added to pushable
+	// acquired only when this session is added to or removed from pushable, not for every packet
+	private final Object pushLock = new Object();
 		
 	private DatagramSocket socket;
 
@@ -99,16 +106,47 @@ public class DatagramSession extends AbstractSession {
 			throw new IllegalStateException("this session is not open!");
 		}
 		filterChain.fireSendData(this, data);
+		flush();
+	}
+	
+	@Override
+	public void write(final Object data) {
+		if (!open) {
+			throw new IllegalStateException("this session is not open!");
+		}
+		filterChain.fireSendData(this, data);
+	}
+	
+	@Override
+	public void flush() {
+		if (!sendQueue.isEmpty() && needPush.compareAndSet(false, true)) {
+			synchronized (pushLock) {
+				if (!isWriteSuspended()) {
+					pushable.add(this);
+				}
+			}
+		}
+	}
+
+	@Override
+	protected void writeSuspendedChanged() {
+		synchronized (pushLock) {
+			if (needPush.get()) {
+				if (isWriteSuspended()) {
+					pushable.remove(this);
+				} else {
+					pushable.add(this);
+				}
+			}
+		}
 	}
 	
 	@Override
 	public void sendData(Object data) {
 		if (data != null) {
 			Packet packet = new Packet(data);
-			synchronized (sendLock) {
-				sendList.add(packet);
-				pushable.add(this);
-			}
+			incrementQueuedBytes(packet.getLength());
+			sendQueue.offer(packet);
 		}
 	}
 	
@@ -117,40 +155,53 @@ public class DatagramSession extends AbstractSession {
 		if (!open) {
 			throw new IllegalStateException("this session is not open!");
 		}
-		synchronized (sendLock) {
-			if (!sendList.isEmpty()) {
-				// Retrieves, but does not remove, the first element of this list, or returns null if this list is empty.
-				Packet packet = sendList.peekFirst();	
-				ByteBuffer buf = packet.getBuf();
-				try {
-					int len = write(buf);
-					if (len < 0) {
-						sendList.poll();
-						// network error
-						filterChain.fireDataNotSent(this, packet.getData());
-						filterChain.fireExceptionCaught(this, new IOException("Network Error, Send data failed!"));
-						this.close();
-					} else {
-						if (!buf.hasRemaining()) {
-							// Retrieves and removes the head (first element) of this list
-							sendList.poll();
-							filterChain.fireDataSent(this, packet.getData());
-						}
-					}
-				} catch (PortUnreachableException e) {
-					sendList.poll();
-					// some other I/O error occurs
+		if (!sendQueue.isEmpty()) {
+			// Retrieves, but does not remove, the head of this queue.
+			Packet packet = sendQueue.peek();
+			ByteBuffer buf = packet.getBuf();
+			try {
+				int len = write(buf);
+				if (len > 0) {
+					writtenBytes += len;
+				}
+				if (len < 0) {
+					sendQueue.poll();
+					decrementQueuedBytes(packet.getLength());
+					// network error
 					filterChain.fireDataNotSent(this, packet.getData());
-					filterChain.fireExceptionCaught(this, e);
+					filterChain.fireExceptionCaught(this, new IOException("Network Error, Send data failed!"));
 					this.close();
-				} catch (Exception e) {
-					sendList.poll();
-					// some other I/O error occurs
-					filterChain.fireDataNotSent(this, packet.getData());
-					filterChain.fireExceptionCaught(this, e);
+				} else {
+					if (!buf.hasRemaining()) {
+						// Retrieves and removes the head of this queue
+						sendQueue.poll();
+						decrementQueuedBytes(packet.getLength());
+						filterChain.fireDataSent(this, packet.getData());
+					}
 				}
+			} catch (PortUnreachableException e) {
+				sendQueue.poll();
+				decrementQueuedBytes(packet.getLength());
+				// some other I/O error occurs
+				filterChain.fireDataNotSent(this, packet.getData());
+				filterChain.fireExceptionCaught(this, e);
+				this.close();
+			} catch (Exception e) {
+				sendQueue.poll();
+				decrementQueuedBytes(packet.getLength());
+				// some other I/O error occurs
+				filterChain.fireDataNotSent(this, packet.getData());
+				filterChain.fireExceptionCaught(this, e);
 			}
-			if (sendList.isEmpty()) {
+		}
+		if (sendQueue.isEmpty()) {
+			synchronized (pushLock) {
+				needPush.set(false);
+				// a producer may have offered before needPush was cleared, stay in pushable for it
+				if (!sendQueue.isEmpty()) {
+					needPush.set(true);
+					return;
+				}
 				pushable.remove(this);
 			}
 		}
@@ -169,17 +220,26 @@ public class DatagramSession extends AbstractSession {
 		int bufLen = buf.limit() - buf.position();
 		int _bufLen = sendBufferSize < bufLen ? sendBufferSize : bufLen;
 		
-		// create send buffer
-		byte[] bts = new byte[_bufLen];
-		buf.get(bts);
-		ByteBuffer _buf = ByteBuffer.allocate(_bufLen);
-		_buf.put(bts);
-		_buf.flip();
-		
-		// set write time
-		setLatestWriteTime(System.currentTimeMillis());
-		
-		return channel.send(_buf, remoteSocketAddress);
+		// borrow send buffer, and copy at most sendBufferSize bytes into it
+		ByteBuffer _buf = bufferAllocator.allocate(_bufLen);
+		try {
+			int limit = buf.limit();
+			buf.limit(buf.position() + _bufLen);
+			_buf.put(buf);
+			buf.limit(limit);
+			_buf.flip();
+			
+			// set write time
+			setLatestWriteTime(System.currentTimeMillis());
+			
+			// send data
+			int len = channel.send(_buf, remoteSocketAddress);
+			// bytes which were not written will be sent by next push
+			buf.position(buf.position() - _buf.remaining());
+			return len;
+		} finally {
+			bufferAllocator.release(_buf);
+		}
 	}
 
 	@Override
@@ -189,6 +249,7 @@ public class DatagramSession extends AbstractSession {
 		}
 		closed = false;
 		open = true;
+		startIdleCheck();
 		filterChain.fireSessionOpened(this);
 	}
 	
@@ -203,9 +264,21 @@ public class DatagramSession extends AbstractSession {
 			} catch (Exception e) {
 				filterChain.fireExceptionCaught(this, e);
 			}
+			// stop idle check and remove from acceptor's or connector's cache
+			unregister();
 		}
 	}
 
+	@Override
+	protected void fireSessionIdle(IdleStatus status) {
+		filterChain.fireSessionIdle(this, status);
+	}
+
+	@Override
+	protected void fireSessionWritabilityChanged() {
+		filterChain.fireSessionWritabilityChanged(this);
+	}
+
 	@Override
 	public String toString() {
 		return "DatagramSession [local=" + localSocketAddress
@@ -12,6 +12,7 @@ class Packet {
 
 	private Object data;
 	private ByteBuffer buf;
+	private int length;		// bytes of buf when this packet is queued
 	
 	public Packet(final Object data) {
 		super();
@@ -23,6 +24,7 @@ class Packet {
 		} else {
 			buf = ByteBuffer.wrap(data.toString().getBytes());
 		}
+		length = buf.remaining();
 	}
 
 	public Object getData() {
@@ -32,5 +34,13 @@ class Packet {
 	public ByteBuffer getBuf() {
 		return buf;
 	}
+
+	/**
+	 * @return bytes of this packet when it is queued, counted by the session's outbound watermarks
+	 * @since 1.1
+	 */
+	public int getLength() {
+		return length;
+	}
 	
 }
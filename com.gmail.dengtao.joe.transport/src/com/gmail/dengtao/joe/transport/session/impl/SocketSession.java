@@ -4,13 +4,19 @@ import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.gmail.dengtao.joe.transport.EventLoop;
 import com.gmail.dengtao.joe.transport.filter.FilterChain;
+import com.gmail.dengtao.joe.transport.session.IdleStatus;
+import com.gmail.dengtao.joe.transport.util.MpscQueue;
 
 /**
  * normal tcp socket session implementation
@@ -20,16 +26,58 @@ import com.gmail.dengtao.joe.transport.filter.FilterChain;
  */
 public class SocketSession extends AbstractSession {
 
-	// send data list.
-	private LinkedList<Packet> sendList = new LinkedList<Packet>();
-	private final Object sendLock = new Object();
+	/** Default number of gathering writes tried per writable event */
+	public static final int DEFAULT_WRITE_SPIN_COUNT = 16;
+	/** Default number of bytes written per writable event, so one busy session can't starve the others of its I/O thread */
+	public static final int DEFAULT_MAX_WRITE_BYTES_PER_PUSH = 256 * 1024;
+	/** Max number of packets gathered into one write */
+	private static final int MAX_GATHER_COUNT = 64;
+
+	// send data queue, offered by any thread and polled by the I/O thread only.
+	private final MpscQueue<Packet> sendQueue = new MpscQueue<Packet>();
+	// packets moved from sendQueue and being written, only used by the I/O thread.
+	private final ArrayDeque<Packet> flushList = new ArrayDeque<Packet>();
 	
 	private SocketChannel channel;
 	private Socket socket;
 	private Selector selector;
+	private SelectionKey selectionKey;	// key of channel registered with selector, set by the I/O thread
+	private EventLoop eventLoop;		// I/O thread serving selector
 	private FilterChain filterChain;
 	
-	private boolean needPush = false;
+	private final AtomicBoolean needPush = new AtomicBoolean(false);	// if OP_WRITE is registered or going to be registered for queued packets
+	// registers or removes OP_WRITE by the I/O thread according to needPush and suspension of writing, preallocated so sending does not allocate a task
+	private final Runnable interestWriteTask = new Runnable() {
+		@Override
+		public void run() {
+			setInterest(SelectionKey.OP_WRITE, needPush.get() && !isWriteSuspended());
+		}
+	};
+	// flushes data written in cork mode when the auto flush delay passes, run by the I/O thread
+	private final Runnable autoFlushTask = new Runnable() {
+		@Override
+		public void run() {
+			autoFlushScheduled.set(false);
+			flush();
+		}
+	};
+	// registers or removes OP_READ by the I/O thread according to isReadSuspended()
+	private final Runnable interestReadTask = new Runnable() {
+		@Override
+		public void run() {
+			setInterest(SelectionKey.OP_READ, !isReadSuspended());
+		}
+	};
+	
+	private int autoFlushBytes = 0;			// flush written data when this many bytes are waiting, 0 to disable
+	private long autoFlushDelay = 0;		// flush written data after this many microseconds, 0 to disable
+	private final AtomicLong unflushedBytes = new AtomicLong();					// bytes written since last flush, counted in cork mode only
+	private final AtomicBoolean autoFlushScheduled = new AtomicBoolean(false);	// if autoFlushTask is scheduled
+	
+	private int writeSpinCount = DEFAULT_WRITE_SPIN_COUNT;				// gathering writes tried per push
+	private int maxWriteBytesPerPush = DEFAULT_MAX_WRITE_BYTES_PER_PUSH;	// bytes written per push
+	// buffers of queued packets gathered into one write, only used by the I/O thread
+	private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER_COUNT];
 	
 	public SocketSession() {
 		long now = System.currentTimeMillis();
@@ -87,6 +135,33 @@ public class SocketSession extends AbstractSession {
 		else socket = null;
 	}
 	
+	/**
+	 * Get the SocketChannel of this session
+	 * @return channel of this session
+	 * @since 1.1
+	 */
+	public SocketChannel getChannel() {
+		return channel;
+	}
+	
+	/**
+	 * Set the SelectionKey of this session's channel, called by the I/O thread which registered the channel.
+	 * @param selectionKey key of the channel
+	 * @since 1.1
+	 */
+	public void setSelectionKey(final SelectionKey selectionKey) {
+		this.selectionKey = selectionKey;
+	}
+	
+	/**
+	 * Set the EventLoop which serves this session's channel, interest set changes are executed by it.
+	 * @param eventLoop event loop
+	 * @since 1.1
+	 */
+	public void setEventLoop(final EventLoop eventLoop) {
+		this.eventLoop = eventLoop;
+	}
+	
 	/**
 	 * Get current session's socket
 	 * @return
@@ -101,27 +176,47 @@ public class SocketSession extends AbstractSession {
 			throw new IllegalStateException("this session is not open!");
 		}
 		filterChain.fireSendData(this, data);
+		flush();
+	}
+
+	@Override
+	public void write(final Object data) {
+		if (!open) {
+			throw new IllegalStateException("this session is not open!");
+		}
+		filterChain.fireSendData(this, data);
+		if (autoFlushBytes > 0 && unflushedBytes.get() >= autoFlushBytes) {
+			flush();
+		} else if (autoFlushDelay > 0 && autoFlushScheduled.compareAndSet(false, true)) {
+			if (eventLoop == null) {
+				autoFlushScheduled.set(false);
+				flush();
+			} else {
+				eventLoop.schedule(autoFlushTask, autoFlushDelay, TimeUnit.MICROSECONDS);
+			}
+		}
+	}
+
+	@Override
+	public void flush() {
+		if (autoFlushBytes > 0) {
+			unflushedBytes.set(0);
+		}
+		if (!sendQueue.isEmpty() && needPush.compareAndSet(false, true)) {
+			// regist write & read
+			updateInterestWrite();
+		}
 	}
 
 	@Override
 	public void sendData(Object data) {
 		if (data != null) {
 			Packet packet = new Packet(data);
-			synchronized (sendLock) {
-				sendList.add(packet);
-				if (!needPush) {
-					try {
-						// regist write & read
-						channel.register(selector, SelectionKey.OP_WRITE | SelectionKey.OP_READ);
-						selector.wakeup();
-					} catch (Exception e) {
-						sendList.poll();
-						// some other I/O error occurs
-						filterChain.fireDataNotSent(this, packet.getData());
-						filterChain.fireExceptionCaught(this, e);
-					}
-				}
+			if (autoFlushBytes > 0) {
+				unflushedBytes.addAndGet(packet.getLength());
 			}
+			incrementQueuedBytes(packet.getLength());
+			sendQueue.offer(packet);
 		}
 	}
 	
@@ -130,74 +225,248 @@ public class SocketSession extends AbstractSession {
 		if (!open) {
 			throw new IllegalStateException("this session is not open!");
 		}
-		synchronized (sendLock) {
-			if (!sendList.isEmpty()) {
-				// Retrieves, but does not remove, the first element of this list, or returns null if this list is empty.
-				Packet packet = sendList.peekFirst();	
-				ByteBuffer buf = packet.getBuf();
-				try {
-					int len = write(buf);
-					if (len < 0) { 
-						sendList.poll();
-						// network error
-						filterChain.fireDataNotSent(this, packet.getData());
-						filterChain.fireExceptionCaught(this, new IOException("Network Error, Send data failed!"));
-						this.close();
-					} else {
-						if (!buf.hasRemaining()) {
-							// Retrieves and removes the head (first element) of this list
-							sendList.poll();
-							filterChain.fireDataSent(this, packet.getData());
-						}
-					}
-				} catch (IOException e) {
-					sendList.poll();
-					// some other I/O error occurs
+		if (isWriteSuspended()) {
+			// the key was selected before OP_WRITE was removed
+			setInterest(SelectionKey.OP_WRITE, false);
+			return;
+		}
+		try {
+			long budget = maxWriteBytesPerPush;
+			for (int spin = 0; spin < writeSpinCount && budget > 0 && open && hasPendingPackets(); spin++) {
+				long len = write(budget);
+				if (len < 0) {
+					Packet packet = flushList.poll();
+					decrementQueuedBytes(packet.getLength());
+					// network error
 					filterChain.fireDataNotSent(this, packet.getData());
-					filterChain.fireExceptionCaught(this, e);
+					filterChain.fireExceptionCaught(this, new IOException("Network Error, Send data failed!"));
+					this.close();
+					return;
 				}
-			}
-			if (sendList.isEmpty()) {
-				needPush = false;
-				try {
-					// regist only read
-					channel.register(selector, SelectionKey.OP_READ);
-					selector.wakeup();
-				} catch (ClosedChannelException e) {
-					/* Nothing... */
-				} catch (Exception e) {
-					filterChain.fireExceptionCaught(this, e);
+				budget -= len;
+				writtenBytes += len;
+				int sent = 0;
+				for (; !flushList.isEmpty() && !flushList.peekFirst().getBuf().hasRemaining(); sent++) {
+					// Retrieves and removes the head (first element) of this list
+					Packet packet = flushList.poll();
+					decrementQueuedBytes(packet.getLength());
+					filterChain.fireDataSent(this, packet.getData());
+				}
+				if (len == 0 && sent == 0) {
+					// socket send buffer is full, wait for next writable event
+					break;
 				}
 			}
+		} catch (IOException e) {
+			Packet packet = flushList.poll();
+			// some other I/O error occurs
+			if (packet != null) {
+				decrementQueuedBytes(packet.getLength());
+				filterChain.fireDataNotSent(this, packet.getData());
+			}
+			filterChain.fireExceptionCaught(this, e);
+		}
+		if (!hasPendingPackets()) {
+			needPush.set(false);
+			if (sendQueue.isEmpty()) {
+				// regist only read, a packet offered after this will register OP_WRITE again
+				setInterest(SelectionKey.OP_WRITE, false);
+			} else {
+				// a packet was offered before needPush was cleared, keep OP_WRITE for it
+				needPush.compareAndSet(false, true);
+			}
+		}
+	}
+	
+	@Override
+	protected void readSuspendedChanged() {
+		updateInterestRead();
+	}
+
+	@Override
+	protected void writeSuspendedChanged() {
+		updateInterestWrite();
+	}
+
+	/**
+	 * Follow needPush and suspension of writing with OP_WRITE of the interest set by the I/O thread.
+	 * @since 1.1
+	 */
+	private void updateInterestWrite() {
+		if (eventLoop == null || eventLoop.inEventLoop()) {
+			interestWriteTask.run();
+		} else {
+			eventLoop.execute(interestWriteTask);
+		}
+	}
+
+	/**
+	 * Follow suspension of reading with OP_READ of the interest set by the I/O thread.
+	 * @since 1.1
+	 */
+	private void updateInterestRead() {
+		if (eventLoop == null || eventLoop.inEventLoop()) {
+			setInterest(SelectionKey.OP_READ, !isReadSuspended());
+		} else {
+			eventLoop.execute(interestReadTask);
+		}
+	}
+
+	/**
+	 * Add or remove the operation to the interest set of this session's key, should be called by the I/O thread.
+	 * @param op {@link SelectionKey#OP_READ} or {@link SelectionKey#OP_WRITE}
+	 * @param interested whether add or remove the operation
+	 * @since 1.1
+	 */
+	private void setInterest(int op, boolean interested) {
+		SelectionKey key = selectionKey;
+		if (key == null && channel != null && selector != null) {
+			// the channel was registered without telling this session
+			key = selectionKey = channel.keyFor(selector);
+		}
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		try {
+			int ops = key.interestOps();
+			int newOps = interested ? ops | op : ops & ~op;
+			if (newOps != ops) {
+				key.interestOps(newOps);
+			}
+		} catch (CancelledKeyException e) {
+			/* Nothing... */
 		}
 	}
 	
 	/**
-	 * Write byte[] to remote.
-	 * @param data bts need to be sent
+	 * @return true if there are packets being written or queued
+	 * @since 1.1
+	 */
+	private boolean hasPendingPackets() {
+		return !flushList.isEmpty() || !sendQueue.isEmpty();
+	}
+	
+	/**
+	 * Write the pending packets to remote by one gathering write, the packets' buffers are written directly.
+	 * @param budget max bytes to gather
 	 * @return write data length
-	 * @throws Exception
-	 * @since 1.0
+	 * @throws IOException
+	 * @since 1.1
 	 */
-	private int write(final ByteBuffer buf) throws IOException {
+	private long write(final long budget) throws IOException {
 		active();	// active this session
 		
-		// calculate the send buffer len.
-		int bufLen = buf.limit() - buf.position();
-		int _bufLen = sendBufferSize < bufLen ? sendBufferSize : bufLen;
-		
-		// create send buffer
-		byte[] bts = new byte[_bufLen];
-		buf.get(bts);
-		ByteBuffer _buf = ByteBuffer.allocate(_bufLen);
-		_buf.put(bts);
-		_buf.flip();
+		// gather the buffers of pending packets, move more packets from the send queue if needed
+		int count = 0;
+		long bytes = 0;
+		for (Packet packet : flushList) {
+			if (count == gatherBuffers.length || bytes >= budget) {
+				break;
+			}
+			ByteBuffer buf = packet.getBuf();
+			gatherBuffers[count++] = buf;
+			bytes += buf.remaining();
+		}
+		for (Packet packet; count < gatherBuffers.length && bytes < budget && (packet = sendQueue.poll()) != null; ) {
+			flushList.add(packet);
+			ByteBuffer buf = packet.getBuf();
+			gatherBuffers[count++] = buf;
+			bytes += buf.remaining();
+		}
 		
 		// set write time
 		setLatestWriteTime(System.currentTimeMillis());
 		
-		// send data
-		return channel.write(_buf);
+		try {
+			// send data
+			return channel.write(gatherBuffers, 0, count);
+		} finally {
+			for (int i = 0; i < count; i++) {
+				gatherBuffers[i] = null;
+			}
+		}
+	}
+	
+	/**
+	 * @return number of gathering writes tried per writable event
+	 * @since 1.1
+	 */
+	public int getWriteSpinCount() {
+		return writeSpinCount;
+	}
+
+	/**
+	 * Config the number of gathering writes tried per writable event, the push stops earlier if the socket accepts no more bytes.
+	 * @param writeSpinCount number of writes
+	 * @throws IllegalArgumentException If writeSpinCount is less than 1
+	 * @since 1.1
+	 */
+	public void setWriteSpinCount(int writeSpinCount) {
+		if (writeSpinCount < 1)
+		    throw new IllegalArgumentException();
+		this.writeSpinCount = writeSpinCount;
+	}
+
+	/**
+	 * @return number of bytes written per writable event at most
+	 * @since 1.1
+	 */
+	public int getMaxWriteBytesPerPush() {
+		return maxWriteBytesPerPush;
+	}
+
+	/**
+	 * Config the number of bytes written per writable event at most, the rest is written by next writable event.
+	 * @param maxWriteBytesPerPush number of bytes
+	 * @throws IllegalArgumentException If maxWriteBytesPerPush is less than 1
+	 * @since 1.1
+	 */
+	public void setMaxWriteBytesPerPush(int maxWriteBytesPerPush) {
+		if (maxWriteBytesPerPush < 1)
+		    throw new IllegalArgumentException();
+		this.maxWriteBytesPerPush = maxWriteBytesPerPush;
+	}
+
+	/**
+	 * @return bytes written by {@link #write(Object)} which make this session flushed, 0 if disabled
+	 * @since 1.1
+	 */
+	public int getAutoFlushBytes() {
+		return autoFlushBytes;
+	}
+
+	/**
+	 * Config cork mode: data written by {@link #write(Object)} is flushed when this many bytes are waiting.
+	 * @param autoFlushBytes number of bytes, 0 to disable
+	 * @throws IllegalArgumentException If autoFlushBytes is negative
+	 * @since 1.1
+	 */
+	public void setAutoFlushBytes(int autoFlushBytes) {
+		if (autoFlushBytes < 0)
+		    throw new IllegalArgumentException();
+		this.autoFlushBytes = autoFlushBytes;
+	}
+
+	/**
+	 * @return microseconds after which data written by {@link #write(Object)} is flushed, 0 if disabled
+	 * @since 1.1
+	 */
+	public long getAutoFlushDelay() {
+		return autoFlushDelay;
+	}
+
+	/**
+	 * Config cork mode: data written by {@link #write(Object)} is flushed by the I/O thread when the delay passes,
+	 * so a write is never delayed longer than this even if no one calls {@link #flush()}.<br>
+	 * The delay is measured from the first write after the last auto flush, and runs with the selector's precision, about a millisecond.
+	 * @param autoFlushDelay delay in microseconds, 0 to disable
+	 * @throws IllegalArgumentException If autoFlushDelay is negative
+	 * @since 1.1
+	 */
+	public void setAutoFlushDelay(long autoFlushDelay) {
+		if (autoFlushDelay < 0)
+		    throw new IllegalArgumentException();
+		this.autoFlushDelay = autoFlushDelay;
 	}
 
 	@Override
@@ -207,6 +476,7 @@ public class SocketSession extends AbstractSession {
 		}
 		open = true;
 		closed = false;
+		startIdleCheck();
 		filterChain.fireSessionOpened(this);
 	}
 
@@ -215,7 +485,7 @@ public class SocketSession extends AbstractSession {
 		if (!closed) {
 			closed = true;
 			open = false;
-			sendList.clear();
+			// queued packets are released with this session, the send queue must only be polled by the I/O thread
 			try {
 				// close channel
 				if (channel != null && channel.isOpen()) channel.close();
@@ -224,8 +494,20 @@ public class SocketSession extends AbstractSession {
 			} catch (Exception e) {
 				filterChain.fireExceptionCaught(this, e);
 			}
+			// stop idle check and remove from acceptor's or connector's cache
+			unregister();
 		}
 	}
+
+	@Override
+	protected void fireSessionIdle(IdleStatus status) {
+		filterChain.fireSessionIdle(this, status);
+	}
+
+	@Override
+	protected void fireSessionWritabilityChanged() {
+		filterChain.fireSessionWritabilityChanged(this);
+	}
 	
 	@Override
 	public String toString() {
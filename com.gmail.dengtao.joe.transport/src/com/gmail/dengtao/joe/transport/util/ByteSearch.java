@@ -0,0 +1,81 @@
+package com.gmail.dengtao.joe.transport.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Searches bytes in a ByteBuffer eight bytes at a time (SWAR, SIMD within a register).<br>
+ * Every eight bytes are read as one long and compared with the searched byte by a few arithmetic
+ * operations, instead of comparing them one by one.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public final class ByteSearch {
+
+	private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+	private static final long LOW_BITS = 0x0101010101010101L;
+
+	private ByteSearch() {
+	}
+
+	/**
+	 * Find the first index of the byte between from (inclusive) and to (exclusive), the buffer's position and limit are not changed.
+	 * @param buffer buffer
+	 * @param from absolute index to start from
+	 * @param to absolute index to stop at
+	 * @param value byte to be found
+	 * @return absolute index of the byte, or -1 if not found
+	 * @since 1.1
+	 */
+	public static int indexOf(ByteBuffer buffer, int from, int to, byte value) {
+		boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+		long pattern = (value & 0xFFL) * LOW_BITS;
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long word = buffer.getLong(i) ^ pattern;
+			// high bit is set in the bytes which are zero, no false positives
+			long zeros = ~(((word & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | word | LOW_SEVEN_BITS);
+			if (zeros != 0) {
+				return i + ((bigEndian ? Long.numberOfLeadingZeros(zeros) : Long.numberOfTrailingZeros(zeros)) >>> 3);
+			}
+		}
+		for (; i < to; i++) {
+			if (buffer.get(i) == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the first index of the bytes between from (inclusive) and to (exclusive), the buffer's position and limit are not changed.
+	 * @param buffer buffer
+	 * @param from absolute index to start from
+	 * @param to absolute index to stop at, the whole bytes should be before it
+	 * @param bytes bytes to be found, not empty
+	 * @return absolute index of the first byte, or -1 if not found
+	 * @since 1.1
+	 */
+	public static int indexOf(ByteBuffer buffer, int from, int to, byte[] bytes) {
+		if (bytes.length == 1) {
+			return indexOf(buffer, from, to, bytes[0]);
+		}
+		int last = to - bytes.length + 1;	// last index the bytes may start at, exclusive
+		for (int i = from; i < last; i++) {
+			i = indexOf(buffer, i, last, bytes[0]);
+			if (i < 0) {
+				return -1;
+			}
+			int j = 1;
+			while (j < bytes.length && buffer.get(i + j) == bytes[j]) {
+				j++;
+			}
+			if (j == bytes.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,341 @@
+package com.gmail.dengtao.joe.transport.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Timer which keeps timeouts in a hashed timing wheel.<br>
+ * One thread ticks the wheel every tick duration and only touches the timeouts which hash to the current bucket,
+ * so the cost is proportional to the number of expiring timeouts, not to the number of pending ones.
+ * Timeouts expire up to one tick late.
+ * <p>
+ * New timeouts are handed to the tick thread by a lock-free queue and cancelled timeouts are dropped when their bucket is visited,
+ * so {@link #newTimeout(Runnable, long, TimeUnit)} and {@link Timeout#cancel()} never block.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class HashedWheelTimer {
+
+	/** Default tick duration, in milliseconds */
+	public static final long DEFAULT_TICK_DURATION = 100;
+	/** Default number of buckets of the wheel */
+	public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+	private static final int STATE_INIT = 0;
+	private static final int STATE_STARTED = 1;
+	private static final int STATE_STOPPED = 2;
+
+	/** Max number of new timeouts moved into the wheel per tick, so a burst can't delay expiring */
+	private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+	private final Thread workerThread;
+	private final long tickDuration;		// in nanoseconds
+	private final Bucket[] wheel;
+	private final int mask;
+	private final MpscQueue<Timeout> pendingTimeouts = new MpscQueue<Timeout>();
+	private final AtomicInteger state = new AtomicInteger(STATE_INIT);
+
+	private volatile long startTime;		// System.nanoTime() when the timer was started
+
+	/**
+	 * Create a timer with default tick duration and wheel size.
+	 * @param threadFactory factory to create the tick thread
+	 */
+	public HashedWheelTimer(ThreadFactory threadFactory) {
+		this(threadFactory, DEFAULT_TICK_DURATION, TimeUnit.MILLISECONDS, DEFAULT_TICKS_PER_WHEEL);
+	}
+
+	/**
+	 * Create a timer.
+	 * @param threadFactory factory to create the tick thread
+	 * @param tickDuration duration between two ticks
+	 * @param unit unit of tickDuration
+	 * @param ticksPerWheel number of buckets of the wheel, rounded up to a power of two
+	 * @throws IllegalArgumentException If tickDuration or ticksPerWheel is not positive
+	 */
+	public HashedWheelTimer(ThreadFactory threadFactory, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+		if (threadFactory == null) {
+			throw new IllegalArgumentException("threadFactory can't be null!");
+		}
+		if (tickDuration <= 0) {
+			throw new IllegalArgumentException("Illegal tick duration: " + tickDuration);
+		}
+		if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+			throw new IllegalArgumentException("Illegal ticks per wheel: " + ticksPerWheel);
+		}
+		int size = Integer.highestOneBit(ticksPerWheel);
+		if (size < ticksPerWheel) {
+			size <<= 1;
+		}
+		this.tickDuration = unit.toNanos(tickDuration);
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = size - 1;
+		this.workerThread = threadFactory.newThread(new Worker());
+	}
+
+	/**
+	 * Start the tick thread, it is also started by the first {@link #newTimeout(Runnable, long, TimeUnit)}.
+	 * @throws IllegalStateException If this timer has been stopped
+	 */
+	public void start() {
+		switch (state.get()) {
+		case STATE_INIT:
+			if (state.compareAndSet(STATE_INIT, STATE_STARTED)) {
+				long now = System.nanoTime();
+				// 0 means not started
+				startTime = now == 0 ? 1 : now;
+				workerThread.start();
+			}
+			break;
+		case STATE_STARTED:
+			break;
+		default:
+			throw new IllegalStateException("Timer has been stopped!");
+		}
+		while (startTime == 0) {
+			// another thread is starting this timer
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Stop the tick thread, pending timeouts will never expire.
+	 */
+	public void stop() {
+		if (state.getAndSet(STATE_STOPPED) == STATE_STARTED) {
+			workerThread.interrupt();
+		}
+	}
+
+	/**
+	 * Schedule a task to be run once by the tick thread after the delay.<br>
+	 * The task should be short, it delays the other timeouts of the same tick.
+	 * @param task task to be run
+	 * @param delay delay from now
+	 * @param unit unit of delay
+	 * @return handle to cancel the timeout
+	 * @throws IllegalStateException If this timer has been stopped
+	 */
+	public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+		if (task == null) {
+			throw new IllegalArgumentException("task can't be null!");
+		}
+		start();
+		long deadline = System.nanoTime() + unit.toNanos(delay < 0 ? 0 : delay) - startTime;
+		Timeout timeout = new Timeout(task, deadline);
+		pendingTimeouts.offer(timeout);
+		return timeout;
+	}
+
+	/**
+	 * @return true if the tick thread is running
+	 */
+	public boolean isStarted() {
+		return state.get() == STATE_STARTED;
+	}
+
+	/**
+	 * Report a failure of the tick thread to its uncaught exception handler without terminating it.
+	 * @param t failure to report
+	 */
+	private static void reportUncaught(Throwable t) {
+		Thread thread = Thread.currentThread();
+		thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+	}
+
+	/**
+	 * Tick thread.
+	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+	 * @version 1.0
+	 * @since 1.1
+	 */
+	private class Worker implements Runnable {
+
+		private long tick = 0;
+
+		@Override
+		public void run() {
+			while (state.get() == STATE_STARTED) {
+				long deadline = waitForNextTick();
+				if (deadline < 0) {
+					continue;
+				}
+				transferPendingTimeouts();
+				wheel[(int) (tick & mask)].expire(deadline);
+				tick++;
+			}
+		}
+
+		/**
+		 * Sleep until the next tick.
+		 * @return current time relative to startTime, or -1 if interrupted
+		 */
+		private long waitForNextTick() {
+			long deadline = tickDuration * (tick + 1);
+			for (;;) {
+				long currentTime = System.nanoTime() - startTime;
+				long sleepTime = (deadline - currentTime + 999999) / 1000000;
+				if (sleepTime <= 0) {
+					return currentTime;
+				}
+				try {
+					Thread.sleep(sleepTime);
+				} catch (InterruptedException e) {
+					if (state.get() != STATE_STARTED) {
+						return -1;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Move new timeouts from the queue into their buckets.
+		 */
+		private void transferPendingTimeouts() {
+			Timeout timeout;
+			for (int i = 0; i < MAX_TRANSFER_PER_TICK && (timeout = pendingTimeouts.poll()) != null; i++) {
+				if (timeout.isCancelled()) {
+					continue;
+				}
+				long calculated = timeout.deadline / tickDuration;
+				timeout.remainingRounds = (calculated - tick) / wheel.length;
+				// a timeout already in the past expires on this tick
+				long ticks = Math.max(calculated, tick);
+				wheel[(int) (ticks & mask)].add(timeout);
+			}
+		}
+
+	}
+
+	/**
+	 * Timeouts which hash to the same tick, only used by the tick thread.
+	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+	 * @version 1.0
+	 * @since 1.1
+	 */
+	private static final class Bucket {
+
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		void expire(long deadline) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.isCancelled()) {
+					remove(timeout);
+				} else if (timeout.remainingRounds <= 0) {
+					remove(timeout);
+					if (timeout.deadline > deadline) {
+						// not expected, the timeout was placed into a wrong bucket;
+						// report it but still run the task early rather than lose it, and keep the tick thread alive
+						reportUncaught(new IllegalStateException("timeout.deadline (" + timeout.deadline + ") > deadline (" + deadline + ")"));
+					}
+					timeout.expire();
+				} else {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+		}
+
+		private void remove(Timeout timeout) {
+			Timeout next = timeout.next;
+			if (timeout.prev != null) {
+				timeout.prev.next = next;
+			}
+			if (next != null) {
+				next.prev = timeout.prev;
+			}
+			if (timeout == head) {
+				head = next;
+			}
+			if (timeout == tail) {
+				tail = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+		}
+
+	}
+
+	/**
+	 * Handle of a scheduled task.
+	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+	 * @version 1.0
+	 * @since 1.1
+	 */
+	public static final class Timeout {
+
+		private static final int ST_INIT = 0;
+		private static final int ST_CANCELLED = 1;
+		private static final int ST_EXPIRED = 2;
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+		private final Runnable task;
+		private final long deadline;		// relative to startTime, in nanoseconds
+		private volatile int state = ST_INIT;
+
+		// used by the tick thread only
+		long remainingRounds;
+		Timeout next;
+		Timeout prev;
+
+		Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancel the task, it is not run if it has not expired yet.
+		 * @return true if the task was cancelled, false if it has expired or was cancelled before
+		 */
+		public boolean cancel() {
+			return STATE.compareAndSet(this, ST_INIT, ST_CANCELLED);
+		}
+
+		/**
+		 * @return true if the task was cancelled
+		 */
+		public boolean isCancelled() {
+			return state == ST_CANCELLED;
+		}
+
+		/**
+		 * @return true if the task has been run or is running
+		 */
+		public boolean isExpired() {
+			return state == ST_EXPIRED;
+		}
+
+		void expire() {
+			if (!STATE.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+				return;
+			}
+			try {
+				task.run();
+			} catch (Throwable t) {
+				// a failed task must not stop the tick thread
+				reportUncaught(t);
+			}
+		}
+
+	}
+
+}
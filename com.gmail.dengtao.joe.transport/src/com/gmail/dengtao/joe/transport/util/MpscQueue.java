@@ -0,0 +1,210 @@
+package com.gmail.dengtao.joe.transport.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Lock-free, unbounded, multi-producer single-consumer queue.<br>
+ * Elements are stored in linked array segments: a producer claims a slot by one atomic increment
+ * and never blocks, a new segment is only allocated once per segment size of elements.
+ * <p>
+ * {@link #offer(Object)} may be called by any thread, {@link #poll()}, {@link #peek()} and {@link #clear()}
+ * must only be called by the single consumer thread. {@link #isEmpty()} and {@link #size()} may be called
+ * by any thread and count the elements being offered.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class MpscQueue<E> {
+
+	/** Default number of elements of a segment */
+	public static final int DEFAULT_SEGMENT_SIZE = 32;
+
+	private final int segmentSize;
+	private final int mask;
+
+	private final AtomicLong producerIndex = new AtomicLong();	// next index to be claimed by producers
+	private final AtomicLong consumerIndex = new AtomicLong();	// next index to be polled by the consumer
+	private volatile Segment<E> producerSegment;	// a segment not after the segment of the next claimed index
+	private Segment<E> consumerSegment;				// segment of consumerIndex, only used by the consumer
+
+	/**
+	 * Create a queue with default segment size.
+	 */
+	public MpscQueue() {
+		this(DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Create a queue.
+	 * @param segmentSize number of elements of a segment, must be a power of two
+	 * @throws IllegalArgumentException If segmentSize is not a power of two
+	 */
+	public MpscQueue(int segmentSize) {
+		if (segmentSize < 2 || Integer.bitCount(segmentSize) != 1) {
+			throw new IllegalArgumentException("segmentSize must be a power of two: " + segmentSize);
+		}
+		this.segmentSize = segmentSize;
+		this.mask = segmentSize - 1;
+		Segment<E> segment = new Segment<E>(0, segmentSize);
+		producerSegment = segment;
+		consumerSegment = segment;
+	}
+
+	/**
+	 * Inserts the element at the tail of this queue, may be called by any thread.
+	 * @param e element
+	 * @return always true
+	 * @throws NullPointerException If the element is null
+	 */
+	public boolean offer(E e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		// read the segment hint before claiming, so the hint is never after the claimed index
+		Segment<E> segment = producerSegment;
+		long index = producerIndex.getAndIncrement();
+		long base = index & ~((long) mask);
+		while (segment.base != base) {
+			Segment<E> next = segment.next;
+			if (next == null) {
+				next = new Segment<E>(segment.base + segmentSize, segmentSize);
+				if (!Segment.NEXT.compareAndSet(segment, null, next)) {
+					next = segment.next;
+				}
+			}
+			segment = next;
+		}
+		if (producerSegment.base < base) {
+			producerSegment = segment;
+		}
+		segment.slots.lazySet((int) index & mask, e);
+		return true;
+	}
+
+	/**
+	 * Retrieves and removes the head of this queue, must only be called by the consumer thread.
+	 * @return the head of this queue, or null if this queue is empty
+	 */
+	public E poll() {
+		long index = consumerIndex.get();
+		Segment<E> segment = segmentOf(index);
+		if (segment == null) {
+			return null;
+		}
+		int offset = (int) index & mask;
+		E e = segment.slots.get(offset);
+		if (e == null) {
+			if (producerIndex.get() <= index) {
+				return null;
+			}
+			// the slot is claimed, wait the producer to store it
+			while ((e = segment.slots.get(offset)) == null) {
+				Thread.yield();
+			}
+		}
+		segment.slots.lazySet(offset, null);
+		consumerIndex.lazySet(index + 1);
+		return e;
+	}
+
+	/**
+	 * Retrieves, but does not remove, the head of this queue, must only be called by the consumer thread.
+	 * @return the head of this queue, or null if this queue is empty
+	 */
+	public E peek() {
+		long index = consumerIndex.get();
+		Segment<E> segment = segmentOf(index);
+		if (segment == null) {
+			return null;
+		}
+		int offset = (int) index & mask;
+		E e = segment.slots.get(offset);
+		if (e == null) {
+			if (producerIndex.get() <= index) {
+				return null;
+			}
+			while ((e = segment.slots.get(offset)) == null) {
+				Thread.yield();
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Get the consumer's segment holding the index, move to the next segment when the current one is consumed.
+	 * @param index consumer index
+	 * @return segment of the index, or null if the index is not claimed yet
+	 */
+	private Segment<E> segmentOf(long index) {
+		Segment<E> segment = consumerSegment;
+		if (index - segment.base < segmentSize) {
+			return segment;
+		}
+		if (producerIndex.get() <= index) {
+			return null;
+		}
+		Segment<E> next;
+		while ((next = segment.next) == null) {
+			Thread.yield();
+		}
+		consumerSegment = next;
+		return next;
+	}
+
+	/**
+	 * Removes all of the elements, must only be called by the consumer thread.
+	 */
+	public void clear() {
+		while (poll() != null) {
+			/* Nothing... */
+		}
+	}
+
+	/**
+	 * @return true if this queue contains no elements, elements being offered are counted
+	 */
+	public boolean isEmpty() {
+		return consumerIndex.get() >= producerIndex.get();
+	}
+
+	/**
+	 * @return number of elements in this queue, elements being offered are counted
+	 */
+	public int size() {
+		long size = producerIndex.get() - consumerIndex.get();
+		if (size <= 0) {
+			return 0;
+		}
+		return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) size;
+	}
+
+	@Override
+	public String toString() {
+		return "MpscQueue [size=" + size() + ", segmentSize=" + segmentSize + "]";
+	}
+
+	/**
+	 * Array segment of the queue.
+	 * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+	 * @version 1.0
+	 * @since 1.1
+	 */
+	private static final class Segment<E> {
+
+		@SuppressWarnings("rawtypes")
+		static final AtomicReferenceFieldUpdater<Segment, Segment> NEXT = AtomicReferenceFieldUpdater.newUpdater(Segment.class, Segment.class, "next");
+
+		final long base;							// index of the first slot
+		final AtomicReferenceArray<E> slots;
+		volatile Segment<E> next;
+
+		Segment(long base, int size) {
+			this.base = base;
+			this.slots = new AtomicReferenceArray<E>(size);
+		}
+
+	}
+
+}
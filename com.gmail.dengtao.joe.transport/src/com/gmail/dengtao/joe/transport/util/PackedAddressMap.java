@@ -0,0 +1,245 @@
+package com.gmail.dengtao.joe.transport.util;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * A map from socket addresses to values, keyed by the packed ip and port as primitives.<br>
+ * An IPv4 address and port are packed into one long, an IPv6 address into two longs and the port into an int; keys are
+ * kept in parallel primitive arrays probed linearly (open addressing), so a lookup allocates nothing, boxes nothing
+ * and never calls <code>hashCode</code> or <code>equals</code> of {@link InetAddress}. Removal shifts the following
+ * keys back instead of leaving tombstones.
+ * <p>
+ * The ip of an IPv4 address is read without a copy; the ip of an IPv6 address is read by {@link InetAddress#getAddress()},
+ * which copies it. Unresolved addresses are not supported.
+ * <p>
+ * This map is not thread safe, it is meant to be used by one I/O thread.
+ * @param <V> type of values
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class PackedAddressMap<V> {
+
+	/** Family marks in the port word, so an empty slot (0) never equals a key */
+	private static final int IPV4 = 1 << 16;
+	private static final int IPV6 = 2 << 16;
+
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] highs;		// high long of IPv6 ip, 0 for IPv4
+	private long[] lows;		// low long of IPv6 ip, or IPv4 ip
+	private int[] ports;		// port | family, 0 if the slot is empty
+	private Object[] values;
+	private int mask;
+	private int size;
+	private int threshold;		// size which the table is doubled at, half of the capacity
+
+	public PackedAddressMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize number of entries this map holds without growing
+	 */
+	public PackedAddressMap(int expectedSize) {
+		if (expectedSize < 0) {
+			throw new IllegalArgumentException("Illegal expected size: " + expectedSize);
+		}
+		int capacity = MIN_CAPACITY;
+		while (capacity / 2 < expectedSize) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		highs = new long[capacity];
+		lows = new long[capacity];
+		ports = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		threshold = capacity / 2;
+	}
+
+	/**
+	 * @param address address of a peer
+	 * @return value of the address, null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(InetSocketAddress address) {
+		InetAddress ip = ip(address);
+		if (ip instanceof Inet4Address) {
+			int index = indexOf(0, ipv4(ip), address.getPort() | IPV4);
+			return index < 0 ? null : (V) values[index];
+		}
+		byte[] bytes = ip.getAddress();
+		int index = indexOf(toLong(bytes, 0), toLong(bytes, 8), address.getPort() | IPV6);
+		return index < 0 ? null : (V) values[index];
+	}
+
+	/**
+	 * @param address address of a peer
+	 * @param value value of the address, not null
+	 * @return previous value of the address, null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(InetSocketAddress address, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("value is null");
+		}
+		InetAddress ip = ip(address);
+		long high;
+		long low;
+		int port;
+		if (ip instanceof Inet4Address) {
+			high = 0;
+			low = ipv4(ip);
+			port = address.getPort() | IPV4;
+		} else {
+			byte[] bytes = ip.getAddress();
+			high = toLong(bytes, 0);
+			low = toLong(bytes, 8);
+			port = address.getPort() | IPV6;
+		}
+		int index = slot(high, low, port);
+		for (; ports[index] != 0; index = (index + 1) & mask) {
+			if (ports[index] == port && lows[index] == low && highs[index] == high) {
+				V previous = (V) values[index];
+				values[index] = value;
+				return previous;
+			}
+		}
+		highs[index] = high;
+		lows[index] = low;
+		ports[index] = port;
+		values[index] = value;
+		if (++size > threshold) {
+			resize();
+		}
+		return null;
+	}
+
+	/**
+	 * Remove the address if its value is the given value.
+	 * @param address address of a peer
+	 * @param value expected value of the address, compared by identity
+	 * @return true if the address was removed
+	 */
+	public boolean remove(InetSocketAddress address, V value) {
+		InetAddress ip = ip(address);
+		int index;
+		if (ip instanceof Inet4Address) {
+			index = indexOf(0, ipv4(ip), address.getPort() | IPV4);
+		} else {
+			byte[] bytes = ip.getAddress();
+			index = indexOf(toLong(bytes, 0), toLong(bytes, 8), address.getPort() | IPV6);
+		}
+		if (index < 0 || values[index] != value) {
+			return false;
+		}
+		removeAt(index);
+		return true;
+	}
+
+	/**
+	 * @return number of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Remove all entries, the capacity is kept.
+	 */
+	public void clear() {
+		for (int i = 0; i < ports.length; i++) {
+			ports[i] = 0;
+			values[i] = null;
+		}
+		size = 0;
+	}
+
+	private static InetAddress ip(InetSocketAddress address) {
+		InetAddress ip = address.getAddress();
+		if (ip == null) {
+			throw new IllegalArgumentException("Unresolved address: " + address);
+		}
+		return ip;
+	}
+
+	/**
+	 * @return the IPv4 ip as an unsigned int, {@link Inet4Address#hashCode()} is the ip and reading it copies nothing
+	 */
+	private static long ipv4(InetAddress ip) {
+		return ip.hashCode() & 0xffffffffL;
+	}
+
+	private static long toLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			value = (value << 8) | (bytes[i] & 0xff);
+		}
+		return value;
+	}
+
+	private int slot(long high, long low, int port) {
+		long h = (low ^ (high * 0xc2b2ae3d27d4eb4fL) ^ ((long) port << 32)) * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	/**
+	 * @return slot of the key, -1 if it is absent
+	 */
+	private int indexOf(long high, long low, int port) {
+		for (int index = slot(high, low, port); ports[index] != 0; index = (index + 1) & mask) {
+			if (ports[index] == port && lows[index] == low && highs[index] == high) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Empty the slot and shift back the following keys of the probe sequence, so no lookup stops early at the hole.
+	 */
+	private void removeAt(int index) {
+		int hole = index;
+		for (int next = (hole + 1) & mask; ports[next] != 0; next = (next + 1) & mask) {
+			int home = slot(highs[next], lows[next], ports[next]);
+			// move the key to the hole if the hole is between its home slot and its slot, cyclically
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				highs[hole] = highs[next];
+				lows[hole] = lows[next];
+				ports[hole] = ports[next];
+				values[hole] = values[next];
+				hole = next;
+			}
+		}
+		ports[hole] = 0;
+		values[hole] = null;
+		size--;
+	}
+
+	private void resize() {
+		long[] oldHighs = highs;
+		long[] oldLows = lows;
+		int[] oldPorts = ports;
+		Object[] oldValues = values;
+		allocate(oldPorts.length << 1);
+		for (int i = 0; i < oldPorts.length; i++) {
+			if (oldPorts[i] != 0) {
+				int index = slot(oldHighs[i], oldLows[i], oldPorts[i]);
+				while (ports[index] != 0) {
+					index = (index + 1) & mask;
+				}
+				highs[index] = oldHighs[i];
+				lows[index] = oldLows[i];
+				ports[index] = oldPorts[i];
+				values[index] = oldValues[i];
+			}
+		}
+	}
+
+}
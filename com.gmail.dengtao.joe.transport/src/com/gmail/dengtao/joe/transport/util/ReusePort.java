@@ -0,0 +1,88 @@
+package com.gmail.dengtao.joe.transport.util;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.Channel;
+import java.util.Set;
+
+/**
+ * Access to the <code>SO_REUSEPORT</code> socket option of Java 9 and later.<br>
+ * The transport is built for Java 1.6, so the option and <code>NetworkChannel.setOption</code> are looked up by
+ * reflection; the option is only available when the JVM and the operating system support it, e.g. Linux 3.9 or later,
+ * where the kernel spreads the datagrams of different peers over the sockets bound to the same port.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public final class ReusePort {
+
+	// StandardSocketOptions.SO_REUSEPORT, null if the JVM does not define it
+	private static final Object SO_REUSEPORT = findOption();
+	// NetworkChannel.supportedOptions() and NetworkChannel.setOption(SocketOption, Object), null if not found
+	private static final Method SUPPORTED_OPTIONS = findMethod("supportedOptions");
+	private static final Method SET_OPTION = findMethod("setOption");
+
+	private ReusePort() {
+	}
+
+	private static Object findOption() {
+		try {
+			return Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static Method findMethod(String name) {
+		try {
+			Class<?> networkChannel = Class.forName("java.nio.channels.NetworkChannel");
+			if (name.equals("setOption")) {
+				return networkChannel.getMethod(name, Class.forName("java.net.SocketOption"), Object.class);
+			}
+			return networkChannel.getMethod(name);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param channel an unbound channel
+	 * @return whether <code>SO_REUSEPORT</code> is supported by the channel
+	 * @since 1.1
+	 */
+	public static boolean isSupported(Channel channel) {
+		if (SO_REUSEPORT == null || SUPPORTED_OPTIONS == null || SET_OPTION == null) {
+			return false;
+		}
+		try {
+			return ((Set<?>) SUPPORTED_OPTIONS.invoke(channel)).contains(SO_REUSEPORT);
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Enable <code>SO_REUSEPORT</code> of the channel, it must be set before the channel is bound.
+	 * @param channel an unbound channel
+	 * @throws IllegalStateException If <code>SO_REUSEPORT</code> is not supported by the channel
+	 * @throws IOException If setting the option failed
+	 * @since 1.1
+	 */
+	public static void enable(Channel channel) throws IOException {
+		if (!isSupported(channel)) {
+			throw new IllegalStateException("SO_REUSEPORT is not supported by this JVM or system: " + System.getProperty("java.version"));
+		}
+		try {
+			SET_OPTION.invoke(channel, SO_REUSEPORT, Boolean.TRUE);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException("Failed to enable SO_REUSEPORT", e.getCause());
+		} catch (Exception e) {
+			throw new IllegalStateException("Failed to enable SO_REUSEPORT", e);
+		}
+	}
+
+}
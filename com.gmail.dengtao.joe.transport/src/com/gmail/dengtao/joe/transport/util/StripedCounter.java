@@ -0,0 +1,95 @@
+package com.gmail.dengtao.joe.transport.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter updated by many threads, e.g. the I/O threads of an acceptor, with little contention.<br>
+ * Every thread adds to one of several cells chosen by its id, cells are padded to their own cache lines,
+ * and {@link #sum()} adds all cells up. The sum is not an atomic snapshot while the counter is updated.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public class StripedCounter {
+
+	/** Max number of cells */
+	private static final int MAX_STRIPES = 64;
+	/** Longs between two cells, so two cells never share a cache line */
+	private static final int PADDING = 16;
+	/** Number of cells of new counters, a power of two not less than the number of processors */
+	private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+	private final AtomicLongArray cells;
+	private final int mask;
+
+	public StripedCounter() {
+		cells = new AtomicLongArray(STRIPES * PADDING);
+		mask = STRIPES - 1;
+	}
+
+	private static int stripes(int processors) {
+		int stripes = 1;
+		while (stripes < processors && stripes < MAX_STRIPES) {
+			stripes <<= 1;
+		}
+		return stripes;
+	}
+
+	/**
+	 * Add to this counter.
+	 * @param x value to add, may be negative
+	 */
+	public void add(long x) {
+		cells.getAndAdd(index(), x);
+	}
+
+	/**
+	 * Add one to this counter.
+	 */
+	public void increment() {
+		add(1);
+	}
+
+	/**
+	 * Subtract one from this counter.
+	 */
+	public void decrement() {
+		add(-1);
+	}
+
+	/**
+	 * @return sum of all cells
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < cells.length(); i += PADDING) {
+			sum += cells.get(i);
+		}
+		return sum;
+	}
+
+	/**
+	 * Set all cells to zero, additions made at the same time may be lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < cells.length(); i += PADDING) {
+			cells.set(i, 0);
+		}
+	}
+
+	/**
+	 * @return index of the cell of the current thread
+	 */
+	private int index() {
+		long id = Thread.currentThread().getId();
+		// spread sequential ids over the cells
+		int hash = (int) (id * 0x9E3779B97F4A7C15L >>> 40);
+		return (hash & mask) * PADDING;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+
+}
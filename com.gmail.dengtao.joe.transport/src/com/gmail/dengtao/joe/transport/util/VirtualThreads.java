@@ -0,0 +1,55 @@
+package com.gmail.dengtao.joe.transport.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Access to virtual threads of Java 21 and later.<br>
+ * The transport is built for Java 1.6, so virtual threads are looked up by reflection, and they are
+ * only available when running on a JVM which supports them.
+ * @author <a href="mailto:joe.dengtao@gmail.com">DengTao</a>
+ * @version 1.0
+ * @since 1.1
+ */
+public final class VirtualThreads {
+
+	// Executors.newVirtualThreadPerTaskExecutor(), null if virtual threads are not supported
+	private static final Method NEW_EXECUTOR = findNewExecutor();
+
+	private VirtualThreads() {
+	}
+
+	private static Method findNewExecutor() {
+		try {
+			return Class.forName("java.util.concurrent.Executors").getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return whether virtual threads are supported by this JVM
+	 * @since 1.1
+	 */
+	public static boolean isSupported() {
+		return NEW_EXECUTOR != null;
+	}
+
+	/**
+	 * Create an executor which starts a new virtual thread for every task.
+	 * @return new executor
+	 * @throws IllegalStateException If virtual threads are not supported by this JVM
+	 * @since 1.1
+	 */
+	public static ExecutorService newThreadPerTaskExecutor() {
+		if (NEW_EXECUTOR == null) {
+			throw new IllegalStateException("Virtual threads are not supported by this JVM: " + System.getProperty("java.version"));
+		}
+		try {
+			return (ExecutorService) NEW_EXECUTOR.invoke(null);
+		} catch (Exception e) {
+			throw new IllegalStateException("Failed to create virtual thread executor", e);
+		}
+	}
+
+}
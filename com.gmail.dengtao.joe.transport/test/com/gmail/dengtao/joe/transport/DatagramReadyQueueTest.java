@@ -0,0 +1,72 @@
+package com.gmail.dengtao.joe.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+import com.gmail.dengtao.joe.transport.session.impl.DatagramSession;
+
+public class DatagramReadyQueueTest {
+
+	@Test
+	public void testFifoWithoutDuplicates() {
+		DatagramReadyQueue queue = new DatagramReadyQueue();
+		DatagramSessionLru.Entry a = entry(1);
+		DatagramSessionLru.Entry b = entry(2);
+		assertTrue(queue.add(a));
+		assertFalse(queue.add(b));
+		assertFalse(queue.add(a));
+		assertEquals(2, queue.size());
+		assertSame(a, queue.poll());
+		assertSame(b, queue.poll());
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testRoundRobin() {
+		DatagramReadyQueue queue = new DatagramReadyQueue();
+		DatagramSessionLru.Entry a = entry(1);
+		DatagramSessionLru.Entry b = entry(2);
+		queue.add(a);
+		queue.add(b);
+		// a polled entry is still ready, adding it again puts it behind the others
+		DatagramSessionLru.Entry polled = queue.poll();
+		assertTrue(polled.ready);
+		queue.add(polled);
+		assertSame(b, queue.poll());
+		assertSame(a, queue.poll());
+	}
+
+	@Test
+	public void testRemovedIsSkipped() {
+		DatagramReadyQueue queue = new DatagramReadyQueue();
+		DatagramSessionLru.Entry a = entry(1);
+		DatagramSessionLru.Entry b = entry(2);
+		DatagramSessionLru.Entry c = entry(3);
+		queue.add(a);
+		queue.add(b);
+		queue.add(c);
+		queue.remove(a);
+		queue.remove(b);
+		// added again before it is polled, it keeps its place
+		queue.add(b);
+		assertSame(b, queue.poll());
+		assertSame(c, queue.poll());
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+		assertTrue(queue.add(a));
+		assertSame(a, queue.poll());
+	}
+
+	private static DatagramSessionLru.Entry entry(int port) {
+		return new DatagramSessionLru.Entry(new InetSocketAddress("127.0.0.1", port), new DatagramSession());
+	}
+
+}
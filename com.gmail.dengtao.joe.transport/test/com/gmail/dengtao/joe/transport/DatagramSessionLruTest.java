@@ -0,0 +1,100 @@
+package com.gmail.dengtao.joe.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+import com.gmail.dengtao.joe.transport.session.impl.DatagramSession;
+
+public class DatagramSessionLruTest {
+
+	@Test
+	public void testEvictsLeastRecentlyAddedProbationFirst() {
+		DatagramSessionLru lru = new DatagramSessionLru(2);
+		DatagramSessionLru.Entry a = add(lru, 1, 0);
+		DatagramSessionLru.Entry b = add(lru, 2, 1);
+		add(lru, 3, 2);
+		assertEquals(3, lru.size());
+		assertSame(a, lru.evictionCandidate());
+		lru.remove(a);
+		assertSame(b, lru.evictionCandidate());
+		assertEquals(2, lru.size());
+	}
+
+	@Test
+	public void testScanDoesNotEvictProtected() {
+		DatagramSessionLru lru = new DatagramSessionLru(2);
+		DatagramSessionLru.Entry a = add(lru, 1, 0);
+		DatagramSessionLru.Entry b = add(lru, 2, 1);
+		lru.touch(a, 2);
+		lru.touch(b, 3);
+		assertEquals(2, lru.protectedSize());
+		// one-shot peers only replace each other
+		for (int i = 0; i < 100; i++) {
+			DatagramSessionLru.Entry scan = add(lru, 100 + i, 4 + i);
+			assertSame(scan, lru.evictionCandidate());
+			lru.remove(scan);
+		}
+		assertEquals(2, lru.size());
+		assertSame(a, lru.evictionCandidate());
+	}
+
+	@Test
+	public void testTouchDemotesWhenProtectedIsFull() {
+		DatagramSessionLru lru = new DatagramSessionLru(1);
+		DatagramSessionLru.Entry a = add(lru, 1, 0);
+		DatagramSessionLru.Entry b = add(lru, 2, 1);
+		lru.touch(a, 2);
+		lru.touch(b, 3);
+		assertEquals(1, lru.protectedSize());
+		// a is demoted to probation and evicted before b
+		assertSame(a, lru.evictionCandidate());
+		lru.remove(a);
+		assertSame(b, lru.evictionCandidate());
+		lru.remove(b);
+		assertNull(lru.evictionCandidate());
+		assertEquals(0, lru.size());
+		assertEquals(0, lru.protectedSize());
+	}
+
+	@Test
+	public void testOldestOfBothSegments() {
+		DatagramSessionLru lru = new DatagramSessionLru(0);
+		DatagramSessionLru.Entry a = add(lru, 1, 0);
+		DatagramSessionLru.Entry b = add(lru, 2, 1);
+		DatagramSessionLru.Entry c = add(lru, 3, 2);
+		assertSame(a, lru.oldest());
+		lru.touch(a, 10);
+		assertSame(b, lru.oldest());
+		lru.remove(b);
+		assertSame(c, lru.oldest());
+		lru.touch(c, 11);
+		// both are protected, a was touched earlier
+		assertSame(a, lru.oldest());
+		lru.touch(a, 12);
+		assertSame(c, lru.oldest());
+	}
+
+	@Test
+	public void testRemoveTwice() {
+		DatagramSessionLru lru = new DatagramSessionLru(0);
+		DatagramSessionLru.Entry a = add(lru, 1, 0);
+		lru.touch(a, 1);
+		lru.remove(a);
+		lru.remove(a);
+		assertEquals(0, lru.size());
+		assertEquals(0, lru.protectedSize());
+		assertNull(lru.oldest());
+		assertTrue(add(lru, 2, 2) == lru.oldest());
+	}
+
+	private static DatagramSessionLru.Entry add(DatagramSessionLru lru, int port, long now) {
+		return lru.add(new InetSocketAddress("127.0.0.1", port), new DatagramSession(), now);
+	}
+
+}
@@ -0,0 +1,89 @@
+package com.gmail.dengtao.joe.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SelectorEventLoopTest {
+
+	@Test
+	public void testScheduledTasksRunInDeadlineOrder() throws Exception {
+		Selector selector = Selector.open();
+		try {
+			SelectorEventLoop eventLoop = new SelectorEventLoop(selector);
+			eventLoop.bind();
+			final List<Integer> order = new ArrayList<Integer>();
+			eventLoop.schedule(new Record(order, 3), 30, TimeUnit.MILLISECONDS);
+			eventLoop.schedule(new Record(order, 1), 10, TimeUnit.MILLISECONDS);
+			eventLoop.schedule(new Record(order, 2), 10, TimeUnit.MILLISECONDS);
+			eventLoop.schedule(new Record(order, 0), 0, TimeUnit.MILLISECONDS);
+
+			eventLoop.runTasks();
+			assertEquals(1, order.size());
+
+			long start = System.nanoTime();
+			while (order.size() < 4) {
+				// blocks no longer than the nearest deadline, though the timeout is much longer
+				eventLoop.select(10000);
+				eventLoop.runTasks();
+			}
+			assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+			for (int i = 0; i < 4; i++) {
+				assertEquals(Integer.valueOf(i), order.get(i));
+			}
+		} finally {
+			selector.close();
+		}
+	}
+
+	@Test
+	public void testScheduleFromOtherThread() throws Exception {
+		Selector selector = Selector.open();
+		try {
+			final SelectorEventLoop eventLoop = new SelectorEventLoop(selector);
+			eventLoop.bind();
+			final List<Integer> order = new ArrayList<Integer>();
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					eventLoop.schedule(new Record(order, 0), 5, TimeUnit.MILLISECONDS);
+				}
+			});
+			thread.start();
+			thread.join();
+
+			long start = System.nanoTime();
+			while (order.isEmpty()) {
+				eventLoop.select(10000);
+				eventLoop.runTasks();
+			}
+			assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+		} finally {
+			selector.close();
+		}
+	}
+
+	private static class Record implements Runnable {
+
+		private final List<Integer> order;
+		private final int index;
+
+		Record(List<Integer> order, int index) {
+			this.order = order;
+			this.index = index;
+		}
+
+		@Override
+		public void run() {
+			order.add(index);
+		}
+
+	}
+
+}
@@ -0,0 +1,139 @@
+package com.gmail.dengtao.joe.transport.buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class PooledBufferAllocatorTest {
+
+	@Test
+	public void testSizeClassRounding() {
+		PooledBufferAllocator allocator = new PooledBufferAllocator(false, 64, 1024, 4);
+		assertEquals(64, allocator.allocate(0).capacity());
+		assertEquals(64, allocator.allocate(1).capacity());
+		assertEquals(64, allocator.allocate(64).capacity());
+		assertEquals(128, allocator.allocate(65).capacity());
+		assertEquals(512, allocator.allocate(300).capacity());
+		assertEquals(1024, allocator.allocate(1024).capacity());
+		// too large to be pooled, exactly the requested capacity
+		assertEquals(1025, allocator.allocate(1025).capacity());
+		assertEquals(7, allocator.getMissCount());
+		assertEquals(0, allocator.getHitCount());
+	}
+
+	@Test
+	public void testReleasedBufferIsReusedCleared() {
+		PooledBufferAllocator allocator = new PooledBufferAllocator(false, 64, 1024, 4);
+		ByteBuffer buffer = allocator.allocate(100);
+		buffer.putInt(1).flip();
+		allocator.release(buffer);
+		assertEquals(1, allocator.getReleaseCount());
+		assertEquals(1, allocator.getPooledCount());
+
+		// any capacity of the same size class gets it back, cleared
+		ByteBuffer reused = allocator.allocate(128);
+		assertSame(buffer, reused);
+		assertEquals(0, reused.position());
+		assertEquals(128, reused.limit());
+		assertEquals(1, allocator.getHitCount());
+		assertEquals(1, allocator.getMissCount());
+		assertEquals(0.5, allocator.getHitRatio(), 0.0001);
+		assertEquals(0, allocator.getPooledCount());
+	}
+
+	@Test
+	public void testForeignBuffersAreNotPooled() {
+		PooledBufferAllocator allocator = new PooledBufferAllocator(false, 64, 1024, 4);
+		allocator.release(null);
+		allocator.release(ByteBuffer.allocateDirect(64));			// not heap
+		allocator.release(ByteBuffer.allocate(100));				// not a size class
+		allocator.release(ByteBuffer.allocate(32));					// smaller than minSize
+		allocator.release(ByteBuffer.allocate(2048));				// larger than maxSize
+		allocator.release(ByteBuffer.allocate(64).asReadOnlyBuffer());	// read-only
+		assertEquals(0, allocator.getPooledCount());
+		assertEquals(0, allocator.getReleaseCount());
+	}
+
+	@Test
+	public void testFreeListIsBounded() {
+		PooledBufferAllocator allocator = new PooledBufferAllocator(false, 64, 1024, 2);
+		ByteBuffer a = allocator.allocate(64);
+		ByteBuffer b = allocator.allocate(64);
+		ByteBuffer c = allocator.allocate(64);
+		allocator.release(a);
+		allocator.release(b);
+		allocator.release(c);
+		assertEquals(3, allocator.getReleaseCount());
+		assertEquals(2, allocator.getPooledCount());
+		// last in, first out
+		assertSame(b, allocator.allocate(64));
+		assertSame(a, allocator.allocate(64));
+		assertEquals(0, allocator.getPooledCount());
+	}
+
+	@Test
+	public void testDirectBuffersAreSlicedFromSlabs() {
+		PooledBufferAllocator allocator = new PooledBufferAllocator(true, 64, PooledBufferAllocator.DEFAULT_SLAB_SIZE, 1024);
+		int slices = PooledBufferAllocator.DEFAULT_SLAB_SIZE / 1024;
+		ByteBuffer first = allocator.allocate(1000);
+		assertTrue(first.isDirect());
+		assertEquals(1024, first.capacity());
+		assertEquals(1, allocator.getMissCount());
+		// the other slices of the slab are pooled
+		assertEquals(slices - 1, allocator.getPooledCount());
+		ByteBuffer second = allocator.allocate(1024);
+		assertEquals(1, allocator.getHitCount());
+		assertEquals(1024, second.capacity());
+
+		// slices don't overlap
+		while (first.hasRemaining()) {
+			first.put((byte) 1);
+		}
+		while (second.hasRemaining()) {
+			assertEquals(0, second.get());
+		}
+
+		// a size class as large as a slab allocates one buffer per miss
+		ByteBuffer large = allocator.allocate(PooledBufferAllocator.DEFAULT_SLAB_SIZE);
+		assertTrue(large.isDirect());
+		assertEquals(slices - 2, allocator.getPooledCount());
+		allocator.release(ByteBuffer.allocate(1024));	// heap buffer is foreign to a direct allocator
+		assertEquals(slices - 2, allocator.getPooledCount());
+	}
+
+	@Test
+	public void testIllegalArguments() {
+		try {
+			new PooledBufferAllocator(false, 100, 1024, 4);
+			fail("minSize is not a power of two");
+		} catch (IllegalArgumentException e) {
+			/* expected... */
+		}
+		try {
+			new PooledBufferAllocator(false, 1024, 64, 4);
+			fail("maxSize is less than minSize");
+		} catch (IllegalArgumentException e) {
+			/* expected... */
+		}
+		try {
+			new PooledBufferAllocator(false, 64, 1024, -1);
+			fail("maxPooled is negative");
+		} catch (IllegalArgumentException e) {
+			/* expected... */
+		}
+		try {
+			new PooledBufferAllocator().allocate(-1);
+			fail("capacity is negative");
+		} catch (IllegalArgumentException e) {
+			/* expected... */
+		}
+		assertFalse(new PooledBufferAllocator().isDirect());
+	}
+
+}
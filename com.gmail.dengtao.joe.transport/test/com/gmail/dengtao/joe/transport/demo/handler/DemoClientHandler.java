@@ -30,6 +30,11 @@ public class DemoClientHandler implements Handler {
 		session.send(ByteBuffer.wrap((System.currentTimeMillis() + "C").getBytes()).array());
 	}
 
+	@Override
+	public void sessionWritabilityChanged(Session session) throws Exception {
+		System.out.println("Writable:" + session.isWritable());
+	}
+
 	@Override
 	public void sessionClosed(Session session) throws Exception {
 		System.out.println("Closed:" + session);
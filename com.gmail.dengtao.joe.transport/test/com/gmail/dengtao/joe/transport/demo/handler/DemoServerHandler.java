@@ -24,6 +24,11 @@ public class DemoServerHandler implements Handler {
 		System.out.println("Idle:" + status + ", " + System.currentTimeMillis());
 	}
 
+	@Override
+	public void sessionWritabilityChanged(Session session) throws Exception {
+		System.out.println("Writable:" + session.isWritable());
+	}
+
 	@Override
 	public void sessionClosed(Session session) throws Exception {
 		System.out.println("Closed:" + session);
@@ -46,6 +46,11 @@ public class FilterChainTest {
 			System.err.println("Idle:" + status);
 		}
 
+		@Override
+		public void sessionWritabilityChanged(Session session) {
+			System.err.println("Writable:" + session.isWritable());
+		}
+
 		@Override
 		public void sessionClosed(Session session) {
 			System.err.println("Closed:" + session);
@@ -0,0 +1,92 @@
+package com.gmail.dengtao.joe.transport.filter.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.gmail.dengtao.joe.transport.filter.FilterAdapter;
+import com.gmail.dengtao.joe.transport.filter.FilterChain;
+import com.gmail.dengtao.joe.transport.filter.FilterEntity;
+import com.gmail.dengtao.joe.transport.handler.HandlerAdapter;
+import com.gmail.dengtao.joe.transport.session.Session;
+import com.gmail.dengtao.joe.transport.session.impl.DatagramSession;
+
+public class CompressionFilterTest {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		CompressionFilter sender = new CompressionFilter();
+		FilterChain sendChain = new FilterChain();
+		sendChain.setHandler(new HandlerAdapter());
+		sendChain.addLast("compression", sender);
+		// capture sent frames instead of writing them to a channel
+		sendChain.addLast("wire", new FilterAdapter() {
+			@Override
+			public void sendData(FilterEntity nextEntity, Session session, Object data) throws Exception {
+				wire.write((byte[]) data);
+			}
+		});
+		DatagramSession sendSession = new DatagramSession(null, null, sendChain);
+		sendSession.open();
+
+		Random random = new Random(5);
+		List<byte[]> messages = new ArrayList<byte[]>();
+		for (int i = 0; i < 200; i++) {
+			byte[] message = new byte[random.nextInt(4096)];
+			if (i % 3 == 0) {
+				random.nextBytes(message);	// incompressible
+			} else {
+				for (int j = 0; j < message.length; j++) {
+					message[j] = (byte) ('a' + random.nextInt(4));
+				}
+			}
+			if (i == 100) {
+				sendSession.setAttribute(CompressionFilter.LEVEL, 9);
+			}
+			messages.add(message);
+			sendSession.send(i % 2 == 0 ? message : ByteBuffer.wrap(message).asReadOnlyBuffer());
+		}
+		assertEquals(200, sender.getMessagesSent());
+		assertTrue(sender.getMessagesCompressed() > 100);
+		assertTrue(sender.getBytesSaved() > 0);
+
+		final List<byte[]> received = new ArrayList<byte[]>();
+		CompressionFilter receiver = new CompressionFilter();
+		FilterChain receiveChain = new FilterChain();
+		receiveChain.setHandler(new HandlerAdapter() {
+			@Override
+			public void dataReceived(Session session, Object data) {
+				ByteBuffer message = (ByteBuffer) data;
+				byte[] bytes = new byte[message.remaining()];
+				message.get(bytes);
+				received.add(bytes);
+			}
+		});
+		receiveChain.addLast("compression", receiver);
+		Session receiveSession = new DatagramSession();
+		byte[] bytes = wire.toByteArray();
+		for (int i = 0; i < bytes.length; ) {
+			int length = Math.min(1 + random.nextInt(1500), bytes.length - i);
+			byte[] chunk = new byte[length];
+			System.arraycopy(bytes, i, chunk, 0, length);
+			receiveChain.fireDataReceived(receiveSession, chunk);
+			i += length;
+		}
+		assertEquals(messages.size(), received.size());
+		for (int i = 0; i < messages.size(); i++) {
+			assertArrayEquals(messages.get(i), received.get(i));
+		}
+		assertEquals(bytes.length, receiver.getFrameBytesReceived());
+		assertEquals(sender.getOriginalBytesSent(), receiver.getOriginalBytesReceived());
+	}
+
+}
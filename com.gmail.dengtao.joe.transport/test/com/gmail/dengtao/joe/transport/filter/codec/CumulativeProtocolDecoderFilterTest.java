@@ -0,0 +1,289 @@
+package com.gmail.dengtao.joe.transport.filter.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.gmail.dengtao.joe.transport.filter.FilterChain;
+import com.gmail.dengtao.joe.transport.handler.HandlerAdapter;
+import com.gmail.dengtao.joe.transport.session.Session;
+import com.gmail.dengtao.joe.transport.session.impl.DatagramSession;
+
+public class CumulativeProtocolDecoderFilterTest {
+
+	@Test
+	public void testMessagesSplitAcrossReads() {
+		MessageHandler handler = new MessageHandler();
+		FilterChain filterChain = newFilterChain(handler, new StringDecoder(4, 1024));
+		Session session = new DatagramSession();
+
+		ByteBuffer stream = ByteBuffer.allocate(4096);
+		List<String> messages = new ArrayList<String>();
+		for (int i = 0; i < 50; i++) {
+			StringBuilder message = new StringBuilder();
+			for (int j = 0; j < i * 3 % 40; j++) {
+				message.append((char) ('a' + (i + j) % 26));
+			}
+			messages.add(message.toString());
+			stream.put(encode(message.toString()));
+		}
+		stream.flip();
+		// reads of 1 to 7 bytes, so messages and lengths are split, and a read may complete one message and start the next
+		for (int size = 1; stream.hasRemaining(); size = size % 7 + 1) {
+			byte[] read = new byte[Math.min(size, stream.remaining())];
+			stream.get(read);
+			filterChain.fireDataReceived(session, read);
+		}
+		assertEquals(0, handler.errors);
+		assertEquals(messages, handler.messages);
+	}
+
+	@Test
+	public void testMessagesInOneRead() {
+		MessageHandler handler = new MessageHandler();
+		StringDecoder decoder = new StringDecoder(4, 1024);
+		FilterChain filterChain = newFilterChain(handler, decoder);
+		Session session = new DatagramSession();
+
+		ByteBuffer read = ByteBuffer.allocate(64);
+		read.put(encode("abc")).put(encode("")).put(encode("defg")).put(encode("hi")).flip();
+		filterChain.fireDataReceived(session, read);
+		assertEquals(0, handler.errors);
+		assertEquals(4, handler.messages.size());
+		assertEquals("abc", handler.messages.get(0));
+		assertEquals("", handler.messages.get(1));
+		assertEquals("defg", handler.messages.get(2));
+		assertEquals("hi", handler.messages.get(3));
+		// decoded in place, nothing is accumulated
+		assertNull(buffers(decoder).get(session));
+		assertFalse(read.hasRemaining());
+
+		// other data is passed through
+		Object other = new Object();
+		filterChain.fireDataReceived(session, other);
+		assertSame(other, handler.messages.get(4));
+	}
+
+	@Test
+	public void testAccumulationBufferCompactsAndGrows() throws Exception {
+		MessageHandler handler = new MessageHandler();
+		StringDecoder decoder = new StringDecoder(4, 1024);
+		FilterChain filterChain = newFilterChain(handler, decoder);
+		Session session = new DatagramSession();
+
+		// the remaining bytes of an incomplete message are copied into a buffer of initial size
+		filterChain.fireDataReceived(session, new byte[] { 2, 'a' });
+		ByteBuffer buffer = buffers(decoder).get(session);
+		assertNotNull(buffer);
+		assertEquals(4, buffer.capacity());
+		assertEquals(2, buffer.position());
+
+		// one message completed, the start of the next one is compacted to the front of the same buffer
+		filterChain.fireDataReceived(session, new byte[] { 'b', 1 });
+		assertEquals(1, handler.messages.size());
+		assertSame(buffer, buffers(decoder).get(session));
+		assertEquals(1, buffer.position());
+		assertEquals(1, buffer.get(0));
+
+		// bytes which don't fit make the buffer grow to the next power of two
+		filterChain.fireDataReceived(session, new byte[] { 'c', 8, 'd', 'e', 'f', 'g' });
+		assertEquals(2, handler.messages.size());
+		assertEquals(8, buffers(decoder).get(session).capacity());
+		filterChain.fireDataReceived(session, new byte[] { 'h', 'i', 'j', 'k' });
+		ByteBuffer grown = buffers(decoder).get(session);
+		assertEquals(16, grown.capacity());
+		assertEquals(0, handler.errors);
+		assertEquals(3, handler.messages.size());
+		assertEquals("ab", handler.messages.get(0));
+		assertEquals("c", handler.messages.get(1));
+		assertEquals("defghijk", handler.messages.get(2));
+		// all decoded, the grown buffer is kept for the session and reused
+		assertSame(grown, buffers(decoder).get(session));
+		assertEquals(0, grown.position());
+
+		// dropped when the session is closed
+		filterChain.fireSessionClosed(session);
+		assertNull(buffers(decoder).get(session));
+	}
+
+	@Test
+	public void testGrowthIsClampedToMaxBufferSize() {
+		MessageHandler handler = new MessageHandler();
+		StringDecoder decoder = new StringDecoder(4, 12);
+		FilterChain filterChain = newFilterChain(handler, decoder);
+		Session session = new DatagramSession();
+
+		filterChain.fireDataReceived(session, new byte[] { 11, 'a' });
+		filterChain.fireDataReceived(session, new byte[] { 'b', 'c', 'd', 'e' });
+		assertEquals(8, buffers(decoder).get(session).capacity());
+		// the next power of two is more than max buffer size
+		filterChain.fireDataReceived(session, new byte[] { 'f', 'g', 'h', 'i' });
+		assertEquals(12, buffers(decoder).get(session).capacity());
+		filterChain.fireDataReceived(session, new byte[] { 'j', 'k' });
+		assertEquals(0, handler.errors);
+		assertEquals("abcdefghijk", handler.messages.get(0));
+
+		// bytes of one read more than max buffer size are accumulated until they are decoded
+		filterChain.fireDataReceived(session, new byte[] { 3, 'a' });
+		ByteBuffer read = ByteBuffer.allocate(20);
+		read.put(new byte[] { 'b', 'c' }).put(encode("defghijkl")).put(encode("mnopqr")).flip();
+		filterChain.fireDataReceived(session, read);
+		assertEquals(21, buffers(decoder).get(session).capacity());
+		assertEquals(0, handler.errors);
+		assertEquals(4, handler.messages.size());
+		assertEquals("abc", handler.messages.get(1));
+		assertEquals("defghijkl", handler.messages.get(2));
+		assertEquals("mnopqr", handler.messages.get(3));
+	}
+
+	@Test
+	public void testRejectOversizedMessage() {
+		MessageHandler handler = new MessageHandler();
+		FilterChain filterChain = newFilterChain(handler, new StringDecoder(4, 8));
+		Session session = new DatagramSession();
+
+		// a message of max buffer size is accumulated
+		filterChain.fireDataReceived(session, new byte[] { 7, 'a', 'b' });
+		filterChain.fireDataReceived(session, new byte[] { 'c', 'd', 'e', 'f', 'g' });
+		assertEquals(0, handler.errors);
+		assertEquals("abcdefg", handler.messages.get(0));
+
+		// more bytes than max buffer size left of a larger message
+		filterChain.fireDataReceived(session, new byte[] { 20, 'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h' });
+		assertEquals(1, handler.errors);
+		assertEquals(1, handler.messages.size());
+	}
+
+	@Test
+	public void testUndecodableBytesAreDropped() {
+		MessageHandler handler = new MessageHandler();
+		FilterChain filterChain = newFilterChain(handler, new StringDecoder(4, 1024));
+		Session session = new DatagramSession();
+
+		filterChain.fireDataReceived(session, new byte[] { 2, 'a' });
+		// the decoder rejects a message with a negative length byte
+		filterChain.fireDataReceived(session, new byte[] { 'b', (byte) 0x80, 'x' });
+		assertEquals(1, handler.errors);
+		assertEquals(1, handler.messages.size());
+		filterChain.fireDataReceived(session, encode("ok"));
+		assertEquals(1, handler.errors);
+		assertEquals("ab", handler.messages.get(0));
+		assertEquals("ok", handler.messages.get(1));
+	}
+
+	@Test
+	public void testRecoverAfterOversizedReceivedData() {
+		MessageHandler handler = new MessageHandler();
+		FilterChain filterChain = newFilterChain(handler, new StringDecoder(4, 16));
+		Session session = new DatagramSession();
+
+		// nothing accumulated, the bytes left of this read alone exceed max buffer size
+		filterChain.fireDataReceived(session, ByteBuffer.allocate(24).put((byte) 100).array());
+		assertEquals(1, handler.errors);
+		filterChain.fireDataReceived(session, encode("abc"));
+		assertEquals(1, handler.errors);
+		assertEquals(1, handler.messages.size());
+		assertEquals("abc", handler.messages.get(0));
+	}
+
+	@Test
+	public void testRecoverAfterOversizedAccumulation() {
+		MessageHandler handler = new MessageHandler();
+		FilterChain filterChain = newFilterChain(handler, new StringDecoder(4, 16));
+		Session session = new DatagramSession();
+
+		// the first bytes of a 100 bytes message are accumulated, the next read makes them exceed max buffer size
+		filterChain.fireDataReceived(session, new byte[] { 100, 'x', 'x', 'x' });
+		filterChain.fireDataReceived(session, new byte[20]);
+		assertEquals(1, handler.errors);
+		// the accumulated bytes were dropped, decoding starts over with the next read
+		filterChain.fireDataReceived(session, encode("abc"));
+		filterChain.fireDataReceived(session, encode("defgh"));
+		assertEquals(1, handler.errors);
+		assertEquals(2, handler.messages.size());
+		assertEquals("abc", handler.messages.get(0));
+		assertEquals("defgh", handler.messages.get(1));
+	}
+
+	@SuppressWarnings("unchecked")
+	static Map<Session, ByteBuffer> buffers(CumulativeProtocolDecoderFilter decoder) {
+		try {
+			Field field = CumulativeProtocolDecoderFilter.class.getDeclaredField("buffers");
+			field.setAccessible(true);
+			return (Map<Session, ByteBuffer>) field.get(decoder);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static FilterChain newFilterChain(MessageHandler handler, CumulativeProtocolDecoderFilter decoder) {
+		FilterChain filterChain = new FilterChain();
+		filterChain.setHandler(handler);
+		filterChain.addLast("decoder", decoder);
+		return filterChain;
+	}
+
+	static byte[] encode(String message) {
+		byte[] bytes = new byte[message.length() + 1];
+		bytes[0] = (byte) message.length();
+		for (int i = 0; i < message.length(); i++) {
+			bytes[i + 1] = (byte) message.charAt(i);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Decodes strings of ASCII characters following a one byte length.
+	 */
+	static class StringDecoder extends CumulativeProtocolDecoderFilter {
+
+		StringDecoder(int initialBufferSize, int maxBufferSize) {
+			super(initialBufferSize, maxBufferSize);
+		}
+
+		@Override
+		protected boolean decode(Session session, ByteBuffer in, List<Object> out) {
+			int length = in.get(in.position());
+			if (length < 0) {
+				throw new IllegalArgumentException("Illegal length: " + length);
+			}
+			if (in.remaining() < length + 1) {
+				return false;
+			}
+			in.get();
+			StringBuilder message = new StringBuilder(length);
+			for (int i = 0; i < length; i++) {
+				message.append((char) in.get());
+			}
+			out.add(message.toString());
+			return true;
+		}
+	}
+
+	static class MessageHandler extends HandlerAdapter {
+
+		List<Object> messages = new ArrayList<Object>();
+		int errors = 0;
+
+		@Override
+		public void dataReceived(Session session, Object data) {
+			messages.add(data);
+		}
+
+		@Override
+		public void exceptionCaught(Session session, Throwable cause) {
+			errors++;
+		}
+	}
+
+}
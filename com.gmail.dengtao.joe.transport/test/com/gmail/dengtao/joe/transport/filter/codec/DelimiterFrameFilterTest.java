@@ -0,0 +1,120 @@
+package com.gmail.dengtao.joe.transport.filter.codec;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.gmail.dengtao.joe.transport.filter.FilterChain;
+import com.gmail.dengtao.joe.transport.handler.HandlerAdapter;
+import com.gmail.dengtao.joe.transport.session.Session;
+import com.gmail.dengtao.joe.transport.session.impl.DatagramSession;
+import com.gmail.dengtao.joe.transport.util.ByteSearch;
+
+public class DelimiterFrameFilterTest {
+
+	@Test
+	public void testSplitLines() throws Exception {
+		LineHandler handler = new LineHandler();
+		FilterChain filterChain = new FilterChain();
+		filterChain.setHandler(handler);
+		filterChain.addLast("line", new DelimiterFrameFilter(1024, DelimiterFrameFilter.CRLF));
+		Session session = new DatagramSession();
+
+		Random random = new Random(7);
+		List<String> lines = new ArrayList<String>();
+		StringBuilder stream = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			StringBuilder line = new StringBuilder();
+			int length = random.nextInt(200);
+			for (int j = 0; j < length; j++) {
+				// lone '\r' and '\n' are not delimiters
+				char c = "abcd\ref\ngh".charAt(random.nextInt(10));
+				if (c == '\n' && j > 0 && line.charAt(j - 1) == '\r') {
+					c = 'x';
+				}
+				line.append(c);
+			}
+			lines.add(line.toString());
+			stream.append(line).append("\r\n");
+		}
+		byte[] bytes = stream.toString().getBytes("ISO-8859-1");
+		for (int i = 0; i < bytes.length; ) {
+			int length = Math.min(1 + random.nextInt(64), bytes.length - i);
+			byte[] chunk = new byte[length];
+			System.arraycopy(bytes, i, chunk, 0, length);
+			filterChain.fireDataReceived(session, chunk);
+			i += length;
+		}
+		assertEquals(0, handler.errors);
+		assertEquals(lines, handler.lines);
+	}
+
+	@Test
+	public void testRejectLongLine() {
+		LineHandler handler = new LineHandler();
+		FilterChain filterChain = new FilterChain();
+		filterChain.setHandler(handler);
+		filterChain.addLast("line", new DelimiterFrameFilter(8, DelimiterFrameFilter.LF));
+		Session session = new DatagramSession();
+
+		filterChain.fireDataReceived(session, "0123".getBytes());
+		filterChain.fireDataReceived(session, "456789".getBytes());
+		assertEquals(1, handler.errors);
+		filterChain.fireDataReceived(session, "\nok\n".getBytes());
+		assertEquals(2, handler.lines.size());
+		assertEquals("ok", handler.lines.get(1));
+	}
+
+	@Test
+	public void testByteSearch() {
+		Random random = new Random(3);
+		for (int n = 0; n < 1000; n++) {
+			byte[] bytes = new byte[random.nextInt(40)];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = (byte) random.nextInt(4);
+			}
+			byte[] pattern = { (byte) random.nextInt(4), (byte) random.nextInt(4) };
+			int from = bytes.length == 0 ? 0 : random.nextInt(bytes.length);
+			assertEquals(naiveIndexOf(bytes, from, pattern), ByteSearch.indexOf(ByteBuffer.wrap(bytes), from, bytes.length, pattern));
+			assertEquals(naiveIndexOf(bytes, from, new byte[] { pattern[0] }), ByteSearch.indexOf(ByteBuffer.wrap(bytes), from, bytes.length, pattern[0]));
+		}
+	}
+
+	private static int naiveIndexOf(byte[] bytes, int from, byte[] pattern) {
+		for (int i = from; i + pattern.length <= bytes.length; i++) {
+			int j = 0;
+			while (j < pattern.length && bytes[i + j] == pattern[j]) {
+				j++;
+			}
+			if (j == pattern.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	static class LineHandler extends HandlerAdapter {
+
+		List<String> lines = new ArrayList<String>();
+		int errors = 0;
+
+		@Override
+		public void dataReceived(Session session, Object data) {
+			ByteBuffer frame = (ByteBuffer) data;
+			byte[] bytes = new byte[frame.remaining()];
+			frame.get(bytes);
+			lines.add(new String(bytes));
+		}
+
+		@Override
+		public void exceptionCaught(Session session, Throwable cause) {
+			errors++;
+		}
+	}
+
+}
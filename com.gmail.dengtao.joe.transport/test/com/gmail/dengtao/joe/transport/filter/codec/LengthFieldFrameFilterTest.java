@@ -0,0 +1,111 @@
+package com.gmail.dengtao.joe.transport.filter.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.gmail.dengtao.joe.transport.filter.FilterChain;
+import com.gmail.dengtao.joe.transport.handler.HandlerAdapter;
+import com.gmail.dengtao.joe.transport.session.Session;
+import com.gmail.dengtao.joe.transport.session.impl.DatagramSession;
+
+public class LengthFieldFrameFilterTest {
+
+	@Test
+	public void testSplitFrames() {
+		FrameHandler handler = new FrameHandler();
+		FilterChain filterChain = new FilterChain();
+		filterChain.setHandler(handler);
+		filterChain.addLast("frame", new LengthFieldFrameFilter(1024, 0, 2, 0, 2, ByteOrder.BIG_ENDIAN));
+		Session session = new DatagramSession();
+
+		ByteBuffer stream = ByteBuffer.allocate(4096);
+		List<byte[]> frames = new ArrayList<byte[]>();
+		for (int i = 0; i < 100; i++) {
+			byte[] frame = new byte[i * 7 % 300];
+			for (int j = 0; j < frame.length; j++) {
+				frame[j] = (byte) (i + j);
+			}
+			frames.add(frame);
+			stream.putShort((short) frame.length);
+			stream.put(frame);
+			if (stream.position() > 2048 || i == 99) {
+				// fire the stream in chunks of 13 bytes, so frames and headers are split
+				stream.flip();
+				while (stream.hasRemaining()) {
+					byte[] chunk = new byte[Math.min(13, stream.remaining())];
+					stream.get(chunk);
+					filterChain.fireDataReceived(session, chunk);
+				}
+				stream.clear();
+			}
+		}
+		assertEquals(0, handler.errors);
+		assertEquals(frames.size(), handler.frames.size());
+		for (int i = 0; i < frames.size(); i++) {
+			assertArrayEquals(frames.get(i), handler.frames.get(i));
+		}
+	}
+
+	@Test
+	public void testLittleEndianWithAdjustment() {
+		FrameHandler handler = new FrameHandler();
+		FilterChain filterChain = new FilterChain();
+		filterChain.setHandler(handler);
+		// 1 byte type, 4 bytes little-endian length counting the whole frame
+		filterChain.addLast("frame", new LengthFieldFrameFilter(64, 1, 4, -5, 0, ByteOrder.LITTLE_ENDIAN));
+		Session session = new DatagramSession();
+
+		ByteBuffer frame = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		frame.put((byte) 9).putInt(8).put(new byte[] { 1, 2, 3 });
+		byte[] bytes = frame.array();
+		byte[] twoFrames = new byte[16];
+		System.arraycopy(bytes, 0, twoFrames, 0, 8);
+		System.arraycopy(bytes, 0, twoFrames, 8, 8);
+		filterChain.fireDataReceived(session, twoFrames);
+
+		assertEquals(2, handler.frames.size());
+		assertArrayEquals(bytes, handler.frames.get(0));
+		assertArrayEquals(bytes, handler.frames.get(1));
+	}
+
+	@Test
+	public void testRejectOversizedFrame() {
+		FrameHandler handler = new FrameHandler();
+		FilterChain filterChain = new FilterChain();
+		filterChain.setHandler(handler);
+		filterChain.addLast("frame", new LengthFieldFrameFilter(16, 0, 4));
+		Session session = new DatagramSession();
+
+		filterChain.fireDataReceived(session, new byte[] { 0x7F, 0, 0, 0, 1 });
+		assertEquals(1, handler.errors);
+		assertTrue(handler.frames.isEmpty());
+	}
+
+	static class FrameHandler extends HandlerAdapter {
+
+		List<byte[]> frames = new ArrayList<byte[]>();
+		int errors = 0;
+
+		@Override
+		public void dataReceived(Session session, Object data) {
+			ByteBuffer frame = (ByteBuffer) data;
+			byte[] bytes = new byte[frame.remaining()];
+			frame.get(bytes);
+			frames.add(bytes);
+		}
+
+		@Override
+		public void exceptionCaught(Session session, Throwable cause) {
+			errors++;
+		}
+	}
+
+}
@@ -0,0 +1,259 @@
+package com.gmail.dengtao.joe.transport.filter.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+import com.gmail.dengtao.joe.transport.filter.FilterChain;
+import com.gmail.dengtao.joe.transport.filter.codec.LengthFieldFrameFilter;
+import com.gmail.dengtao.joe.transport.handler.HandlerAdapter;
+import com.gmail.dengtao.joe.transport.session.Session;
+import com.gmail.dengtao.joe.transport.session.impl.DatagramSession;
+
+public class ExecutorFilterTest {
+
+	@Test
+	public void testEventsOfSessionInOrder() throws Exception {
+		ManualExecutor executor = new ManualExecutor();
+		ExecutorFilter filter = new ExecutorFilter(executor, 1024);
+		RecordingHandler handler = new RecordingHandler();
+		FilterChain filterChain = newFilterChain(filter, handler);
+		StubSession session = new StubSession(filterChain);
+
+		for (int i = 0; i < 100; i++) {
+			filterChain.fireDataReceived(session, i);
+		}
+		// one task for the session's queue, however many events it has
+		assertEquals(1, executor.tasks.size());
+		executor.runAll();
+		assertEquals(100, handler.events.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals("received " + i, handler.events.get(i));
+		}
+	}
+
+	@Test
+	public void testLateEventAfterDrainGoesToNewQueue() throws Exception {
+		ManualExecutor executor = new ManualExecutor();
+		ExecutorFilter filter = new ExecutorFilter(executor, 1024);
+		RecordingHandler handler = new RecordingHandler();
+		FilterChain filterChain = newFilterChain(filter, handler);
+		StubSession session = new StubSession(filterChain);
+
+		filterChain.fireDataReceived(session, "a");
+		session.close();
+		executor.runAll();
+		assertEquals(Arrays.asList("received a", "closed"), handler.events);
+		// the drained queue of the closed session has retired
+		assertEquals(0, eventQueues(filter).size());
+
+		filterChain.fireDataSent(session, "late");
+		assertEquals(1, executor.tasks.size());
+		executor.runAll();
+		assertEquals(Arrays.asList("received a", "closed", "sent late"), handler.events);
+		assertEquals(0, eventQueues(filter).size());
+	}
+
+	@Test
+	public void testLateEventBeforeDrainJoinsTheQueue() throws Exception {
+		ManualExecutor executor = new ManualExecutor();
+		ExecutorFilter filter = new ExecutorFilter(executor, 1024);
+		RecordingHandler handler = new RecordingHandler();
+		FilterChain filterChain = newFilterChain(filter, handler);
+		StubSession session = new StubSession(filterChain);
+
+		session.close();
+		filterChain.fireDataSent(session, "late");
+		// no second queue runs beside the one still draining the closing events
+		assertEquals(1, executor.tasks.size());
+		executor.runAll();
+		assertEquals(Arrays.asList("closed", "sent late"), handler.events);
+		assertEquals(0, eventQueues(filter).size());
+	}
+
+	@Test
+	public void testQueueRetiresWhenClosedIsNotExecuted() throws Exception {
+		ManualExecutor executor = new ManualExecutor();
+		ExecutorFilter filter = new ExecutorFilter(executor, 1024, ExecutorFilter.EventType.DATA_RECEIVED);
+		RecordingHandler handler = new RecordingHandler();
+		FilterChain filterChain = newFilterChain(filter, handler);
+
+		// closed after the queue was drained
+		StubSession drained = new StubSession(filterChain);
+		filterChain.fireDataReceived(drained, "a");
+		executor.runAll();
+		assertEquals(1, eventQueues(filter).size());
+		drained.close();
+		assertEquals(0, eventQueues(filter).size());
+
+		// closed while events are queued, session closed is passed through before them
+		StubSession queued = new StubSession(filterChain);
+		filterChain.fireDataReceived(queued, "b");
+		queued.close();
+		assertEquals(1, eventQueues(filter).size());
+		executor.runAll();
+		assertEquals(0, eventQueues(filter).size());
+		assertEquals(Arrays.asList("received a", "closed", "closed", "received b"), handler.events);
+	}
+
+	@Test
+	public void testReadSuspendedWhenQueueIsFull() throws Exception {
+		ManualExecutor executor = new ManualExecutor();
+		ExecutorFilter filter = new ExecutorFilter(executor, 4);
+		RecordingHandler handler = new RecordingHandler();
+		FilterChain filterChain = newFilterChain(filter, handler);
+		StubSession session = new StubSession(filterChain);
+
+		for (int i = 0; i < 3; i++) {
+			filterChain.fireDataReceived(session, i);
+		}
+		assertFalse(session.isReadSuspended());
+		filterChain.fireDataReceived(session, 3);
+		assertTrue(session.isReadSuspended());
+		executor.runAll();
+		assertFalse(session.isReadSuspended());
+		assertEquals(4, handler.events.size());
+	}
+
+	@Test
+	public void testResumeKeepsOtherSuspensions() throws Exception {
+		ManualExecutor executor = new ManualExecutor();
+		ExecutorFilter filter = new ExecutorFilter(executor, 2);
+		RecordingHandler handler = new RecordingHandler();
+		FilterChain filterChain = newFilterChain(filter, handler);
+		StubSession session = new StubSession(filterChain);
+
+		// suspended for another reason, e.g. by a traffic shaping filter
+		session.suspendRead();
+		filterChain.fireDataReceived(session, 0);
+		filterChain.fireDataReceived(session, 1);
+		executor.runAll();
+		// the executor filter resumed its own suspension only
+		assertTrue(session.isReadSuspended());
+		session.resumeRead();
+		assertFalse(session.isReadSuspended());
+		// a resume without a suspension is ignored
+		session.resumeRead();
+		session.suspendRead();
+		assertTrue(session.isReadSuspended());
+	}
+
+	@Test
+	public void testReceivedBuffersAreCopied() throws Exception {
+		ManualExecutor executor = new ManualExecutor();
+		ExecutorFilter filter = new ExecutorFilter(executor, 1024);
+		RecordingHandler handler = new RecordingHandler();
+		FilterChain filterChain = new FilterChain();
+		filterChain.setHandler(handler);
+		filterChain.addLast("decoder", new LengthFieldFrameFilter(1024, 0, 1, 0, 1, ByteOrder.BIG_ENDIAN));
+		filterChain.addLast("executor", filter);
+		StubSession session = new StubSession(filterChain);
+
+		// views of one receive buffer reused for every read, the first frame is split across reads and accumulated, headers are stripped
+		ByteBuffer receiveBuffer = ByteBuffer.allocate(16);
+		byte[][] reads = { { 3, 'a' }, { 'b', 'c', 3, 'x' }, { 'y', 'z' } };
+		for (byte[] read : reads) {
+			receiveBuffer.clear();
+			receiveBuffer.put(read).flip();
+			filterChain.fireDataReceived(session, receiveBuffer.asReadOnlyBuffer());
+		}
+		// the frames are executed after the receive buffer and the accumulation buffer were reused
+		executor.runAll();
+		assertEquals(Arrays.asList("received abc", "received xyz"), handler.events);
+	}
+
+	private static FilterChain newFilterChain(ExecutorFilter filter, RecordingHandler handler) {
+		FilterChain filterChain = new FilterChain();
+		filterChain.setHandler(handler);
+		filterChain.addLast("executor", filter);
+		return filterChain;
+	}
+
+	private static Map<?, ?> eventQueues(ExecutorFilter filter) throws Exception {
+		Field field = ExecutorFilter.class.getDeclaredField("eventQueues");
+		field.setAccessible(true);
+		return (Map<?, ?>) field.get(filter);
+	}
+
+	/**
+	 * Executor which runs tasks only when asked to.
+	 */
+	static class ManualExecutor implements Executor {
+
+		final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+		@Override
+		public void execute(Runnable task) {
+			tasks.add(task);
+		}
+
+		void runAll() {
+			while (!tasks.isEmpty()) {
+				tasks.poll().run();
+			}
+		}
+	}
+
+	/**
+	 * Session without a channel, closing it only fires session closed.
+	 */
+	static class StubSession extends DatagramSession {
+
+		private final FilterChain filterChain;
+
+		StubSession(FilterChain filterChain) {
+			this.filterChain = filterChain;
+			open = true;
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				open = false;
+				filterChain.fireSessionClosed(this);
+			}
+		}
+	}
+
+	static class RecordingHandler extends HandlerAdapter {
+
+		final List<String> events = new ArrayList<String>();
+
+		@Override
+		public void dataReceived(Session session, Object data) throws Exception {
+			if (data instanceof ByteBuffer) {
+				ByteBuffer buffer = (ByteBuffer) data;
+				StringBuilder bytes = new StringBuilder();
+				while (buffer.hasRemaining()) {
+					bytes.append((char) buffer.get());
+				}
+				data = bytes.toString();
+			}
+			events.add("received " + data);
+		}
+
+		@Override
+		public void dataSent(Session session, Object data) throws Exception {
+			events.add("sent " + data);
+		}
+
+		@Override
+		public void sessionClosed(Session session) throws Exception {
+			events.add("closed");
+		}
+	}
+
+}
@@ -47,6 +47,13 @@ public class MyFilter implements Filter {
 		nextEntity.getFilter().sessionIdle(nextEntity.getNextEntity(), session, status);
 	}
 	
+	@Override
+	public void sessionWritabilityChanged(FilterEntity nextEntity, Session session)
+			throws Exception {
+		System.out.println("Fired!" + nextEntity.getName());
+		nextEntity.getFilter().sessionWritabilityChanged(nextEntity.getNextEntity(), session);
+	}
+	
 	@Override
 	public void sessionClosed(FilterEntity nextEntity, Session session)
 			throws Exception {
@@ -0,0 +1,308 @@
+package com.gmail.dengtao.joe.transport.filter.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.gmail.dengtao.joe.transport.filter.FilterChain;
+import com.gmail.dengtao.joe.transport.filter.impl.TrafficShapingFilter.TokenBucket;
+import com.gmail.dengtao.joe.transport.handler.HandlerAdapter;
+import com.gmail.dengtao.joe.transport.session.Session;
+import com.gmail.dengtao.joe.transport.session.impl.DatagramSession;
+
+public class TrafficShapingFilterTest {
+
+	private static final long SECOND = 1000000000L;
+	private static final long MILLISECOND = 1000000L;
+
+	@Test
+	public void testTokenBucket() {
+		TokenBucket bucket = new TokenBucket(1000);
+		long now = System.nanoTime();
+
+		// a full bucket holds one second of its rate
+		assertEquals(0, bucket.consume(1000, now));
+		// 500 bytes of debt take half a second to pay
+		assertEquals(SECOND / 2, bucket.consume(500, now));
+		// refilled lazily by elapsed time
+		assertEquals(SECOND / 4, bucket.consume(0, now + SECOND / 4));
+		assertEquals(0, bucket.consume(0, now + SECOND / 2));
+		// never holds more than one second of its rate
+		assertEquals(0, bucket.consume(1000, now + 10 * SECOND));
+		assertEquals(SECOND / 1000, bucket.consume(1, now + 10 * SECOND));
+	}
+
+	@Test
+	public void testTokenBucketConcurrentConsumers() throws Exception {
+		final TokenBucket bucket = new TokenBucket(1000);
+		final long now = System.nanoTime();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; j++) {
+						bucket.consume(1, now);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		// no consumption is lost: 40000 bytes from a full bucket of 1000 leave 39 seconds of debt
+		assertEquals(39 * SECOND, bucket.consume(0, now));
+	}
+
+	@Test
+	public void testTokenBucketRoundsCostUp() {
+		TokenBucket bucket = new TokenBucket(3);
+		long now = System.nanoTime();
+		assertEquals(0, bucket.consume(3, now));
+		// one byte takes a third of a second, rounded up to the next nanosecond
+		assertEquals(SECOND / 3 + 1, bucket.consume(1, now));
+	}
+
+	@Test
+	public void testReadSuspendedUntilDebtIsPaid() throws Exception {
+		TrafficShapingFilter filter = new TrafficShapingFilter(1000, 0);
+		RecordingHandler handler = new RecordingHandler();
+		FilterChain filterChain = newFilterChain(filter, handler);
+		StubSession session = new StubSession();
+		try {
+			// a full bucket lets one second of the limit through
+			filterChain.fireDataReceived(session, new byte[1000]);
+			assertEquals(0, session.readSuspensions);
+			// 500 bytes of debt suspend reading for half a second, the data is still passed on
+			long start = System.nanoTime();
+			filterChain.fireDataReceived(session, new byte[500]);
+			assertEquals(1, session.readSuspensions);
+			assertTrue(session.isReadSuspended());
+			// data read before the suspension took effect adds debt, but doesn't suspend again
+			filterChain.fireDataReceived(session, new byte[100]);
+			assertEquals(1, session.readSuspensions);
+			assertEquals(3, handler.received.size());
+
+			assertTrue(session.awaitReadResumed(5000));
+			long suspended = session.readResumedTime - start;
+			assertTrue("resumed after " + suspended / 1000000 + "ms", suspended >= 500 * MILLISECOND);
+			assertTrue("resumed after " + suspended / 1000000 + "ms", suspended < 2000 * MILLISECOND);
+			assertEquals(1, session.readResumes);
+			assertFalse(session.isReadSuspended());
+		} finally {
+			filter.destroy();
+		}
+	}
+
+	@Test
+	public void testWriteSuspendedUntilDebtIsPaid() throws Exception {
+		TrafficShapingFilter filter = new TrafficShapingFilter(0, 1000);
+		FilterChain filterChain = newFilterChain(filter, new RecordingHandler());
+		StubSession session = new StubSession();
+		try {
+			// a push writes whatever it can, its bytes are counted afterwards
+			session.bytesPerPush = 1500;
+			long start = System.nanoTime();
+			filterChain.firePushData(session);
+			assertEquals(1, session.pushes);
+			assertEquals(0, session.writeSuspensions);
+			// in debt, the next push is not passed on and writing is suspended
+			filterChain.firePushData(session);
+			assertEquals(1, session.pushes);
+			assertEquals(1, session.writeSuspensions);
+			assertTrue(session.isWriteSuspended());
+
+			assertTrue(session.awaitWriteResumed(5000));
+			long suspended = session.writeResumedTime - start;
+			assertTrue("resumed after " + suspended / 1000000 + "ms", suspended >= 500 * MILLISECOND);
+			assertTrue("resumed after " + suspended / 1000000 + "ms", suspended < 2000 * MILLISECOND);
+			assertFalse(session.isWriteSuspended());
+			filterChain.firePushData(session);
+			assertEquals(2, session.pushes);
+		} finally {
+			filter.destroy();
+		}
+	}
+
+	@Test
+	public void testSessionLimits() throws Exception {
+		TrafficShapingFilter filter = new TrafficShapingFilter(1000, 0);
+		FilterChain filterChain = newFilterChain(filter, new RecordingHandler());
+		StubSession a = new StubSession();
+		StubSession b = new StubSession();
+		try {
+			filterChain.fireDataReceived(a, new byte[1000]);
+			filterChain.fireDataReceived(b, new byte[1000]);
+			assertEquals(0, a.readSuspensions);
+			assertEquals(0, b.readSuspensions);
+			// every session has its own bucket
+			filterChain.fireDataReceived(a, new byte[100]);
+			assertEquals(1, a.readSuspensions);
+			assertEquals(0, b.readSuspensions);
+		} finally {
+			filter.destroy();
+		}
+	}
+
+	@Test
+	public void testGlobalLimits() throws Exception {
+		TrafficShapingFilter filter = new TrafficShapingFilter(0, 0, 1000, 1000);
+		FilterChain filterChain = newFilterChain(filter, new RecordingHandler());
+		StubSession a = new StubSession();
+		StubSession b = new StubSession();
+		try {
+			// the global bucket is shared, one session's reads put the next reader into debt
+			filterChain.fireDataReceived(a, new byte[1000]);
+			assertEquals(0, a.readSuspensions);
+			filterChain.fireDataReceived(b, new byte[100]);
+			assertEquals(0, a.readSuspensions);
+			assertEquals(1, b.readSuspensions);
+
+			a.bytesPerPush = 1100;
+			filterChain.firePushData(a);
+			filterChain.firePushData(b);
+			assertEquals(0, b.pushes);
+			assertEquals(1, b.writeSuspensions);
+			assertEquals(0, a.writeSuspensions);
+		} finally {
+			filter.destroy();
+		}
+	}
+
+	@Test
+	public void testBucketsRemovedWhenSessionClosed() throws Exception {
+		TrafficShapingFilter filter = new TrafficShapingFilter(1000, 1000);
+		RecordingHandler handler = new RecordingHandler();
+		FilterChain filterChain = newFilterChain(filter, handler);
+		StubSession session = new StubSession();
+		try {
+			filterChain.fireDataReceived(session, new byte[10]);
+			filterChain.firePushData(session);
+			assertEquals(1, sessionBuckets(filter).size());
+			filterChain.fireSessionClosed(session);
+			assertEquals(0, sessionBuckets(filter).size());
+			assertEquals(1, handler.closed);
+
+			// no limit, no buckets
+			TrafficShapingFilter unlimited = new TrafficShapingFilter(0, 0);
+			FilterChain unlimitedChain = newFilterChain(unlimited, handler);
+			unlimitedChain.fireDataReceived(session, new byte[10000]);
+			unlimitedChain.firePushData(session);
+			assertEquals(0, sessionBuckets(unlimited).size());
+			assertEquals(0, session.readSuspensions);
+			unlimited.destroy();
+		} finally {
+			filter.destroy();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIllegalLimit() {
+		new TrafficShapingFilter(-1, 0);
+	}
+
+	private static FilterChain newFilterChain(TrafficShapingFilter filter, RecordingHandler handler) {
+		FilterChain filterChain = new FilterChain();
+		filterChain.setHandler(handler);
+		filterChain.addLast("shaping", filter);
+		return filterChain;
+	}
+
+	private static Map<?, ?> sessionBuckets(TrafficShapingFilter filter) throws Exception {
+		Field field = TrafficShapingFilter.class.getDeclaredField("sessionBuckets");
+		field.setAccessible(true);
+		return (Map<?, ?>) field.get(filter);
+	}
+
+	/**
+	 * Session without a channel, which counts suspensions and pretends to write bytes when pushed.
+	 */
+	static class StubSession extends DatagramSession {
+
+		volatile int readSuspensions = 0;
+		volatile int readResumes = 0;
+		volatile long readResumedTime;
+		volatile int writeSuspensions = 0;
+		volatile long writeResumedTime;
+		volatile int pushes = 0;
+		long bytesPerPush = 0;
+
+		StubSession() {
+			open = true;
+		}
+
+		@Override
+		public void suspendRead() {
+			readSuspensions++;
+			super.suspendRead();
+		}
+
+		@Override
+		public synchronized void resumeRead() {
+			readResumes++;
+			super.resumeRead();
+			readResumedTime = System.nanoTime();
+			notifyAll();
+		}
+
+		@Override
+		public void suspendWrite() {
+			writeSuspensions++;
+			super.suspendWrite();
+		}
+
+		@Override
+		public synchronized void resumeWrite() {
+			super.resumeWrite();
+			writeResumedTime = System.nanoTime();
+			notifyAll();
+		}
+
+		@Override
+		public void pushData() {
+			pushes++;
+			writtenBytes += bytesPerPush;
+		}
+
+		synchronized boolean awaitReadResumed(long timeout) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeout;
+			while (isReadSuspended() && System.currentTimeMillis() < deadline) {
+				wait(deadline - System.currentTimeMillis());
+			}
+			return !isReadSuspended();
+		}
+
+		synchronized boolean awaitWriteResumed(long timeout) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeout;
+			while (isWriteSuspended() && System.currentTimeMillis() < deadline) {
+				wait(deadline - System.currentTimeMillis());
+			}
+			return !isWriteSuspended();
+		}
+	}
+
+	static class RecordingHandler extends HandlerAdapter {
+
+		final List<Object> received = new ArrayList<Object>();
+		int closed = 0;
+
+		@Override
+		public void dataReceived(Session session, Object data) {
+			received.add(data);
+		}
+
+		@Override
+		public void sessionClosed(Session session) {
+			closed++;
+		}
+	}
+
+}
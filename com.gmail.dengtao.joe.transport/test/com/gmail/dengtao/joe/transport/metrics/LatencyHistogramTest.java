@@ -0,0 +1,59 @@
+package com.gmail.dengtao.joe.transport.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testPrecision() throws Exception {
+		long[] values = { 0, 1, 31, 32, 33, 1000, 123456789L, Long.MAX_VALUE };
+		for (long value : values) {
+			long highest = LatencyHistogram.highestValue(LatencyHistogram.bucketIndex(value));
+			assertTrue(highest >= value);
+			assertTrue(highest - value <= value / 32);
+		}
+	}
+
+	@Test
+	public void testPercentile() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(1000, snapshot.getCount());
+		assertEquals(500500.0, snapshot.getMean(), 0.001);
+		assertNear(500000, snapshot.getValueAtPercentile(50));
+		assertNear(990000, snapshot.getValueAtPercentile(99));
+		assertNear(1000000, snapshot.getMax());
+		assertTrue(snapshot.getMin() <= 1000 && 1000 - snapshot.getMin() <= 1000 / 32);
+	}
+
+	@Test
+	public void testSnapshotAndReset() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(100);
+		histogram.record(-1);
+		LatencyHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+		assertEquals(2, snapshot.getCount());
+		assertEquals(0, snapshot.getMin());
+		assertEquals(0, histogram.snapshot().getCount());
+		histogram.record(7);
+		snapshot = histogram.snapshotAndReset();
+		assertEquals(1, snapshot.getCount());
+		assertEquals(7, snapshot.getValueAtPercentile(100));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIllegalPercentile() throws Exception {
+		new LatencyHistogram().snapshot().getValueAtPercentile(101);
+	}
+
+	private static void assertNear(long expected, long actual) {
+		assertTrue("expected " + expected + " but was " + actual, actual >= expected && actual - expected <= expected / 32);
+	}
+
+}
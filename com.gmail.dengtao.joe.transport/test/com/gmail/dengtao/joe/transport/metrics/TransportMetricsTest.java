@@ -0,0 +1,69 @@
+package com.gmail.dengtao.joe.transport.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import com.gmail.dengtao.joe.transport.util.StripedCounter;
+
+public class TransportMetricsTest {
+
+	@Test
+	public void testStripedCounter() throws Exception {
+		final StripedCounter counter = new StripedCounter();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 100000; j++) {
+						counter.increment();
+					}
+					counter.add(-50000);
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(8 * 50000, counter.sum());
+		counter.reset();
+		assertEquals(0, counter.sum());
+	}
+
+	@Test
+	public void testRegister() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		TransportMetrics metrics = new TransportMetrics();
+		TransportMetrics other = new TransportMetrics();
+		metrics.dataRead(new byte[10]);
+		metrics.dataRead(new byte[5]);
+		metrics.sessionOpened();
+
+		ObjectName name = metrics.register("TestAcceptor", "127.0.0.1:9999");
+		ObjectName otherName = other.register("TestAcceptor", "127.0.0.1:9999");
+		try {
+			assertFalse(name.equals(otherName));
+			assertEquals(15L, server.getAttribute(name, "BytesRead"));
+			assertEquals(2L, server.getAttribute(name, "MessagesRead"));
+			assertEquals(1L, server.getAttribute(name, "ActiveSessions"));
+		} finally {
+			metrics.unregister();
+			other.unregister();
+		}
+		assertFalse(server.isRegistered(name));
+		assertFalse(server.isRegistered(otherName));
+		assertNull(metrics.getObjectName());
+		assertTrue(name.getKeyProperty("type").equals("TestAcceptor"));
+	}
+
+}
@@ -0,0 +1,91 @@
+package com.gmail.dengtao.joe.transport.session.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.gmail.dengtao.joe.transport.Pushable;
+import com.gmail.dengtao.joe.transport.filter.FilterChain;
+import com.gmail.dengtao.joe.transport.handler.HandlerAdapter;
+import com.gmail.dengtao.joe.transport.session.Session;
+
+public class WriteBufferWaterMarkTest {
+
+	@Test
+	public void testWritabilityChanged() throws Exception {
+		DatagramChannel receiver = DatagramChannel.open();
+		DatagramChannel sender = DatagramChannel.open();
+		try {
+			receiver.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+			WritabilityHandler handler = new WritabilityHandler();
+			FilterChain filterChain = new FilterChain();
+			filterChain.setHandler(handler);
+			DatagramSession session = new DatagramSession(sender, new NopPushable(), filterChain, receiver.socket().getLocalSocketAddress());
+			session.setWriteBufferWaterMark(16, 32);
+			session.open();
+
+			// 4 x 10 bytes, the 4th crosses the high water mark
+			for (int i = 0; i < 4; i++) {
+				assertTrue(session.isWritable());
+				session.send(new byte[10]);
+			}
+			assertFalse(session.isWritable());
+			assertEquals(40, session.getQueuedBytes());
+			assertEquals(1, handler.changes.size());
+			assertFalse(handler.changes.get(0));
+
+			// still above the low water mark after 2 packets are sent
+			session.pushData();
+			session.pushData();
+			assertFalse(session.isWritable());
+			assertEquals(1, handler.changes.size());
+
+			session.pushData();
+			assertTrue(session.isWritable());
+			assertEquals(10, session.getQueuedBytes());
+			assertEquals(2, handler.changes.size());
+			assertTrue(handler.changes.get(1));
+
+			session.pushData();
+			assertEquals(0, session.getQueuedBytes());
+			assertEquals(2, handler.changes.size());
+		} finally {
+			sender.close();
+			receiver.close();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIllegalWaterMark() {
+		new DatagramSession().setWriteBufferWaterMark(32, 16);
+	}
+
+	private static class WritabilityHandler extends HandlerAdapter {
+
+		private final List<Boolean> changes = new ArrayList<Boolean>();
+
+		@Override
+		public void sessionWritabilityChanged(Session session) throws Exception {
+			changes.add(session.isWritable());
+		}
+	}
+
+	private static class NopPushable implements Pushable {
+
+		@Override
+		public void add(DatagramSession session) {
+		}
+
+		@Override
+		public void remove(DatagramSession session) {
+		}
+	}
+
+}
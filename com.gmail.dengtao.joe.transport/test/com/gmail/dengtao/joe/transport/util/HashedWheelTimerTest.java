@@ -0,0 +1,246 @@
+package com.gmail.dengtao.joe.transport.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.gmail.dengtao.joe.transport.util.HashedWheelTimer.Timeout;
+
+public class HashedWheelTimerTest {
+
+	private final List<Throwable> uncaught = Collections.synchronizedList(new ArrayList<Throwable>());
+
+	private final ThreadFactory threadFactory = new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "HashedWheelTimerTest");
+			thread.setDaemon(true);
+			thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+				@Override
+				public void uncaughtException(Thread t, Throwable e) {
+					uncaught.add(e);
+				}
+			});
+			return thread;
+		}
+	};
+
+	@Test
+	public void testExpiryOrder() throws Exception {
+		HashedWheelTimer timer = new HashedWheelTimer(threadFactory, 10, TimeUnit.MILLISECONDS, 8);
+		try {
+			final List<Integer> expired = Collections.synchronizedList(new ArrayList<Integer>());
+			final CountDownLatch latch = new CountDownLatch(3);
+			long[] delays = { 60, 20, 40 };
+			long start = System.nanoTime();
+			for (final long delay : delays) {
+				timer.newTimeout(new Runnable() {
+					@Override
+					public void run() {
+						expired.add((int) delay);
+						latch.countDown();
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			}
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			assertEquals(Arrays.asList(20, 40, 60), expired);
+			// never expires early
+			assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(60));
+		} finally {
+			timer.stop();
+		}
+	}
+
+	@Test
+	public void testDeadlineBeyondOneRound() throws Exception {
+		// one round of the wheel is 4 ticks of 10 milliseconds
+		HashedWheelTimer timer = new HashedWheelTimer(threadFactory, 10, TimeUnit.MILLISECONDS, 3);
+		try {
+			final CountDownLatch near = new CountDownLatch(1);
+			final CountDownLatch far = new CountDownLatch(1);
+			long start = System.nanoTime();
+			Timeout farTimeout = timer.newTimeout(new Runnable() {
+				@Override
+				public void run() {
+					far.countDown();
+				}
+			}, 150, TimeUnit.MILLISECONDS);
+			// hashes to the same bucket as the far timeout, rounds earlier
+			timer.newTimeout(new Runnable() {
+				@Override
+				public void run() {
+					near.countDown();
+				}
+			}, 30, TimeUnit.MILLISECONDS);
+			assertTrue(near.await(5, TimeUnit.SECONDS));
+			assertFalse(farTimeout.isExpired());
+			assertTrue(far.await(5, TimeUnit.SECONDS));
+			assertTrue(farTimeout.isExpired());
+			assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+		} finally {
+			timer.stop();
+		}
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		HashedWheelTimer timer = new HashedWheelTimer(threadFactory, 10, TimeUnit.MILLISECONDS, 8);
+		try {
+			final CountDownLatch cancelledRun = new CountDownLatch(1);
+			final CountDownLatch otherRun = new CountDownLatch(1);
+			Timeout cancelled = timer.newTimeout(new Runnable() {
+				@Override
+				public void run() {
+					cancelledRun.countDown();
+				}
+			}, 30, TimeUnit.MILLISECONDS);
+			Timeout other = timer.newTimeout(new Runnable() {
+				@Override
+				public void run() {
+					otherRun.countDown();
+				}
+			}, 60, TimeUnit.MILLISECONDS);
+			assertTrue(cancelled.cancel());
+			assertFalse(cancelled.cancel());
+			assertTrue(cancelled.isCancelled());
+
+			assertTrue(otherRun.await(5, TimeUnit.SECONDS));
+			assertEquals(1, cancelledRun.getCount());
+			assertFalse(cancelled.isExpired());
+			// an expired timeout can't be cancelled
+			assertTrue(other.isExpired());
+			assertFalse(other.cancel());
+			assertFalse(other.isCancelled());
+		} finally {
+			timer.stop();
+		}
+	}
+
+	@Test
+	public void testStop() throws Exception {
+		HashedWheelTimer timer = new HashedWheelTimer(threadFactory, 10, TimeUnit.MILLISECONDS, 8);
+		assertFalse(timer.isStarted());
+		final CountDownLatch run = new CountDownLatch(1);
+		Timeout timeout = timer.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				run.countDown();
+			}
+		}, 50, TimeUnit.MILLISECONDS);
+		assertTrue(timer.isStarted());
+		timer.stop();
+		assertFalse(timer.isStarted());
+		// pending timeouts never expire
+		assertFalse(run.await(200, TimeUnit.MILLISECONDS));
+		assertFalse(timeout.isExpired());
+		try {
+			timer.newTimeout(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}, 10, TimeUnit.MILLISECONDS);
+			fail("timer is stopped");
+		} catch (IllegalStateException e) {
+			/* expected... */
+		}
+		try {
+			timer.start();
+			fail("timer is stopped");
+		} catch (IllegalStateException e) {
+			/* expected... */
+		}
+		// stop twice
+		timer.stop();
+	}
+
+	@Test
+	public void testFailuresDontStopTheTickThread() throws Exception {
+		HashedWheelTimer timer = new HashedWheelTimer(threadFactory, 10, TimeUnit.MILLISECONDS, 8);
+		try {
+			// a timeout in a wrong bucket: due far in the future, but in the bucket of the next tick
+			final CountDownLatch misplacedRun = new CountDownLatch(1);
+			Timeout misplaced = new Timeout(new Runnable() {
+				@Override
+				public void run() {
+					misplacedRun.countDown();
+				}
+			}, TimeUnit.DAYS.toNanos(1));
+			Field wheelField = HashedWheelTimer.class.getDeclaredField("wheel");
+			wheelField.setAccessible(true);
+			Object bucket = ((Object[]) wheelField.get(timer))[0];
+			Method add = bucket.getClass().getDeclaredMethod("add", Timeout.class);
+			add.setAccessible(true);
+			add.invoke(bucket, misplaced);
+
+			timer.newTimeout(new Runnable() {
+				@Override
+				public void run() {
+					throw new RuntimeException("failed task");
+				}
+			}, 0, TimeUnit.MILLISECONDS);
+			final CountDownLatch laterRun = new CountDownLatch(1);
+			timer.newTimeout(new Runnable() {
+				@Override
+				public void run() {
+					laterRun.countDown();
+				}
+			}, 50, TimeUnit.MILLISECONDS);
+
+			assertTrue(laterRun.await(5, TimeUnit.SECONDS));
+			assertTrue(misplaced.isExpired());
+			assertEquals(0, misplacedRun.getCount());
+			assertEquals(2, uncaught.size());
+			assertTrue(uncaught.contains(findByClass(IllegalStateException.class)));
+			assertTrue(uncaught.contains(findByClass(RuntimeException.class)));
+		} finally {
+			timer.stop();
+		}
+	}
+
+	@Test
+	public void testIllegalArguments() {
+		try {
+			new HashedWheelTimer(null);
+			fail("threadFactory is null");
+		} catch (IllegalArgumentException e) {
+			/* expected... */
+		}
+		try {
+			new HashedWheelTimer(threadFactory, 0, TimeUnit.MILLISECONDS, 8);
+			fail("tick duration is not positive");
+		} catch (IllegalArgumentException e) {
+			/* expected... */
+		}
+		try {
+			new HashedWheelTimer(threadFactory, 10, TimeUnit.MILLISECONDS, 0);
+			fail("ticks per wheel is not positive");
+		} catch (IllegalArgumentException e) {
+			/* expected... */
+		}
+	}
+
+	private Throwable findByClass(Class<?> type) {
+		synchronized (uncaught) {
+			for (Throwable t : uncaught) {
+				if (t.getClass() == type) {
+					return t;
+				}
+			}
+		}
+		return null;
+	}
+
+}
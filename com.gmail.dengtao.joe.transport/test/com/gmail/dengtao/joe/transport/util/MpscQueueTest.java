@@ -0,0 +1,194 @@
+package com.gmail.dengtao.joe.transport.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.junit.Test;
+
+public class MpscQueueTest {
+
+	@Test
+	public void testFifoAcrossSegments() {
+		MpscQueue<Integer> queue = new MpscQueue<Integer>(2);
+		assertTrue(queue.isEmpty());
+		assertNull(queue.peek());
+		assertNull(queue.poll());
+		for (int i = 0; i < 100; i++) {
+			queue.offer(i);
+		}
+		assertEquals(100, queue.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(Integer.valueOf(i), queue.peek());
+			assertEquals(Integer.valueOf(i), queue.poll());
+		}
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void testInterleavedAcrossSegments() {
+		MpscQueue<Integer> queue = new MpscQueue<Integer>(4);
+		int next = 0;
+		int expected = 0;
+		// the queue grows and shrinks while crossing many segment boundaries
+		for (int round = 0; round < 200; round++) {
+			for (int i = 0; i < round % 7 + 1; i++) {
+				queue.offer(next++);
+			}
+			for (int i = 0; i < round % 5 + 1 && !queue.isEmpty(); i++) {
+				assertEquals(Integer.valueOf(expected++), queue.poll());
+			}
+			assertEquals(next - expected, queue.size());
+		}
+		queue.clear();
+		assertTrue(queue.isEmpty());
+		queue.offer(-1);
+		assertEquals(Integer.valueOf(-1), queue.poll());
+	}
+
+	@Test
+	public void testMultipleProducersKeepTheirOrder() throws Exception {
+		final int producers = 4;
+		final int count = 100000;
+		final MpscQueue<Long> queue = new MpscQueue<Long>(8);
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			final long producer = p;
+			threads[p] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (long i = 0; i < count; i++) {
+						queue.offer(producer * count + i);
+					}
+				}
+			});
+			threads[p].start();
+		}
+		start.countDown();
+		long[] last = new long[producers];
+		for (int p = 0; p < producers; p++) {
+			last[p] = -1;
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		for (int received = 0; received < producers * count; ) {
+			Long e = queue.poll();
+			if (e == null) {
+				assertTrue("producers stalled", System.nanoTime() < deadline);
+				Thread.yield();
+				continue;
+			}
+			int producer = (int) (e / count);
+			long sequence = e % count;
+			// every producer's elements come in the order it offered them, none is lost or duplicated
+			assertEquals(last[producer] + 1, sequence);
+			last[producer] = sequence;
+			received++;
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void testClaimedSlotIsWaitedFor() throws Exception {
+		final MpscQueue<String> queue = new MpscQueue<String>(2);
+		queue.offer("a");
+		queue.offer("b");
+		assertEquals("a", queue.poll());
+		assertEquals("b", queue.poll());
+		// claim index 2, the first slot of a segment which is not linked yet, like a producer preempted after claiming
+		claim(queue);
+		assertFalse(queue.isEmpty());
+
+		final AtomicReference<String> peeked = new AtomicReference<String>();
+		final AtomicReference<String> polled = new AtomicReference<String>();
+		Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				peeked.set(queue.peek());
+				polled.set(queue.poll());
+			}
+		});
+		consumer.start();
+		consumer.join(100);
+		// peek neither returns null nor skips the claimed slot
+		assertTrue(consumer.isAlive());
+		assertNull(peeked.get());
+
+		store(queue, "c");
+		consumer.join(10000);
+		assertFalse(consumer.isAlive());
+		assertEquals("c", peeked.get());
+		assertEquals("c", polled.get());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testIllegalArguments() {
+		try {
+			new MpscQueue<Object>(3);
+			fail("segment size is not a power of two");
+		} catch (IllegalArgumentException e) {
+			/* expected... */
+		}
+		try {
+			new MpscQueue<Object>().offer(null);
+			fail("null element");
+		} catch (NullPointerException e) {
+			/* expected... */
+		}
+	}
+
+	/**
+	 * Claim the next index without storing its element.
+	 */
+	private static void claim(MpscQueue<?> queue) throws Exception {
+		((AtomicLong) field(queue, "producerIndex")).getAndIncrement();
+	}
+
+	/**
+	 * Store the element of the claimed index 2 of a queue of segment size 2, linking its segment like offer does.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void store(MpscQueue<String> queue, String e) throws Exception {
+		Object segment = field(queue, "producerSegment");
+		Object next;
+		while ((next = field(segment, "next")) != null) {
+			segment = next;
+		}
+		Class<?> segmentClass = segment.getClass();
+		Constructor<?> constructor = segmentClass.getDeclaredConstructor(long.class, int.class);
+		constructor.setAccessible(true);
+		Object created = constructor.newInstance(2L, 2);
+		((AtomicReferenceArray<String>) field(created, "slots")).set(0, e);
+		Field nextField = segmentClass.getDeclaredField("next");
+		nextField.setAccessible(true);
+		nextField.set(segment, created);
+	}
+
+	private static Object field(Object target, String name) throws Exception {
+		Field field = target.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		return field.get(target);
+	}
+
+}
@@ -0,0 +1,80 @@
+package com.gmail.dengtao.joe.transport.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PackedAddressMapTest {
+
+	@Test
+	public void testPutGetRemove() throws Exception {
+		PackedAddressMap<String> map = new PackedAddressMap<String>();
+		InetSocketAddress v4 = new InetSocketAddress("10.0.0.1", 9999);
+		InetSocketAddress v6 = new InetSocketAddress(InetAddress.getByName("fe80::1"), 9999);
+		InetSocketAddress otherPort = new InetSocketAddress("10.0.0.1", 9998);
+		String value = "v4";
+
+		assertNull(map.put(v4, value));
+		assertNull(map.put(v6, "v6"));
+		assertEquals("v4", map.get(new InetSocketAddress("10.0.0.1", 9999)));
+		assertEquals("v6", map.get(new InetSocketAddress(InetAddress.getByName("fe80::1"), 9999)));
+		assertNull(map.get(otherPort));
+		assertEquals(2, map.size());
+
+		// removal is by identity of the value
+		assertFalse(map.remove(v4, new String("v4")));
+		assertTrue(map.remove(v4, value));
+		assertNull(map.get(v4));
+		assertEquals("v6", map.get(v6));
+		assertEquals(1, map.size());
+		map.clear();
+		assertNull(map.get(v6));
+		assertEquals(0, map.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnresolved() throws Exception {
+		new PackedAddressMap<String>().get(InetSocketAddress.createUnresolved("localhost", 80));
+	}
+
+	@Test
+	public void testSameAsHashMap() throws Exception {
+		Random random = new Random(1);
+		PackedAddressMap<Integer> map = new PackedAddressMap<Integer>();
+		Map<InetSocketAddress, Integer> expected = new HashMap<InetSocketAddress, Integer>();
+		InetSocketAddress[] addresses = new InetSocketAddress[2000];
+		for (int i = 0; i < addresses.length; i++) {
+			byte[] ip = new byte[i % 2 == 0 ? 4 : 16];
+			random.nextBytes(ip);
+			// few ips and ports, so keys collide in parts
+			ip[ip.length - 1] = (byte) (i % 7);
+			addresses[i] = new InetSocketAddress(InetAddress.getByAddress(ip), 1000 + i % 3);
+		}
+		for (int n = 0; n < 200000; n++) {
+			InetSocketAddress address = addresses[random.nextInt(addresses.length)];
+			Integer value = expected.get(address);
+			if (random.nextInt(3) == 0) {
+				assertEquals(value != null, map.remove(address, value));
+				expected.remove(address);
+			} else {
+				Integer newValue = Integer.valueOf(n);
+				assertEquals(value, map.put(address, newValue));
+				expected.put(address, newValue);
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for (InetSocketAddress address : addresses) {
+			assertEquals(expected.get(address), map.get(address));
+		}
+	}
+
+}
@@ -0,0 +1,38 @@
+package com.gmail.dengtao.joe.transport.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+
+import org.junit.Test;
+
+public class ReusePortTest {
+
+	@Test
+	public void testBindSamePort() throws Exception {
+		DatagramChannel first = DatagramChannel.open();
+		DatagramChannel second = DatagramChannel.open();
+		try {
+			if (!ReusePort.isSupported(first)) {
+				try {
+					ReusePort.enable(first);
+					fail("SO_REUSEPORT is not supported, enable should fail");
+				} catch (IllegalStateException e) {
+					/* expected... */
+				}
+				return;
+			}
+			ReusePort.enable(first);
+			ReusePort.enable(second);
+			first.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+			second.socket().bind(first.socket().getLocalSocketAddress());
+			assertEquals(first.socket().getLocalPort(), second.socket().getLocalPort());
+		} finally {
+			first.close();
+			second.close();
+		}
+	}
+
+}